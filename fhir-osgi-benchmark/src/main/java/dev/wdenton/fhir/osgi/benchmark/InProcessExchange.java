@@ -0,0 +1,321 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Startup Benchmark
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.benchmark;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.ReadListener;
+import javax.servlet.Servlet;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Calls a FHIR Server servlet directly, without an HTTP container.
+ * The request, response and servlet config are proxies that answer
+ * what a RestfulServer asks of them and default everything else, so
+ * the benchmark measures the framework and the publisher, not the
+ * network. The javax.servlet packages are exported by the system
+ * bundle so that the servlet in the framework and these proxies
+ * share the same classes.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class InProcessExchange {
+	private static final String ACCEPT = "application/fhir+json";
+
+	// the answer of a Handler for a method it doesn't implement
+	private static final Object NO_ANSWER = new Object();
+
+	private final String path;
+	private final String query;
+	private final Map<String,String> requestHeaders = new LinkedHashMap<>();
+	private final Map<String,Object> attributes = new HashMap<>();
+	private final Map<String,String> responseHeaders = new LinkedHashMap<>();
+	private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+	private PrintWriter writer;
+	private int status = HttpServletResponse.SC_OK;
+
+	private InProcessExchange (String path, Map<String,String> headers) {
+		int separator = path.indexOf('?');
+		this.path = (separator >= 0) ? path.substring(0, separator) : path;
+		this.query = (separator >= 0) ? path.substring(separator + 1) : null;
+		requestHeaders.put("accept", ACCEPT);
+		for (Map.Entry<String,String> header : headers.entrySet()) {
+			requestHeaders.put(header.getKey().toLowerCase(), header.getValue());
+		}
+	}
+
+	/**
+	 * Initialize a servlet as a container would
+	 *
+	 * @param servlet the servlet
+	 * @param name the name of the servlet
+	 * @throws ServletException
+	 */
+	public static void init (Servlet servlet, String name) throws ServletException {
+		ServletContext context = proxy(ServletContext.class, (method, args) -> {
+			switch (method.getName()) {
+				case "getContextPath": return "";
+				case "getServerInfo": return name;
+				case "getMajorVersion":
+				case "getEffectiveMajorVersion": return 3;
+				case "getMinorVersion":
+				case "getEffectiveMinorVersion": return 1;
+				default: return NO_ANSWER;
+			}
+		});
+		servlet.init(proxy(ServletConfig.class, (method, args) -> {
+			switch (method.getName()) {
+				case "getServletName": return name;
+				case "getServletContext": return context;
+				default: return NO_ANSWER;
+			}
+		}));
+	}
+
+	/**
+	 * Send a GET request to a servlet
+	 *
+	 * @param servlet the servlet
+	 * @param path the path of the request (/Patient/1)
+	 * @return the status of the response
+	 * @throws ServletException
+	 * @throws IOException
+	 */
+	public static int get (Servlet servlet, String path) throws ServletException, IOException {
+		return get(servlet, path, Collections.emptyMap());
+	}
+
+	/**
+	 * Send a GET request with headers to a servlet
+	 *
+	 * @param servlet the servlet
+	 * @param path the path of the request, with an optional query string (/Patient?_count=10)
+	 * @param headers the request headers besides Accept (Accept-Encoding...)
+	 * @return the status of the response
+	 * @throws ServletException
+	 * @throws IOException
+	 */
+	public static int get (Servlet servlet, String path, Map<String,String> headers) throws ServletException, IOException {
+		InProcessExchange exchange = new InProcessExchange(path, headers);
+		servlet.service(exchange.newRequest(), exchange.newResponse());
+		if (exchange.writer != null) {
+			exchange.writer.flush();
+		}
+		return exchange.status;
+	}
+
+	private HttpServletRequest newRequest () {
+		return proxy(HttpServletRequest.class, (method, args) -> {
+			switch (method.getName()) {
+				case "getMethod": return "GET";
+				case "getScheme": return "http";
+				case "getProtocol": return "HTTP/1.1";
+				case "getServerName":
+				case "getLocalName":
+				case "getRemoteHost": return "localhost";
+				case "getServerPort":
+				case "getLocalPort": return 80;
+				case "getRemoteAddr":
+				case "getLocalAddr": return "127.0.0.1";
+				case "getContextPath":
+				case "getServletPath": return "";
+				case "getPathInfo":
+				case "getRequestURI": return path;
+				case "getRequestURL": return new StringBuffer("http://localhost").append(path);
+				case "getQueryString": return query;
+				case "getParameterMap": return getParameters();
+				case "getParameter": {
+					String[] values = getParameters().get(args[0]);
+					return (values != null) ? values[0] : null;
+				}
+				case "getParameterNames": return Collections.enumeration(getParameters().keySet());
+				case "getHeader": return requestHeaders.get(((String)args[0]).toLowerCase());
+				case "getHeaders": {
+					String value = requestHeaders.get(((String)args[0]).toLowerCase());
+					return (value != null) ? Collections.enumeration(Collections.singleton(value)) : Collections.emptyEnumeration();
+				}
+				case "getHeaderNames": return Collections.enumeration(requestHeaders.keySet());
+				case "getCharacterEncoding": return StandardCharsets.UTF_8.name();
+				case "getContentLength": return -1;
+				case "getContentLengthLong": return -1L;
+				case "getLocale": return Locale.US;
+				case "getLocales": return Collections.enumeration(Collections.singleton(Locale.US));
+				case "getDispatcherType": return DispatcherType.REQUEST;
+				case "getAttribute": return attributes.get(args[0]);
+				case "getAttributeNames": return Collections.enumeration(attributes.keySet());
+				case "setAttribute": attributes.put((String)args[0], args[1]); return null;
+				case "removeAttribute": attributes.remove(args[0]); return null;
+				case "getInputStream": return new EmptyInputStream();
+				case "getReader": return new BufferedReader(new StringReader(""));
+				default: return NO_ANSWER;
+			}
+		});
+	}
+
+	private Map<String,String[]> getParameters () {
+		Map<String,String[]> parameters = new LinkedHashMap<>();
+		if (query != null) {
+			for (String pair : query.split("&")) {
+				int separator = pair.indexOf('=');
+				String name = URLDecoder.decode((separator >= 0) ? pair.substring(0, separator) : pair, StandardCharsets.UTF_8);
+				String value = (separator >= 0) ? URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8) : "";
+				String[] values = parameters.get(name);
+				values = (values != null) ? Arrays.copyOf(values, values.length + 1) : new String[1];
+				values[values.length - 1] = value;
+				parameters.put(name, values);
+			}
+		}
+		return parameters;
+	}
+
+	private HttpServletResponse newResponse () {
+		return proxy(HttpServletResponse.class, (method, args) -> {
+			switch (method.getName()) {
+				case "setStatus":
+				case "sendError": status = (Integer)args[0]; return null;
+				case "getStatus": return status;
+				case "setHeader":
+				case "addHeader":
+				case "setIntHeader":
+				case "addIntHeader":
+				case "setDateHeader":
+				case "addDateHeader": responseHeaders.put(((String)args[0]).toLowerCase(), String.valueOf(args[1])); return null;
+				case "containsHeader": return responseHeaders.containsKey(((String)args[0]).toLowerCase());
+				case "getHeader": return responseHeaders.get(((String)args[0]).toLowerCase());
+				case "getHeaders": return Collections.singletonList(responseHeaders.get(((String)args[0]).toLowerCase()));
+				case "getHeaderNames": return responseHeaders.keySet();
+				case "setContentType": responseHeaders.put("content-type", (String)args[0]); return null;
+				case "getContentType": return responseHeaders.get("content-type");
+				case "getCharacterEncoding": return StandardCharsets.UTF_8.name();
+				case "getBufferSize": return 8192;
+				case "encodeURL":
+				case "encodeRedirectURL": return args[0];
+				case "getOutputStream": return new CapturingOutputStream();
+				case "getWriter":
+					if (null == writer) {
+						writer = new PrintWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8));
+					}
+					return writer;
+				default: return NO_ANSWER;
+			}
+		});
+	}
+
+	private interface Handler {
+		Object invoke (Method method, Object[] args) throws Throwable;
+	}
+
+	private static <T> T proxy (Class<T> type, Handler handler) {
+		InvocationHandler invocationHandler = (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "equals": return proxy == args[0];
+				case "hashCode": return System.identityHashCode(proxy);
+				case "toString": return type.getSimpleName()+"@"+Integer.toHexString(System.identityHashCode(proxy));
+				default:
+			}
+			Object answer = handler.invoke(method, args);
+			return (answer != NO_ANSWER) ? answer : getDefault(method.getReturnType());
+		};
+		return type.cast(Proxy.newProxyInstance(InProcessExchange.class.getClassLoader(), new Class<?>[] { type }, invocationHandler));
+	}
+
+	private static Object getDefault (Class<?> type) {
+		if (boolean.class == type) {
+			return false;
+		} else if (int.class == type) {
+			return 0;
+		} else if (long.class == type) {
+			return 0L;
+		} else if (java.util.Enumeration.class == type) {
+			return Collections.emptyEnumeration();
+		} else if (Map.class == type) {
+			return Collections.emptyMap();
+		}
+		return null;
+	}
+
+	private class CapturingOutputStream extends ServletOutputStream {
+		@Override
+		public void write (int b) {
+			body.write(b);
+		}
+
+		@Override
+		public void write (byte[] b, int off, int len) {
+			body.write(b, off, len);
+		}
+
+		@Override
+		public boolean isReady () {
+			return true;
+		}
+
+		@Override
+		public void setWriteListener (WriteListener listener) {
+		}
+	}
+
+	private static class EmptyInputStream extends ServletInputStream {
+		@Override
+		public int read () {
+			return -1;
+		}
+
+		@Override
+		public boolean isFinished () {
+			return true;
+		}
+
+		@Override
+		public boolean isReady () {
+			return true;
+		}
+
+		@Override
+		public void setReadListener (ReadListener listener) {
+		}
+	}
+
+}
@@ -0,0 +1,101 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Startup Benchmark
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Generates the provider bundles installed by the benchmark. Each
+ * bundle only holds a manifest and a blueprint that publishes a
+ * {@code GeneratedResourceProvider} for one resource type in an
+ * {@code IOsgiProviderCollection} service for the benchmark server,
+ * the way a real provider bundle does.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class ProviderBundleGenerator {
+	public static final String SYMBOLIC_NAME_PREFIX = "dev.wdenton.fhir.osgi.benchmark.provider.";
+
+	private final String serverName;
+
+	/**
+	 * @param serverName the fhir.server.name of the server the providers are registered with
+	 */
+	public ProviderBundleGenerator (String serverName) {
+		this.serverName = serverName;
+	}
+
+	/**
+	 * @param index the number of the bundle
+	 * @param resourceName the resource type of its provider
+	 * @return the content of the bundle jar
+	 * @throws IOException
+	 */
+	public byte[] generate (int index, String resourceName) throws IOException {
+		Manifest manifest = new Manifest();
+		Attributes attributes = manifest.getMainAttributes();
+		attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		attributes.putValue("Bundle-ManifestVersion", "2");
+		attributes.putValue("Bundle-SymbolicName", SYMBOLIC_NAME_PREFIX+index);
+		attributes.putValue("Bundle-Version", "1.0.0");
+		attributes.putValue("Bundle-Name", "Benchmark "+resourceName+" Provider");
+		attributes.putValue("Import-Package", "dev.wdenton.fhir.osgi.server,dev.wdenton.fhir.osgi.benchmark.fixture");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (JarOutputStream jar = new JarOutputStream(bytes, manifest)) {
+			jar.putNextEntry(new JarEntry("OSGI-INF/blueprint/provider.xml"));
+			jar.write(getBlueprint(index, resourceName).getBytes(StandardCharsets.UTF_8));
+			jar.closeEntry();
+		}
+		return bytes.toByteArray();
+	}
+
+	private String getBlueprint (int index, String resourceName) {
+		StringBuilder xml = new StringBuilder();
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		xml.append("<blueprint xmlns=\"http://www.osgi.org/xmlns/blueprint/v1.0.0\">\n");
+		xml.append("\t<bean id=\"provider\" class=\"dev.wdenton.fhir.osgi.benchmark.fixture.GeneratedResourceProvider\">\n");
+		xml.append("\t\t<argument value=\"").append(resourceName).append("\" />\n");
+		xml.append("\t</bean>\n");
+		xml.append("\t<service interface=\"dev.wdenton.fhir.osgi.server.IOsgiProviderCollection\">\n");
+		xml.append("\t\t<service-properties>\n");
+		xml.append("\t\t\t<entry key=\"name\" value=\"benchmark-provider-").append(index).append("\" />\n");
+		xml.append("\t\t\t<entry key=\"fhir.server.name\" value=\"").append(serverName).append("\" />\n");
+		xml.append("\t\t</service-properties>\n");
+		xml.append("\t\t<bean class=\"dev.wdenton.fhir.osgi.server.SimpleOsgiProviderCollection\">\n");
+		xml.append("\t\t\t<property name=\"providers\">\n");
+		xml.append("\t\t\t\t<list>\n");
+		xml.append("\t\t\t\t\t<ref component-id=\"provider\" />\n");
+		xml.append("\t\t\t\t</list>\n");
+		xml.append("\t\t\t</property>\n");
+		xml.append("\t\t</bean>\n");
+		xml.append("\t</service>\n");
+		xml.append("</blueprint>\n");
+		return xml.toString();
+	}
+
+}
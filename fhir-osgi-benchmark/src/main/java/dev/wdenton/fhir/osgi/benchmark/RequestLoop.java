@@ -0,0 +1,135 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.benchmark;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+
+/**
+ * Sends the same requests to a servlet over and over on the calling
+ * thread, and measures the time and the heap allocated per request.
+ * The allocation is read from the JVM's per-thread counter, so it only
+ * counts what the request thread allocates (not background threads).
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class RequestLoop {
+	private final Servlet servlet;
+	private final List<String> paths;
+	private final Map<String,String> headers;
+
+	/**
+	 * @param servlet the initialized servlet
+	 * @param paths the paths of the requests, sent in turn
+	 * @param headers the request headers
+	 */
+	public RequestLoop (Servlet servlet, List<String> paths, Map<String,String> headers) {
+		this.servlet = servlet;
+		this.paths = paths;
+		this.headers = headers;
+	}
+
+	/**
+	 * Send the warm-up requests, then time the measured ones
+	 *
+	 * @param warmup the number of requests sent before measuring
+	 * @param requests the number of requests measured
+	 * @return the measures
+	 * @throws IllegalStateException if a request doesn't succeed
+	 * @throws ServletException
+	 * @throws IOException
+	 */
+	public Result run (int warmup, int requests) throws ServletException, IOException {
+		for (int i = 0; i < warmup; i++) {
+			send(i);
+		}
+		long allocatedBefore = getAllocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < requests; i++) {
+			send(i);
+		}
+		long elapsed = System.nanoTime() - start;
+		long allocated = getAllocatedBytes() - allocatedBefore;
+		return new Result(requests, elapsed, (allocatedBefore >= 0) ? allocated : -1);
+	}
+
+	private void send (int i) throws ServletException, IOException {
+		String path = paths.get(i % paths.size());
+		int status = InProcessExchange.get(servlet, path, headers);
+		if (status != 200) {
+			throw new IllegalStateException("Request ["+path+"] failed with status ["+status+"]");
+		}
+	}
+
+	/*
+	 * The bytes allocated so far by this thread, -1 if the JVM can't tell
+	 */
+	private static long getAllocatedBytes () {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean)threads;
+			if (counter.isThreadAllocatedMemorySupported() && counter.isThreadAllocatedMemoryEnabled()) {
+				return counter.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * The measures of a loop of requests
+	 */
+	public static class Result {
+		private final int requests;
+		private final long elapsedNanos;
+		private final long allocatedBytes;
+
+		private Result (int requests, long elapsedNanos, long allocatedBytes) {
+			this.requests = requests;
+			this.elapsedNanos = elapsedNanos;
+			this.allocatedBytes = allocatedBytes;
+		}
+
+		public int getRequests () {
+			return requests;
+		}
+
+		/**
+		 * @return the mean time of a request in microseconds
+		 */
+		public double getMicrosPerRequest () {
+			return elapsedNanos / 1000.0 / requests;
+		}
+
+		/**
+		 * @return the mean heap allocated by a request, -1 if unknown
+		 */
+		public long getBytesPerRequest () {
+			return (allocatedBytes >= 0) ? allocatedBytes / requests : -1;
+		}
+	}
+
+}
@@ -0,0 +1,186 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.benchmark;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import dev.wdenton.fhir.osgi.server.ResponseBufferPool;
+import dev.wdenton.fhir.osgi.server.ResponsePoolingFeature;
+import dev.wdenton.fhir.osgi.server.SimpleOsgiRestfulServer;
+
+/**
+ * Measures the heap allocated and the time taken per response by a
+ * server with and without a {@code ResponsePoolingFeature}, for plain and gzip
+ * responses. Each mode gets its own server, called in-process with
+ * the same search, whose results have {@code benchmark.searchSize}
+ * resources. The results are written as JSON and the build fails
+ * when a pooled mode allocates more per request than its limit. Run it
+ * with {@code mvn -P BENCHMARK verify}; it is configured with system
+ * properties:
+ * <ul>
+ * <li>benchmark.searchSize: the number of resources in a response (50)</li>
+ * <li>benchmark.warmup: the number of requests sent before measuring (5000)</li>
+ * <li>benchmark.requests: the number of requests measured per mode (20000)</li>
+ * <li>benchmark.output: the results file (response-benchmark.json)</li>
+ * <li>benchmark.maxPooledBytesPerRequest: the limit of the pooled modes (0 = none)</li>
+ * </ul>
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class ResponseAllocationBenchmark {
+	private static Logger log = LoggerFactory.getLogger(ResponseAllocationBenchmark.class);
+	private static final String RESOURCE_NAME = "Patient";
+
+	private final int searchSize;
+	private final int warmup;
+	private final int requests;
+
+	public ResponseAllocationBenchmark (int searchSize, int warmup, int requests) {
+		this.searchSize = searchSize;
+		this.warmup = warmup;
+		this.requests = requests;
+	}
+
+	public static void main (String[] args) throws Exception {
+		int searchSize = Integer.getInteger("benchmark.searchSize", 50);
+		int warmup = Integer.getInteger("benchmark.warmup", 5000);
+		int requests = Integer.getInteger("benchmark.requests", 20000);
+		File output = new File(System.getProperty("benchmark.output", "response-benchmark.json"));
+		long maxPooledBytesPerRequest = Long.getLong("benchmark.maxPooledBytesPerRequest", 0);
+
+		ResponseAllocationBenchmark benchmark = new ResponseAllocationBenchmark(searchSize, warmup, requests);
+		List<Mode> modes = new ArrayList<>();
+		for (boolean gzip : new boolean[] { false, true }) {
+			for (boolean pooled : new boolean[] { false, true }) {
+				Mode mode = benchmark.run(pooled, gzip);
+				log.info(mode+": ["+mode.result.getBytesPerRequest()+"] bytes and ["+String.format("%.1f", mode.result.getMicrosPerRequest())+"] us per request"
+						+(pooled ? ", buffers allocated ["+mode.bufferAllocations+"] reused ["+mode.bufferReuses+"], Deflaters allocated ["+mode.deflaterAllocations+"] reused ["+mode.deflaterReuses+"]" : ""));
+				modes.add(mode);
+			}
+		}
+		Files.write(output.toPath(), toJson(searchSize, modes).getBytes(StandardCharsets.UTF_8));
+		log.info("Results written to ["+output+"]");
+
+		boolean regressed = false;
+		for (Mode mode : modes) {
+			if (mode.pooled && maxPooledBytesPerRequest > 0 && mode.result.getBytesPerRequest() > maxPooledBytesPerRequest) {
+				log.error(mode+" allocates ["+mode.result.getBytesPerRequest()+"] bytes per request, over the limit of ["+maxPooledBytesPerRequest+"]");
+				regressed = true;
+			}
+		}
+		System.exit(regressed ? 1 : 0);
+	}
+
+	/**
+	 * Start a server in the given mode and measure its responses
+	 *
+	 * @param pooled true to register a ResponsePoolingFeature with the server
+	 * @param gzip true to ask for gzip responses
+	 * @return the measures of the mode
+	 * @throws Exception if the server fails to start or to answer
+	 */
+	public Mode run (boolean pooled, boolean gzip) throws Exception {
+		SimpleOsgiRestfulServer server = new SimpleOsgiRestfulServer(FhirContext.forR4Cached());
+		ResponsePoolingFeature pooling = pooled ? new ResponsePoolingFeature() : null;
+		if (pooling != null) {
+			server.registerFeature(pooling);
+		}
+		server.registerOsgiProvider(new SearchResourceProvider(RESOURCE_NAME, searchSize));
+		InProcessExchange.init(server, "benchmark");
+		try {
+			Map<String,String> headers = gzip ? Collections.singletonMap("Accept-Encoding", "gzip") : Collections.emptyMap();
+			RequestLoop loop = new RequestLoop(server, Collections.singletonList("/"+RESOURCE_NAME), headers);
+			Mode mode = new Mode(pooled, gzip, loop.run(warmup, requests));
+			if (pooling != null) {
+				ResponseBufferPool pool = pooling.getResponseBufferPool();
+				mode.bufferAllocations = pool.getBufferAllocations();
+				mode.bufferReuses = pool.getBufferReuses();
+				mode.deflaterAllocations = pool.getDeflaterAllocations();
+				mode.deflaterReuses = pool.getDeflaterReuses();
+			}
+			return mode;
+		} finally {
+			server.destroy();
+		}
+	}
+
+	private static String toJson (int searchSize, List<Mode> modes) {
+		StringBuilder json = new StringBuilder();
+		json.append("{\"searchSize\":").append(searchSize);
+		json.append(",\"modes\":[");
+		for (int i = 0; i < modes.size(); i++) {
+			Mode mode = modes.get(i);
+			if (i > 0) {
+				json.append(',');
+			}
+			json.append("{\"pooled\":").append(mode.pooled);
+			json.append(",\"gzip\":").append(mode.gzip);
+			json.append(",\"requests\":").append(mode.result.getRequests());
+			json.append(",\"bytesPerRequest\":").append(mode.result.getBytesPerRequest());
+			json.append(",\"microsPerRequest\":").append(String.format("%.1f", mode.result.getMicrosPerRequest()));
+			json.append(",\"bufferAllocations\":").append(mode.bufferAllocations);
+			json.append(",\"bufferReuses\":").append(mode.bufferReuses);
+			json.append(",\"deflaterAllocations\":").append(mode.deflaterAllocations);
+			json.append(",\"deflaterReuses\":").append(mode.deflaterReuses).append('}');
+		}
+		json.append("]}\n");
+		return json.toString();
+	}
+
+	/**
+	 * The measures of one server mode
+	 */
+	public static class Mode {
+		private final boolean pooled;
+		private final boolean gzip;
+		private final RequestLoop.Result result;
+		private long bufferAllocations;
+		private long bufferReuses;
+		private long deflaterAllocations;
+		private long deflaterReuses;
+
+		private Mode (boolean pooled, boolean gzip, RequestLoop.Result result) {
+			this.pooled = pooled;
+			this.gzip = gzip;
+			this.result = result;
+		}
+
+		public RequestLoop.Result getResult () {
+			return result;
+		}
+
+		@Override
+		public String toString () {
+			return (pooled ? "pooled" : "unpooled")+(gzip ? " gzip" : " plain");
+		}
+	}
+
+}
@@ -0,0 +1,168 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.benchmark;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import dev.wdenton.fhir.osgi.benchmark.fixture.GeneratedResourceProvider;
+import dev.wdenton.fhir.osgi.server.SimpleOsgiRestfulServer;
+
+/**
+ * Measures the time and the heap allocated to route a read on a
+ * server with a growing number of providers, with and without
+ * {@code precomputedDispatch}. Each count gets its own server with that
+ * many generated resource providers; past the number of R4 resource
+ * types the providers share types, so a type has several bindings as
+ * when several bundles contribute to it. The reads cycle through every
+ * registered type. The results are written as JSON. Run it with
+ * {@code mvn -P BENCHMARK verify}; it is configured with system
+ * properties:
+ * <ul>
+ * <li>benchmark.routingProviders: the provider counts (10,50,100,250,500)</li>
+ * <li>benchmark.warmup: the number of requests sent before measuring (5000)</li>
+ * <li>benchmark.requests: the number of requests measured per server (20000)</li>
+ * <li>benchmark.output: the results file (routing-benchmark.json)</li>
+ * </ul>
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class RoutingBenchmark {
+	private static Logger log = LoggerFactory.getLogger(RoutingBenchmark.class);
+
+	private final List<String> resourceNames;
+	private final int warmup;
+	private final int requests;
+
+	/**
+	 * @param resourceNames the resource types given to the providers in turn
+	 * @param warmup the number of requests sent before measuring
+	 * @param requests the number of requests measured per server
+	 */
+	public RoutingBenchmark (List<String> resourceNames, int warmup, int requests) {
+		this.resourceNames = resourceNames;
+		this.warmup = warmup;
+		this.requests = requests;
+	}
+
+	public static void main (String[] args) throws Exception {
+		String counts = System.getProperty("benchmark.routingProviders", "10,50,100,250,500");
+		int warmup = Integer.getInteger("benchmark.warmup", 5000);
+		int requests = Integer.getInteger("benchmark.requests", 20000);
+		File output = new File(System.getProperty("benchmark.output", "routing-benchmark.json"));
+
+		List<String> resourceNames = new ArrayList<>(new TreeSet<>(FhirContext.forR4Cached().getResourceTypes()));
+		RoutingBenchmark benchmark = new RoutingBenchmark(resourceNames, warmup, requests);
+		List<Run> runs = new ArrayList<>();
+		for (String count : counts.split(",")) {
+			int providers = Integer.parseInt(count.trim());
+			for (boolean precomputed : new boolean[] { false, true }) {
+				Run run = benchmark.run(providers, precomputed);
+				log.info(run+": ["+String.format("%.1f", run.result.getMicrosPerRequest())+"] us and ["+run.result.getBytesPerRequest()+"] bytes per request");
+				runs.add(run);
+			}
+		}
+		Files.write(output.toPath(), toJson(runs).getBytes(StandardCharsets.UTF_8));
+		log.info("Results written to ["+output+"]");
+	}
+
+	/**
+	 * Start a server with the given number of providers and measure its reads
+	 *
+	 * @param providers the number of providers registered
+	 * @param precomputed true to set precomputedDispatch on the server
+	 * @return the measures of the server
+	 * @throws Exception if the server fails to start or to answer
+	 */
+	public Run run (int providers, boolean precomputed) throws Exception {
+		SimpleOsgiRestfulServer server = new SimpleOsgiRestfulServer(FhirContext.forR4Cached());
+		server.setPrecomputedDispatch(precomputed);
+		List<Object> resourceProviders = new ArrayList<>(providers);
+		List<String> paths = new ArrayList<>();
+		for (int i = 0; i < providers; i++) {
+			String resourceName = resourceNames.get(i % resourceNames.size());
+			resourceProviders.add(new GeneratedResourceProvider(resourceName));
+			if (i < resourceNames.size()) {
+				paths.add("/"+resourceName+"/"+(i + 1));
+			}
+		}
+		server.registerOsgiProviders(resourceProviders);
+		InProcessExchange.init(server, "benchmark");
+		try {
+			RequestLoop loop = new RequestLoop(server, paths, Collections.emptyMap());
+			return new Run(providers, precomputed, loop.run(warmup, requests));
+		} finally {
+			server.destroy();
+		}
+	}
+
+	private static String toJson (List<Run> runs) {
+		StringBuilder json = new StringBuilder();
+		json.append("{\"runs\":[");
+		for (int i = 0; i < runs.size(); i++) {
+			Run run = runs.get(i);
+			if (i > 0) {
+				json.append(',');
+			}
+			json.append("{\"providers\":").append(run.providers);
+			json.append(",\"precomputedDispatch\":").append(run.precomputed);
+			json.append(",\"requests\":").append(run.result.getRequests());
+			json.append(",\"microsPerRequest\":").append(String.format("%.1f", run.result.getMicrosPerRequest()));
+			json.append(",\"bytesPerRequest\":").append(run.result.getBytesPerRequest()).append('}');
+		}
+		json.append("]}\n");
+		return json.toString();
+	}
+
+	/**
+	 * The measures of one server
+	 */
+	public static class Run {
+		private final int providers;
+		private final boolean precomputed;
+		private final RequestLoop.Result result;
+
+		private Run (int providers, boolean precomputed, RequestLoop.Result result) {
+			this.providers = providers;
+			this.precomputed = precomputed;
+			this.result = result;
+		}
+
+		public RequestLoop.Result getResult () {
+			return result;
+		}
+
+		@Override
+		public String toString () {
+			return "["+providers+"] providers"+(precomputed ? " with" : " without")+" precomputed dispatch";
+		}
+	}
+
+}
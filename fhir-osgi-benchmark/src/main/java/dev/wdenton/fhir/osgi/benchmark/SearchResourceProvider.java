@@ -0,0 +1,62 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.rest.annotation.Search;
+import dev.wdenton.fhir.osgi.benchmark.fixture.GeneratedResourceProvider;
+
+/**
+ * A generated resource provider that also answers a search of its
+ * resource type with a fixed number of resources, so the benchmarks
+ * can send responses of a known size.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class SearchResourceProvider extends GeneratedResourceProvider {
+	private final int searchSize;
+
+	/**
+	 * @param resourceName the name of an R4 resource type (Patient, Observation...)
+	 * @param searchSize the number of resources in the results of a search
+	 * @throws ClassNotFoundException if it isn't an R4 resource type
+	 */
+	public SearchResourceProvider (String resourceName, int searchSize) throws ClassNotFoundException {
+		super(resourceName);
+		this.searchSize = searchSize;
+	}
+
+	@Search
+	public List<IBaseResource> search () throws ReflectiveOperationException {
+		List<IBaseResource> resources = new ArrayList<>(searchSize);
+		for (int i = 0; i < searchSize; i++) {
+			IBaseResource resource = getResourceType().getDeclaredConstructor().newInstance();
+			resource.setId(getResourceType().getSimpleName()+"/"+(i + 1));
+			resources.add(resource);
+		}
+		return resources;
+	}
+
+}
@@ -0,0 +1,318 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Startup Benchmark
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.TreeSet;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+import javax.servlet.Servlet;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.launch.FrameworkFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * Measures how long an embedded OSGi framework takes, once the
+ * {@code fhir-osgi-server} bundle, its dependencies, the benchmark
+ * server and N generated provider bundles are installed, until
+ * <ul>
+ * <li>the first FHIR request to a provider succeeds (time-to-first-request)</li>
+ * <li>a request to every provider succeeds (time-to-all-providers-ready)</li>
+ * </ul>
+ * Each run starts a new framework with clean storage. The results of
+ * all runs are written as JSON and the build fails when the median of
+ * the runs exceeds its configured limit. Run it with
+ * {@code mvn -P BENCHMARK verify}; it is configured with system properties:
+ * <ul>
+ * <li>benchmark.bundles: the directory of the bundles to install (required)</li>
+ * <li>benchmark.fixture: the bundle with the benchmark server (required)</li>
+ * <li>benchmark.providers: the number of provider bundles (50)</li>
+ * <li>benchmark.runs: the number of runs (5)</li>
+ * <li>benchmark.timeoutMillis: the longest a run may take (120000)</li>
+ * <li>benchmark.output: the results file (startup-benchmark.json)</li>
+ * <li>benchmark.maxFirstRequestMillis, benchmark.maxAllReadyMillis: the limits (0 = none)</li>
+ * </ul>
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class StartupBenchmark {
+	private static Logger log = LoggerFactory.getLogger(StartupBenchmark.class);
+	public static final String SERVER_NAME = "benchmark";
+	private static final String SERVER_INTERFACE = "dev.wdenton.fhir.osgi.server.IOsgiRestfulServer";
+
+	private final List<File> bundleFiles;
+	private final File fixture;
+	private final List<String> resourceNames;
+	private final long timeoutMillis;
+
+	public StartupBenchmark (List<File> bundleFiles, File fixture, List<String> resourceNames, long timeoutMillis) {
+		this.bundleFiles = bundleFiles;
+		this.fixture = fixture;
+		this.resourceNames = resourceNames;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	public static void main (String[] args) throws Exception {
+		File bundles = new File(getRequiredProperty("benchmark.bundles"));
+		File fixture = new File(getRequiredProperty("benchmark.fixture"));
+		int providers = Integer.getInteger("benchmark.providers", 50);
+		int runs = Integer.getInteger("benchmark.runs", 5);
+		long timeoutMillis = Long.getLong("benchmark.timeoutMillis", 120000);
+		File output = new File(System.getProperty("benchmark.output", "startup-benchmark.json"));
+		long maxFirstRequestMillis = Long.getLong("benchmark.maxFirstRequestMillis", 0);
+		long maxAllReadyMillis = Long.getLong("benchmark.maxAllReadyMillis", 0);
+
+		// one provider for each resource type; a server can't have two for the same type
+		List<String> resourceNames = new ArrayList<>(new TreeSet<>(FhirContext.forR4Cached().getResourceTypes()));
+		if (providers > resourceNames.size()) {
+			throw new IllegalArgumentException("At most ["+resourceNames.size()+"] providers can be generated");
+		}
+		File[] files = bundles.listFiles((dir, name) -> name.endsWith(".jar"));
+		if (null == files) {
+			throw new IllegalArgumentException("The bundle directory ["+bundles+"] can't be read");
+		}
+		Arrays.sort(files);
+
+		StartupBenchmark benchmark = new StartupBenchmark(Arrays.asList(files), fixture, resourceNames.subList(0, providers), timeoutMillis);
+		List<Run> results = new ArrayList<>();
+		for (int i = 0; i < runs; i++) {
+			Run run = benchmark.run();
+			log.info("Run ["+(i + 1)+"/"+runs+"]: installed in ["+run.installMillis+"] ms, first request after ["+run.firstRequestMillis+"] ms, all ["+providers+"] providers ready after ["+run.allReadyMillis+"] ms");
+			results.add(run);
+		}
+
+		long firstRequest = median(results, true);
+		long allReady = median(results, false);
+		Files.write(output.toPath(), toJson(providers, results).getBytes(StandardCharsets.UTF_8));
+		log.info("Median time-to-first-request ["+firstRequest+"] ms, time-to-all-providers-ready ["+allReady+"] ms (written to ["+output+"])");
+
+		boolean regressed = false;
+		if (maxFirstRequestMillis > 0 && firstRequest > maxFirstRequestMillis) {
+			log.error("Time-to-first-request ["+firstRequest+"] ms exceeds the limit of ["+maxFirstRequestMillis+"] ms");
+			regressed = true;
+		}
+		if (maxAllReadyMillis > 0 && allReady > maxAllReadyMillis) {
+			log.error("Time-to-all-providers-ready ["+allReady+"] ms exceeds the limit of ["+maxAllReadyMillis+"] ms");
+			regressed = true;
+		}
+		System.exit(regressed ? 1 : 0);
+	}
+
+	/**
+	 * Start a new framework, install the bundles and time the first
+	 * successful request and the first success of every provider
+	 *
+	 * @return the times of the run
+	 * @throws Exception if the framework fails or the run times out
+	 */
+	public Run run () throws Exception {
+		File storage = Files.createTempDirectory("fhir-osgi-benchmark").toFile();
+		Map<String,String> config = new HashMap<>();
+		config.put(Constants.FRAMEWORK_STORAGE, storage.getAbsolutePath());
+		config.put(Constants.FRAMEWORK_STORAGE_CLEAN, Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+		config.put(Constants.FRAMEWORK_SYSTEMPACKAGES_EXTRA, "javax.servlet;version=\"3.1.0\",javax.servlet.http;version=\"3.1.0\",javax.servlet.annotation;version=\"3.1.0\",javax.servlet.descriptor;version=\"3.1.0\"");
+		Framework framework = ServiceLoader.load(FrameworkFactory.class).iterator().next().newFramework(config);
+		Run run = new Run();
+		try {
+			long start = System.nanoTime();
+			framework.init();
+			BundleContext context = framework.getBundleContext();
+			List<Bundle> installed = new ArrayList<>();
+			for (File file : bundleFiles) {
+				if (isBundle(file)) {
+					installed.add(context.installBundle(file.toURI().toString()));
+				} else {
+					log.warn("Skipping ["+file.getName()+"] which isn't an OSGi bundle");
+				}
+			}
+			installed.add(context.installBundle(fixture.toURI().toString()));
+			ProviderBundleGenerator generator = new ProviderBundleGenerator(SERVER_NAME);
+			for (int i = 0; i < resourceNames.size(); i++) {
+				try (InputStream content = new ByteArrayInputStream(generator.generate(i, resourceNames.get(i)))) {
+					installed.add(context.installBundle("benchmark:provider-"+i, content));
+				}
+			}
+			long ready = System.nanoTime();
+			run.installMillis = toMillis(ready - start);
+
+			framework.start();
+			for (Bundle bundle : installed) {
+				if (null == bundle.getHeaders().get(Constants.FRAGMENT_HOST)) {
+					bundle.start();
+				}
+			}
+			awaitProviders(context, ready, run);
+		} finally {
+			framework.stop();
+			framework.waitForStop(timeoutMillis);
+			deleteAll(storage);
+		}
+		return run;
+	}
+
+	/*
+	 * Read every provider's resource until they have all answered
+	 */
+	private void awaitProviders (BundleContext context, long ready, Run run) throws Exception {
+		long deadline = ready + timeoutMillis * 1000000L;
+		List<String> waiting = new ArrayList<>(resourceNames);
+		Servlet servlet = null;
+		while (!waiting.isEmpty()) {
+			if (System.nanoTime() > deadline) {
+				throw new IllegalStateException("Timed out with ["+waiting.size()+"] providers not ready (server "+((servlet != null) ? "registered" : "not registered")+")");
+			}
+			if (null == servlet) {
+				servlet = getServlet(context);
+			}
+			if (servlet != null) {
+				for (int i = waiting.size() - 1; i >= 0; i--) {
+					if (200 == InProcessExchange.get(servlet, "/"+waiting.get(i)+"/1")) {
+						waiting.remove(i);
+						if (run.firstRequestMillis < 0) {
+							run.firstRequestMillis = toMillis(System.nanoTime() - ready);
+						}
+					}
+				}
+			}
+			if (!waiting.isEmpty()) {
+				Thread.sleep(1);
+			}
+		}
+		run.allReadyMillis = toMillis(System.nanoTime() - ready);
+	}
+
+	/*
+	 * The servlet of the benchmark server once it is published. The
+	 * service is a proxy so the servlet is found through getRestfulServer.
+	 */
+	private Servlet getServlet (BundleContext context) throws Exception {
+		ServiceReference<?>[] references = context.getServiceReferences(SERVER_INTERFACE, "(fhir.server.name="+SERVER_NAME+")");
+		if (null == references) {
+			return null;
+		}
+		Object service = context.getService(references[0]);
+		Class<?> serverInterface = references[0].getBundle().loadClass(SERVER_INTERFACE);
+		Servlet servlet = (Servlet)serverInterface.getMethod("getRestfulServer").invoke(service);
+		InProcessExchange.init(servlet, SERVER_NAME);
+		return servlet;
+	}
+
+	private static boolean isBundle (File file) throws IOException {
+		try (JarFile jar = new JarFile(file)) {
+			Manifest manifest = jar.getManifest();
+			return manifest != null && manifest.getMainAttributes().getValue(Constants.BUNDLE_SYMBOLICNAME) != null;
+		}
+	}
+
+	private static String getRequiredProperty (String name) {
+		String value = System.getProperty(name);
+		if (null == value) {
+			throw new IllegalArgumentException("The ["+name+"] system property is required");
+		}
+		return value;
+	}
+
+	private static long toMillis (long nanos) {
+		return nanos / 1000000L;
+	}
+
+	private static long median (List<Run> runs, boolean firstRequest) {
+		List<Long> times = new ArrayList<>();
+		for (Run run : runs) {
+			times.add(firstRequest ? run.firstRequestMillis : run.allReadyMillis);
+		}
+		Collections.sort(times);
+		return times.get(times.size() / 2);
+	}
+
+	private static String toJson (int providers, List<Run> runs) {
+		StringBuilder json = new StringBuilder();
+		json.append("{\"providers\":").append(providers);
+		json.append(",\"firstRequestMillis\":").append(median(runs, true));
+		json.append(",\"allReadyMillis\":").append(median(runs, false));
+		json.append(",\"runs\":[");
+		for (int i = 0; i < runs.size(); i++) {
+			Run run = runs.get(i);
+			if (i > 0) {
+				json.append(',');
+			}
+			json.append("{\"installMillis\":").append(run.installMillis);
+			json.append(",\"firstRequestMillis\":").append(run.firstRequestMillis);
+			json.append(",\"allReadyMillis\":").append(run.allReadyMillis).append('}');
+		}
+		json.append("]}\n");
+		return json.toString();
+	}
+
+	private static void deleteAll (File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteAll(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * The times of one run in milliseconds. The request times are from
+	 * when the bundles were installed.
+	 */
+	public static class Run {
+		private long installMillis;
+		private long firstRequestMillis = -1;
+		private long allReadyMillis;
+
+		public long getInstallMillis () {
+			return installMillis;
+		}
+
+		public long getFirstRequestMillis () {
+			return firstRequestMillis;
+		}
+
+		public long getAllReadyMillis () {
+			return allReadyMillis;
+		}
+	}
+
+}
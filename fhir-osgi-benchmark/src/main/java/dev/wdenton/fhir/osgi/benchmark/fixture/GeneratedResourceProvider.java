@@ -0,0 +1,62 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Startup Benchmark
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.benchmark.fixture;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Read;
+import ca.uhn.fhir.rest.server.IResourceProvider;
+
+/**
+ * The resource provider of the generated provider bundles. Each
+ * bundle creates one for a different R4 resource type; a read
+ * answers with an empty resource that has the requested id.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class GeneratedResourceProvider implements IResourceProvider {
+	public static final String MODEL_PACKAGE = "org.hl7.fhir.r4.model.";
+
+	private final Class<? extends IBaseResource> resourceType;
+
+	/**
+	 * @param resourceName the name of an R4 resource type (Patient, Observation...)
+	 * @throws ClassNotFoundException if it isn't an R4 resource type
+	 */
+	public GeneratedResourceProvider (String resourceName) throws ClassNotFoundException {
+		this.resourceType = Class.forName(MODEL_PACKAGE+resourceName).asSubclass(IBaseResource.class);
+	}
+
+	@Override
+	public Class<? extends IBaseResource> getResourceType () {
+		return resourceType;
+	}
+
+	@Read
+	public IBaseResource read (@IdParam IIdType id) throws ReflectiveOperationException {
+		IBaseResource resource = resourceType.getDeclaredConstructor().newInstance();
+		resource.setId(id.toUnqualifiedVersionless());
+		return resource;
+	}
+
+}
@@ -0,0 +1,143 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.util.Collections;
+import java.util.Enumeration;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * The Accept-Encoding of a request. The server hides the header from
+ * the {@code RestfulServer} when it compresses the responses itself
+ * (see {@code PooledResponseWrapper}), so code that writes a response
+ * of its own, such as a manual response operation, must ask here
+ * whether the client accepts gzip rather than read the header.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public final class AcceptEncoding {
+	public static final String HEADER = "Accept-Encoding";
+
+	private AcceptEncoding () {
+	}
+
+	/**
+	 * @param request the client request, possibly with its Accept-Encoding hidden
+	 * @return true if the client accepts a gzip encoded response
+	 */
+	public static boolean acceptsGzip (HttpServletRequest request) {
+		String accept = request.getHeader(HEADER);
+		if (null == accept) {
+			HiddenAcceptEncoding hidden = findHidden(request);
+			accept = (hidden != null) ? hidden.acceptEncoding : null;
+		}
+		return acceptsGzip(accept);
+	}
+
+	/**
+	 * Only a q-value of 0 refuses a coding; {@code *} stands for gzip
+	 * when gzip isn't listed itself.
+	 * 
+	 * @param accept the value of an Accept-Encoding header (null = none)
+	 * @return true if the header accepts a gzip encoded response
+	 */
+	public static boolean acceptsGzip (String accept) {
+		if (null == accept) {
+			return false;
+		}
+		Boolean gzip = null;
+		boolean any = false;
+		for (String element : accept.split(",")) {
+			String[] params = element.split(";");
+			String coding = params[0].trim().toLowerCase();
+			boolean accepted = getQuality(params) > 0;
+			if ("gzip".equals(coding) || "x-gzip".equals(coding)) {
+				gzip = (null == gzip) ? accepted : (gzip || accepted);
+			} else
+			if ("*".equals(coding)) {
+				any = accepted;
+			}
+		}
+		return (gzip != null) ? gzip : any;
+	}
+
+	/*
+	 * The q parameter of a coding (1 if it has none, 0 if it is invalid)
+	 */
+	private static double getQuality (String[] params) {
+		for (int i = 1; i < params.length; i++) {
+			String param = params[i].trim();
+			if (param.length() > 1 && (param.charAt(0) == 'q' || param.charAt(0) == 'Q') && param.substring(1).trim().startsWith("=")) {
+				try {
+					return Double.parseDouble(param.substring(param.indexOf('=') + 1).trim());
+				} catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+		}
+		return 1;
+	}
+
+	/**
+	 * @param request the client request
+	 * @return the request without its Accept-Encoding header
+	 */
+	public static HttpServletRequest hide (HttpServletRequest request) {
+		return new HiddenAcceptEncoding(request);
+	}
+
+	private static HiddenAcceptEncoding findHidden (ServletRequest request) {
+		while (request instanceof ServletRequestWrapper) {
+			if (request instanceof HiddenAcceptEncoding) {
+				return (HiddenAcceptEncoding)request;
+			}
+			request = ((ServletRequestWrapper)request).getRequest();
+		}
+		return null;
+	}
+
+	/*
+	 * Keeps the hidden header for acceptsGzip()
+	 */
+	private static class HiddenAcceptEncoding extends HttpServletRequestWrapper {
+		private final String acceptEncoding;
+
+		private HiddenAcceptEncoding (HttpServletRequest request) {
+			super(request);
+			this.acceptEncoding = request.getHeader(HEADER);
+		}
+
+		@Override
+		public String getHeader (String name) {
+			return HEADER.equalsIgnoreCase(name) ? null : super.getHeader(name);
+		}
+
+		@Override
+		public Enumeration<String> getHeaders (String name) {
+			return HEADER.equalsIgnoreCase(name) ? Collections.emptyEnumeration() : super.getHeaders(name);
+		}
+	}
+
+}
@@ -0,0 +1,349 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.instance.model.api.IBaseBinary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.rest.server.exceptions.PayloadTooLargeException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/**
+ * Sends and receives the raw content of Binary resources through an
+ * {@code IOsgiBinaryStore} without holding it in memory. Content in a
+ * file is sent with {@code FileChannel.transferTo}, honouring a single
+ * byte Range ({@code Range: bytes=start-end}) with a 206 response.
+ * The server writes these responses directly to the client, never
+ * through a pooled or compressing response wrapper.
+ * Uploads are copied to a file in the upload directory with
+ * {@code FileChannel.transferFrom} and handed to the store.
+ * <p>
+ * The server routes the request here as a READ, CREATE or UPDATE of a
+ * Binary. The interceptors see a Binary without its content: the
+ * PRE_HANDLED hooks before the content is read or received, and the
+ * OUTGOING_RESPONSE hooks before it is sent or once it is stored, so
+ * that the authorization, audit and change interceptors see the
+ * request like any other.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class BinaryStreamer extends ManualMethodBinding {
+	private static Logger log = LoggerFactory.getLogger(BinaryStreamer.class);
+	private static final String BINARY = "Binary";
+	private static final Pattern BINARY_PATH = Pattern.compile("^/Binary(?:/([A-Za-z0-9\\-\\.]{1,64}))?/?$");
+	private static final Pattern BYTE_RANGE = Pattern.compile("^bytes=(\\d*)-(\\d*)$");
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+	private static final long TRANSFER_CHUNK = 8L * 1024 * 1024;
+
+	// the whole content is sent when the Range header can't be used
+	private static final long[] WHOLE = new long[0];
+
+	private final IOsgiBinaryStore store;
+	private final Path uploadDirectory;
+	private final long maxUploadSize;
+
+	/**
+	 * @param fhirContext the FHIR context of the server
+	 * @param store the store holding the content
+	 * @param operation READ, CREATE or UPDATE (see {@link #getOperation(HttpServletRequest)})
+	 * @param uploadDirectory the directory uploads are written to
+	 * @param maxUploadSize the largest accepted upload in bytes (0 = no limit)
+	 */
+	public BinaryStreamer (FhirContext fhirContext, IOsgiBinaryStore store, RestOperationTypeEnum operation, Path uploadDirectory, long maxUploadSize) {
+		super(fhirContext, store, operation, BINARY);
+		this.store = store;
+		this.uploadDirectory = uploadDirectory;
+		this.maxUploadSize = maxUploadSize;
+	}
+
+	/**
+	 * @param request a client request
+	 * @return true if the request reads or writes the raw content of a Binary
+	 */
+	public static boolean isBinaryRequest (HttpServletRequest request) {
+		String path = request.getPathInfo();
+		if (null == path || !path.startsWith("/Binary") || request.getParameter("_format") != null) {
+			return false;
+		}
+		Matcher matcher = BINARY_PATH.matcher(path);
+		if (!matcher.matches()) {
+			return false;
+		}
+		String id = matcher.group(1);
+		switch (request.getMethod()) {
+		case "GET":
+		case "HEAD":
+			return (id != null) && !isFhirType(request.getHeader("Accept"));
+		case "PUT":
+			return (id != null) && (request.getContentType() != null) && !isFhirType(request.getContentType());
+		case "POST":
+			return (null == id) && (request.getContentType() != null) && !isFhirType(request.getContentType());
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @param request a request for which {@link #isBinaryRequest(HttpServletRequest)} is true
+	 * @return the operation of the request
+	 */
+	public static RestOperationTypeEnum getOperation (HttpServletRequest request) {
+		switch (request.getMethod()) {
+		case "PUT":
+			return RestOperationTypeEnum.UPDATE;
+		case "POST":
+			return RestOperationTypeEnum.CREATE;
+		default:
+			return RestOperationTypeEnum.READ;
+		}
+	}
+
+	/*
+	 * Any of the FHIR encodings (application/fhir+json, json, xml...)
+	 * means the Binary resource itself is being read or written
+	 */
+	private static boolean isFhirType (String mediaType) {
+		if (null == mediaType) {
+			return false;
+		}
+		String type = mediaType.toLowerCase();
+		return type.contains("fhir") || type.contains("json") || type.contains("xml") || type.contains("turtle");
+	}
+
+	/**
+	 * Serve the request and write the response
+	 */
+	@Override
+	protected void handle (ServletRequestDetails requestDetails) throws IOException {
+		HttpServletRequest request = requestDetails.getServletRequest();
+		Matcher matcher = BINARY_PATH.matcher(request.getPathInfo());
+		matcher.matches();
+		String id = matcher.group(1);
+		if (RestOperationTypeEnum.READ == getRestOperationType()) {
+			read(requestDetails, id);
+		} else {
+			write(requestDetails, id);
+		}
+	}
+
+	/*
+	 * The Binary seen by the interceptors
+	 */
+	private IBaseBinary newBinary (String id, String contentType) {
+		IBaseBinary binary = (IBaseBinary)getContext().getResourceDefinition(BINARY).newInstance();
+		if (id != null) {
+			binary.setId(BINARY+"/"+id);
+		}
+		binary.setContentType(contentType);
+		return binary;
+	}
+
+	private void read (ServletRequestDetails requestDetails, String id) throws IOException {
+		HttpServletRequest request = requestDetails.getServletRequest();
+		HttpServletResponse response = requestDetails.getServletResponse();
+		preHandled(requestDetails);
+		IOsgiBinaryStore.Content content = store.open(id, request);
+		if (null == content) {
+			throw new ResourceNotFoundException("Binary/"+id+" is not known");
+		}
+		try {
+			ResponseDetails responseDetails = new ResponseDetails(newBinary(id, content.getContentType()));
+			responseDetails.setResponseCode(HttpServletResponse.SC_OK);
+			if (!outgoingResponse(requestDetails, responseDetails)) {
+				return;
+			}
+			long size = content.getSize();
+			long start = 0;
+			long length = size;
+			response.setStatus(HttpServletResponse.SC_OK);
+			response.setContentType(content.getContentType());
+			response.setHeader("Accept-Ranges", content.isSeekable() ? "bytes" : "none");
+			String range = request.getHeader("Range");
+			if (range != null && content.isSeekable()) {
+				long[] bytes = parseRange(range, size);
+				if (null == bytes) {
+					throw new UnclassifiedServerFailureException(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, "Range ["+range+"] is outside Binary/"+id)
+							.addResponseHeader("Content-Range", "bytes */"+size);
+				}
+				if (bytes != WHOLE) {
+					start = bytes[0];
+					length = bytes[1] - bytes[0] + 1;
+					response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+					response.setHeader("Content-Range", "bytes "+bytes[0]+"-"+bytes[1]+"/"+size);
+				}
+			}
+			if (length >= 0) {
+				response.setContentLengthLong(length);
+			}
+			if ("HEAD".equals(request.getMethod())) {
+				return;
+			}
+			WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+			if (content.isSeekable()) {
+				transfer((FileChannel)content.getChannel(), start, length, out);
+			} else {
+				copy(content.getChannel(), out);
+			}
+			response.flushBuffer();
+		} finally {
+			content.close();
+		}
+	}
+
+	private void write (ServletRequestDetails requestDetails, String id) throws IOException {
+		HttpServletRequest request = requestDetails.getServletRequest();
+		HttpServletResponse response = requestDetails.getServletResponse();
+		requestDetails.setResource(newBinary(id, request.getContentType()));
+		preHandled(requestDetails);
+		long length = request.getContentLengthLong();
+		if (maxUploadSize > 0 && length > maxUploadSize) {
+			throw new PayloadTooLargeException("Binary of ["+length+"] bytes is larger than the maximum of ["+maxUploadSize+"] bytes");
+		}
+		Files.createDirectories(uploadDirectory);
+		Path upload = Files.createTempFile(uploadDirectory, "fhir-binary-", ".upload");
+		try {
+			long size = receive(Channels.newChannel(request.getInputStream()), upload);
+			log.trace("received ["+size+"] bytes of Binary ["+((id != null) ? id : "new")+"]");
+			String storedId = store.store(id, request.getContentType(), upload, request);
+			String location = request.getRequestURL().toString();
+			int status;
+			if (null == id) {
+				location = (location.endsWith("/") ? location : location+"/")+storedId;
+				status = HttpServletResponse.SC_CREATED;
+			} else {
+				status = HttpServletResponse.SC_OK;
+			}
+			ResponseDetails responseDetails = new ResponseDetails(newBinary(storedId, request.getContentType()));
+			responseDetails.setResponseCode(status);
+			if (!outgoingResponse(requestDetails, responseDetails)) {
+				return;
+			}
+			response.setStatus(status);
+			response.setHeader((null == id) ? "Location" : "Content-Location", location);
+		} finally {
+			Files.deleteIfExists(upload);
+		}
+	}
+
+	/*
+	 * Copy the request body to the upload file
+	 */
+	private long receive (ReadableByteChannel in, Path upload) throws IOException {
+		long position = 0;
+		try (FileChannel out = FileChannel.open(upload, StandardOpenOption.WRITE)) {
+			long count;
+			while ((count = out.transferFrom(in, position, TRANSFER_CHUNK)) > 0) {
+				position += count;
+				if (maxUploadSize > 0 && position > maxUploadSize) {
+					throw new PayloadTooLargeException("Binary is larger than the maximum of ["+maxUploadSize+"] bytes");
+				}
+			}
+		}
+		return position;
+	}
+
+	private static void transfer (FileChannel channel, long start, long length, WritableByteChannel out) throws IOException {
+		long position = start;
+		long remaining = length;
+		while (remaining > 0) {
+			long count = channel.transferTo(position, remaining, out);
+			if (count <= 0) {
+				break;
+			}
+			position += count;
+			remaining -= count;
+		}
+	}
+
+	private static void copy (ReadableByteChannel in, WritableByteChannel out) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+		while (in.read(buffer) >= 0) {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				out.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+
+	/*
+	 * Parse a single byte range. Returns the first and last byte, WHOLE
+	 * when the header should be ignored (multiple ranges, other units)
+	 * or null when the range can't be satisfied.
+	 */
+	static long[] parseRange (String range, long size) {
+		Matcher matcher = BYTE_RANGE.matcher(range.trim());
+		if (!matcher.matches()) {
+			return WHOLE;
+		}
+		String first = matcher.group(1);
+		String last = matcher.group(2);
+		try {
+			long start;
+			long end;
+			if (first.isEmpty()) {
+				if (last.isEmpty()) {
+					return WHOLE;
+				}
+				long suffix = Long.parseLong(last);
+				if (0 == suffix) {
+					return null;
+				}
+				start = Math.max(0, size - suffix);
+				end = size - 1;
+			} else {
+				start = Long.parseLong(first);
+				end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+				if (!last.isEmpty() && Long.parseLong(last) < start) {
+					return WHOLE;
+				}
+			}
+			if (start >= size) {
+				return null;
+			}
+			return new long[] { start, end };
+		} catch (NumberFormatException e) {
+			return WHOLE;
+		}
+	}
+
+}
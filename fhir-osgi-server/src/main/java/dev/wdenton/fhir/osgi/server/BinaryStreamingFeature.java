@@ -0,0 +1,103 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Startup Benchmark
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.nio.file.Paths;
+
+import javax.servlet.http.HttpServletRequest;
+
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.server.method.BaseMethodBinding;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/**
+ * Reads and writes the raw content of Binary resources through a
+ * registered {@code IOsgiBinaryStore} instead of as Binary resources
+ * held in memory. Binary requests are handled by the providers as
+ * usual while no store is registered.
+ * @see BinaryStreamer
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class BinaryStreamingFeature implements IOsgiServerFeature {
+	private String uploadDirectory = System.getProperty("java.io.tmpdir");
+	private long maxUploadSize = 0;
+
+	private volatile SimpleOsgiRestfulServer server;
+
+	@Override
+	public void install (SimpleOsgiRestfulServer server) {
+		this.server = server;
+	}
+
+	@Override
+	public void uninstall (SimpleOsgiRestfulServer server) {
+		this.server = null;
+	}
+
+	@Override
+	public BaseMethodBinding<?> resolveMethod (ServletRequestDetails requestDetails) {
+		SimpleOsgiRestfulServer current = server;
+		HttpServletRequest request = requestDetails.getServletRequest();
+		if (null == current || !BinaryStreamer.isBinaryRequest(request)) {
+			return null;
+		}
+		IOsgiBinaryStore store = current.getBinaryStore();
+		if (null == store) {
+			return null;
+		}
+		RestOperationTypeEnum operation = BinaryStreamer.getOperation(request);
+		return current.getManualBinding(store, "binary-"+operation,
+				() -> new BinaryStreamer(current.getFhirContext(), store, operation, Paths.get(uploadDirectory), maxUploadSize));
+	}
+
+	public String getUploadDirectory () {
+		return uploadDirectory;
+	}
+
+	/**
+	 * @param uploadDirectory the directory uploaded Binary content is written to
+	 */
+	public void setUploadDirectory (String uploadDirectory) {
+		this.uploadDirectory = uploadDirectory;
+		bindingsChanged();
+	}
+
+	public long getMaxUploadSize () {
+		return maxUploadSize;
+	}
+
+	/**
+	 * @param maxUploadSize the largest uploaded Binary in bytes (0 = no limit)
+	 */
+	public void setMaxUploadSize (long maxUploadSize) {
+		this.maxUploadSize = maxUploadSize;
+		bindingsChanged();
+	}
+
+	private void bindingsChanged () {
+		SimpleOsgiRestfulServer current = server;
+		if (current != null) {
+			current.clearManualBindings();
+		}
+	}
+
+}
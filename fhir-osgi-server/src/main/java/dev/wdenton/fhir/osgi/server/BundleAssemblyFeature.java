@@ -0,0 +1,129 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Startup Benchmark
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import ca.uhn.fhir.rest.server.IResourceProvider;
+import dev.wdenton.fhir.osgi.server.diagnostics.ServerFootprint;
+
+/**
+ * Assembles the JSON Bundles of searches from the encoded form of their
+ * entry resources, cached by version id, instead of encoding every
+ * resource for every response. The fragments of a resource provider's
+ * type are dropped when it is unregistered; all of them are dropped for
+ * a plain provider, which may have served resources of any type.
+ * @see BundleAssemblyInterceptor
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class BundleAssemblyFeature implements IOsgiServerFeature {
+	private long cacheSize = 64L * 1024 * 1024;
+	private boolean directBuffers = false;
+
+	private volatile FragmentCache fragmentCache;
+	private volatile SimpleOsgiRestfulServer server;
+	private BundleAssemblyInterceptor interceptor;
+
+	@Override
+	public synchronized void install (SimpleOsgiRestfulServer server) {
+		fragmentCache = new FragmentCache(cacheSize, directBuffers);
+		interceptor = new BundleAssemblyInterceptor(server, this);
+		server.registerInterceptor(interceptor);
+		this.server = server;
+	}
+
+	@Override
+	public synchronized void uninstall (SimpleOsgiRestfulServer server) {
+		this.server = null;
+		if (interceptor != null) {
+			server.unregisterInterceptor(interceptor);
+			interceptor = null;
+		}
+		if (fragmentCache != null) {
+			fragmentCache.clear();
+			fragmentCache = null;
+		}
+	}
+
+	/**
+	 * @return the cache of encoded resources or null if the feature isn't registered
+	 */
+	public FragmentCache getFragmentCache () {
+		return fragmentCache;
+	}
+
+	public long getCacheSize () {
+		return cacheSize;
+	}
+
+	/**
+	 * @param cacheSize the most bytes of encoded resources kept
+	 */
+	public synchronized void setCacheSize (long cacheSize) {
+		this.cacheSize = cacheSize;
+		newFragmentCache();
+	}
+
+	public boolean isDirectBuffers () {
+		return directBuffers;
+	}
+
+	/**
+	 * @param directBuffers true to keep the encoded resources in
+	 * direct buffers, outside the heap
+	 */
+	public synchronized void setDirectBuffers (boolean directBuffers) {
+		this.directBuffers = directBuffers;
+		newFragmentCache();
+	}
+
+	private void newFragmentCache () {
+		if (fragmentCache != null) {
+			fragmentCache = new FragmentCache(cacheSize, directBuffers);
+		}
+	}
+
+	@Override
+	public void providerUnregistered (Object provider) {
+		FragmentCache fragments = fragmentCache;
+		SimpleOsgiRestfulServer current = server;
+		if (null == fragments || null == current) {
+			return;
+		}
+		if (provider instanceof IResourceProvider) {
+			fragments.invalidateType(current.getFhirContext().getResourceType(((IResourceProvider)provider).getResourceType()));
+		} else {
+			fragments.clear();
+		}
+	}
+
+	@Override
+	public void describeFootprint (ServerFootprint footprint) {
+		FragmentCache fragments = fragmentCache;
+		if (fragments != null) {
+			footprint.addStatistic("fragmentCache.fragments", fragments.getFragments());
+			footprint.addStatistic(fragments.isDirectBuffers() ? "fragmentCache.directBytes" : "fragmentCache.bytes", fragments.getBytes());
+			footprint.addStatistic("fragmentCache.hits", fragments.getHits());
+			footprint.addStatistic("fragmentCache.misses", fragments.getMisses());
+			footprint.addComponent("fragmentCache", fragments);
+		}
+	}
+
+}
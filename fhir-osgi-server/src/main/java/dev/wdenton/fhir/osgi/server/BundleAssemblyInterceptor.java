@@ -0,0 +1,269 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor;
+import dev.wdenton.fhir.osgi.server.jfr.FlightRecorderInterceptor;
+
+/**
+ * Writes the JSON Bundles of searches by splicing the encoded entry
+ * resources, taken from a {@code FragmentCache} when their version has
+ * been encoded before, into the encoded envelope of the Bundle. The
+ * envelope is encoded by HAPI with a placeholder in place of each entry
+ * resource, so links, totals and search modes are unchanged.
+ * <p>
+ * Only plain JSON responses are assembled here; XML, pretty printed,
+ * {@code _summary} and {@code _elements} responses are left to the
+ * RestfulServer. This hook runs after the other outgoing response
+ * hooks since it writes the response itself.
+ * <p>
+ * A cached fragment is the resource as it was encoded for an earlier
+ * request, so nothing is assembled while an interceptor that may redact
+ * or replace the resources shown to a client (a consent or masking
+ * interceptor with a STORAGE_PRESHOW_RESOURCES or SERVER_OUTGOING_RESPONSE
+ * hook) is registered. Only the hooks of this server's own interceptors
+ * and of the HAPI {@code AuthorizationInterceptor} are known to leave
+ * the resources unchanged.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+@Interceptor
+public class BundleAssemblyInterceptor {
+	private static Logger log = LoggerFactory.getLogger(BundleAssemblyInterceptor.class);
+	private static final String ENCODING = "json";
+	private static final String PLACEHOLDER_ID = "fhir-osgi-fragment";
+
+	// the classes whose hooks show the resources as they are
+	private static final Set<Class<?>> SHOWN_AS_IS = new HashSet<>(Arrays.asList(
+			BundleAssemblyInterceptor.class, ConditionalRequestInterceptor.class, DeadlineInterceptor.class,
+			IncludeResolvingInterceptor.class, ResourceChangeInterceptor.class, FlightRecorderInterceptor.class,
+			SearchCacheInterceptor.class, AuthorizationInterceptor.class));
+
+	private final SimpleOsgiRestfulServer server;
+	private final BundleAssemblyFeature feature;
+
+	private final ResponseHookCheck hookCheck;
+
+	public BundleAssemblyInterceptor (SimpleOsgiRestfulServer server, BundleAssemblyFeature feature) {
+		this.server = server;
+		this.feature = feature;
+		this.hookCheck = new ResponseHookCheck(server, SHOWN_AS_IS);
+	}
+
+	@Hook(value = Pointcut.SERVER_OUTGOING_RESPONSE, order = Integer.MAX_VALUE)
+	public boolean outgoingResponse (RequestDetails requestDetails, ResponseDetails responseDetails, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		RestOperationTypeEnum operation = requestDetails.getRestOperationType();
+		if (RestOperationTypeEnum.SEARCH_TYPE != operation && RestOperationTypeEnum.SEARCH_SYSTEM != operation && RestOperationTypeEnum.GET_PAGE != operation) {
+			return true;
+		}
+		// the earlier hooks may have replaced the resource in the response details
+		IBaseResource resource = responseDetails.getResponseResource();
+		FragmentCache cache = feature.getFragmentCache();
+		if (null == cache || !(resource instanceof IBaseBundle) || !isPlainJson(requestDetails) || mayChangeResources()) {
+			return true;
+		}
+		FhirContext ctx = server.getFhirContext();
+		BaseRuntimeChildDefinition entryChild = ctx.getResourceDefinition(resource).getChildByName("entry");
+		List<IBase> entries = entryChild.getAccessor().getValues(resource);
+		if (entries.isEmpty()) {
+			return true;
+		}
+		BaseRuntimeChildDefinition resourceChild = ((BaseRuntimeElementCompositeDefinition<?>)entryChild.getChildByName("entry")).getChildByName("resource");
+		IParser parser = RestfulServerUtils.getNewParser(ctx, ctx.getVersion().getVersion(), requestDetails);
+		IBaseResource placeholder = (IBaseResource)ctx.getResourceDefinition("Binary").newInstance();
+		placeholder.setId(PLACEHOLDER_ID);
+		String marker = parser.encodeResourceToString(placeholder);
+
+		// swap the entry resources for the placeholder while the envelope is encoded
+		IBaseResource[] originals = new IBaseResource[entries.size()];
+		ByteBuffer[] fragments = new ByteBuffer[entries.size()];
+		String envelope;
+		try {
+			for (int i = 0; i < originals.length; i++) {
+				Optional<IBase> entryResource = resourceChild.getAccessor().getFirstValueOrNull(entries.get(i));
+				if (entryResource.isPresent()) {
+					originals[i] = (IBaseResource)entryResource.get();
+					fragments[i] = getFragment(cache, ctx, parser, requestDetails.getFhirServerBase(), originals[i]);
+					resourceChild.getMutator().setValue(entries.get(i), placeholder);
+				}
+			}
+			envelope = parser.encodeResourceToString(resource);
+		} finally {
+			for (int i = 0; i < originals.length; i++) {
+				if (originals[i] != null) {
+					resourceChild.getMutator().setValue(entries.get(i), originals[i]);
+				}
+			}
+		}
+
+		int[] positions = findMarkers(envelope, marker, fragments);
+		if (null == positions) {
+			log.debug("Bundle envelope didn't have the expected placeholders. Encoding the whole Bundle");
+			return true;
+		}
+		write(envelope, marker, positions, fragments, request, response);
+		return false;
+	}
+
+	/*
+	 * True if a registered hook may redact or replace the resources of a response
+	 */
+	private boolean mayChangeResources () {
+		return hookCheck.hasResponseHooks();
+	}
+
+	/*
+	 * The response is JSON without options that change how the entry
+	 * resources are encoded
+	 */
+	private boolean isPlainJson (RequestDetails requestDetails) {
+		Map<String,String[]> params = requestDetails.getParameters();
+		if (params.containsKey("_pretty") || params.containsKey("_summary") || params.containsKey("_elements") || server.isDefaultPrettyPrint()) {
+			return false;
+		}
+		String[] format = params.get("_format");
+		if (format != null) {
+			return 1 == format.length && format[0].toLowerCase().contains(ENCODING);
+		}
+		String accept = requestDetails.getHeader("Accept");
+		if (null == accept || accept.trim().isEmpty() || "*/*".equals(accept.trim())) {
+			return EncodingEnum.JSON == server.getDefaultResponseEncoding();
+		}
+		accept = accept.toLowerCase();
+		return accept.contains(ENCODING) && !accept.contains("xml") && !accept.contains("html");
+	}
+
+	/*
+	 * The encoded entry resource, from the cache when it has a version id
+	 */
+	private static ByteBuffer getFragment (FragmentCache cache, FhirContext ctx, IParser parser, String serverBase, IBaseResource resource) {
+		String versionId = getVersionId(resource);
+		IIdType id = resource.getIdElement();
+		String key = null;
+		if (versionId != null && id != null && id.hasIdPart()) {
+			key = FragmentCache.keyOf(serverBase, ctx.getResourceType(resource), id.getIdPart(), versionId, ENCODING);
+			ByteBuffer fragment = cache.get(key);
+			if (fragment != null) {
+				return fragment;
+			}
+		}
+		byte[] encoded = parser.encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8);
+		if (key != null) {
+			cache.put(key, encoded);
+		}
+		return ByteBuffer.wrap(encoded);
+	}
+
+	private static String getVersionId (IBaseResource resource) {
+		if (resource.getMeta() != null && resource.getMeta().getVersionId() != null) {
+			return resource.getMeta().getVersionId();
+		}
+		IIdType id = resource.getIdElement();
+		return (id != null && id.hasVersionIdPart()) ? id.getVersionIdPart() : null;
+	}
+
+	/*
+	 * The position of the placeholder of each entry with a resource
+	 * (entries without one are -1), or null if one isn't found
+	 */
+	private static int[] findMarkers (String envelope, String marker, ByteBuffer[] fragments) {
+		int[] positions = new int[fragments.length];
+		int from = 0;
+		for (int i = 0; i < fragments.length; i++) {
+			if (null == fragments[i]) {
+				positions[i] = -1;
+				continue;
+			}
+			int position = envelope.indexOf(marker, from);
+			if (position < 0) {
+				return null;
+			}
+			positions[i] = position;
+			from = position + marker.length();
+		}
+		return (envelope.indexOf(marker, from) < 0) ? positions : null;
+	}
+
+	private static void write (String envelope, String marker, int[] positions, ByteBuffer[] fragments, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType("application/fhir+json;charset=utf-8");
+		boolean gzip = AcceptEncoding.acceptsGzip(request);
+		if (gzip) {
+			response.setHeader("Content-Encoding", "gzip");
+		}
+		OutputStream out = gzip ? new GZIPOutputStream(response.getOutputStream(), 8192) : response.getOutputStream();
+		int from = 0;
+		for (int i = 0; i < positions.length; i++) {
+			if (positions[i] < 0) {
+				continue;
+			}
+			out.write(envelope.substring(from, positions[i]).getBytes(StandardCharsets.UTF_8));
+			ByteBuffer fragment = fragments[i];
+			if (fragment.hasArray()) {
+				out.write(fragment.array(), fragment.arrayOffset() + fragment.position(), fragment.remaining());
+			} else {
+				Channels.newChannel(out).write(fragment);
+			}
+			from = positions[i] + marker.length();
+		}
+		out.write(envelope.substring(from).getBytes(StandardCharsets.UTF_8));
+		if (gzip) {
+			((GZIPOutputStream)out).finish();
+		}
+		out.flush();
+	}
+
+}
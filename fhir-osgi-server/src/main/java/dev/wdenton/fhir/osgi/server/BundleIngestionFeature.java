@@ -0,0 +1,99 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Startup Benchmark
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import javax.servlet.http.HttpServletRequest;
+
+import ca.uhn.fhir.rest.server.method.BaseMethodBinding;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/**
+ * Hands the entries of JSON Bundles POSTed to the server base to a
+ * registered {@code IOsgiBundleConsumer} as they are read instead of
+ * parsing the whole Bundle. Bundles are handled as usual while no
+ * consumer is registered.
+ * @see StreamingBundleIngester
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class BundleIngestionFeature implements IOsgiServerFeature {
+	private long maxBodySize = 256L * 1024 * 1024;
+	private int batchSize = 100;
+
+	private volatile SimpleOsgiRestfulServer server;
+
+	@Override
+	public void install (SimpleOsgiRestfulServer server) {
+		this.server = server;
+	}
+
+	@Override
+	public void uninstall (SimpleOsgiRestfulServer server) {
+		this.server = null;
+	}
+
+	@Override
+	public BaseMethodBinding<?> resolveMethod (ServletRequestDetails requestDetails) {
+		SimpleOsgiRestfulServer current = server;
+		HttpServletRequest request = requestDetails.getServletRequest();
+		if (null == current || !StreamingBundleIngester.isBundlePost(request)) {
+			return null;
+		}
+		IOsgiBundleConsumer consumer = current.getBundleConsumer();
+		if (null == consumer) {
+			return null;
+		}
+		return current.getManualBinding(consumer, "ingest",
+				() -> new StreamingBundleIngester(current.getFhirContext(), consumer, maxBodySize, batchSize));
+	}
+
+	public long getMaxBodySize () {
+		return maxBodySize;
+	}
+
+	/**
+	 * @param maxBodySize the largest streamed Bundle in bytes (0 = no limit)
+	 */
+	public void setMaxBodySize (long maxBodySize) {
+		this.maxBodySize = maxBodySize;
+		bindingsChanged();
+	}
+
+	public int getBatchSize () {
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize the entries handed to the consumer at once
+	 */
+	public void setBatchSize (int batchSize) {
+		this.batchSize = batchSize;
+		bindingsChanged();
+	}
+
+	private void bindingsChanged () {
+		SimpleOsgiRestfulServer current = server;
+		if (current != null) {
+			current.clearManualBindings();
+		}
+	}
+
+}
@@ -0,0 +1,124 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import dev.wdenton.fhir.osgi.server.jfr.FlightRecorderInterceptor;
+
+/**
+ * Answers a type-level search from the {@code SearchCache}. The server
+ * selects the binding while routing a search that has a cached response
+ * for its principal and leaves that response in the request user data;
+ * the binding writes it once the PRE_HANDLED hooks, including the
+ * authorization and consent interceptors, have accepted the request,
+ * and the request completes normally for the audit interceptors.
+ * <p>
+ * When an interceptor other than this server's own has a hook on the
+ * resources of a response (the OUT rules of an {@code AuthorizationInterceptor},
+ * a consent or masking interceptor), the cached Bundle is decoded and
+ * written through the SERVER_OUTGOING_RESPONSE hooks like a computed one,
+ * so it is checked and filtered for this request. Otherwise the cached
+ * bytes are written as they are.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class CachedSearchBinding extends ManualMethodBinding {
+	private static Logger log = LoggerFactory.getLogger(CachedSearchBinding.class);
+
+	// the classes whose response hooks neither check nor change the resources
+	static final Set<Class<?>> SHOWN_AS_IS = new HashSet<>(Arrays.asList(
+			BundleAssemblyInterceptor.class, ConditionalRequestInterceptor.class, DeadlineInterceptor.class,
+			IncludeResolvingInterceptor.class, ResourceChangeInterceptor.class, FlightRecorderInterceptor.class,
+			SearchCacheInterceptor.class));
+
+	private final ResponseHookCheck hookCheck;
+
+	/**
+	 * @param fhirContext the FHIR context of the server
+	 * @param provider the provider whose searches are cached
+	 * @param resourceName the searched type
+	 * @param hookCheck whether the interceptors of the server check the resources of a response
+	 */
+	public CachedSearchBinding (FhirContext fhirContext, Object provider, String resourceName, ResponseHookCheck hookCheck) {
+		super(fhirContext, provider, RestOperationTypeEnum.SEARCH_TYPE, resourceName);
+		this.hookCheck = hookCheck;
+	}
+
+	@Override
+	protected void handle (ServletRequestDetails requestDetails) throws IOException {
+		SearchCache.Entry entry = (SearchCache.Entry)requestDetails.getUserData().get(SearchCache.USERDATA_ENTRY);
+		if (null == entry) {
+			throw new IllegalStateException("no cached response for the search of ["+getResourceName()+"]");
+		}
+		preHandled(requestDetails);
+		if (hookCheck.hasResponseHooks()) {
+			log.trace("answering search of ["+getResourceName()+"] from the cache through the outgoing response hooks");
+			writeResponse(requestDetails, HttpServletResponse.SC_OK, decode(entry));
+			return;
+		}
+		ResponseDetails responseDetails = new ResponseDetails();
+		responseDetails.setResponseCode(HttpServletResponse.SC_OK);
+		if (!outgoingResponse(requestDetails, responseDetails)) {
+			return;
+		}
+		log.trace("answering search of ["+getResourceName()+"] from the cache");
+		requestDetails.getServletRequest().setAttribute(PooledResponseWrapper.ATTR_CACHEABLE, Boolean.TRUE);
+		SearchCache.write(entry, requestDetails.getServletResponse());
+	}
+
+	/*
+	 * Only responses in a FHIR encoding are cached, and the server
+	 * always encodes them in UTF-8
+	 */
+	private IBaseResource decode (SearchCache.Entry entry) throws IOException {
+		IParser parser = EncodingEnum.forContentType(entry.contentType).newParser(getContext());
+		InputStream in = new ByteArrayInputStream(entry.body);
+		if ("gzip".equalsIgnoreCase(entry.contentEncoding)) {
+			in = new GZIPInputStream(in);
+		}
+		try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+			return parser.parseResource(reader);
+		}
+	}
+
+}
@@ -0,0 +1,275 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * A response wrapper that keeps the status, headers and body written
+ * by a servlet in memory instead of sending them to the client.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class CapturingResponseWrapper extends HttpServletResponseWrapper {
+
+	private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+	private final Map<String,List<String>> headers = new LinkedHashMap<>();
+	private int status = HttpServletResponse.SC_OK;
+	private String contentType;
+	private String characterEncoding;
+	private ServletOutputStream outputStream;
+	private PrintWriter writer;
+
+	public CapturingResponseWrapper (HttpServletResponse response) {
+		super(response);
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream () throws IOException {
+		if (writer != null) {
+			throw new IllegalStateException("getWriter() has already been called");
+		}
+		if (null == outputStream) {
+			outputStream = new ServletOutputStream() {
+				@Override
+				public void write (int b) throws IOException {
+					body.write(b);
+				}
+
+				@Override
+				public void write (byte[] b, int off, int len) throws IOException {
+					body.write(b, off, len);
+				}
+
+				@Override
+				public boolean isReady () {
+					return true;
+				}
+
+				@Override
+				public void setWriteListener (WriteListener writeListener) {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+		return outputStream;
+	}
+
+	@Override
+	public PrintWriter getWriter () throws IOException {
+		if (outputStream != null) {
+			throw new IllegalStateException("getOutputStream() has already been called");
+		}
+		if (null == writer) {
+			writer = new PrintWriter(new OutputStreamWriter(body, getCharset()));
+		}
+		return writer;
+	}
+
+	@Override
+	public void setStatus (int sc) {
+		this.status = sc;
+	}
+
+	@Override
+	public int getStatus () {
+		return status;
+	}
+
+	@Override
+	public void sendError (int sc) throws IOException {
+		this.status = sc;
+	}
+
+	@Override
+	public void sendError (int sc, String msg) throws IOException {
+		this.status = sc;
+	}
+
+	@Override
+	public void setContentType (String type) {
+		this.contentType = type;
+	}
+
+	@Override
+	public String getContentType () {
+		return contentType;
+	}
+
+	@Override
+	public void setCharacterEncoding (String charset) {
+		this.characterEncoding = charset;
+	}
+
+	@Override
+	public String getCharacterEncoding () {
+		return (characterEncoding != null) ? characterEncoding : StandardCharsets.UTF_8.name();
+	}
+
+	@Override
+	public void setContentLength (int len) {
+	}
+
+	@Override
+	public void setContentLengthLong (long len) {
+	}
+
+	@Override
+	public void setHeader (String name, String value) {
+		List<String> values = new ArrayList<>();
+		values.add(value);
+		headers.put(name.toLowerCase(), values);
+	}
+
+	@Override
+	public void addHeader (String name, String value) {
+		headers.computeIfAbsent(name.toLowerCase(), k -> new ArrayList<>()).add(value);
+	}
+
+	@Override
+	public void setDateHeader (String name, long date) {
+		setHeader(name, Long.toString(date));
+	}
+
+	@Override
+	public void setIntHeader (String name, int value) {
+		setHeader(name, Integer.toString(value));
+	}
+
+	@Override
+	public boolean containsHeader (String name) {
+		return headers.containsKey(name.toLowerCase());
+	}
+
+	@Override
+	public String getHeader (String name) {
+		List<String> values = headers.get(name.toLowerCase());
+		return (values != null && !values.isEmpty()) ? values.get(0) : null;
+	}
+
+	@Override
+	public Collection<String> getHeaders (String name) {
+		List<String> values = headers.get(name.toLowerCase());
+		return (values != null) ? Collections.unmodifiableList(values) : Collections.emptyList();
+	}
+
+	@Override
+	public Collection<String> getHeaderNames () {
+		return Collections.unmodifiableSet(headers.keySet());
+	}
+
+	@Override
+	public boolean isCommitted () {
+		return false;
+	}
+
+	@Override
+	public void flushBuffer () throws IOException {
+		if (writer != null) {
+			writer.flush();
+		}
+	}
+
+	@Override
+	public void resetBuffer () {
+		body.reset();
+	}
+
+	@Override
+	public void reset () {
+		body.reset();
+		headers.clear();
+		status = HttpServletResponse.SC_OK;
+		contentType = null;
+	}
+
+	/**
+	 * @return the captured body
+	 */
+	public byte[] getBody () {
+		if (writer != null) {
+			writer.flush();
+		}
+		return body.toByteArray();
+	}
+
+	/**
+	 * Send the captured status, headers and body to a response
+	 * 
+	 * @param response the response to write
+	 * @throws IOException
+	 */
+	public void replayTo (HttpServletResponse response) throws IOException {
+		byte[] content = getBody();
+		if (status >= 400 && 0 == content.length) {
+			response.sendError(status);
+			return;
+		}
+		response.setStatus(status);
+		for (Map.Entry<String,List<String>> header : headers.entrySet()) {
+			for (String value : header.getValue()) {
+				response.addHeader(header.getKey(), value);
+			}
+		}
+		if (contentType != null) {
+			response.setContentType(contentType);
+		}
+		if (characterEncoding != null) {
+			response.setCharacterEncoding(characterEncoding);
+		}
+		if (content.length > 0) {
+			response.setContentLength(content.length);
+			response.getOutputStream().write(content);
+		}
+	}
+
+	/**
+	 * @return the captured body decoded with the response character encoding
+	 */
+	public String getBodyAsString () {
+		return new String(getBody(), getCharset());
+	}
+
+	private Charset getCharset () {
+		try {
+			return Charset.forName(getCharacterEncoding());
+		} catch (Exception e) {
+			return StandardCharsets.UTF_8;
+		}
+	}
+
+}
@@ -0,0 +1,169 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Startup Benchmark
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.ConfigurationException;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import dev.wdenton.fhir.osgi.server.diagnostics.ServerFootprint;
+
+/**
+ * Publishes the writes completed by the server, including the writes
+ * written behind, to the {@code IOsgiChangeListener} services on a
+ * {@code ResourceChangeBus}. The bus and the interceptor publishing to
+ * it are created with the first listener; the server registers this
+ * feature itself, with the default buffer size, when a listener is
+ * registered and none is. The listeners are dropped when the feature
+ * is unregistered.
+ * @see ResourceChangeInterceptor
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class ChangeEventFeature implements IOsgiServerFeature {
+	private static Logger log = LoggerFactory.getLogger(ChangeEventFeature.class);
+
+	private int bufferSize = ResourceChangeBus.DEFAULT_CAPACITY;
+
+	private SimpleOsgiRestfulServer server;
+	private volatile ResourceChangeBus bus;
+	private ResourceChangeInterceptor interceptor;
+
+	@Override
+	public synchronized void install (SimpleOsgiRestfulServer server) {
+		this.server = server;
+	}
+
+	@Override
+	public synchronized void uninstall (SimpleOsgiRestfulServer server) {
+		if (interceptor != null) {
+			server.unregisterInterceptor(interceptor);
+			interceptor = null;
+		}
+		if (bus != null) {
+			bus.close();
+			bus = null;
+		}
+		this.server = null;
+	}
+
+	/**
+	 * @return the bus of completed writes, created with the interceptor
+	 * that publishes them when it is first used
+	 * @throws ConfigurationException if the feature isn't registered
+	 */
+	public synchronized ResourceChangeBus getBus () throws ConfigurationException {
+		if (null == server) {
+			throw new ConfigurationException("The change event feature is not registered with a FHIR Server");
+		}
+		if (null == bus) {
+			String name = server.getFhirServerName();
+			bus = new ResourceChangeBus((name != null) ? name : "default", bufferSize);
+			interceptor = new ResourceChangeInterceptor(bus);
+			server.registerInterceptor(interceptor);
+		}
+		return bus;
+	}
+
+	/**
+	 * Start calling a listener with the writes completed by the server.
+	 * Its backpressure (drop or block) and how long a write waits for it
+	 * are read from its service-properties.
+	 * 
+	 * @param listener the listener
+	 * @param props the service-properties of the listener (may be null)
+	 * @throws ConfigurationException if a service-property is invalid
+	 */
+	public void subscribe (IOsgiChangeListener listener, Map<String,Object> props) throws ConfigurationException {
+		ResourceChangeBus.Backpressure backpressure = ResourceChangeBus.Backpressure.DROP;
+		long blockMillis = ResourceChangeBus.DEFAULT_BLOCK_MILLIS;
+		Object value = (props != null) ? props.get(IOsgiChangeListener.SVCPROP_BACKPRESSURE) : null;
+		if (value != null) {
+			backpressure = ResourceChangeBus.Backpressure.of(value.toString());
+			if (null == backpressure) {
+				throw new ConfigurationException("["+IOsgiChangeListener.SVCPROP_BACKPRESSURE+"] must be drop or block, not ["+value+"]");
+			}
+		}
+		value = (props != null) ? props.get(IOsgiChangeListener.SVCPROP_BLOCK_MILLIS) : null;
+		if (value != null) {
+			try {
+				blockMillis = Long.parseLong(value.toString().trim());
+			} catch (NumberFormatException e) {
+				throw new ConfigurationException("["+IOsgiChangeListener.SVCPROP_BLOCK_MILLIS+"] is not a number ["+value+"]");
+			}
+		}
+		log.trace("Register change listener ["+listener.getClass().getName()+"] with backpressure ["+backpressure+"]");
+		getBus().subscribe(listener, backpressure, blockMillis);
+	}
+
+	/**
+	 * Stop calling a listener
+	 * 
+	 * @param listener the listener
+	 */
+	public void unsubscribe (IOsgiChangeListener listener) {
+		ResourceChangeBus changes = bus;
+		if (changes != null) {
+			changes.unsubscribe(listener);
+		}
+	}
+
+	public int getBufferSize () {
+		return bufferSize;
+	}
+
+	/**
+	 * @param bufferSize the number of completed writes kept for the
+	 * change listeners (rounded up to a power of 2). It must be set
+	 * before the first listener is registered.
+	 */
+	public synchronized void setBufferSize (int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Publish a write that didn't go through the interceptors (a write-behind batch)
+	 */
+	@Override
+	public void resourceWritten (RestOperationTypeEnum operation, String tenantId, String resourceType, String idPart, String versionId) {
+		ResourceChangeBus changes = bus;
+		if (changes != null) {
+			changes.publish(operation, tenantId, resourceType, idPart, versionId);
+		}
+	}
+
+	@Override
+	public void describeFootprint (ServerFootprint footprint) {
+		ResourceChangeBus changes = bus;
+		if (changes != null) {
+			footprint.addStatistic("changeEvents.published", changes.getPublished());
+			footprint.addStatistic("changeEvents.listeners", changes.getListeners());
+			footprint.addStatistic("changeEvents.maxLag", changes.getMaxLag());
+			footprint.addStatistic("changeEvents.lost", changes.getLost());
+			footprint.addStatistic("changeEvents.blockedWrites", changes.getBlockedWrites());
+			footprint.addComponent("changeEvents", changes);
+		}
+	}
+
+}
@@ -0,0 +1,136 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+/**
+ * A circuit breaker for a single provider. The breaker opens after a
+ * number of consecutive failed (or too slow) requests and rejects all
+ * requests until the open period has passed. It then lets a single
+ * probe request through: the breaker closes if the probe succeeds and
+ * opens again if it fails.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class CircuitBreaker {
+
+	public enum State { CLOSED, OPEN, HALF_OPEN }
+
+	private final int failureThreshold;
+	private final long latencyThresholdMillis;
+	private final long openMillis;
+
+	private volatile State state = State.CLOSED;
+	private int consecutiveFailures;
+	private long openedAt;
+	private boolean probing;
+
+	private long openCount;
+	private long rejectedCount;
+
+	/**
+	 * @param failureThreshold the number of consecutive failures that opens the breaker
+	 * @param latencyThresholdMillis requests slower than this count as failures (0 = no limit)
+	 * @param openMillis how long the breaker stays open before letting a probe through
+	 */
+	public CircuitBreaker (int failureThreshold, long latencyThresholdMillis, long openMillis) {
+		this.failureThreshold = Math.max(1, failureThreshold);
+		this.latencyThresholdMillis = latencyThresholdMillis;
+		this.openMillis = openMillis;
+	}
+
+	/**
+	 * Ask to let a request through
+	 *
+	 * @return false if the breaker is open and the request must be rejected
+	 */
+	public boolean tryAcquire () {
+		if (state == State.CLOSED) {
+			return true;
+		}
+		synchronized (this) {
+			if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+				state = State.HALF_OPEN;
+				probing = false;
+			}
+			if (state == State.CLOSED) {
+				return true;
+			}
+			if (state == State.HALF_OPEN && !probing) {
+				probing = true;
+				return true;
+			}
+			rejectedCount++;
+			return false;
+		}
+	}
+
+	/**
+	 * Record the outcome of a request let through by {@code tryAcquire()}
+	 *
+	 * @param latencyMillis how long the request took
+	 * @param failed true if the request failed
+	 */
+	public void record (long latencyMillis, boolean failed) {
+		boolean failure = failed || (latencyThresholdMillis > 0 && latencyMillis > latencyThresholdMillis);
+		synchronized (this) {
+			if (failure) {
+				consecutiveFailures++;
+				if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+					state = State.OPEN;
+					openedAt = System.currentTimeMillis();
+					probing = false;
+					openCount++;
+				}
+			} else {
+				consecutiveFailures = 0;
+				if (state == State.HALF_OPEN) {
+					state = State.CLOSED;
+					probing = false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return how long (millis) until the breaker lets a probe through
+	 */
+	public synchronized long getRetryAfterMillis () {
+		return (state == State.OPEN) ? Math.max(0, openedAt + openMillis - System.currentTimeMillis()) : 0;
+	}
+
+	public State getState () {
+		return state;
+	}
+
+	public synchronized long getOpenCount () {
+		return openCount;
+	}
+
+	public synchronized long getRejectedCount () {
+		return rejectedCount;
+	}
+
+	@Override
+	public synchronized String toString () {
+		return "state ["+state+"] consecutive-failures ["+consecutiveFailures+"] opened ["+openCount+"] rejected ["+rejectedCount+"]";
+	}
+
+}
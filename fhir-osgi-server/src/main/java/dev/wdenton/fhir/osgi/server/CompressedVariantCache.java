@@ -0,0 +1,178 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The gzip encoding of response bodies keyed by the SHA-256 digest of
+ * the body, so that a body sent again (the CapabilityStatement of
+ * /metadata, a read of an unchanged resource, a cached search) is
+ * compressed once. Because the key is the content itself the cache is
+ * never stale and needs no invalidation. The least recently used
+ * variants are evicted when the total size passes maxBytes.
+ * <p>
+ * A body is only cached once its digest has been seen before, so
+ * that bodies sent once don't fill the cache; the digests of the
+ * most recent bodies that aren't cached are kept for that.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class CompressedVariantCache {
+	private static final int MAX_PAYLOAD_BYTES = 1024 * 1024;
+	private static final int MAX_SEEN = 4096;
+
+	private final long maxBytes;
+	private final int maxPayloadBytes;
+
+	// guarded by this
+	private final LinkedHashMap<ByteBuffer,byte[]> variants = new LinkedHashMap<>(256, 0.75f, true);
+	private long bytes = 0;
+
+	// the digests of the bodies that aren't cached, guarded by this
+	private final LinkedHashMap<ByteBuffer,Boolean> seen = new LinkedHashMap<ByteBuffer,Boolean>(256, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry (Map.Entry<ByteBuffer,Boolean> eldest) {
+			return size() > MAX_SEEN;
+		}
+	};
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param maxBytes the most bytes of compressed bodies kept
+	 */
+	public CompressedVariantCache (long maxBytes) {
+		this.maxBytes = maxBytes;
+		this.maxPayloadBytes = (int)Math.max(1, Math.min(MAX_PAYLOAD_BYTES, maxBytes / 8));
+	}
+
+	/**
+	 * @return a new digest for the key of a body
+	 */
+	public static MessageDigest newDigest () {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param key the digest of the body
+	 * @return the gzip encoded body (which must not be modified) or null if it isn't cached
+	 */
+	public byte[] get (byte[] key) {
+		byte[] variant;
+		synchronized (this) {
+			variant = variants.get(ByteBuffer.wrap(key));
+		}
+		if (null == variant) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return variant;
+	}
+
+	/**
+	 * Note a body that isn't cached
+	 *
+	 * @param key the digest of the body
+	 * @return true if the body has been seen before, so its variant is worth caching
+	 */
+	public synchronized boolean seen (byte[] key) {
+		return seen.put(ByteBuffer.wrap(key), Boolean.TRUE) != null;
+	}
+
+	/**
+	 * @param key the digest of the body
+	 * @param compressed the gzip encoded body
+	 */
+	public void put (byte[] key, byte[] compressed) {
+		synchronized (this) {
+			seen.remove(ByteBuffer.wrap(key));
+			byte[] old = variants.put(ByteBuffer.wrap(key), compressed);
+			if (old != null) {
+				bytes -= old.length;
+			}
+			bytes += compressed.length;
+			Iterator<byte[]> eldest = variants.values().iterator();
+			while (bytes > maxBytes && eldest.hasNext()) {
+				bytes -= eldest.next().length;
+				eldest.remove();
+				evictions.increment();
+			}
+		}
+	}
+
+	public synchronized void clear () {
+		variants.clear();
+		seen.clear();
+		bytes = 0;
+	}
+
+	public long getMaxBytes () {
+		return maxBytes;
+	}
+
+	/**
+	 * @return the largest body (before compression) that is cached
+	 */
+	public int getMaxPayloadBytes () {
+		return maxPayloadBytes;
+	}
+
+	public long getHits () {
+		return hits.sum();
+	}
+
+	public long getMisses () {
+		return misses.sum();
+	}
+
+	public long getEvictions () {
+		return evictions.sum();
+	}
+
+	public synchronized int getVariants () {
+		return variants.size();
+	}
+
+	public synchronized long getBytes () {
+		return bytes;
+	}
+
+	@Override
+	public String toString () {
+		return "hits ["+getHits()+"] misses ["+getMisses()+"] evictions ["+getEvictions()+"] variants ["+getVariants()+"] bytes ["+getBytes()+"]";
+	}
+
+}
@@ -0,0 +1,137 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.zip.Deflater;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Decides whether a response body is compressed and at what level.
+ * Bodies smaller than minSize and bodies that are already compressed
+ * (images, archives...) are sent as they are. Otherwise the level
+ * follows the size of the body and the CPU load: while the CPU is
+ * idle, large bodies get the best compression and others the default
+ * level; as the load rises the level drops to the fastest.
+ * <p>
+ * The load is the system CPU load read from the platform MBeanServer
+ * (the 1 minute load average per processor where that isn't available),
+ * sampled at most twice a second.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class CompressionPolicy {
+	public static final int DEFAULT_MIN_SIZE = 1024;
+	public static final int LARGE_PAYLOAD_SIZE = 64 * 1024;
+
+	private static final double LOW_LOAD = 0.5;
+	private static final double HIGH_LOAD = 0.9;
+	private static final long SAMPLE_NANOS = 500000000L;
+
+	private final int minSize;
+	private volatile double load = 0;
+	private volatile long sampled = System.nanoTime() - SAMPLE_NANOS;
+
+	/**
+	 * @param minSize the smallest body that is compressed
+	 */
+	public CompressionPolicy (int minSize) {
+		this.minSize = minSize;
+	}
+
+	/**
+	 * @param size the size of the body or -1 if it is larger than the response buffer
+	 * @param contentType the content type of the body
+	 * @return true if the body should be compressed
+	 */
+	public boolean shouldCompress (long size, String contentType) {
+		return (size < 0 || size >= minSize) && isCompressible(contentType);
+	}
+
+	/**
+	 * @param size the size of the body or -1 if it is larger than the response buffer
+	 * @return the Deflater level for the body
+	 */
+	public int getLevel (long size) {
+		int ceiling = (size < 0 || size >= LARGE_PAYLOAD_SIZE) ? Deflater.BEST_COMPRESSION : 6;
+		double current = getLoad();
+		if (current <= LOW_LOAD) {
+			return ceiling;
+		}
+		if (current >= HIGH_LOAD) {
+			return Deflater.BEST_SPEED;
+		}
+		return (int)Math.round(ceiling - (ceiling - Deflater.BEST_SPEED) * (current - LOW_LOAD) / (HIGH_LOAD - LOW_LOAD));
+	}
+
+	/**
+	 * @param contentType the content type of a body
+	 * @return false if the body is already compressed
+	 */
+	public static boolean isCompressible (String contentType) {
+		if (null == contentType) {
+			return true;
+		}
+		String type = contentType.toLowerCase();
+		return !(type.startsWith("image/") || type.startsWith("video/") || type.startsWith("audio/")
+				|| type.contains("zip") || type.contains("compressed") || type.contains("octet-stream"));
+	}
+
+	/**
+	 * @return the CPU load from 0 to 1
+	 */
+	public double getLoad () {
+		long now = System.nanoTime();
+		if (now - sampled >= SAMPLE_NANOS) {
+			sampled = now;
+			load = sampleLoad();
+		}
+		return load;
+	}
+
+	public int getMinSize () {
+		return minSize;
+	}
+
+	private static double sampleLoad () {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			Object cpuLoad = server.getAttribute(new ObjectName(ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME), "SystemCpuLoad");
+			if (cpuLoad instanceof Number && ((Number)cpuLoad).doubleValue() >= 0) {
+				return Math.min(1, ((Number)cpuLoad).doubleValue());
+			}
+		} catch (Exception | LinkageError e) {
+			// not every JVM has the attribute
+		}
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		double average = os.getSystemLoadAverage();
+		return (average < 0) ? 0 : Math.min(1, average / os.getAvailableProcessors());
+	}
+
+	@Override
+	public String toString () {
+		return "min size ["+minSize+"] load ["+load+"]";
+	}
+
+}
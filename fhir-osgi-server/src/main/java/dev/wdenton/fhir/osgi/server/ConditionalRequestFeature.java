@@ -0,0 +1,96 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Startup Benchmark
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import dev.wdenton.fhir.osgi.server.diagnostics.ServerFootprint;
+
+/**
+ * Answers conditional reads (If-None-Match / If-Modified-Since) for
+ * resources in a {@code VersionIndex} with 304 Not Modified without
+ * calling the provider. The entries of a provider are removed when it
+ * is unregistered, and those of resources written behind when they
+ * have been written.
+ * @see ConditionalRequestInterceptor
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class ConditionalRequestFeature implements IOsgiServerFeature {
+	private final VersionIndex versionIndex;
+	private ConditionalRequestInterceptor interceptor;
+
+	public ConditionalRequestFeature () {
+		this(new VersionIndex());
+	}
+
+	/**
+	 * @param versionIndex the index of the current version of served resources
+	 */
+	public ConditionalRequestFeature (VersionIndex versionIndex) {
+		if (null == versionIndex) {
+			throw new NullPointerException("Version index cannot be null");
+		}
+		this.versionIndex = versionIndex;
+	}
+
+	@Override
+	public synchronized void install (SimpleOsgiRestfulServer server) {
+		interceptor = new ConditionalRequestInterceptor(versionIndex);
+		server.registerInterceptor(interceptor);
+	}
+
+	@Override
+	public synchronized void uninstall (SimpleOsgiRestfulServer server) {
+		if (interceptor != null) {
+			server.unregisterInterceptor(interceptor);
+			interceptor = null;
+		}
+		versionIndex.clear();
+	}
+
+	/**
+	 * @return the index of the current version of served resources
+	 */
+	public VersionIndex getVersionIndex () {
+		return versionIndex;
+	}
+
+	@Override
+	public void providerUnregistered (Object provider) {
+		versionIndex.invalidateProvider(provider);
+	}
+
+	@Override
+	public void resourceWritten (RestOperationTypeEnum operation, String tenantId, String resourceType, String idPart, String versionId) {
+		if (idPart != null) {
+			versionIndex.invalidate(tenantId, resourceType, idPart);
+		} else {
+			versionIndex.invalidateType(tenantId, resourceType);
+		}
+	}
+
+	@Override
+	public void describeFootprint (ServerFootprint footprint) {
+		footprint.addStatistic("versionIndex.entries", versionIndex.size());
+		footprint.addComponent("versionIndex", versionIndex);
+	}
+
+}
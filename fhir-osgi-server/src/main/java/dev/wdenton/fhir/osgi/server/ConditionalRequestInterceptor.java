@@ -0,0 +1,226 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.NotModifiedException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/**
+ * Answers conditional reads (If-None-Match / If-Modified-Since) from a
+ * {@code VersionIndex} with 304 Not Modified before the provider is called,
+ * once the authorization and consent interceptors have accepted the request.
+ * The index is filled from the resources returned by reads and entries are
+ * removed by writes. A read only records the version it returns if no write
+ * to the resource began while it was in progress.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+@Interceptor
+public class ConditionalRequestInterceptor {
+	private static Logger log = LoggerFactory.getLogger(ConditionalRequestInterceptor.class);
+
+	private static final String USERDATA_GENERATION = ConditionalRequestInterceptor.class.getName()+".generation";
+	private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+	private final VersionIndex index;
+
+	public ConditionalRequestInterceptor (VersionIndex index) {
+		this.index = index;
+	}
+
+	/*
+	 * Writes invalidate their resource as soon as they are routed, and
+	 * reads note the generation of the resource before the provider runs
+	 */
+	@Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+	public boolean incomingRequestPostProcessed (RequestDetails requestDetails) {
+		requestDetails.getUserData().put(VersionIndex.USERDATA_KEY, index);
+		if (RestOperationTypeEnum.READ == requestDetails.getRestOperationType()) {
+			IIdType id = requestDetails.getId();
+			if (id != null && id.hasIdPart()) {
+				requestDetails.getUserData().put(USERDATA_GENERATION,
+						index.getGeneration(requestDetails.getTenantId(), requestDetails.getResourceName(), id.getIdPart()));
+			}
+		} else {
+			invalidate(requestDetails);
+		}
+		return true;
+	}
+
+	/*
+	 * Runs after the authorization and consent interceptors so that
+	 * they can reject the read before it is answered from the index
+	 */
+	@Hook(value = Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED, order = SimpleOsgiRestfulServer.ORDER_AFTER_AUTHORIZATION)
+	public void incomingRequestPreHandled (RequestDetails requestDetails, ServletRequestDetails servletRequestDetails) {
+		if (RestOperationTypeEnum.READ == requestDetails.getRestOperationType()) {
+			HttpServletRequest request = servletRequestDetails.getServletRequest();
+			checkNotModified(requestDetails, request);
+			// a read of a version already in the index is likely to be read again
+			IIdType id = requestDetails.getId();
+			if (request != null && id != null && id.hasIdPart()
+					&& index.get(requestDetails.getTenantId(), requestDetails.getResourceName(), id.getIdPart()) != null) {
+				request.setAttribute(PooledResponseWrapper.ATTR_CACHEABLE, Boolean.TRUE);
+			}
+		}
+	}
+
+	@Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+	public boolean outgoingResponse (RequestDetails requestDetails, IBaseResource resource) {
+		Object generation = requestDetails.getUserData().get(USERDATA_GENERATION);
+		if (RestOperationTypeEnum.READ == requestDetails.getRestOperationType() && resource != null && generation instanceof Long) {
+			index.update(requestDetails, resource, (Long)generation);
+		}
+		return true;
+	}
+
+	/*
+	 * Invalidate again once a write is complete, in case a concurrent read
+	 * recorded the old version while the write was in progress
+	 */
+	@Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+	public void processingCompleted (RequestDetails requestDetails) {
+		if (RestOperationTypeEnum.READ != requestDetails.getRestOperationType()) {
+			invalidate(requestDetails);
+		}
+	}
+
+	/*
+	 * Answer with 304 Not Modified (thrown, as the provider must not be called)
+	 */
+	private void checkNotModified (RequestDetails requestDetails, HttpServletRequest request) throws NotModifiedException {
+		IIdType id = requestDetails.getId();
+		if (null == id || !id.hasIdPart() || null == request) {
+			return;
+		}
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		long ifModifiedSince = (null == ifNoneMatch) ? getDateHeader(request, "If-Modified-Since") : -1;
+		if (null == ifNoneMatch && ifModifiedSince < 0) {
+			return;
+		}
+		VersionIndex.Entry entry = index.get(requestDetails.getTenantId(), requestDetails.getResourceName(), id.getIdPart());
+		if (null == entry) {
+			return;
+		}
+		boolean notModified;
+		if (ifNoneMatch != null) {
+			notModified = (entry.getVersionId() != null) && matches(ifNoneMatch, entry.getVersionId());
+		} else {
+			notModified = (entry.getLastModified() > 0) && (entry.getLastModified() / 1000) <= (ifModifiedSince / 1000);
+		}
+		if (notModified) {
+			log.trace("answering ["+requestDetails.getResourceName()+"/"+id.getIdPart()+"] with 304 Not Modified");
+			NotModifiedException notModifiedException = new NotModifiedException("Not Modified");
+			if (entry.getVersionId() != null) {
+				notModifiedException.addResponseHeader("ETag", "W/\""+entry.getVersionId()+"\"");
+			}
+			if (entry.getLastModified() > 0) {
+				notModifiedException.addResponseHeader("Last-Modified", HTTP_DATE.format(Instant.ofEpochMilli(entry.getLastModified())));
+			}
+			throw notModifiedException;
+		}
+	}
+
+	private void invalidate (RequestDetails requestDetails) {
+		RestOperationTypeEnum operation = requestDetails.getRestOperationType();
+		if (null == operation) {
+			return;
+		}
+		switch (operation) {
+			case EXTENDED_OPERATION_SERVER:
+			case EXTENDED_OPERATION_TYPE:
+			case EXTENDED_OPERATION_INSTANCE:
+				if (RequestTypeEnum.GET == requestDetails.getRequestType()) {
+					return;
+				}
+				break;
+			case CREATE:
+			case UPDATE:
+			case DELETE:
+			case PATCH:
+			case META_ADD:
+			case META_DELETE:
+			case TRANSACTION:
+				break;
+			default:
+				return;
+		}
+		String resourceName = requestDetails.getResourceName();
+		IIdType id = requestDetails.getId();
+		if (resourceName != null && id != null && id.hasIdPart()) {
+			index.invalidate(requestDetails.getTenantId(), resourceName, id.getIdPart());
+		} else
+		if (RestOperationTypeEnum.CREATE == operation) {
+			// a new resource has no recorded version
+		} else
+		if (resourceName != null) {
+			index.invalidateType(requestDetails.getTenantId(), resourceName);
+		} else {
+			index.clear();
+		}
+	}
+
+	/*
+	 * If-None-Match holds a list of (possibly weak) entity tags. The "*"
+	 * wildcard is for conditional writes and never matches on a read.
+	 */
+	private static boolean matches (String ifNoneMatch, String versionId) {
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if (tag.length() >= 2 && tag.startsWith("\"") && tag.endsWith("\"")) {
+				tag = tag.substring(1, tag.length() - 1);
+			}
+			if (versionId.equals(tag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static long getDateHeader (HttpServletRequest request, String name) {
+		try {
+			return request.getDateHeader(name);
+		} catch (IllegalArgumentException e) {
+			return -1;
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+/**
+ * Replaces the response of a request that has passed its
+ * {@code RequestDeadline} with a 504 OperationOutcome, whether the
+ * provider returned a result or failed (e.g. because it was
+ * interrupted at the deadline). Once the provider has returned the
+ * request thread is no longer interrupted. It is registered by the
+ * server once a provider with a deadline is registered.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+@Interceptor
+public class DeadlineInterceptor {
+
+	@Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+	public boolean outgoingResponse (RequestDetails requestDetails) {
+		RequestDeadline deadline = RequestDeadline.of(requestDetails);
+		if (deadline != null) {
+			deadline.disarm();
+			deadline.check();
+		}
+		return true;
+	}
+
+	@Hook(Pointcut.SERVER_PRE_PROCESS_OUTGOING_EXCEPTION)
+	public BaseServerResponseException preProcessOutgoingException (RequestDetails requestDetails, Throwable exception) {
+		RequestDeadline deadline = RequestDeadline.of(requestDetails);
+		if (deadline != null) {
+			deadline.disarm();
+		}
+		if (deadline != null && deadline.isExpired()) {
+			if (exception instanceof BaseServerResponseException && ((BaseServerResponseException)exception).getStatusCode() == 504) {
+				return null;
+			}
+			return deadline.newTimeoutException();
+		}
+		return null;
+	}
+
+}
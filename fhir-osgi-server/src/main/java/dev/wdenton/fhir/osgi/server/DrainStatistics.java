@@ -0,0 +1,87 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+/**
+ * Metrics collected while draining in-flight requests before
+ * providers (or a whole server) are unregistered.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class DrainStatistics {
+
+	private long drainCount;
+	private long timedOutCount;
+	private long abandonedRequests;
+	private long lastDrainMillis;
+	private long maxDrainMillis;
+	private long totalDrainMillis;
+
+	/**
+	 * Record the outcome of a single drain
+	 *
+	 * @param millis how long the drain waited
+	 * @param remaining the number of requests still in-flight when the wait ended
+	 */
+	public synchronized void record (long millis, int remaining) {
+		drainCount++;
+		lastDrainMillis = millis;
+		totalDrainMillis += millis;
+		if (millis > maxDrainMillis) {
+			maxDrainMillis = millis;
+		}
+		if (remaining > 0) {
+			timedOutCount++;
+			abandonedRequests += remaining;
+		}
+	}
+
+	public synchronized long getDrainCount () {
+		return drainCount;
+	}
+
+	public synchronized long getTimedOutCount () {
+		return timedOutCount;
+	}
+
+	public synchronized long getAbandonedRequests () {
+		return abandonedRequests;
+	}
+
+	public synchronized long getLastDrainMillis () {
+		return lastDrainMillis;
+	}
+
+	public synchronized long getMaxDrainMillis () {
+		return maxDrainMillis;
+	}
+
+	public synchronized long getTotalDrainMillis () {
+		return totalDrainMillis;
+	}
+
+	@Override
+	public synchronized String toString () {
+		return "drains ["+drainCount+"] timed-out ["+timedOutCount+"] abandoned ["+abandonedRequests
+				+"] last ["+lastDrainMillis+"ms] max ["+maxDrainMillis+"ms] total ["+totalDrainMillis+"ms]";
+	}
+
+}
@@ -22,21 +22,38 @@ package dev.wdenton.fhir.osgi.server;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ca.uhn.fhir.context.ConfigurationException;
+import dev.wdenton.fhir.osgi.server.diagnostics.CollectionFootprint;
+import dev.wdenton.fhir.osgi.server.diagnostics.HeapEstimator;
+import dev.wdenton.fhir.osgi.server.diagnostics.IOsgiFootprintReporter;
+import dev.wdenton.fhir.osgi.server.diagnostics.IOsgiServerDiagnostics;
+import dev.wdenton.fhir.osgi.server.diagnostics.ServerFootprint;
+import dev.wdenton.fhir.osgi.server.jfr.FhirEvents;
 
 /**
  *
  * Copyright (c) 2019-2022 William E. Denton
  * @author williamEdenton@gmail.com
  */
-public class FhirOsgiServerPublisher {
+public class FhirOsgiServerPublisher implements IOsgiServerDiagnostics {
 	private static Logger log = LoggerFactory.getLogger(FhirOsgiServerPublisher.class);
 	private static final String FIRST_SERVER = "#first";
 	public static final String DEFAULT_SERVICE_NAME = "<default>";
@@ -50,13 +67,39 @@ public class FhirOsgiServerPublisher {
 	// all the registered providers
 	private List<Collection<Object>> registeredProviders = Collections.synchronizedList(new ArrayList<>());
 	
+	// the service-properties of each registered provider collection
+	private Map<Collection<Object>,Map<String,Object>> providerProperties = Collections.synchronizedMap(new IdentityHashMap<>());
+	
 	// providers that were registered before their assigned server was registered
 	private Map<String,Collection<Collection<Object>>> pendingProviders = new ConcurrentHashMap<>();
 	
+	// the interceptors registered with each Hapi Server instance
+	private Map<String,Collection<Object>> serverInterceptors = new ConcurrentHashMap<>();
+	
+	// interceptors that were registered before their assigned server was registered
+	private Map<String,Collection<Object>> pendingInterceptors = new ConcurrentHashMap<>();
+	
+	// the change listeners registered with each Hapi Server instance and those waiting for their server
+	private Map<String,Map<IOsgiChangeListener,Map<String,Object>>> serverListeners = new ConcurrentHashMap<>();
+	private Map<String,Map<IOsgiChangeListener,Map<String,Object>>> pendingListeners = new ConcurrentHashMap<>();
+	
 	// at least one provider is registered without a server name..
 	// in this case, there can only be one registered server
 	private boolean haveDefaultProviders = false;
 	
+	// the active provider collections by hot-swap key (server name + provider key)
+	private Map<String,Collection<Object>> keyedProviders = new ConcurrentHashMap<>();
+	
+	// unregistered provider collections that are kept bound while waiting for a replacement
+	private Map<String,RetiringProviders> retiringProviders = new ConcurrentHashMap<>();
+	
+	// the single-provider collection of each provider published through an IOsgiProviderWrapper
+	private Map<Object,Collection<Object>> wrappedProviders = Collections.synchronizedMap(new IdentityHashMap<>());
+	
+	// how long an unregistered keyed collection waits for its replacement (0 = don't wait)
+	private long swapGraceMillis = 5000;
+	private ScheduledExecutorService swapTimer;
+	
 	/**
 	 * Register a new FHIR Server OSGi service.
 	 * We need to track these services so we can find the correct 
@@ -96,6 +139,8 @@ public class FhirOsgiServerPublisher {
 				}
 				log.trace("Registering FHIR Server ["+serverName+"]. (OSGi service named ["+serviceName+"])");
 				registeredServers.put(serverName, server);
+				server.setFhirServerName(serverName);
+				server.applyServiceProperties(props);
 				
 				// Providers don't have to specify a server-name as long
 				// as there is only one registered OsgiRestfulServer
@@ -103,6 +148,32 @@ public class FhirOsgiServerPublisher {
 					throw new ConfigurationException("FHIR Providers are registered without a server name. Only one FHIR Server is allowed.");
 				}
 				
+				// Register any pending interceptors before the providers
+				// so that no request is served without them
+				
+				Collection<Object> interceptors = pendingInterceptors.remove(serverName);
+				if (interceptors != null) {
+					log.trace("Registering FHIR interceptors waiting for this server to be registered.");
+					flushPendingInterceptors(interceptors, server, serverName);
+				}
+				if (registeredServers.size() == 1) {
+					interceptors = pendingInterceptors.remove(FIRST_SERVER);
+					if (interceptors != null) {
+						log.trace("Registering FHIR interceptors waiting for the first/only server to be registered.");
+						flushPendingInterceptors(interceptors, server, serverName);
+					}
+				}
+				Map<IOsgiChangeListener,Map<String,Object>> listeners = pendingListeners.remove(serverName);
+				if (listeners != null) {
+					flushPendingListeners(listeners, server, serverName);
+				}
+				if (registeredServers.size() == 1) {
+					listeners = pendingListeners.remove(FIRST_SERVER);
+					if (listeners != null) {
+						flushPendingListeners(listeners, server, serverName);
+					}
+				}
+				
 				// Register any pending providers with the new OsgiRestfulServer.
 				// This happens when providers are registered before the server
 				
@@ -110,9 +181,7 @@ public class FhirOsgiServerPublisher {
 				if (providers != null) {
 					log.trace("Registering FHIR providers waiting for this server to be registered.");
 					pendingProviders.remove(serverName);
-					for (Collection<Object> list : providers) {
-						this.registerProviders(list, server, serverName);
-					}
+					flushPendingProviders(providers, server, serverName);
 				}
 				
 				// Register any providers that didn't specify a server-name
@@ -124,9 +193,7 @@ public class FhirOsgiServerPublisher {
 					if (providers != null) {
 						log.trace("Registering FHIR providers waiting for the first/only server to be registered.");
 						pendingProviders.remove(FIRST_SERVER);
-						for (Collection<Object> list : providers) {
-							this.registerProviders(list, server, serverName);
-						}
+						flushPendingProviders(providers, server, serverName);
 					}
 				}
 			} else {
@@ -135,6 +202,53 @@ public class FhirOsgiServerPublisher {
 		}
 	}
 	
+	/*
+	 * Register the provider collections that were waiting for the server
+	 */
+	private void flushPendingProviders (Collection<Collection<Object>> providers, IOsgiRestfulServer server, String serverName) throws ConfigurationException {
+		Object event = FhirEvents.beginPendingFlush();
+		int count = 0;
+		try {
+			for (Collection<Object> list : providers) {
+				String swapKey = getSwapKey(serverName, getProviderProperties(list));
+				if (!swapProviders(swapKey, list, server, serverName)) {
+					this.registerProviders(list, server, serverName);
+				}
+				if (swapKey != null) {
+					keyedProviders.put(swapKey, list);
+				}
+				count += list.size();
+			}
+		} finally {
+			FhirEvents.endPendingFlush(event, serverName, providers.size(), count);
+		}
+	}
+	
+	/*
+	 * Register the interceptors that were waiting for the server
+	 */
+	private void flushPendingInterceptors (Collection<Object> interceptors, IOsgiRestfulServer server, String serverName) throws ConfigurationException {
+		synchronized(interceptors) {
+			for (Object interceptor : interceptors) {
+				server.registerOsgiInterceptor(interceptor);
+				getInterceptors(serverInterceptors, serverName).add(interceptor);
+			}
+		}
+	}
+	
+	/*
+	 * Register the change listeners that were waiting for the server
+	 */
+	private void flushPendingListeners (Map<IOsgiChangeListener,Map<String,Object>> listeners, IOsgiRestfulServer server, String serverName) throws ConfigurationException {
+		log.trace("Registering FHIR change listeners waiting for FHIR Server ["+serverName+"]");
+		synchronized(listeners) {
+			for (Map.Entry<IOsgiChangeListener,Map<String,Object>> entry : listeners.entrySet()) {
+				server.registerOsgiChangeListener(entry.getKey(), entry.getValue());
+				getListeners(serverListeners, serverName).put(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+	
 	/**
 	 * This method will be called when a FHIR Server OSGi service
 	 * is being removed from the container. This normally will only
@@ -154,18 +268,42 @@ public class FhirOsgiServerPublisher {
 				if (service != null) {
 					log.trace("Unregistering FHIR Server ["+serverName+"]");
 					service.unregisterOsgiProviders();
+					Collection<Object> interceptors = serverInterceptors.remove(serverName);
+					if (interceptors != null) {
+						synchronized(interceptors) {
+							for (Object interceptor : interceptors) {
+								service.unregisterOsgiInterceptor(interceptor);
+							}
+						}
+					}
+					Map<IOsgiChangeListener,Map<String,Object>> listeners = serverListeners.remove(serverName);
+					if (listeners != null) {
+						synchronized(listeners) {
+							for (IOsgiChangeListener listener : listeners.keySet()) {
+								service.unregisterOsgiChangeListener(listener);
+							}
+						}
+					}
 					registeredServers.remove(serverName);
 					log.trace("Dequeue any FHIR providers waiting for this server");
 					pendingProviders.remove(serverName);
+					pendingInterceptors.remove(serverName);
+					pendingListeners.remove(serverName);
 					if (registeredServers.size() == 0) {
 						log.trace("Dequeue any FHIR providers waiting for the first/only server");
 						pendingProviders.remove(FIRST_SERVER);
+						pendingInterceptors.remove(FIRST_SERVER);
+						pendingListeners.remove(FIRST_SERVER);
 					}
 					Collection<Collection<Object>> providers = serverProviders.get(serverName);
 					if (providers != null) {
 						serverProviders.remove(serverName);
 						registeredProviders.removeAll(providers);
+						providerProperties.keySet().removeAll(providers);
 					}
+					String keyPrefix = serverName+"|";
+					keyedProviders.keySet().removeIf(key -> key.startsWith(keyPrefix));
+					retiringProviders.keySet().removeIf(key -> key.startsWith(keyPrefix));
 				}
 			} else {
 				throw new ConfigurationException("FHIR Server registered in OSGi is missing the required ["+IOsgiRestfulServer.SVCPROP_SERVICE_NAME+"] service-property");
@@ -204,41 +342,127 @@ public class FhirOsgiServerPublisher {
 	 */
 	public void registerFhirProviders (IOsgiProviderCollection bundle, Map<String,Object> props) throws ConfigurationException {
 		if (bundle != null) {
-			Collection<Object> providers = bundle.getProviders();
-			if (providers != null && !providers.isEmpty()) {
-				try {
-					String serverName = (String)props.get(IOsgiRestfulServer.SVCPROP_SERVICE_NAME);
-					String ourServerName = getServerName(serverName);
-					String bundleName = (String)props.get("name");
-					if (null == bundleName) {
-						bundleName = DEFAULT_SERVICE_NAME;
+			registerProviderCollection(bundle.getProviders(), props);
+		}
+	}
+
+	private void registerProviderCollection (Collection<Object> providers, Map<String,Object> props) throws ConfigurationException {
+		if (providers != null && !providers.isEmpty()) {
+			try {
+				String serverName = (String)props.get(IOsgiRestfulServer.SVCPROP_SERVICE_NAME);
+				String ourServerName = getServerName(serverName);
+				String bundleName = (String)props.get("name");
+				if (null == bundleName) {
+					bundleName = DEFAULT_SERVICE_NAME;
+				}
+				log.trace("Register FHIR Provider Bundle ["+bundleName+"] on FHIR Server ["+ourServerName+"]");
+				providerProperties.put(providers, props);
+				String swapKey = getSwapKey(ourServerName, props);
+				IOsgiRestfulServer server = registeredServers.get(ourServerName);
+				if (server != null) {
+					if (!swapProviders(swapKey, providers, server, ourServerName)) {
+						registerProviders(providers, server, ourServerName);
 					}
-					log.trace("Register FHIR Provider Bundle ["+bundleName+"] on FHIR Server ["+ourServerName+"]");
-					IOsgiRestfulServer server = registeredServers.get(ourServerName);
-					if (server != null) {
-						registerProviders(providers, server, serverName);
-					} else {
-						log.trace("Queue the Provider Bundle waiting for FHIR Server to be registered");
-						Collection<Collection<Object>> pending;
-						synchronized(pendingProviders) {
-							pending = pendingProviders.get(serverName);
-							if (null == pending) {
-								pending = Collections.synchronizedCollection(new ArrayList<Collection<Object>>());
-								pendingProviders.put(serverName, pending);
-							}
+					if (swapKey != null) {
+						keyedProviders.put(swapKey, providers);
+					}
+				} else {
+					log.trace("Queue the Provider Bundle waiting for FHIR Server to be registered");
+					Collection<Collection<Object>> pending;
+					synchronized(pendingProviders) {
+						pending = pendingProviders.get(ourServerName);
+						if (null == pending) {
+							pending = Collections.synchronizedCollection(new ArrayList<Collection<Object>>());
+							pendingProviders.put(ourServerName, pending);
 						}
-						pending.add(providers);
 					}
-				
-				} catch (BadServerException e) {
-					throw new ConfigurationException("Unable to register the OSGi FHIR Provider. Multiple Restful Servers exist. Specify the ["+IOsgiRestfulServer.SVCPROP_SERVICE_NAME+"] service-property");
+					pending.add(providers);
+				}
+			
+			} catch (BadServerException e) {
+				throw new ConfigurationException("Unable to register the OSGi FHIR Provider. Multiple Restful Servers exist. Specify the ["+IOsgiRestfulServer.SVCPROP_SERVICE_NAME+"] service-property");
+			}
+		}
+	}
+	
+	/**
+	 * Register a single FHIR Provider published through an
+	 * {@code IOsgiProviderWrapper} OSGi service. It is registered as a
+	 * provider collection of its own.
+	 * 
+	 * @param wrapper OSGi service wrapping the provider
+	 * @param props the <service-properties> for that service
+	 * 
+	 * @throws ConfigurationException
+	 */
+	public void registerFhirProvider (IOsgiProviderWrapper wrapper, Map<String,Object> props) throws ConfigurationException {
+		if (wrapper != null) {
+			Object provider = wrapper.getProvider();
+			if (provider != null) {
+				Collection<Object> providers = Collections.singletonList(provider);
+				wrappedProviders.put(provider, providers);
+				registerProviderCollection(providers, props);
+			}
+		}
+	}
+	
+	/**
+	 * This method will be called when a FHIR Provider published
+	 * through an {@code IOsgiProviderWrapper} is being removed from
+	 * the container.
+	 * 
+	 * @param wrapper OSGi service wrapping the provider
+	 * @param props the <service-properties> for that service
+	 * 
+	 * @throws ConfigurationException
+	 */
+	public void unregisterFhirProvider (IOsgiProviderWrapper wrapper, Map<String,Object> props) throws ConfigurationException {
+		if (wrapper != null) {
+			Object provider = wrapper.getProvider();
+			if (provider != null) {
+				Collection<Object> providers = wrappedProviders.remove(provider);
+				if (providers != null) {
+					unregisterProviderCollection(providers, props);
 				}
 			}
 		}
 	}
 	
+	/*
+	 * Replace the collection previously registered under the same
+	 * hot-swap key, if there is one, in a single server update
+	 */
+	private boolean swapProviders (String swapKey, Collection<Object> providers, IOsgiRestfulServer server, String serverName) throws ConfigurationException {
+		if (null == swapKey) {
+			return false;
+		}
+		Collection<Object> old;
+		RetiringProviders retiring = retiringProviders.remove(swapKey);
+		if (retiring != null) {
+			retiring.cancel();
+			old = retiring.providers;
+		} else {
+			old = keyedProviders.get(swapKey);
+		}
+		if (null == old || old == providers) {
+			return false;
+		}
+		log.trace("Hot-swap FHIR Provider Bundle ["+swapKey+"]");
+		server.replaceOsgiProviders(old, providers, getProviderProperties(providers));
+		providerProperties.remove(old);
+		
+		Collection<Collection<Object>> active = serverProviders.get(serverName);
+		if (active != null) {
+			active.remove(old);
+			active.add(providers);
+		}
+		registeredProviders.remove(old);
+		registeredProviders.add(providers);
+		return true;
+	}
+	
 	protected void registerProviders (Collection<Object> providers, IOsgiRestfulServer server, String serverName) throws ConfigurationException {
-		server.registerOsgiProviders(providers);
+		server.registerOsgiProviders(providers, getProviderProperties(providers));
 
 		Collection<Collection<Object>> active;
 		synchronized(serverProviders) {
@@ -266,28 +490,359 @@ public class FhirOsgiServerPublisher {
 	 */
 	public void unregisterFhirProviders (IOsgiProviderCollection bundle, Map<String,Object> props) throws ConfigurationException {
 		if (bundle != null) {
-			Collection<Object> providers = bundle.getProviders();
-			if (providers != null && !providers.isEmpty()) {
+			unregisterProviderCollection(bundle.getProviders(), props);
+		}
+	}
+
+	private void unregisterProviderCollection (Collection<Object> providers, Map<String,Object> props) throws ConfigurationException {
+		if (providers != null && !providers.isEmpty()) {
+			try {
+				String serverName = (String)props.get(IOsgiRestfulServer.SVCPROP_SERVICE_NAME);
+				String ourServerName = getServerName(serverName);
+				IOsgiRestfulServer server = registeredServers.get(ourServerName);
+				String swapKey = getSwapKey(ourServerName, props);
+				if (swapKey != null && server != null) {
+					Collection<Object> current = keyedProviders.get(swapKey);
+					if (current != null && current != providers) {
+						log.trace("FHIR Provider Bundle ["+swapKey+"] was already replaced");
+						return;
+					}
+					keyedProviders.remove(swapKey);
+					if (swapGraceMillis > 0) {
+						log.trace("Keep FHIR Provider Bundle ["+swapKey+"] bound while waiting for its replacement");
+						retireProviders(swapKey, providers, server, ourServerName);
+						return;
+					}
+				}
+				if (server != null) {
+					unregisterProviders(providers, server, ourServerName);
+				} else {
+					Collection<Collection<Object>> pending = pendingProviders.get(ourServerName);
+					if (pending != null) {
+						pending.remove(providers);
+					}
+					providerProperties.remove(providers);
+				}
+			} catch (BadServerException e) {
+				throw new ConfigurationException("Unable to register the OSGi FHIR Provider. Multiple Restful Servers exist. Specify the ["+IOsgiRestfulServer.SVCPROP_SERVICE_NAME+"] service-property");
+			}
+		}
+	}
+
+	protected void unregisterProviders (Collection<Object> providers, IOsgiRestfulServer server, String serverName) throws ConfigurationException {
+		registeredProviders.remove(providers);
+		providerProperties.remove(providers);
+		server.unregisterOsgiProviders(providers);
+		
+		Collection<Collection<Object>> active = serverProviders.get(serverName);
+		if (active != null) {
+			active.remove(providers);
+		}
+	}
+	
+	/**
+	 * Register a new FHIR Interceptor OSGi service with the FHIR Server
+	 * named by its <b><i>fhir.server.name</i></b> service-property (or the
+	 * only FHIR Server when it has none). Interceptors registered before
+	 * their server are queued until the server is registered.
+	 * 
+	 * @param service OSGi service wrapping the interceptor
+	 * @param props the <service-properties> for that service
+	 * 
+	 * @throws ConfigurationException
+	 */
+	public void registerFhirInterceptor (IOsgiInterceptor service, Map<String,Object> props) throws ConfigurationException {
+		if (service != null) {
+			Object interceptor = service.getInterceptor();
+			if (interceptor != null) {
 				try {
-					registeredProviders.remove(providers);
 					String serverName = (String)props.get(IOsgiRestfulServer.SVCPROP_SERVICE_NAME);
 					String ourServerName = getServerName(serverName);
 					IOsgiRestfulServer server = registeredServers.get(ourServerName);
 					if (server != null) {
-						
-						server.unregisterOsgiProviders(providers);
-						
-						Collection<Collection<Object>> active = serverProviders.get(serverName);
-						if (active != null) {
-							active.remove(providers);
+						log.trace("Register FHIR Interceptor ["+interceptor.getClass().getName()+"] on FHIR Server ["+ourServerName+"]");
+						server.registerOsgiInterceptor(interceptor);
+						getInterceptors(serverInterceptors, ourServerName).add(interceptor);
+					} else {
+						log.trace("Queue the Interceptor waiting for FHIR Server to be registered");
+						getInterceptors(pendingInterceptors, ourServerName).add(interceptor);
+					}
+				} catch (BadServerException e) {
+					throw new ConfigurationException("Unable to register the OSGi FHIR Interceptor. Multiple Restful Servers exist. Specify the ["+IOsgiRestfulServer.SVCPROP_SERVICE_NAME+"] service-property");
+				}
+			}
+		}
+	}
+	
+	/**
+	 * This method will be called when a FHIR Interceptor OSGi service
+	 * is being removed from the container.
+	 * 
+	 * @param service OSGi service wrapping the interceptor
+	 * @param props the <service-properties> for that service
+	 * 
+	 * @throws ConfigurationException
+	 */
+	public void unregisterFhirInterceptor (IOsgiInterceptor service, Map<String,Object> props) throws ConfigurationException {
+		if (service != null) {
+			Object interceptor = service.getInterceptor();
+			if (interceptor != null) {
+				try {
+					String serverName = (String)props.get(IOsgiRestfulServer.SVCPROP_SERVICE_NAME);
+					String ourServerName = getServerName(serverName);
+					IOsgiRestfulServer server = registeredServers.get(ourServerName);
+					Collection<Object> active = serverInterceptors.get(ourServerName);
+					if (server != null && active != null && active.remove(interceptor)) {
+						log.trace("Unregister FHIR Interceptor ["+interceptor.getClass().getName()+"] on FHIR Server ["+ourServerName+"]");
+						server.unregisterOsgiInterceptor(interceptor);
+					} else {
+						Collection<Object> pending = pendingInterceptors.get(ourServerName);
+						if (pending != null) {
+							pending.remove(interceptor);
 						}
 					}
 				} catch (BadServerException e) {
-					throw new ConfigurationException("Unable to register the OSGi FHIR Provider. Multiple Restful Servers exist. Specify the ["+IOsgiRestfulServer.SVCPROP_SERVICE_NAME+"] service-property");
+					throw new ConfigurationException("Unable to unregister the OSGi FHIR Interceptor. Multiple Restful Servers exist. Specify the ["+IOsgiRestfulServer.SVCPROP_SERVICE_NAME+"] service-property");
 				}
 			}
 		}
 	}
+	
+	/**
+	 * Register a new FHIR change listener OSGi service with the FHIR
+	 * Server named by its <b><i>fhir.server.name</i></b> service-property
+	 * (or the only FHIR Server when it has none). Listeners registered
+	 * before their server are queued until the server is registered.
+	 * 
+	 * @param listener OSGi service to be told of the completed writes
+	 * @param props the <service-properties> for that service
+	 * 
+	 * @throws ConfigurationException
+	 */
+	public void registerChangeListener (IOsgiChangeListener listener, Map<String,Object> props) throws ConfigurationException {
+		if (listener != null) {
+			try {
+				String serverName = (String)props.get(IOsgiRestfulServer.SVCPROP_SERVICE_NAME);
+				String ourServerName = getServerName(serverName);
+				IOsgiRestfulServer server = registeredServers.get(ourServerName);
+				if (server != null) {
+					log.trace("Register FHIR change listener ["+listener.getClass().getName()+"] on FHIR Server ["+ourServerName+"]");
+					server.registerOsgiChangeListener(listener, props);
+					getListeners(serverListeners, ourServerName).put(listener, props);
+				} else {
+					log.trace("Queue the change listener waiting for FHIR Server to be registered");
+					getListeners(pendingListeners, ourServerName).put(listener, props);
+				}
+			} catch (BadServerException e) {
+				throw new ConfigurationException("Unable to register the OSGi FHIR change listener. Multiple Restful Servers exist. Specify the ["+IOsgiRestfulServer.SVCPROP_SERVICE_NAME+"] service-property");
+			}
+		}
+	}
+	
+	/**
+	 * This method will be called when a FHIR change listener OSGi
+	 * service is being removed from the container.
+	 * 
+	 * @param listener OSGi service to be told of the completed writes
+	 * @param props the <service-properties> for that service
+	 * 
+	 * @throws ConfigurationException
+	 */
+	public void unregisterChangeListener (IOsgiChangeListener listener, Map<String,Object> props) throws ConfigurationException {
+		if (listener != null) {
+			try {
+				String serverName = (String)props.get(IOsgiRestfulServer.SVCPROP_SERVICE_NAME);
+				String ourServerName = getServerName(serverName);
+				IOsgiRestfulServer server = registeredServers.get(ourServerName);
+				Map<IOsgiChangeListener,Map<String,Object>> active = serverListeners.get(ourServerName);
+				if (server != null && active != null && active.remove(listener) != null) {
+					log.trace("Unregister FHIR change listener ["+listener.getClass().getName()+"] on FHIR Server ["+ourServerName+"]");
+					server.unregisterOsgiChangeListener(listener);
+				} else {
+					Map<IOsgiChangeListener,Map<String,Object>> pending = pendingListeners.get(ourServerName);
+					if (pending != null) {
+						pending.remove(listener);
+					}
+				}
+			} catch (BadServerException e) {
+				throw new ConfigurationException("Unable to unregister the OSGi FHIR change listener. Multiple Restful Servers exist. Specify the ["+IOsgiRestfulServer.SVCPROP_SERVICE_NAME+"] service-property");
+			}
+		}
+	}
+	
+	@Override
+	public Collection<String> getServerNames () {
+		Set<String> names = new TreeSet<>(registeredServers.keySet());
+		names.addAll(pendingProviders.keySet());
+		names.addAll(pendingInterceptors.keySet());
+		return names;
+	}
+
+	/**
+	 * Report what a server holds. The server name may also be one that
+	 * only has pending providers or interceptors waiting for it.
+	 */
+	@Override
+	public ServerFootprint getFootprint (String serverName, boolean estimateHeap) {
+		IOsgiRestfulServer server = registeredServers.get(serverName);
+		if (null == server && !pendingProviders.containsKey(serverName) && !pendingInterceptors.containsKey(serverName)) {
+			return null;
+		}
+		ServerFootprint footprint = new ServerFootprint(serverName);
+		for (Collection<Object> providers : snapshot(serverProviders.get(serverName))) {
+			Map<String,Object> props = getProviderProperties(providers);
+			footprint.addCollection(new CollectionFootprint(getCollectionName(serverName, props, providers),
+					getBundleSymbolicName(props.get(Constants.SERVICE_BUNDLEID)), snapshot(providers)));
+		}
+		Collection<Collection<Object>> pending = snapshot(pendingProviders.get(serverName));
+		footprint.setPendingCollections(pending.size());
+		footprint.setPendingProviders(pending.stream().mapToInt(Collection::size).sum());
+		String keyPrefix = serverName+"|";
+		footprint.setRetiringCollections((int)retiringProviders.keySet().stream().filter(key -> key.startsWith(keyPrefix)).count());
+		footprint.setInterceptors(snapshot(serverInterceptors.get(serverName)).size());
+		footprint.setPendingInterceptors(snapshot(pendingInterceptors.get(serverName)).size());
+		if (server instanceof IOsgiFootprintReporter) {
+			((IOsgiFootprintReporter)server).describeFootprint(footprint);
+		}
+		if (estimateHeap) {
+			HeapEstimator estimator = new HeapEstimator();
+			estimator.exclude(this);
+			estimator.exclude(server);
+			if (server != null) {
+				estimator.exclude(server.getRestfulServer());
+			}
+			footprint.estimate(estimator);
+		}
+		return footprint;
+	}
+
+	@Override
+	public List<ServerFootprint> getFootprints (boolean estimateHeap) {
+		List<ServerFootprint> footprints = new ArrayList<>();
+		for (String serverName : getServerNames()) {
+			ServerFootprint footprint = getFootprint(serverName, estimateHeap);
+			if (footprint != null) {
+				footprints.add(footprint);
+			}
+		}
+		return footprints;
+	}
+
+	/*
+	 * The name of a provider collection in the diagnostics: its hot-swap
+	 * key without the server name, otherwise its first provider class
+	 */
+	private String getCollectionName (String serverName, Map<String,Object> props, Collection<Object> providers) {
+		String key = getSwapKey(serverName, props);
+		if (key != null) {
+			return key.substring(serverName.length() + 1);
+		}
+		return providers.isEmpty() ? "<empty>" : providers.iterator().next().getClass().getName();
+	}
+
+	private static <T> Collection<T> snapshot (Collection<T> collection) {
+		if (null == collection) {
+			return Collections.emptyList();
+		}
+		synchronized (collection) {
+			return new ArrayList<>(collection);
+		}
+	}
+
+	private Collection<Object> getInterceptors (Map<String,Collection<Object>> interceptors, String serverName) {
+		return interceptors.computeIfAbsent(serverName, name -> Collections.synchronizedList(new ArrayList<>()));
+	}
+	
+	private Map<IOsgiChangeListener,Map<String,Object>> getListeners (Map<String,Map<IOsgiChangeListener,Map<String,Object>>> listeners, String serverName) {
+		return listeners.computeIfAbsent(serverName, name -> Collections.synchronizedMap(new LinkedHashMap<>()));
+	}
+	
+	/*
+	 * Keep the unregistered providers bound until either a replacement
+	 * with the same key is registered or the grace period expires
+	 */
+	private void retireProviders (String swapKey, Collection<Object> providers, IOsgiRestfulServer server, String serverName) {
+		RetiringProviders retiring = new RetiringProviders(providers);
+		retiringProviders.put(swapKey, retiring);
+		retiring.expiry = getSwapTimer().schedule(() -> {
+			if (retiringProviders.remove(swapKey, retiring)) {
+				log.trace("No replacement for FHIR Provider Bundle ["+swapKey+"]. Unregistering");
+				try {
+					unregisterProviders(providers, server, serverName);
+				} catch (Exception e) {
+					log.error("Error unregistering FHIR Provider Bundle ["+swapKey+"]", e);
+				}
+			}
+		}, swapGraceMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	private Map<String,Object> getProviderProperties (Collection<Object> providers) {
+		Map<String,Object> props = providerProperties.get(providers);
+		return (props != null) ? props : Collections.emptyMap();
+	}
+	
+	private synchronized ScheduledExecutorService getSwapTimer () {
+		if (null == swapTimer) {
+			swapTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "fhir-osgi-provider-swap");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return swapTimer;
+	}
+	
+	/**
+	 * Stop the background tasks. Called when the publisher is destroyed.
+	 */
+	public synchronized void shutdown () {
+		if (swapTimer != null) {
+			swapTimer.shutdownNow();
+			swapTimer = null;
+		}
+	}
+	
+	public long getSwapGraceMillis () {
+		return swapGraceMillis;
+	}
+
+	/**
+	 * @param swapGraceMillis how long an unregistered provider collection
+	 * with a hot-swap key stays bound while waiting for its replacement
+	 * (typically the new version of an updated bundle), so that a bundle
+	 * update (unbind then bind) has no window without providers. The
+	 * default is 5 seconds; zero unregisters immediately. Collections
+	 * without a <b><i>fhir.provider.key</i></b> are always unregistered
+	 * immediately.
+	 */
+	public void setSwapGraceMillis (long swapGraceMillis) {
+		this.swapGraceMillis = swapGraceMillis;
+	}
+	
+	/*
+	 * The key used to match a provider collection with its replacement.
+	 * Only an explicit fhir.provider.key service-property is used: the bundle
+	 * and blueprint component do not tell apart two collections (or wrapped
+	 * providers) published by the same bundle, and the second would silently
+	 * replace the first. Collections without a key are never hot-swapped.
+	 */
+	private String getSwapKey (String serverName, Map<String,Object> props) {
+		Object key = (props != null) ? props.get(IOsgiProviderCollection.SVCPROP_PROVIDER_KEY) : null;
+		return (key != null) ? serverName+"|"+key : null;
+	}
+	
+	private String getBundleSymbolicName (Object bundleId) {
+		if (bundleId instanceof Number) {
+			Bundle ourBundle = FrameworkUtil.getBundle(FhirOsgiServerPublisher.class);
+			if (ourBundle != null && ourBundle.getBundleContext() != null) {
+				Bundle bundle = ourBundle.getBundleContext().getBundle(((Number)bundleId).longValue());
+				if (bundle != null) {
+					return bundle.getSymbolicName();
+				}
+			}
+		}
+		return null;
+	}
 
 	/*
 	 * Adjust the FHIR Server name allowing for null which would
@@ -311,6 +866,22 @@ public class FhirOsgiServerPublisher {
 		return result;
 	}
 	
+	static class RetiringProviders {
+		final Collection<Object> providers;
+		volatile ScheduledFuture<?> expiry;
+		
+		RetiringProviders (Collection<Object> providers) {
+			this.providers = providers;
+		}
+		
+		void cancel () {
+			ScheduledFuture<?> future = expiry;
+			if (future != null) {
+				future.cancel(false);
+			}
+		}
+	}
+	
 	class BadServerException extends Exception {
 		BadServerException() {
 			super();
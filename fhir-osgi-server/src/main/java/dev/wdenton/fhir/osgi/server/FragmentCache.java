@@ -0,0 +1,173 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The encoded form of resources that have a version id, keyed by the
+ * server base, type, id, version id and encoding, so that unchanged
+ * resources are encoded once and spliced into the Bundles of later
+ * searches. The fragments are kept in heap or direct buffers and the
+ * least recently used are evicted when the total size passes maxBytes.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class FragmentCache {
+	private final long maxBytes;
+	private final long maxFragmentBytes;
+	private final boolean directBuffers;
+
+	// guarded by this
+	private final LinkedHashMap<String,ByteBuffer> fragments = new LinkedHashMap<>(256, 0.75f, true);
+	private long bytes = 0;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param maxBytes the most bytes of fragments kept
+	 * @param directBuffers true to keep the fragments in direct buffers (outside the heap)
+	 */
+	public FragmentCache (long maxBytes, boolean directBuffers) {
+		this.maxBytes = maxBytes;
+		this.maxFragmentBytes = Math.max(1, maxBytes / 8);
+		this.directBuffers = directBuffers;
+	}
+
+	/**
+	 * @return the key of a version of a resource in an encoding
+	 */
+	public static String keyOf (String serverBase, String resourceType, String idPart, String versionId, String encoding) {
+		return serverBase+"|"+resourceType+"/"+idPart+"/_history/"+versionId+"|"+encoding;
+	}
+
+	/**
+	 * @param key the key of the fragment
+	 * @return a view of the fragment (which must not be modified) or null if it isn't cached
+	 */
+	public ByteBuffer get (String key) {
+		ByteBuffer fragment;
+		synchronized (this) {
+			fragment = fragments.get(key);
+		}
+		if (null == fragment) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return fragment.duplicate();
+	}
+
+	/**
+	 * @param key the key of the fragment
+	 * @param encoded the encoded resource
+	 */
+	public void put (String key, byte[] encoded) {
+		if (encoded.length > maxFragmentBytes) {
+			return;
+		}
+		ByteBuffer fragment;
+		if (directBuffers) {
+			fragment = ByteBuffer.allocateDirect(encoded.length);
+			fragment.put(encoded).flip();
+			fragment = fragment.asReadOnlyBuffer();
+		} else {
+			fragment = ByteBuffer.wrap(encoded);
+		}
+		synchronized (this) {
+			ByteBuffer old = fragments.put(key, fragment);
+			if (old != null) {
+				bytes -= old.capacity();
+			}
+			bytes += fragment.capacity();
+			Iterator<ByteBuffer> eldest = fragments.values().iterator();
+			while (bytes > maxBytes && eldest.hasNext()) {
+				bytes -= eldest.next().capacity();
+				eldest.remove();
+				evictions.increment();
+			}
+		}
+	}
+
+	/**
+	 * Remove the fragments of a resource type, whose resources may have
+	 * been served by a provider that is unregistered
+	 *
+	 * @param resourceType the resource type
+	 */
+	public synchronized void invalidateType (String resourceType) {
+		String prefix = resourceType+"/";
+		Iterator<Map.Entry<String,ByteBuffer>> entries = fragments.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<String,ByteBuffer> entry = entries.next();
+			String key = entry.getKey();
+			if (key.startsWith(prefix, key.indexOf('|') + 1)) {
+				bytes -= entry.getValue().capacity();
+				entries.remove();
+			}
+		}
+	}
+
+	public synchronized void clear () {
+		fragments.clear();
+		bytes = 0;
+	}
+
+	public long getMaxBytes () {
+		return maxBytes;
+	}
+
+	public boolean isDirectBuffers () {
+		return directBuffers;
+	}
+
+	public long getHits () {
+		return hits.sum();
+	}
+
+	public long getMisses () {
+		return misses.sum();
+	}
+
+	public long getEvictions () {
+		return evictions.sum();
+	}
+
+	public synchronized int getFragments () {
+		return fragments.size();
+	}
+
+	public synchronized long getBytes () {
+		return bytes;
+	}
+
+	@Override
+	public String toString () {
+		return "hits ["+getHits()+"] misses ["+getMisses()+"] evictions ["+getEvictions()+"] fragments ["+getFragments()+"] bytes ["+getBytes()+"]";
+	}
+
+}
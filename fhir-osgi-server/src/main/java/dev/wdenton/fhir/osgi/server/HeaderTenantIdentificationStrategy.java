@@ -0,0 +1,114 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.security.Principal;
+import java.util.function.BiPredicate;
+
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.rest.server.tenant.ITenantIdentificationStrategy;
+import ca.uhn.fhir.rest.server.util.UrlPathTokenizer;
+
+/**
+ * Identifies the tenant of a request from an HTTP header. Unlike
+ * the URL-base strategy, the server base URL is left unchanged.
+ * <p>
+ * The header is sent by the client, so on its own it lets any client
+ * choose any tenant. Either deploy the server only behind a gateway
+ * that sets the header from the authenticated identity and strips
+ * it from client requests, or give the strategy a tenant access check:
+ * a request is then rejected with 403 Forbidden unless the check
+ * accepts its tenant for the user principal of the servlet request.
+ * The principal must be set by the container (or a filter) before
+ * the request reaches the server; a request without one is rejected.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class HeaderTenantIdentificationStrategy implements ITenantIdentificationStrategy {
+	public static final String DEFAULT_TENANT_HEADER = "X-Tenant-ID";
+
+	private final String headerName;
+	private final BiPredicate<Principal,String> tenantAccess;
+
+	public HeaderTenantIdentificationStrategy () {
+		this(DEFAULT_TENANT_HEADER);
+	}
+
+	/**
+	 * Trust the header as it is, for a server that is only reached through
+	 * a gateway setting it
+	 *
+	 * @param headerName the name of the header holding the tenant id
+	 */
+	public HeaderTenantIdentificationStrategy (String headerName) {
+		this(headerName, null);
+	}
+
+	/**
+	 * @param headerName the name of the header holding the tenant id
+	 * @param tenantAccess whether an authenticated user principal may use a tenant (null to trust the header)
+	 */
+	public HeaderTenantIdentificationStrategy (String headerName, BiPredicate<Principal,String> tenantAccess) {
+		this.headerName = headerName;
+		this.tenantAccess = tenantAccess;
+	}
+
+	@Override
+	public void extractTenant (UrlPathTokenizer urlPathTokenizer, RequestDetails requestDetails) {
+		String tenantId = requestDetails.getHeader(headerName);
+		if (tenantId != null && !tenantId.trim().isEmpty()) {
+			tenantId = tenantId.trim();
+			if (tenantAccess != null) {
+				Principal principal = getPrincipal(requestDetails);
+				if (null == principal || !tenantAccess.test(principal, tenantId)) {
+					throw new ForbiddenOperationException("Access to tenant ["+tenantId+"] is not allowed");
+				}
+			}
+			requestDetails.setTenantId(tenantId);
+		}
+	}
+
+	private static Principal getPrincipal (RequestDetails requestDetails) {
+		if (requestDetails instanceof ServletRequestDetails) {
+			return ((ServletRequestDetails)requestDetails).getServletRequest().getUserPrincipal();
+		}
+		return null;
+	}
+
+	@Override
+	public String massageServerBaseUrl (String fhirServerBase, RequestDetails requestDetails) {
+		return fhirServerBase;
+	}
+
+	public String getHeaderName () {
+		return headerName;
+	}
+
+	/**
+	 * @return the tenant access check or null if the header is trusted
+	 */
+	public BiPredicate<Principal,String> getTenantAccess () {
+		return tenantAccess;
+	}
+
+}
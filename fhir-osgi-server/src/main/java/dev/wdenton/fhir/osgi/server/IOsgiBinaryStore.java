@@ -0,0 +1,142 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * This interface is implemented by a registered provider (typically
+ * the Binary resource provider) to serve the raw content of Binary
+ * resources from a file or channel instead of as a {@code byte[]}.
+ * It is only used when streaming Binary is enabled on the
+ * {@code SimpleOsgiRestfulServer} and the client asks for the raw
+ * content (an Accept header that isn't a FHIR format); otherwise the
+ * provider's annotated methods handle the request as usual.
+ * <p>
+ * Uploads of raw content ({@code POST [base]/Binary} or
+ * {@code PUT [base]/Binary/id} with a non-FHIR Content-Type) are written
+ * to a file first, which the store can move into place:
+ * <code><pre>
+ * public Content open (String id, HttpServletRequest request) throws IOException {
+ *     Path file = directory.resolve(id);
+ *     return Files.exists(file) ? Content.of(file, Files.probeContentType(file)) : null;
+ * }
+ * public String store (String id, String contentType, Path upload, HttpServletRequest request) throws IOException {
+ *     String newId = (id != null) ? id : UUID.randomUUID().toString();
+ *     Files.move(upload, directory.resolve(newId), StandardCopyOption.REPLACE_EXISTING);
+ *     return newId;
+ * }
+ * </pre></code>
+ * The requests are routed to the store as a READ, CREATE or UPDATE of
+ * a Binary, so they are tracked and guarded like its other requests
+ * and the interceptors of the server see them, with a Binary that has
+ * the id and Content-Type but not the content.
+ * @see BinaryStreamingFeature
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public interface IOsgiBinaryStore {
+
+	/**
+	 * Open the content of a Binary resource. The content is closed by
+	 * the server once it has been sent.
+	 *
+	 * @param id the id of the Binary
+	 * @param request the client request
+	 * @return the content or null if there is no Binary with the id
+	 * @throws IOException
+	 */
+	public Content open (String id, HttpServletRequest request) throws IOException;
+
+	/**
+	 * Store uploaded content. The upload file is deleted after this
+	 * returns unless it was moved.
+	 *
+	 * @param id the id of the Binary being updated or null to create one
+	 * @param contentType the Content-Type of the upload
+	 * @param upload the file holding the uploaded content
+	 * @param request the client request
+	 * @return the id of the stored Binary
+	 * @throws IOException
+	 */
+	public String store (String id, String contentType, Path upload, HttpServletRequest request) throws IOException;
+
+	/**
+	 * The raw content of a Binary. Content read from a {@code FileChannel}
+	 * is sent with {@code FileChannel.transferTo} and supports Range
+	 * requests; other channels are copied and always sent whole.
+	 */
+	public static class Content implements Closeable {
+		private final ReadableByteChannel channel;
+		private final String contentType;
+		private final long size;
+
+		/**
+		 * @param channel the channel to read the content from
+		 * @param contentType the Content-Type of the content
+		 * @param size the size of the content in bytes (-1 if unknown)
+		 */
+		public Content (ReadableByteChannel channel, String contentType, long size) {
+			this.channel = channel;
+			this.contentType = (contentType != null) ? contentType : "application/octet-stream";
+			this.size = size;
+		}
+
+		public static Content of (FileChannel channel, String contentType) throws IOException {
+			return new Content(channel, contentType, channel.size());
+		}
+
+		public static Content of (Path file, String contentType) throws IOException {
+			return of(FileChannel.open(file, StandardOpenOption.READ), contentType);
+		}
+
+		public ReadableByteChannel getChannel () {
+			return channel;
+		}
+
+		public String getContentType () {
+			return contentType;
+		}
+
+		public long getSize () {
+			return size;
+		}
+
+		/**
+		 * @return true if parts of the content can be sent for Range requests
+		 */
+		public boolean isSeekable () {
+			return (channel instanceof FileChannel) && size >= 0;
+		}
+
+		@Override
+		public void close () throws IOException {
+			channel.close();
+		}
+	}
+}
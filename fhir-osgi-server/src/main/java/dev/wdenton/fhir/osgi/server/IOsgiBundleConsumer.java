@@ -0,0 +1,91 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+
+/**
+ * This interface is implemented by a registered provider (typically
+ * the system provider that handles {@code @Transaction}) to receive
+ * large JSON Bundles POSTed to the server base as they are read from
+ * the request instead of as a single parsed Bundle. It is only used
+ * when streaming ingestion is enabled on the {@code SimpleOsgiRestfulServer};
+ * otherwise the provider's annotated methods handle the Bundle as usual.
+ * <p>
+ * The entries are handed to the provider in small Bundles of the
+ * same type, in the order they appear in the request:
+ * <code><pre>
+ * public Session open (String bundleType, HttpServletRequest request) {
+ *     if (!"batch".equals(bundleType)) {
+ *         return null;
+ *     }
+ *     return new Session() {
+ *         public void consume (IBaseBundle entries) { ... }
+ *         public IBaseBundle complete () { return response; }
+ *     };
+ * }
+ * </pre></code>
+ * The request is routed to the provider as a TRANSACTION, so it is
+ * tracked and guarded like its other requests and the interceptors of
+ * the server see it: the PRE_HANDLED hooks check each Bundle of entries
+ * before it is consumed, and an exception thrown by the session is
+ * answered with an OperationOutcome.
+ * @see BundleIngestionFeature
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public interface IOsgiBundleConsumer {
+
+	/**
+	 * Start the ingestion of a Bundle
+	 *
+	 * @param bundleType the Bundle.type (transaction, batch, collection...)
+	 * @param request the client request
+	 * @return the session receiving the entries or null if Bundles of this type aren't accepted
+	 */
+	public Session open (String bundleType, HttpServletRequest request);
+
+	/**
+	 * The ingestion of one Bundle
+	 */
+	public interface Session {
+
+		/**
+		 * @param entries a Bundle of the same type holding the next entries
+		 */
+		public void consume (IBaseBundle entries);
+
+		/**
+		 * @return the response Bundle or null for a 204 No Content response
+		 */
+		public IBaseBundle complete ();
+
+		/**
+		 * The Bundle couldn't be read to the end. No more entries will be consumed.
+		 *
+		 * @param cause the reason the ingestion was abandoned
+		 */
+		public default void abort (Exception cause) {
+		}
+	}
+}
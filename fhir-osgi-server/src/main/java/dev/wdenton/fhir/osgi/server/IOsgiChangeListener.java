@@ -0,0 +1,70 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+/**
+ * This interface is published as an OSGi service to be told of the
+ * creates, updates and deletes completed by the FHIR Server named by
+ * its <b><i>fhir.server.name</i></b> service-property (or the only FHIR
+ * Server when it has none), to keep a cache or a subscription in step
+ * with the server:
+ *
+ * <code><pre>
+ * &lt;service ref="<i>aListener</i>" interface="dev.wdenton.fhir.osgi.server.IOsgiChangeListener">
+ * 	&lt;service-properties>
+ * 		&lt;entry key="<b><i>fhir.server.name</i></b>" value="servername"/>
+ * 		&lt;entry key="<b><i>fhir.server.change.backpressure</i></b>" value="drop"/>
+ * 	&lt;/service-properties>
+ * &lt;/service>
+ * </pre></code>
+ *
+ * Each listener is called from its own thread, in the order of the
+ * events, after the write has been answered. A listener that falls
+ * more than the size of the server's ring buffer behind loses the
+ * oldest events and is told how many with {@link #onEventsLost(long)}.
+ * With the <i>block</i> backpressure, writes wait (at most
+ * <b><i>fhir.server.change.block.millis</i></b>) for the listener
+ * before its events are overwritten.
+ * @see ChangeEventFeature
+ * @see ResourceChangeBus
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public interface IOsgiChangeListener {
+	public static final String SVCPROP_BACKPRESSURE = "fhir.server.change.backpressure";
+	public static final String SVCPROP_BLOCK_MILLIS = "fhir.server.change.block.millis";
+
+	/**
+	 * Called with each completed write
+	 *
+	 * @param event the write
+	 */
+	public void onChange (ResourceChangeEvent event);
+
+	/**
+	 * Called when the listener fell behind and events were overwritten
+	 * before it read them. A cache should drop everything it holds.
+	 *
+	 * @param count the number of events that were lost
+	 */
+	public default void onEventsLost (long count) {
+	}
+}
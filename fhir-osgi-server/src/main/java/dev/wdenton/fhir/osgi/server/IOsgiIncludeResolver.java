@@ -0,0 +1,72 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+/**
+ * This interface is implemented by a registered provider to fetch the
+ * resources of one type needed for the {@code _include} and
+ * {@code _revinclude} parameters of a search in one call to its
+ * backend. It is only used when a {@code ParallelIncludeFeature} is
+ * registered with the {@code SimpleOsgiRestfulServer}. Included resources of a type without
+ * a resolver are read one at a time through the {@code @Read} method of
+ * the type's resource provider.
+ * @see ParallelIncludeFeature
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public interface IOsgiIncludeResolver {
+
+	/**
+	 * @return the type of the resources resolved (Patient, Practitioner...)
+	 */
+	public String getResourceType ();
+
+	/**
+	 * Fetch the resources referenced by the results of a search. This may
+	 * be called concurrently from several threads for the same request.
+	 *
+	 * @param idParts the ids of the resources
+	 * @param requestDetails the search request
+	 * @return the resources found (missing resources are left out)
+	 */
+	public List<IBaseResource> resolve (Collection<String> idParts, RequestDetails requestDetails);
+
+	/**
+	 * Fetch the resources of this type whose search parameter references
+	 * one of the results of a search ({@code _revinclude=Type:searchParam}).
+	 *
+	 * @param searchParam the name of the reference search parameter
+	 * @param targets the references to the results of the search ("Patient/123")
+	 * @param requestDetails the search request
+	 * @return the resources found
+	 */
+	public default List<IBaseResource> resolveReverse (String searchParam, Collection<String> targets, RequestDetails requestDetails) {
+		return Collections.emptyList();
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+/**
+ * This interface allows a HAPI FHIR Interceptor (authorization, audit,
+ * consent...) to be published as an OSGi Service and registered with
+ * the FHIR Server named by its <b><i>fhir.server.name</i></b> service-property.
+ * Like {@code IOsgiProviderWrapper}, the real interceptor is wired into
+ * the bean because the {@code @Hook} annotations can't be seen through
+ * the service proxy:
+ *
+ * <code><pre>
+ * &lt;service interface="dev.wdenton.fhir.osgi.server.IOsgiInterceptor">
+ * 	&lt;service-properties>
+ * 		&lt;entry key="<b><i>fhir.server.name</i></b>" value="servername"/>
+ * 	&lt;/service-properties>
+ * 	&lt;bean class="dev.wdenton.fhir.osgi.server.SimpleOsgiInterceptorWrapper">
+ * 		&lt;property name="interceptor" ref="<i>anInterceptor</i>" />
+ * 	&lt;/bean>
+ * &lt;/service>
+ * </pre></code>
+ * @see IOsgiRestfulServer#registerOsgiInterceptor(Object)
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public interface IOsgiInterceptor {
+	public Object getInterceptor ();
+}
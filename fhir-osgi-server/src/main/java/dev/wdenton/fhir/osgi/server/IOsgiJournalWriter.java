@@ -0,0 +1,94 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+/**
+ * This interface is implemented by a registered provider to write the
+ * creates and updates of one resource type that were accepted by the
+ * write-behind journal of the {@code SimpleOsgiRestfulServer}. The
+ * client has already been answered with 202 Accepted; the writes are
+ * handed to the provider in batches, in the order they were accepted,
+ * by a background thread.
+ * <p>
+ * A batch that throws an exception is retried, so a write may be seen
+ * more than once (after a failure or a restart). The sequence number
+ * of an entry identifies it in the journal and can be used to ignore
+ * a repeated write. By default a batch is retried until it is written;
+ * with a maximum number of retries, a batch that still fails is moved
+ * to the dead-letter file of the journal and reported as failed.
+ * @see WriteBehindFeature
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public interface IOsgiJournalWriter {
+
+	/**
+	 * @return the type of the resources written (Observation, Patient...)
+	 */
+	public String getResourceType ();
+
+	/**
+	 * Write a batch of accepted creates and updates
+	 *
+	 * @param entries the writes, in the order they were accepted
+	 * @return the id (with the version) of each written resource in the
+	 * same order, or null if the ids aren't known
+	 */
+	public List<IIdType> writeJournaled (List<Entry> entries);
+
+	/**
+	 * A create or update accepted by the journal
+	 */
+	public static class Entry {
+		private final long sequence;
+		private final boolean update;
+		private final IBaseResource resource;
+
+		public Entry (long sequence, boolean update, IBaseResource resource) {
+			this.sequence = sequence;
+			this.update = update;
+			this.resource = resource;
+		}
+
+		/**
+		 * @return the position of the write in the journal
+		 */
+		public long getSequence () {
+			return sequence;
+		}
+
+		/**
+		 * @return true for an update (PUT with the id of the resource), false for a create
+		 */
+		public boolean isUpdate () {
+			return update;
+		}
+
+		public IBaseResource getResource () {
+			return resource;
+		}
+	}
+}
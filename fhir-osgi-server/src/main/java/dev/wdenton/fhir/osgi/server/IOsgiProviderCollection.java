@@ -67,9 +67,48 @@ import java.util.Collection;
  * where the value of the <b><i>fhir.server.name</i></b> service-property
  * matches the same {@code <service-property>} assigned to a {@code IOsgiRestfulServer} OSGi service.
  * <p>
+ * An optional <b><i>fhir.provider.key</i></b> service-property identifies
+ * the collection across bundle updates. When a collection with the same key
+ * is registered, it replaces the previous one in a single atomic update.
+ * Collections without a key are never replaced, only added and removed.
+ * <p>
+ * On a {@code MultiTenantOsgiRestfulServer}, the optional
+ * <b><i>fhir.tenant.id</i></b> service-property registers the providers
+ * for that tenant only.
+ * <p>
+ * Requests to the providers can be given a deadline with the
+ * <b><i>fhir.provider.deadline.millis</i></b> service-property; a late
+ * response is replaced with a 504. Set
+ * <b><i>fhir.provider.deadline.interrupt</i></b> to "true" to also interrupt
+ * the request thread at the deadline, only for providers that don't use NIO
+ * channels (files, some JDBC drivers), which an interrupt closes. A circuit
+ * breaker is set with the
+ * <b><i>fhir.provider.breaker.failures</i></b>,
+ * <b><i>fhir.provider.breaker.latency.millis</i></b> and
+ * <b><i>fhir.provider.breaker.open.millis</i></b> service-properties.
+ * <p>
+ * The results of type-level searches of the resource providers are
+ * cached when <b><i>fhir.provider.cache.ttl.millis</i></b> is set, limited
+ * to <b><i>fhir.provider.cache.max.entries</i></b> (1000) responses and
+ * <b><i>fhir.provider.cache.max.bytes</i></b> (16MB) per resource type.
+ * <b><i>fhir.provider.cache.types</i></b> restricts caching to a
+ * comma-separated list of the resource types.
+ * <p>
  * Copyright (c) 2019-2022 William E. Denton
  * @author williamEdenton@gmail.com
  */
 public interface IOsgiProviderCollection {
+	public static final String SVCPROP_PROVIDER_KEY = "fhir.provider.key";
+	public static final String SVCPROP_TENANT_ID = "fhir.tenant.id";
+	public static final String SVCPROP_DEADLINE_MILLIS = "fhir.provider.deadline.millis";
+	public static final String SVCPROP_DEADLINE_INTERRUPT = "fhir.provider.deadline.interrupt";
+	public static final String SVCPROP_BREAKER_FAILURES = "fhir.provider.breaker.failures";
+	public static final String SVCPROP_BREAKER_LATENCY_MILLIS = "fhir.provider.breaker.latency.millis";
+	public static final String SVCPROP_BREAKER_OPEN_MILLIS = "fhir.provider.breaker.open.millis";
+	public static final String SVCPROP_CACHE_TTL_MILLIS = "fhir.provider.cache.ttl.millis";
+	public static final String SVCPROP_CACHE_MAX_ENTRIES = "fhir.provider.cache.max.entries";
+	public static final String SVCPROP_CACHE_MAX_BYTES = "fhir.provider.cache.max.bytes";
+	public static final String SVCPROP_CACHE_TYPES = "fhir.provider.cache.types";
+
 	public Collection<Object> getProviders ();
 }
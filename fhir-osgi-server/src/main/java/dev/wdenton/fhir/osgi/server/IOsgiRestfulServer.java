@@ -20,7 +20,10 @@
 package dev.wdenton.fhir.osgi.server;
 
 import java.util.Collection;
+import java.util.Map;
+
 import ca.uhn.fhir.context.ConfigurationException;
+import ca.uhn.fhir.rest.server.RestfulServer;
 
 /**
  * Instances of the FHIR OSGi Server must implement this interface
@@ -43,6 +46,11 @@ import ca.uhn.fhir.context.ConfigurationException;
  */
 public interface IOsgiRestfulServer {
 	public static final String SVCPROP_SERVICE_NAME = "fhir.server.name";
+	public static final String SVCPROP_RATE_LIMIT = "fhir.server.rate.limit";
+	public static final String SVCPROP_RATE_BURST = "fhir.server.rate.burst";
+	public static final String SVCPROP_RATE_CLIENT_HEADER = "fhir.server.rate.client.header";
+	public static final String SVCPROP_RATE_MAX_CLIENTS = "fhir.server.rate.max.clients";
+	public static final String SVCPROP_RATE_TRUSTED_PROXIES = "fhir.server.rate.trusted.proxies";
 
 	/**
 	 * Dynamically registers a single provider with the RestfulServer
@@ -68,6 +76,20 @@ public interface IOsgiRestfulServer {
 	 */
 	public void registerOsgiProviders (Collection<Object> provider) throws ConfigurationException;
 
+	/**
+	 * Dynamically registers a list of providers with the RestfulServer.
+	 * The service-properties of the OSGi service that published the
+	 * providers are available to implementations that support per-collection
+	 * configuration.
+	 * 
+	 * @param providers the providers to be registered
+	 * @param props the service-properties of the publishing OSGi service
+	 * @throws ConfigurationException
+	 */
+	public default void registerOsgiProviders (Collection<Object> providers, Map<String,Object> props) throws ConfigurationException {
+		registerOsgiProviders(providers);
+	}
+
 	/**
 	 * Dynamically unregisters a list of providers with the RestfulServer
 	 * 
@@ -76,6 +98,38 @@ public interface IOsgiRestfulServer {
 	 */
 	public void unregisterOsgiProviders (Collection<Object> provider) throws ConfigurationException;
 
+	/**
+	 * Replace a list of registered providers with a new list in a
+	 * single update of the RestfulServer bindings. Requests never see
+	 * a state where neither list is registered. This is used to hot-swap
+	 * the providers of a bundle that is being updated.
+	 * <p>
+	 * The default implementation registers the new providers before it
+	 * unregisters the old ones, so both are briefly registered rather
+	 * than swapped in a single update.
+	 * 
+	 * @param oldProviders the registered providers being replaced
+	 * @param newProviders the providers replacing them
+	 * @throws ConfigurationException
+	 */
+	public default void replaceOsgiProviders (Collection<Object> oldProviders, Collection<Object> newProviders) throws ConfigurationException {
+		registerOsgiProviders(newProviders);
+		unregisterOsgiProviders(oldProviders);
+	}
+
+	/**
+	 * Replace a list of registered providers with a new list, with the
+	 * service-properties of the OSGi service publishing the new list.
+	 * 
+	 * @param oldProviders the registered providers being replaced
+	 * @param newProviders the providers replacing them
+	 * @param props the service-properties of the publishing OSGi service
+	 * @throws ConfigurationException
+	 */
+	public default void replaceOsgiProviders (Collection<Object> oldProviders, Collection<Object> newProviders, Map<String,Object> props) throws ConfigurationException {
+		replaceOsgiProviders(oldProviders, newProviders);
+	}
+
 	/**
 	 * Dynamically unregisters all of providers currently registered
 	 * 
@@ -83,4 +137,93 @@ public interface IOsgiRestfulServer {
 	 */
 	public void unregisterOsgiProviders () throws ConfigurationException;
 
+	/**
+	 * Dynamically registers an interceptor (published as an
+	 * {@code IOsgiInterceptor}) with the RestfulServer
+	 * 
+	 * @param interceptor the interceptor to be registered
+	 * @throws ConfigurationException
+	 */
+	public default void registerOsgiInterceptor (Object interceptor) throws ConfigurationException {
+		RestfulServer server = getRestfulServer();
+		if (null == server) {
+			throw new ConfigurationException("Unable to register the FHIR Interceptor. The server is not a RestfulServer");
+		}
+		server.registerInterceptor(interceptor);
+	}
+
+	/**
+	 * Dynamically unregisters an interceptor with the RestfulServer
+	 * 
+	 * @param interceptor the interceptor to be unregistered
+	 * @throws ConfigurationException
+	 */
+	public default void unregisterOsgiInterceptor (Object interceptor) throws ConfigurationException {
+		RestfulServer server = getRestfulServer();
+		if (server != null) {
+			server.unregisterInterceptor(interceptor);
+		}
+	}
+
+	/**
+	 * Start calling a listener (published as an {@code IOsgiChangeListener})
+	 * with the creates, updates and deletes completed by the server
+	 * 
+	 * @param listener the listener to be registered
+	 * @param props the service-properties of the listener
+	 * @throws ConfigurationException if the server doesn't publish its
+	 * changes or the properties are invalid
+	 */
+	public default void registerOsgiChangeListener (IOsgiChangeListener listener, Map<String,Object> props) throws ConfigurationException {
+		throw new ConfigurationException("Unable to register the FHIR change listener. The server does not publish its changes");
+	}
+
+	/**
+	 * Stop calling a change listener
+	 * 
+	 * @param listener the listener to be unregistered
+	 * @throws ConfigurationException
+	 */
+	public default void unregisterOsgiChangeListener (IOsgiChangeListener listener) throws ConfigurationException {
+	}
+
+	/**
+	 * Get the underlying RestfulServer. References to OSGi services
+	 * are proxies that only implement the published interfaces, so
+	 * this is how the servlet behind the service is reached.
+	 * 
+	 * @return the RestfulServer or null if the implementation is not one
+	 */
+	public default RestfulServer getRestfulServer () {
+		return (this instanceof RestfulServer) ? (RestfulServer)this : null;
+	}
+
+	/**
+	 * Called by the publisher with the value of the <b><i>fhir.server.name</i></b>
+	 * service-property when the server is registered. The name is used
+	 * to identify the server in diagnostics.
+	 * 
+	 * @param serverName the name of the server
+	 */
+	public default void setFhirServerName (String serverName) {
+	}
+
+	/**
+	 * @return the name of the server or null if it is unknown
+	 */
+	public default String getFhirServerName () {
+		return null;
+	}
+
+	/**
+	 * Called with the <service-properties> of the server when it is
+	 * registered so that it can read its settings from them (e.g. the
+	 * fhir.server.rate.* request rate limits)
+	 * 
+	 * @param props the service-properties of the server
+	 * @throws ConfigurationException if a setting is invalid
+	 */
+	public default void applyServiceProperties (Map<String,Object> props) throws ConfigurationException {
+	}
+
 }
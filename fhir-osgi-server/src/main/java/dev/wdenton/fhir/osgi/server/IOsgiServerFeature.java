@@ -0,0 +1,178 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Startup Benchmark
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import ca.uhn.fhir.context.ConfigurationException;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.method.BaseMethodBinding;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import dev.wdenton.fhir.osgi.server.diagnostics.ServerFootprint;
+
+/**
+ * An optional feature of a {@code SimpleOsgiRestfulServer} (a cache,
+ * response pooling, rate limits, an access log...) that is registered
+ * with the server on its own rather than configured on the server:
+ *
+ * <code><pre>
+ * &lt;bean id="<i>aServer</i>" class="dev.wdenton.fhir.osgi.server.SimpleOsgiRestfulServer">
+ * 	&lt;property name="features">
+ * 		&lt;list>
+ * 			&lt;bean class="dev.wdenton.fhir.osgi.server.ResponsePoolingFeature" />
+ * 		&lt;/list>
+ * 	&lt;/property>
+ * &lt;/bean>
+ * </pre></code>
+ *
+ * A feature registers its interceptors with the server when it is
+ * installed and removes them, and releases whatever it holds, when it
+ * is uninstalled. The other methods let it take part in the requests
+ * and provider registrations of the server; they do nothing by default.
+ * @see SimpleOsgiRestfulServer#registerFeature(IOsgiServerFeature)
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public interface IOsgiServerFeature {
+
+	/**
+	 * Called when the feature is registered with a server
+	 *
+	 * @param server the server
+	 * @throws ConfigurationException if the settings of the feature are invalid
+	 */
+	public void install (SimpleOsgiRestfulServer server) throws ConfigurationException;
+
+	/**
+	 * Called when the feature is unregistered or the server destroyed
+	 *
+	 * @param server the server
+	 */
+	public void uninstall (SimpleOsgiRestfulServer server);
+
+	/**
+	 * @return where the feature filters the requests: the features with
+	 * a lower order see a request first. The features with a negative
+	 * order also see the requests rejected while the server is being
+	 * unregistered, outside its in-flight requests.
+	 */
+	public default int getOrder () {
+		return 0;
+	}
+
+	/**
+	 * Filter a request through the server. The feature passes the
+	 * request on, possibly wrapped, to the chain.
+	 *
+	 * @param request the request
+	 * @param response the response
+	 * @param chain the features after this one and the server
+	 * @throws ServletException
+	 * @throws IOException
+	 */
+	public default void service (HttpServletRequest request, HttpServletResponse response, Chain chain) throws ServletException, IOException {
+		chain.service(request, response);
+	}
+
+	/**
+	 * Find the binding of a request that the feature handles itself
+	 * rather than a provider. This is called while routing, holding the
+	 * binding read lock.
+	 *
+	 * @param requestDetails the request
+	 * @return the binding or null if the request is for the providers
+	 */
+	public default BaseMethodBinding<?> resolveMethod (ServletRequestDetails requestDetails) {
+		return null;
+	}
+
+	/**
+	 * Called once a request has been routed to a binding, before the
+	 * binding's provider is checked for draining or an open circuit breaker
+	 *
+	 * @param requestDetails the request
+	 * @param binding the binding handling the request
+	 */
+	public default void routed (RequestDetails requestDetails, BaseMethodBinding<?> binding) {
+	}
+
+	/**
+	 * Called before providers published with service-properties are registered
+	 *
+	 * @param providers the providers
+	 * @param props the service-properties of their provider collection
+	 * @throws ConfigurationException if a service-property is invalid
+	 */
+	public default void providersRegistered (Collection<Object> providers, Map<String,Object> props) throws ConfigurationException {
+	}
+
+	/**
+	 * Called when a provider is unregistered or swapped out
+	 *
+	 * @param provider the provider
+	 */
+	public default void providerUnregistered (Object provider) {
+	}
+
+	/**
+	 * Called when the server has written a resource without a request
+	 * going through the interceptors (a write-behind batch)
+	 *
+	 * @param operation the create or update
+	 * @param tenantId the tenant (null if none)
+	 * @param resourceType the resource type
+	 * @param idPart the id of the resource (null if not known)
+	 * @param versionId the version of the resource (null if not known)
+	 */
+	public default void resourceWritten (RestOperationTypeEnum operation, String tenantId, String resourceType, String idPart, String versionId) {
+	}
+
+	/**
+	 * Called with the service-properties of the server when it is published
+	 *
+	 * @param props the service-properties
+	 * @throws ConfigurationException if a service-property is invalid
+	 */
+	public default void applyServiceProperties (Map<String,Object> props) throws ConfigurationException {
+	}
+
+	/**
+	 * Add the statistics and components of the feature to the footprint of the server
+	 *
+	 * @param footprint the footprint
+	 */
+	public default void describeFootprint (ServerFootprint footprint) {
+	}
+
+	/**
+	 * The rest of the processing of a request
+	 */
+	public interface Chain {
+		public void service (HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException;
+	}
+}
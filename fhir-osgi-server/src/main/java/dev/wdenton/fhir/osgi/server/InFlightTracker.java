@@ -0,0 +1,108 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference counter for the requests currently being dispatched
+ * to a single provider (or to a whole server). Once the tracker
+ * is put into draining mode no new requests are admitted and
+ * the caller can wait for the in-flight requests to complete.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class InFlightTracker {
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private volatile boolean draining = false;
+
+	/**
+	 * Admit a new request
+	 *
+	 * @return false if the tracker is draining and the request must be rejected
+	 */
+	public boolean enter () {
+		inFlight.incrementAndGet();
+		if (draining) {
+			exit();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Release a request previously admitted with {@code enter()}
+	 */
+	public void exit () {
+		if (inFlight.decrementAndGet() <= 0 && draining) {
+			synchronized (this) {
+				this.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Stop admitting new requests
+	 */
+	public void startDraining () {
+		draining = true;
+	}
+
+	/**
+	 * Wait for the in-flight requests to complete. This should
+	 * only be called after {@code startDraining()}.
+	 *
+	 * @param deadline the absolute time (millis) to stop waiting
+	 * @return the number of requests still in-flight when the wait ended
+	 */
+	public int awaitIdle (long deadline) {
+		synchronized (this) {
+			long remaining = deadline - System.currentTimeMillis();
+			while (inFlight.get() > 0 && remaining > 0) {
+				try {
+					this.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				remaining = deadline - System.currentTimeMillis();
+			}
+		}
+		return inFlight.get();
+	}
+
+	/**
+	 * Resume admitting new requests
+	 */
+	public void resume () {
+		draining = false;
+	}
+
+	public boolean isDraining () {
+		return draining;
+	}
+
+	public int getInFlight () {
+		return inFlight.get();
+	}
+
+}
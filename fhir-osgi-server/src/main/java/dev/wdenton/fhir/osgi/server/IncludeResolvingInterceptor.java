@@ -0,0 +1,361 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Read;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.IPreResourceShowDetails;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.util.FhirTerser;
+import ca.uhn.fhir.util.ResourceReferenceInfo;
+
+/**
+ * Resolves the {@code _include} and {@code _revinclude} resources of a
+ * search concurrently before the response Bundle is built. The included
+ * references of the search results are de-duplicated and grouped by
+ * resource type; each type is fetched with one call to its
+ * {@code IOsgiIncludeResolver} or, without a resolver, one {@code @Read}
+ * per resource. At most maxParallelism fetches run at once for a
+ * request, one of them on the request thread.
+ * <p>
+ * Included resources are set on the references so that HAPI FHIR adds
+ * them to the Bundle as usual; reverse included resources are added to
+ * the Bundle in search mode "include" before any other outgoing response
+ * hook, so the authorization and consent checks always see them.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+@Interceptor
+public class IncludeResolvingInterceptor {
+	private static Logger log = LoggerFactory.getLogger(IncludeResolvingInterceptor.class);
+	private static final String USERDATA_REVINCLUDES = IncludeResolvingInterceptor.class.getName()+".revincludes";
+
+	private final SimpleOsgiRestfulServer server;
+	private final ParallelIncludeFeature feature;
+
+	// the @Read method of each resource provider class (empty if it has none)
+	private final Map<Class<?>,Optional<Method>> readMethods = new ConcurrentHashMap<>();
+
+	public IncludeResolvingInterceptor (SimpleOsgiRestfulServer server, ParallelIncludeFeature feature) {
+		this.server = server;
+		this.feature = feature;
+	}
+
+	@Hook(Pointcut.STORAGE_PRESHOW_RESOURCES)
+	public void preShowResources (IPreResourceShowDetails details, RequestDetails requestDetails) {
+		RestOperationTypeEnum operation = requestDetails.getRestOperationType();
+		if (operation != RestOperationTypeEnum.SEARCH_TYPE && operation != RestOperationTypeEnum.SEARCH_SYSTEM) {
+			return;
+		}
+		String[] includeValues = requestDetails.getParameters().get("_include");
+		String[] revincludeValues = requestDetails.getParameters().get("_revinclude");
+		if (null == includeValues && null == revincludeValues) {
+			return;
+		}
+		FhirContext ctx = server.getFhirContext();
+		FhirTerser terser = ctx.newTerser();
+		Set<Include> includes = new HashSet<>();
+		if (includeValues != null) {
+			for (String value : includeValues) {
+				includes.add(new Include(value));
+			}
+		}
+
+		// the unresolved references to include, by resource type and id
+		Set<String> shown = new HashSet<>();
+		Map<String,Map<String,List<IBaseReference>>> references = new LinkedHashMap<>();
+		for (int i = 0; i < details.size(); i++) {
+			IBaseResource resource = details.getResource(i);
+			if (null == resource) {
+				continue;
+			}
+			shown.add(ctx.getResourceType(resource)+"/"+resource.getIdElement().getIdPart());
+			if (includes.isEmpty()) {
+				continue;
+			}
+			for (ResourceReferenceInfo info : terser.getAllResourceReferences(resource)) {
+				IBaseReference reference = info.getResourceReference();
+				if (reference.getResource() != null || !info.matchesIncludeSet(includes)) {
+					continue;
+				}
+				IIdType id = reference.getReferenceElement();
+				if (null == id || !id.hasResourceType() || !id.hasIdPart() || id.isAbsolute()) {
+					continue;
+				}
+				references.computeIfAbsent(id.getResourceType(), type -> new LinkedHashMap<>())
+						.computeIfAbsent(id.getIdPart(), idPart -> new ArrayList<>()).add(reference);
+			}
+		}
+
+		Map<String,IBaseResource> resolved = new ConcurrentHashMap<>();
+		List<IBaseResource> reverse = Collections.synchronizedList(new ArrayList<>());
+		List<Runnable> work = new ArrayList<>();
+		for (Map.Entry<String,Map<String,List<IBaseReference>>> entry : references.entrySet()) {
+			String type = entry.getKey();
+			IOsgiIncludeResolver resolver = server.getIncludeResolver(type);
+			if (resolver != null) {
+				List<String> idParts = new ArrayList<>(entry.getValue().keySet());
+				work.add(() -> {
+					for (IBaseResource resource : resolver.resolve(idParts, requestDetails)) {
+						resolved.put(type+"/"+resource.getIdElement().getIdPart(), resource);
+					}
+				});
+			} else {
+				IResourceProvider provider = server.getResourceProvider(type);
+				if (null == provider) {
+					log.trace("no resolver or resource provider for included ["+type+"] resources");
+					continue;
+				}
+				for (String idPart : entry.getValue().keySet()) {
+					work.add(() -> {
+						IBaseResource resource = read(provider, type, idPart, requestDetails);
+						if (resource != null) {
+							resolved.put(type+"/"+idPart, resource);
+						}
+					});
+				}
+			}
+		}
+		if (revincludeValues != null && !shown.isEmpty()) {
+			for (String value : new HashSet<>(Arrays.asList(revincludeValues))) {
+				Include revinclude = new Include(value);
+				IOsgiIncludeResolver resolver = (revinclude.getParamType() != null) ? server.getIncludeResolver(revinclude.getParamType()) : null;
+				if (null == resolver) {
+					log.trace("no resolver for _revinclude ["+value+"]");
+					continue;
+				}
+				work.add(() -> reverse.addAll(resolver.resolveReverse(revinclude.getParamName(), shown, requestDetails)));
+			}
+		}
+		if (work.isEmpty()) {
+			return;
+		}
+		log.trace("resolving includes with ["+work.size()+"] fetches for ["+details.size()+"] resources");
+		runAll(work, requestDetails);
+
+		for (Map.Entry<String,Map<String,List<IBaseReference>>> entry : references.entrySet()) {
+			for (Map.Entry<String,List<IBaseReference>> id : entry.getValue().entrySet()) {
+				IBaseResource resource = resolved.get(entry.getKey()+"/"+id.getKey());
+				if (resource != null) {
+					for (IBaseReference reference : id.getValue()) {
+						reference.setResource(resource);
+					}
+				}
+			}
+		}
+		if (!reverse.isEmpty()) {
+			requestDetails.getUserData().put(USERDATA_REVINCLUDES, new ArrayList<>(reverse));
+		}
+	}
+
+	/*
+	 * Add the reverse included resources to the search Bundle, first
+	 * whatever the order the interceptors were registered in
+	 */
+	@Hook(value = Pointcut.SERVER_OUTGOING_RESPONSE, order = Integer.MIN_VALUE)
+	public boolean outgoingResponse (RequestDetails requestDetails, IBaseResource resource) {
+		@SuppressWarnings("unchecked")
+		List<IBaseResource> reverse = (List<IBaseResource>)requestDetails.getUserData().remove(USERDATA_REVINCLUDES);
+		if (null == reverse || !(resource instanceof IBaseBundle)) {
+			return true;
+		}
+		FhirContext ctx = server.getFhirContext();
+		FhirTerser terser = ctx.newTerser();
+		Set<String> present = new HashSet<>();
+		for (IBase entryResource : terser.getValues(resource, "Bundle.entry.resource")) {
+			IBaseResource next = (IBaseResource)entryResource;
+			present.add(ctx.getResourceType(next)+"/"+next.getIdElement().getIdPart());
+		}
+		BaseRuntimeChildDefinition entryChild = ctx.getResourceDefinition(resource).getChildByName("entry");
+		BaseRuntimeElementCompositeDefinition<?> entryDef = (BaseRuntimeElementCompositeDefinition<?>)entryChild.getChildByName("entry");
+		for (IBaseResource next : reverse) {
+			String key = ctx.getResourceType(next)+"/"+next.getIdElement().getIdPart();
+			if (!present.add(key)) {
+				continue;
+			}
+			IBase entry = entryDef.newInstance();
+			entryChild.getMutator().addValue(resource, entry);
+			entryDef.getChildByName("resource").getMutator().setValue(entry, next);
+			terser.setElement(entry, "fullUrl", requestDetails.getFhirServerBase()+"/"+key);
+			terser.setElement(entry, "search.mode", "include");
+		}
+		return true;
+	}
+
+	/*
+	 * Run the fetches with at most maxParallelism at once, one of them
+	 * on the request thread (all of them once the feature is unregistered)
+	 */
+	private void runAll (List<Runnable> work, RequestDetails requestDetails) {
+		Queue<Runnable> queue = new ConcurrentLinkedQueue<>(work);
+		AtomicReference<RuntimeException> failure = new AtomicReference<>();
+		Runnable worker = () -> {
+			Runnable next;
+			while (null == failure.get() && (next = queue.poll()) != null) {
+				try {
+					next.run();
+				} catch (RuntimeException e) {
+					failure.compareAndSet(null, e);
+				}
+			}
+		};
+		ExecutorService executor = feature.getExecutor();
+		int workers = (executor != null) ? Math.min(Math.max(1, feature.getMaxParallelism()), work.size()) : 1;
+		List<Future<?>> futures = new ArrayList<>(workers);
+		for (int i = 1; i < workers; i++) {
+			futures.add(executor.submit(worker));
+		}
+		worker.run();
+
+		RequestDeadline deadline = RequestDeadline.of(requestDetails);
+		try {
+			for (Future<?> future : futures) {
+				if (deadline != null) {
+					future.get(Math.max(0, deadline.getRemainingMillis()), TimeUnit.MILLISECONDS);
+				} else {
+					future.get();
+				}
+			}
+		} catch (TimeoutException e) {
+			queue.clear();
+			throw deadline.newTimeoutException();
+		} catch (InterruptedException e) {
+			queue.clear();
+			Thread.currentThread().interrupt();
+			throw new InternalErrorException("Interrupted while resolving included resources", e);
+		} catch (ExecutionException e) {
+			throw new InternalErrorException("Failed to resolve included resources", e.getCause());
+		}
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+	}
+
+	/*
+	 * Read one resource through the @Read method of its resource provider
+	 */
+	private IBaseResource read (IResourceProvider provider, String type, String idPart, RequestDetails requestDetails) {
+		Method method = readMethods.computeIfAbsent(provider.getClass(), IncludeResolvingInterceptor::findReadMethod).orElse(null);
+		if (null == method) {
+			return null;
+		}
+		Class<?>[] parameterTypes = method.getParameterTypes();
+		Object[] args = new Object[parameterTypes.length];
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (isIdParam(method, i)) {
+					if (parameterTypes[i].isInterface()) {
+						args[i] = server.getFhirContext().getVersion().newIdType().setValue(type+"/"+idPart);
+					} else {
+						args[i] = parameterTypes[i].getConstructor(String.class).newInstance(type+"/"+idPart);
+					}
+				} else
+				if (parameterTypes[i].isInstance(requestDetails)) {
+					args[i] = requestDetails;
+				} else
+				if (HttpServletRequest.class.isAssignableFrom(parameterTypes[i]) && requestDetails instanceof ServletRequestDetails) {
+					args[i] = ((ServletRequestDetails)requestDetails).getServletRequest();
+				}
+			}
+			Object result = method.invoke(provider, args);
+			return (result instanceof IBaseResource) ? (IBaseResource)result : null;
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof ResourceNotFoundException || cause instanceof ResourceGoneException) {
+				return null;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			throw new InternalErrorException("Failed to read included ["+type+"/"+idPart+"]", cause);
+		} catch (ReflectiveOperationException e) {
+			throw new InternalErrorException("Failed to read included ["+type+"/"+idPart+"]", e);
+		}
+	}
+
+	private static Optional<Method> findReadMethod (Class<?> providerClass) {
+		for (Method method : providerClass.getMethods()) {
+			if (method.isAnnotationPresent(Read.class)) {
+				for (int i = 0; i < method.getParameterCount(); i++) {
+					if (isIdParam(method, i)) {
+						return Optional.of(method);
+					}
+				}
+			}
+		}
+		return Optional.empty();
+	}
+
+	private static boolean isIdParam (Method method, int index) {
+		for (Annotation annotation : method.getParameterAnnotations()[index]) {
+			if (annotation instanceof IdParam) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
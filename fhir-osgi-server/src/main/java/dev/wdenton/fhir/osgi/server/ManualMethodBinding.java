@@ -0,0 +1,196 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.HookParams;
+import ca.uhn.fhir.interceptor.api.IInterceptorBroadcaster;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.rest.server.IRestfulServer;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.exceptions.NotImplementedOperationException;
+import ca.uhn.fhir.rest.server.method.BaseMethodBinding;
+import ca.uhn.fhir.rest.server.method.MethodMatchEnum;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/**
+ * A method binding for a request that the server handles itself rather
+ * than through an annotated provider method, such as a streamed Bundle
+ * or raw Binary content. The server selects the binding while routing,
+ * so the request goes through the interceptors, in-flight tracking and
+ * provider policy of the {@code RestfulServer} like any other, and a
+ * failure is thrown to be answered with an OperationOutcome. The binding
+ * writes its own response: it must call {@link #preHandled} before
+ * doing any work and write resources with {@link #writeResponse}, or
+ * call {@link #outgoingResponse} before writing anything else.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public abstract class ManualMethodBinding extends BaseMethodBinding<Object> {
+	// HAPI requires a method; the binding has no annotated method to invoke
+	private static final Method BINDING_METHOD = getBindingMethod();
+
+	private final RestOperationTypeEnum operation;
+	private final String resourceName;
+
+	/**
+	 * @param fhirContext the FHIR context of the server
+	 * @param provider the registered provider doing the work, tracked and guarded as its bindings are
+	 * @param operation the operation seen by the interceptors
+	 * @param resourceName the resource type seen by the interceptors (null for the server)
+	 */
+	protected ManualMethodBinding (FhirContext fhirContext, Object provider, RestOperationTypeEnum operation, String resourceName) {
+		super(BINDING_METHOD, fhirContext, provider);
+		this.operation = operation;
+		this.resourceName = resourceName;
+	}
+
+	@Override
+	public String getResourceName () {
+		return resourceName;
+	}
+
+	@Override
+	public RestOperationTypeEnum getRestOperationType () {
+		return operation;
+	}
+
+	/**
+	 * The binding is only ever chosen by the server while routing
+	 */
+	@Override
+	public MethodMatchEnum incomingServerRequestMatchesMethod (RequestDetails requestDetails) {
+		return MethodMatchEnum.NONE;
+	}
+
+	/**
+	 * @return null, the response has been written
+	 */
+	@Override
+	public Object invokeServer (IRestfulServer<?> server, RequestDetails requestDetails) throws IOException {
+		if (!(requestDetails instanceof ServletRequestDetails)) {
+			throw new NotImplementedOperationException("["+operation+"] is only supported over HTTP");
+		}
+		handle((ServletRequestDetails)requestDetails);
+		return null;
+	}
+
+	/**
+	 * Handle the request and write the response, throwing a
+	 * {@code BaseServerResponseException} to fail it
+	 * 
+	 * @param requestDetails the request
+	 * @throws IOException
+	 */
+	protected abstract void handle (ServletRequestDetails requestDetails) throws IOException;
+
+	/**
+	 * Call the SERVER_INCOMING_REQUEST_PRE_HANDLED hooks, which may reject
+	 * the request by throwing. Set the resource of the request first so
+	 * that the authorization and consent interceptors can check it.
+	 * 
+	 * @param requestDetails the request
+	 */
+	protected void preHandled (ServletRequestDetails requestDetails) {
+		IInterceptorBroadcaster broadcaster = requestDetails.getInterceptorBroadcaster();
+		if (broadcaster != null && broadcaster.hasHooks(Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED)) {
+			HookParams params = new HookParams()
+					.add(RestOperationTypeEnum.class, operation)
+					.add(RequestDetails.class, requestDetails)
+					.addIfMatchesType(ServletRequestDetails.class, requestDetails);
+			broadcaster.callHooks(Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED, params);
+		}
+	}
+
+	/**
+	 * Call the SERVER_OUTGOING_RESPONSE hooks and write the resource they
+	 * leave in the response details, or just the status if there is none
+	 * 
+	 * @param requestDetails the request
+	 * @param status the HTTP status
+	 * @param resource the response resource or null for no body
+	 * @throws IOException
+	 */
+	protected void writeResponse (ServletRequestDetails requestDetails, int status, IBaseResource resource) throws IOException {
+		ResponseDetails responseDetails = new ResponseDetails(resource);
+		responseDetails.setResponseCode(status);
+		if (!outgoingResponse(requestDetails, responseDetails)) {
+			return;
+		}
+		HttpServletResponse response = requestDetails.getServletResponse();
+		response.setStatus(responseDetails.getResponseCode());
+		IBaseResource body = responseDetails.getResponseResource();
+		if (null == body) {
+			return;
+		}
+		FhirContext fhirContext = getContext();
+		IParser parser = RestfulServerUtils.getNewParser(fhirContext, fhirContext.getVersion().getVersion(), requestDetails);
+		response.setContentType(parser.getEncoding().getResourceContentTypeNonLegacy());
+		response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		parser.encodeResourceToWriter(body, response.getWriter());
+	}
+
+	/**
+	 * Call the SERVER_OUTGOING_RESPONSE hooks, which may replace the
+	 * resource or status in the response details, for a response that
+	 * is not written by {@link #writeResponse}
+	 * 
+	 * @param requestDetails the request
+	 * @param responseDetails the resource (null if none) and status of the response
+	 * @return false if a hook has written the response
+	 */
+	protected boolean outgoingResponse (ServletRequestDetails requestDetails, ResponseDetails responseDetails) {
+		IInterceptorBroadcaster broadcaster = requestDetails.getInterceptorBroadcaster();
+		if (null == broadcaster || !broadcaster.hasHooks(Pointcut.SERVER_OUTGOING_RESPONSE)) {
+			return true;
+		}
+		HookParams params = new HookParams()
+				.add(RequestDetails.class, requestDetails)
+				.addIfMatchesType(ServletRequestDetails.class, requestDetails)
+				.add(IBaseResource.class, responseDetails.getResponseResource())
+				.add(ResponseDetails.class, responseDetails)
+				.add(HttpServletRequest.class, requestDetails.getServletRequest())
+				.add(HttpServletResponse.class, requestDetails.getServletResponse());
+		return broadcaster.callHooks(Pointcut.SERVER_OUTGOING_RESPONSE, params);
+	}
+
+	private static Method getBindingMethod () {
+		try {
+			return ManualMethodBinding.class.getMethod("getResourceName");
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
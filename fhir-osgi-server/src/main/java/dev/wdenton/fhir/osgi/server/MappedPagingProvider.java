@@ -0,0 +1,523 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.primitive.InstantDt;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.IPagingProvider;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+
+/**
+ * A paging provider that keeps the search results off the Java heap.
+ * The resources of each search are fetched and encoded as its pages
+ * are first read, and appended to a segment file that is memory-mapped
+ * for reading them again, so large result sets don't fill the old
+ * generation. Once a segment reaches {@code maxSearchBytes}, the
+ * following resources are read from the search results themselves.
+ * The search results are released once all of them are in the
+ * segment. Searches are evicted when they have not been read for
+ * {@code expireAfterMillis}, or (least recently used first) when there
+ * are more than {@code maxSearches} of them or their segments take more
+ * than {@code maxTotalBytes}.
+ * <p>
+ * The provider is set on a server in blueprint:
+ * <code><pre>
+ * &lt;bean id="paging" class="dev.wdenton.fhir.osgi.server.MappedPagingProvider" destroy-method="shutdown">
+ *     &lt;property name="expireAfterMillis" value="600000" />
+ * &lt;/bean>
+ * &lt;bean class="dev.wdenton.fhir.osgi.server.SimpleOsgiRestfulServer">
+ *     &lt;property name="pagingProvider" ref="paging" />
+ * &lt;/bean>
+ * </pre></code>
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class MappedPagingProvider implements IPagingProvider {
+	private static Logger log = LoggerFactory.getLogger(MappedPagingProvider.class);
+
+	private static final int FETCH_SIZE = 100;
+
+	private int defaultPageSize = 20;
+	private int maximumPageSize = 200;
+	private long expireAfterMillis = 10 * 60 * 1000L;
+	private int maxSearches = 1000;
+	private long maxTotalBytes = 1024L * 1024L * 1024L;
+	private long maxSearchBytes = 256L * 1024L * 1024L;
+	private FhirContext fhirContext;
+	private Path directory;
+
+	// the stored searches, least recently used first
+	private final LinkedHashMap<String,Segment> segments = new LinkedHashMap<>(16, 0.75f, true);
+	private long totalBytes = 0;
+
+	@Override
+	public int getDefaultPageSize () {
+		return defaultPageSize;
+	}
+
+	@Override
+	public int getMaximumPageSize () {
+		return maximumPageSize;
+	}
+
+	/**
+	 * Keep the results of a search. Nothing is fetched until
+	 * the following pages are read.
+	 */
+	@Override
+	public String storeResultList (RequestDetails requestDetails, IBundleProvider list) {
+		FhirContext ctx = (requestDetails != null && requestDetails.getFhirContext() != null) ? requestDetails.getFhirContext() : fhirContext;
+		if (null == ctx) {
+			throw new InternalErrorException("No FhirContext is available to store the search results");
+		}
+		String searchId = UUID.randomUUID().toString();
+		Path file;
+		try {
+			file = getDirectory().resolve(searchId+".seg");
+		} catch (IOException e) {
+			log.error("Error creating the paging directory for search ["+searchId+"]", e);
+			throw new InternalErrorException("Error storing the search results", e);
+		}
+		IPrimitiveType<Date> published = list.getPublished();
+		Segment segment = new Segment(searchId, file, ctx, list, maxSearchBytes, list.preferredPageSize(),
+				(published != null && published.getValue() != null) ? published.getValue() : new Date());
+		synchronized (segments) {
+			segments.put(searchId, segment);
+			evict();
+		}
+		log.trace("stored search ["+searchId+"]");
+		return searchId;
+	}
+
+	@Override
+	public IBundleProvider retrieveResultList (RequestDetails requestDetails, String searchId) {
+		synchronized (segments) {
+			evict();
+			Segment segment = segments.get(searchId);
+			if (null == segment) {
+				return null;
+			}
+			segment.lastAccess = System.currentTimeMillis();
+			return new MappedBundleProvider(segment);
+		}
+	}
+
+	/**
+	 * Remove all the stored searches and their segment files
+	 */
+	public void shutdown () {
+		synchronized (segments) {
+			for (Segment segment : segments.values()) {
+				segment.release();
+			}
+			segments.clear();
+			totalBytes = 0;
+		}
+	}
+
+	/**
+	 * @return the number of searches currently stored
+	 */
+	public int getSearchCount () {
+		synchronized (segments) {
+			return segments.size();
+		}
+	}
+
+	/**
+	 * @return the total size of the stored segments
+	 */
+	public long getTotalBytes () {
+		synchronized (segments) {
+			return totalBytes;
+		}
+	}
+
+	/*
+	 * Account for the resources appended to a segment that is still stored
+	 */
+	private void grown (Segment segment, long bytes) {
+		synchronized (segments) {
+			if (segments.get(segment.searchId) == segment) {
+				totalBytes += bytes;
+				evict();
+			}
+		}
+	}
+
+	/*
+	 * Drop the expired searches, then the least recently used
+	 * ones until the limits are met. Must hold the segments lock.
+	 */
+	private void evict () {
+		long expired = System.currentTimeMillis() - expireAfterMillis;
+		Iterator<Map.Entry<String,Segment>> entries = segments.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<String,Segment> entry = entries.next();
+			Segment segment = entry.getValue();
+			boolean overLimit = (segments.size() > maxSearches) || (totalBytes > maxTotalBytes);
+			if (!overLimit && (expireAfterMillis <= 0 || segment.lastAccess > expired)) {
+				continue;
+			}
+			log.trace("evicting search ["+entry.getKey()+"]");
+			entries.remove();
+			totalBytes -= segment.getBytes();
+			segment.release();
+		}
+	}
+
+	private synchronized Path getDirectory () throws IOException {
+		if (null == directory) {
+			directory = Files.createTempDirectory("fhir-osgi-paging");
+		} else {
+			Files.createDirectories(directory);
+		}
+		return directory;
+	}
+
+	public void setDefaultPageSize (int defaultPageSize) {
+		this.defaultPageSize = defaultPageSize;
+	}
+
+	public void setMaximumPageSize (int maximumPageSize) {
+		this.maximumPageSize = maximumPageSize;
+	}
+
+	public long getExpireAfterMillis () {
+		return expireAfterMillis;
+	}
+
+	/**
+	 * @param expireAfterMillis how long a search is kept after it was last read (0 = no limit)
+	 */
+	public void setExpireAfterMillis (long expireAfterMillis) {
+		this.expireAfterMillis = expireAfterMillis;
+	}
+
+	public int getMaxSearches () {
+		return maxSearches;
+	}
+
+	public void setMaxSearches (int maxSearches) {
+		this.maxSearches = maxSearches;
+	}
+
+	public long getMaxTotalBytes () {
+		return maxTotalBytes;
+	}
+
+	public void setMaxTotalBytes (long maxTotalBytes) {
+		this.maxTotalBytes = maxTotalBytes;
+	}
+
+	public long getMaxSearchBytes () {
+		return maxSearchBytes;
+	}
+
+	/**
+	 * @param maxSearchBytes the largest segment written for a single search.
+	 * The resources past this size are read from the search results
+	 * (kept on the heap) instead of the segment.
+	 */
+	public void setMaxSearchBytes (long maxSearchBytes) {
+		this.maxSearchBytes = Math.min(maxSearchBytes, Integer.MAX_VALUE / 2);
+	}
+
+	/**
+	 * @param fhirContext the context used when a search is stored without a request
+	 */
+	public void setFhirContext (FhirContext fhirContext) {
+		this.fhirContext = fhirContext;
+	}
+
+	/**
+	 * @param directory where the segment files are written (a new temporary directory by default)
+	 */
+	public synchronized void setDirectory (String directory) {
+		this.directory = Paths.get(directory);
+	}
+
+	/*
+	 * A stored search: the results of the search and the segment file
+	 * holding the resources encoded so far. Resources are appended in
+	 * order, and the segment is mapped again after each append.
+	 */
+	private static class Segment {
+		private final String searchId;
+		private final Path file;
+		private final FhirContext ctx;
+		private final long maxBytes;
+		private final Integer preferredPageSize;
+		private final Date published;
+		private volatile IBundleProvider source;
+		private volatile FileChannel channel;
+		private volatile ByteBuffer buffer;
+		private volatile boolean released = false;
+		private volatile long lastAccess = System.currentTimeMillis();
+
+		// the offset and length of the encoded resources (guarded by this)
+		private int[] offsets = new int[FETCH_SIZE];
+		private int[] lengths = new int[FETCH_SIZE];
+		private int count = 0;
+		private long bytes = 0;
+		private boolean exhausted = false;
+		private boolean overflow = false;
+
+		private Segment (String searchId, Path file, FhirContext ctx, IBundleProvider source, long maxBytes, Integer preferredPageSize, Date published) {
+			this.searchId = searchId;
+			this.file = file;
+			this.ctx = ctx;
+			this.source = source;
+			this.maxBytes = maxBytes;
+			this.preferredPageSize = preferredPageSize;
+			this.published = published;
+		}
+
+		private synchronized long getBytes () {
+			return bytes;
+		}
+
+		/*
+		 * The number of results when known: the size reported by the
+		 * search, or the number of resources once all have been read
+		 * (the search results are dropped then)
+		 */
+		private Integer size () {
+			IBundleProvider results = source;
+			Integer size = (results != null) ? results.size() : null;
+			synchronized (this) {
+				return (null == size && exhausted && !overflow) ? Integer.valueOf(count) : size;
+			}
+		}
+
+		/*
+		 * Fetch and encode the resources up to toIndex that are not in the
+		 * segment yet, within the size limit of the segment
+		 *
+		 * @return the number of bytes appended
+		 */
+		private synchronized long fill (int toIndex, IParser parser) throws IOException {
+			long appended = 0;
+			while (count < toIndex && !exhausted && !overflow) {
+				IBundleProvider results = source;
+				if (released || null == results) {
+					throw new InternalErrorException("The search results are no longer available");
+				}
+				int to = count + FETCH_SIZE;
+				Integer size = results.size();
+				if (size != null) {
+					to = Math.min(size, to);
+				}
+				List<IBaseResource> resources = (to > count) ? results.getResources(count, to) : new ArrayList<>();
+				if (resources.isEmpty()) {
+					exhausted = true;
+					break;
+				}
+				ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+				int added = 0;
+				for (IBaseResource resource : resources) {
+					byte[] encoded = parser.encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8);
+					if (bytes + chunk.size() + encoded.length > maxBytes) {
+						log.debug("search ["+searchId+"] exceeds ["+maxBytes+"] bytes. The resources from ["+(count+added)+"] are read from the search results");
+						overflow = true;
+						break;
+					}
+					if (count + added == offsets.length) {
+						offsets = Arrays.copyOf(offsets, offsets.length * 2);
+						lengths = Arrays.copyOf(lengths, lengths.length * 2);
+					}
+					offsets[count + added] = (int)(bytes + chunk.size());
+					lengths[count + added] = encoded.length;
+					chunk.write(encoded);
+					added++;
+				}
+				if (added > 0) {
+					append(chunk.toByteArray());
+					count += added;
+					bytes += chunk.size();
+					appended += chunk.size();
+				}
+				if (size != null && count >= size) {
+					exhausted = true;
+				}
+			}
+			if (exhausted && !overflow && source != null) {
+				// every resource is in the segment: the results (often a list on the heap) aren't needed any more
+				source = null;
+			}
+			return appended;
+		}
+
+		private void append (byte[] chunk) throws IOException {
+			FileChannel out = channel;
+			if (null == out) {
+				out = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				channel = out;
+				if (released) {
+					release();
+					throw new InternalErrorException("The search results are no longer available");
+				}
+			}
+			ByteBuffer src = ByteBuffer.wrap(chunk);
+			long position = bytes;
+			while (src.hasRemaining()) {
+				position += out.write(src, position);
+			}
+			buffer = out.map(FileChannel.MapMode.READ_ONLY, 0, bytes + chunk.length);
+		}
+
+		/*
+		 * Read the resources of a page, fetching them first if needed
+		 *
+		 * @return the number of bytes appended to the segment
+		 */
+		private long read (int fromIndex, int toIndex, List<IBaseResource> resources) {
+			IParser parser = ctx.newJsonParser();
+			long appended;
+			int encoded;
+			int[] pageOffsets;
+			int[] pageLengths;
+			ByteBuffer view;
+			boolean overflowed;
+			try {
+				synchronized (this) {
+					appended = fill(toIndex, parser);
+					encoded = count;
+					pageOffsets = offsets;
+					pageLengths = lengths;
+					view = buffer;
+					overflowed = overflow;
+				}
+			} catch (IOException e) {
+				log.error("Error writing the paging segment for search ["+searchId+"]", e);
+				throw new InternalErrorException("Error reading the search results", e);
+			}
+			int end = Math.min(toIndex, encoded);
+			if (fromIndex < end) {
+				if (null == view || released) {
+					throw new InternalErrorException("The search results are no longer available");
+				}
+				view = view.duplicate();
+				for (int i = Math.max(0, fromIndex); i < end; i++) {
+					byte[] data = new byte[pageLengths[i]];
+					view.position(pageOffsets[i]);
+					view.get(data);
+					resources.add(parser.parseResource(new String(data, StandardCharsets.UTF_8)));
+				}
+			}
+			if (overflowed && toIndex > encoded) {
+				IBundleProvider results = source;
+				if (null == results) {
+					throw new InternalErrorException("The search results are no longer available");
+				}
+				resources.addAll(results.getResources(Math.max(fromIndex, encoded), toIndex));
+			}
+			return appended;
+		}
+
+		/*
+		 * The mapping itself is released by the GC once the buffer is unreachable
+		 */
+		private void release () {
+			released = true;
+			source = null;
+			buffer = null;
+			FileChannel out = channel;
+			try {
+				if (out != null) {
+					out.close();
+				}
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				log.debug("could not delete paging segment ["+file+"]. It will be deleted on exit");
+				file.toFile().deleteOnExit();
+			}
+		}
+	}
+
+	/*
+	 * The results of a stored search, decoded on demand from its segment
+	 */
+	private class MappedBundleProvider implements IBundleProvider {
+		private final Segment segment;
+
+		private MappedBundleProvider (Segment segment) {
+			this.segment = segment;
+		}
+
+		@Override
+		public IPrimitiveType<Date> getPublished () {
+			return new InstantDt(segment.published);
+		}
+
+		@Override
+		public List<IBaseResource> getResources (int fromIndex, int toIndex) {
+			List<IBaseResource> resources = new ArrayList<>();
+			long appended = segment.read(fromIndex, toIndex, resources);
+			if (appended > 0) {
+				grown(segment, appended);
+			}
+			return resources;
+		}
+
+		@Override
+		public String getUuid () {
+			return segment.searchId;
+		}
+
+		@Override
+		public Integer preferredPageSize () {
+			return segment.preferredPageSize;
+		}
+
+		@Override
+		public Integer size () {
+			return segment.size();
+		}
+	}
+
+}
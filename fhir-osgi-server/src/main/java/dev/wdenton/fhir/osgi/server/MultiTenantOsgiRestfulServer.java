@@ -0,0 +1,322 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiPredicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.ConfigurationException;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.method.BaseMethodBinding;
+import ca.uhn.fhir.rest.server.tenant.UrlBaseTenantIdentificationStrategy;
+import dev.wdenton.fhir.osgi.server.jfr.FhirEvents;
+
+/**
+ * A FHIR Server that hosts many tenants in a single servlet. Provider
+ * collections published with a <b><i>fhir.tenant.id</i></b> service-property
+ * are bound into a separate binding table for that tenant, while the
+ * collections without one are registered with the server as usual and
+ * are shared by all tenants.
+ * <p>
+ * The tenant of a request is taken from the first segment of the URL
+ * path (e.g. {@code [base]/tenant-a/Patient/123}) or, when the
+ * {@code tenantHeader} property is set, from that HTTP header. Requests
+ * are first matched against the bindings of their tenant and then
+ * against the shared bindings. A client can set the tenant header to
+ * anything, so only trust it behind a gateway that sets or strips it,
+ * or give {@link #setTenantHeader(String, BiPredicate)} a check of the
+ * tenants each principal may use.
+ * <p>
+ * Note that the CapabilityStatement generated by the server only
+ * describes the shared providers.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class MultiTenantOsgiRestfulServer extends SimpleOsgiRestfulServer {
+	private static final long serialVersionUID = 4410233826178645021L;
+
+	private static Logger log = LoggerFactory.getLogger(MultiTenantOsgiRestfulServer.class);
+
+	// the binding table of each tenant
+	private final Map<String,ProviderBindingTable> tenantBindings = new ConcurrentHashMap<>();
+
+	// the tenant that each tenant-specific provider is registered for
+	private final Map<Object,String> providerTenants = new ConcurrentHashMap<>();
+
+	public MultiTenantOsgiRestfulServer () {
+		super();
+		setTenantIdentificationStrategy(new UrlBaseTenantIdentificationStrategy());
+	}
+
+	public MultiTenantOsgiRestfulServer (FhirContext theCtx) {
+		super(theCtx);
+		setTenantIdentificationStrategy(new UrlBaseTenantIdentificationStrategy());
+	}
+
+	/**
+	 * Identify the tenant of a request by an HTTP header
+	 * instead of the URL base. The header is trusted as it is: the
+	 * server must only be reached through a gateway that sets it
+	 * from the authenticated identity and strips it from client requests.
+	 *
+	 * @param headerName the name of the header holding the tenant id
+	 */
+	public void setTenantHeader (String headerName) {
+		setTenantIdentificationStrategy(new HeaderTenantIdentificationStrategy(headerName));
+	}
+
+	/**
+	 * Identify the tenant of a request by an HTTP header instead of the
+	 * URL base, rejecting the requests whose user principal may not use
+	 * the tenant they name
+	 *
+	 * @param headerName the name of the header holding the tenant id
+	 * @param tenantAccess whether an authenticated user principal may use a tenant
+	 */
+	public void setTenantHeader (String headerName, BiPredicate<Principal,String> tenantAccess) {
+		setTenantIdentificationStrategy(new HeaderTenantIdentificationStrategy(headerName, tenantAccess));
+	}
+
+	/**
+	 * Registers a list of providers for the tenant named by the
+	 * <b><i>fhir.tenant.id</i></b> service-property, or as shared
+	 * providers when there is no such property.
+	 *
+	 * @param providers the providers to be registered
+	 * @param props the service-properties of the publishing OSGi service
+	 * @throws ConfigurationException
+	 */
+	@Override
+	public void registerOsgiProviders (Collection<Object> providers, Map<String,Object> props) throws ConfigurationException {
+		String tenantId = getTenantId(props);
+		if (null == tenantId) {
+			super.registerOsgiProviders(providers, props);
+			return;
+		}
+		if (null == providers) {
+			throw new NullPointerException("FHIR Provider list cannot be null");
+		}
+		applyProviderPolicy(providers, props);
+		Object event = FhirEvents.beginRegistration();
+		getBindingLock().writeLock().lock();
+		try {
+			bindTenantProviders(tenantId, providers);
+		} catch (Exception e) {
+			log.error("Error registering FHIR Providers for tenant ["+tenantId+"]", e);
+			throw new ConfigurationException("Error registering FHIR Providers for tenant ["+tenantId+"]", e);
+		} finally {
+			getBindingLock().writeLock().unlock();
+			FhirEvents.endRegistration(event, getFhirServerName(), "register-tenant", providers.size());
+		}
+	}
+
+	@Override
+	public void unregisterOsgiProvider (Object provider) throws ConfigurationException {
+		if (provider != null && providerTenants.containsKey(provider)) {
+			unregisterOsgiProviders(Collections.singletonList(provider));
+		} else {
+			super.unregisterOsgiProvider(provider);
+		}
+	}
+
+	@Override
+	public void unregisterOsgiProviders (Collection<Object> providers) throws ConfigurationException {
+		if (null == providers) {
+			throw new NullPointerException("FHIR Provider list cannot be null");
+		}
+		Collection<Object> tenantProviders = new ArrayList<>();
+		Collection<Object> sharedProviders = new ArrayList<>();
+		for (Object provider : providers) {
+			if (providerTenants.containsKey(provider)) {
+				tenantProviders.add(provider);
+			} else {
+				sharedProviders.add(provider);
+			}
+		}
+		if (!tenantProviders.isEmpty()) {
+			removeTenantProviders(tenantProviders);
+		}
+		if (!sharedProviders.isEmpty()) {
+			super.unregisterOsgiProviders(sharedProviders);
+		}
+	}
+
+	@Override
+	public void unregisterOsgiProviders () throws ConfigurationException {
+		Collection<Object> tenantProviders = new ArrayList<>(providerTenants.keySet());
+		if (!tenantProviders.isEmpty()) {
+			removeTenantProviders(tenantProviders);
+		}
+		super.unregisterOsgiProviders();
+	}
+
+	@Override
+	public void replaceOsgiProviders (Collection<Object> oldProviders, Collection<Object> newProviders) throws ConfigurationException {
+		Map<String,Object> props = new HashMap<>();
+		String tenantId = getTenantOf(oldProviders);
+		if (tenantId != null) {
+			props.put(IOsgiProviderCollection.SVCPROP_TENANT_ID, tenantId);
+		}
+		replaceOsgiProviders(oldProviders, newProviders, props);
+	}
+
+	/**
+	 * Replace a list of registered providers with a new list. A swap
+	 * within a single tenant (or within the shared providers) is done
+	 * with a single update of the bindings. When the providers move
+	 * to another tenant, the new ones are registered before the old
+	 * ones are unregistered.
+	 */
+	@Override
+	public void replaceOsgiProviders (Collection<Object> oldProviders, Collection<Object> newProviders, Map<String,Object> props) throws ConfigurationException {
+		if (null == oldProviders || null == newProviders) {
+			throw new NullPointerException("FHIR Provider list cannot be null");
+		}
+		String tenantId = getTenantId(props);
+		String oldTenantId = getTenantOf(oldProviders);
+		boolean oldShared = Collections.disjoint(providerTenants.keySet(), oldProviders);
+		if (null == tenantId && oldShared) {
+			super.replaceOsgiProviders(oldProviders, newProviders, props);
+		} else
+		if (tenantId != null && tenantId.equals(oldTenantId) && providerTenants.keySet().containsAll(oldProviders)) {
+			applyProviderPolicy(newProviders, props);
+			Collection<InFlightTracker> retired = new ArrayList<>();
+			getBindingLock().writeLock().lock();
+			try {
+				for (Object provider : oldProviders) {
+					InFlightTracker tracker = untrackProvider(provider);
+					if (tracker != null) {
+						retired.add(tracker);
+					}
+					providerTenants.remove(provider);
+				}
+				tenantBindings.put(tenantId, tenantBindings.getOrDefault(tenantId, ProviderBindingTable.EMPTY).without(oldProviders));
+				bindTenantProviders(tenantId, newProviders);
+			} catch (Exception e) {
+				log.error("Error replacing FHIR Providers for tenant ["+tenantId+"]", e);
+				throw new ConfigurationException("Error replacing FHIR Providers for tenant ["+tenantId+"]", e);
+			} finally {
+				getBindingLock().writeLock().unlock();
+			}
+			drainTrackers(retired);
+		} else {
+			registerOsgiProviders(newProviders, props);
+			unregisterOsgiProviders(oldProviders);
+		}
+	}
+
+	/**
+	 * Match the request against the bindings of its tenant first
+	 */
+	@Override
+	protected BaseMethodBinding<?> resolveResourceMethod (RequestDetails requestDetails, String requestPath) {
+		String tenantId = requestDetails.getTenantId();
+		if (tenantId != null) {
+			ProviderBindingTable table = tenantBindings.get(tenantId);
+			if (table != null) {
+				BaseMethodBinding<?> binding = table.getMethod(requestDetails);
+				if (binding != null) {
+					return binding;
+				}
+			}
+		}
+		return super.resolveResourceMethod(requestDetails, requestPath);
+	}
+
+	/**
+	 * @return the ids of the tenants with registered providers
+	 */
+	public Set<String> getTenantIds () {
+		return Collections.unmodifiableSet(tenantBindings.keySet());
+	}
+
+	/**
+	 * @param tenantId a tenant id
+	 * @return the binding table of the tenant
+	 */
+	public ProviderBindingTable getTenantBindings (String tenantId) {
+		return tenantBindings.getOrDefault(tenantId, ProviderBindingTable.EMPTY);
+	}
+
+	private void bindTenantProviders (String tenantId, Collection<Object> providers) throws ConfigurationException {
+		ProviderBindingTable table = tenantBindings.getOrDefault(tenantId, ProviderBindingTable.EMPTY);
+		tenantBindings.put(tenantId, table.with(getFhirContext(), providers));
+		for (Object provider : providers) {
+			log.trace("registered provider for tenant ["+tenantId+"]. class ["+provider.getClass().getName()+"]");
+			providerTenants.put(provider, tenantId);
+			trackProvider(provider);
+		}
+	}
+
+	private void removeTenantProviders (Collection<Object> providers) {
+		Object event = FhirEvents.beginRegistration();
+		drainProviders(providers);
+		getBindingLock().writeLock().lock();
+		try {
+			for (Object provider : providers) {
+				String tenantId = providerTenants.remove(provider);
+				if (tenantId != null) {
+					log.trace("unregistered provider for tenant ["+tenantId+"]. class ["+provider.getClass().getName()+"]");
+					ProviderBindingTable table = tenantBindings.get(tenantId);
+					if (table != null) {
+						table = table.without(Collections.singleton(provider));
+						if (table.isEmpty()) {
+							tenantBindings.remove(tenantId);
+						} else {
+							tenantBindings.put(tenantId, table);
+						}
+					}
+				}
+				untrackProvider(provider);
+			}
+		} finally {
+			getBindingLock().writeLock().unlock();
+			FhirEvents.endRegistration(event, getFhirServerName(), "unregister-tenant", providers.size());
+		}
+	}
+
+	private String getTenantOf (Collection<Object> providers) {
+		for (Object provider : providers) {
+			String tenantId = providerTenants.get(provider);
+			if (tenantId != null) {
+				return tenantId;
+			}
+		}
+		return null;
+	}
+
+	private static String getTenantId (Map<String,Object> props) {
+		Object tenantId = (props != null) ? props.get(IOsgiProviderCollection.SVCPROP_TENANT_ID) : null;
+		return (tenantId != null && !tenantId.toString().trim().isEmpty()) ? tenantId.toString().trim() : null;
+	}
+
+}
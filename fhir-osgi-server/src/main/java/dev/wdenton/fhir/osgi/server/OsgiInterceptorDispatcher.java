@@ -0,0 +1,536 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.ConfigurationException;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.HookParams;
+import ca.uhn.fhir.interceptor.api.IAnonymousInterceptor;
+import ca.uhn.fhir.interceptor.api.IPointcut;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.IPreResourceShowDetails;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/**
+ * Calls the hooks of the interceptors published as OSGi services
+ * ({@code IOsgiInterceptor}) for the server pointcuts used by
+ * authorization, audit and consent interceptors. This is registered
+ * with the RestfulServer in place of the interceptors themselves.
+ * <p>
+ * Each {@code @Hook} method for one of these pointcuts is compiled into
+ * a MethodHandle that takes the parameters of its pointcut in a fixed
+ * order. The handles of each pointcut are kept in an array, sorted by
+ * the hook order, and the arrays are replaced as a whole when an
+ * interceptor is registered or unregistered. Calling the hooks of a
+ * request reads the current arrays without a lock.
+ * <p>
+ * The hooks of an interceptor for other pointcuts (such as the STORAGE
+ * pointcuts of the authorization interceptor) are not compiled. They
+ * are returned by {@code getForwardedHooks()} for the server to register
+ * with the RestfulServer as anonymous interceptors, with their own
+ * order. An anonymous interceptor can't stop the processing, so an
+ * interceptor with a boolean hook for such a pointcut is not accepted
+ * here and is registered with the RestfulServer as usual.
+ * <p>
+ * The dispatcher is registered once, at the default order (0), so only
+ * the hooks with the default order are compiled: they run where they
+ * would have run had the interceptor been registered directly with the
+ * RestfulServer. A hook with another order (e.g. a consent interceptor
+ * that must run after the {@code AuthorizationInterceptor}) is forwarded
+ * with its order like the hooks of other pointcuts, or, if it may stop
+ * the processing, the whole interceptor is registered with the
+ * RestfulServer as usual.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+@Interceptor
+public class OsgiInterceptorDispatcher {
+	private static Logger log = LoggerFactory.getLogger(OsgiInterceptorDispatcher.class);
+	private static final MethodHandle[] NO_INVOKERS = new MethodHandle[0];
+
+	/*
+	 * The pointcuts dispatched here with the parameters HAPI passes to them
+	 */
+	enum HookSlot {
+		PRE_PROCESSED (Pointcut.SERVER_INCOMING_REQUEST_PRE_PROCESSED, boolean.class,
+				HttpServletRequest.class, HttpServletResponse.class),
+		POST_PROCESSED (Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED, boolean.class,
+				RequestDetails.class, ServletRequestDetails.class, HttpServletRequest.class, HttpServletResponse.class),
+		PRE_HANDLED (Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED, void.class,
+				RequestDetails.class, ServletRequestDetails.class, RestOperationTypeEnum.class),
+		PRESHOW_RESOURCES (Pointcut.STORAGE_PRESHOW_RESOURCES, void.class,
+				IPreResourceShowDetails.class, RequestDetails.class, ServletRequestDetails.class),
+		PRECHECK_FOR_CACHED_SEARCH (Pointcut.STORAGE_PRECHECK_FOR_CACHED_SEARCH, boolean.class,
+				RequestDetails.class, ServletRequestDetails.class),
+		OUTGOING_RESPONSE (Pointcut.SERVER_OUTGOING_RESPONSE, boolean.class,
+				RequestDetails.class, ServletRequestDetails.class, IBaseResource.class, ResponseDetails.class, HttpServletRequest.class, HttpServletResponse.class),
+		HANDLE_EXCEPTION (Pointcut.SERVER_HANDLE_EXCEPTION, boolean.class,
+				RequestDetails.class, ServletRequestDetails.class, HttpServletRequest.class, HttpServletResponse.class, BaseServerResponseException.class),
+		COMPLETED_NORMALLY (Pointcut.SERVER_PROCESSING_COMPLETED_NORMALLY, void.class,
+				RequestDetails.class, ServletRequestDetails.class),
+		COMPLETED (Pointcut.SERVER_PROCESSING_COMPLETED, void.class,
+				RequestDetails.class, ServletRequestDetails.class);
+
+		final Pointcut pointcut;
+		final MethodType type;
+
+		HookSlot (Pointcut pointcut, Class<?> returnType, Class<?>... parameterTypes) {
+			this.pointcut = pointcut;
+			this.type = MethodType.methodType(returnType, parameterTypes);
+		}
+
+		static HookSlot of (Pointcut pointcut) {
+			for (HookSlot slot : values()) {
+				if (slot.pointcut == pointcut) {
+					return slot;
+				}
+			}
+			return null;
+		}
+	}
+
+	// the compiled hooks of the registered interceptors in registration order (guarded by this)
+	private final List<CompiledHook> hooks = new ArrayList<>();
+
+	// the hooks of each registered interceptor left to the RestfulServer (guarded by this)
+	private final Map<Object,List<ForwardedHook>> forwardedHooks = new IdentityHashMap<>();
+
+	// the invokers of each HookSlot, replaced whenever the hooks change
+	private volatile MethodHandle[][] invokers = newTable(hooks);
+
+	// the pointcuts of the forwarded hooks, replaced whenever the hooks change
+	private volatile Set<Pointcut> forwardedPointcuts = EnumSet.noneOf(Pointcut.class);
+
+	/**
+	 * Compile the hooks of an interceptor and add them to the invokers.
+	 * Its hooks for other pointcuts must then be registered with the
+	 * RestfulServer (see {@link #getForwardedHooks(Object)}).
+	 *
+	 * @param interceptor the interceptor
+	 * @return false if none of the hooks of the interceptor can be compiled
+	 * or a hook that can't be compiled returns boolean (nothing is
+	 * registered in that case)
+	 * @throws ConfigurationException if a hook method can't be called with the parameters of its pointcut
+	 */
+	public synchronized boolean register (Object interceptor) throws ConfigurationException {
+		if (contains(interceptor)) {
+			return true;
+		}
+		List<CompiledHook> compiled = new ArrayList<>();
+		List<ForwardedHook> forwarded = new ArrayList<>();
+		for (Method method : getHookMethods(interceptor.getClass())) {
+			Hook hook = method.getAnnotation(Hook.class);
+			HookSlot slot = HookSlot.of(hook.value());
+			if (slot != null && Interceptor.DEFAULT_ORDER == hook.order()) {
+				compiled.add(new CompiledHook(interceptor, slot, hook.order(), compile(interceptor, method, slot)));
+			} else
+			if (boolean.class == hook.value().getReturnType() && void.class != method.getReturnType()) {
+				log.trace("Interceptor ["+interceptor.getClass().getName()+"] may stop ["+hook.value()+"]. It is registered with the RestfulServer");
+				return false;
+			} else {
+				forwarded.add(new ForwardedHook(interceptor, method, hook.value(), hook.order()));
+			}
+		}
+		if (compiled.isEmpty()) {
+			return false;
+		}
+		log.trace("Compiled "+compiled.size()+" hooks of interceptor ["+interceptor.getClass().getName()+"], forwarding "+forwarded.size());
+		hooks.addAll(compiled);
+		if (!forwarded.isEmpty()) {
+			forwardedHooks.put(interceptor, forwarded);
+			forwardedPointcuts = getForwardedPointcuts();
+		}
+		invokers = newTable(hooks);
+		return true;
+	}
+
+	/**
+	 * @param interceptor the interceptor to remove
+	 * @return true if the interceptor was registered here. Its forwarded
+	 * hooks must then be unregistered from the RestfulServer.
+	 */
+	public synchronized boolean unregister (Object interceptor) {
+		if (hooks.removeIf(hook -> hook.interceptor == interceptor)) {
+			if (forwardedHooks.remove(interceptor) != null) {
+				forwardedPointcuts = getForwardedPointcuts();
+			}
+			invokers = newTable(hooks);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param interceptor a registered interceptor
+	 * @return its hooks for the pointcuts that aren't dispatched here
+	 */
+	public synchronized List<ForwardedHook> getForwardedHooks (Object interceptor) {
+		List<ForwardedHook> forwarded = forwardedHooks.get(interceptor);
+		return (forwarded != null) ? new ArrayList<>(forwarded) : Collections.emptyList();
+	}
+
+	public synchronized boolean contains (Object interceptor) {
+		for (CompiledHook hook : hooks) {
+			if (hook.interceptor == interceptor) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public synchronized boolean isEmpty () {
+		return hooks.isEmpty();
+	}
+
+	/**
+	 * @param pointcut a pointcut
+	 * @return true if a registered interceptor has a hook for the pointcut,
+	 * dispatched here or forwarded
+	 */
+	public boolean hasHooks (Pointcut pointcut) {
+		HookSlot slot = HookSlot.of(pointcut);
+		return ((slot != null) && invokers[slot.ordinal()].length > 0) || forwardedPointcuts.contains(pointcut);
+	}
+
+	private Set<Pointcut> getForwardedPointcuts () {
+		Set<Pointcut> pointcuts = EnumSet.noneOf(Pointcut.class);
+		for (List<ForwardedHook> forwarded : forwardedHooks.values()) {
+			for (ForwardedHook hook : forwarded) {
+				pointcuts.add(hook.pointcut);
+			}
+		}
+		return pointcuts;
+	}
+
+	@Hook(Pointcut.SERVER_INCOMING_REQUEST_PRE_PROCESSED)
+	public boolean incomingRequestPreProcessed (HttpServletRequest request, HttpServletResponse response) {
+		try {
+			for (MethodHandle invoker : invokers[HookSlot.PRE_PROCESSED.ordinal()]) {
+				if (!(boolean)invoker.invokeExact(request, response)) {
+					return false;
+				}
+			}
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+		return true;
+	}
+
+	@Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+	public boolean incomingRequestPostProcessed (RequestDetails requestDetails, ServletRequestDetails servletRequestDetails, HttpServletRequest request, HttpServletResponse response) {
+		try {
+			for (MethodHandle invoker : invokers[HookSlot.POST_PROCESSED.ordinal()]) {
+				if (!(boolean)invoker.invokeExact(requestDetails, servletRequestDetails, request, response)) {
+					return false;
+				}
+			}
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+		return true;
+	}
+
+	@Hook(Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED)
+	public void incomingRequestPreHandled (RequestDetails requestDetails, ServletRequestDetails servletRequestDetails, RestOperationTypeEnum operation) {
+		try {
+			for (MethodHandle invoker : invokers[HookSlot.PRE_HANDLED.ordinal()]) {
+				invoker.invokeExact(requestDetails, servletRequestDetails, operation);
+			}
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	@Hook(Pointcut.STORAGE_PRESHOW_RESOURCES)
+	public void preShowResources (IPreResourceShowDetails details, RequestDetails requestDetails, ServletRequestDetails servletRequestDetails) {
+		try {
+			for (MethodHandle invoker : invokers[HookSlot.PRESHOW_RESOURCES.ordinal()]) {
+				invoker.invokeExact(details, requestDetails, servletRequestDetails);
+			}
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	@Hook(Pointcut.STORAGE_PRECHECK_FOR_CACHED_SEARCH)
+	public boolean precheckForCachedSearch (RequestDetails requestDetails, ServletRequestDetails servletRequestDetails) {
+		try {
+			for (MethodHandle invoker : invokers[HookSlot.PRECHECK_FOR_CACHED_SEARCH.ordinal()]) {
+				if (!(boolean)invoker.invokeExact(requestDetails, servletRequestDetails)) {
+					return false;
+				}
+			}
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+		return true;
+	}
+
+	@Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+	public boolean outgoingResponse (RequestDetails requestDetails, ServletRequestDetails servletRequestDetails, IBaseResource resource, ResponseDetails responseDetails, HttpServletRequest request, HttpServletResponse response) {
+		try {
+			for (MethodHandle invoker : invokers[HookSlot.OUTGOING_RESPONSE.ordinal()]) {
+				if (!(boolean)invoker.invokeExact(requestDetails, servletRequestDetails, resource, responseDetails, request, response)) {
+					return false;
+				}
+			}
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+		return true;
+	}
+
+	@Hook(Pointcut.SERVER_HANDLE_EXCEPTION)
+	public boolean handleException (RequestDetails requestDetails, ServletRequestDetails servletRequestDetails, HttpServletRequest request, HttpServletResponse response, BaseServerResponseException exception) {
+		try {
+			for (MethodHandle invoker : invokers[HookSlot.HANDLE_EXCEPTION.ordinal()]) {
+				if (!(boolean)invoker.invokeExact(requestDetails, servletRequestDetails, request, response, exception)) {
+					return false;
+				}
+			}
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+		return true;
+	}
+
+	@Hook(Pointcut.SERVER_PROCESSING_COMPLETED_NORMALLY)
+	public void processingCompletedNormally (RequestDetails requestDetails, ServletRequestDetails servletRequestDetails) {
+		try {
+			for (MethodHandle invoker : invokers[HookSlot.COMPLETED_NORMALLY.ordinal()]) {
+				invoker.invokeExact(requestDetails, servletRequestDetails);
+			}
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	@Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+	public void processingCompleted (RequestDetails requestDetails, ServletRequestDetails servletRequestDetails) {
+		try {
+			for (MethodHandle invoker : invokers[HookSlot.COMPLETED.ordinal()]) {
+				invoker.invokeExact(requestDetails, servletRequestDetails);
+			}
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	/*
+	 * Hooks throw the exceptions that should reach the client (e.g.
+	 * AuthenticationException) which are passed on as they are
+	 */
+	private static RuntimeException rethrow (Throwable t) {
+		if (t instanceof RuntimeException) {
+			return (RuntimeException)t;
+		}
+		if (t instanceof Error) {
+			throw (Error)t;
+		}
+		return new InternalErrorException(t);
+	}
+
+	/*
+	 * The @Hook methods of the interceptor class and its superclasses
+	 */
+	static List<Method> getHookMethods (Class<?> type) {
+		List<Method> methods = new ArrayList<>();
+		for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+			for (Method method : c.getDeclaredMethods()) {
+				if (method.isAnnotationPresent(Hook.class) && !method.isBridge()) {
+					methods.add(method);
+				}
+			}
+		}
+		return methods;
+	}
+
+	/*
+	 * Adapt the hook method to the MethodType of its slot: the method
+	 * parameters are matched by type with the pointcut parameters and a
+	 * void method of a boolean pointcut always continues processing
+	 */
+	private static MethodHandle compile (Object interceptor, Method method, HookSlot slot) throws ConfigurationException {
+		Class<?>[] slotTypes = slot.type.parameterArray();
+		Class<?>[] methodTypes = method.getParameterTypes();
+		Class<?>[] sourceTypes = new Class<?>[methodTypes.length];
+		int[] reorder = new int[methodTypes.length];
+		for (int i = 0; i < methodTypes.length; i++) {
+			reorder[i] = -1;
+			for (int j = 0; j < slotTypes.length && reorder[i] < 0; j++) {
+				if (methodTypes[i].isAssignableFrom(slotTypes[j])) {
+					reorder[i] = j;
+				}
+			}
+			if (reorder[i] < 0) {
+				throw new ConfigurationException("Hook method ["+method+"] has a parameter of type ["+methodTypes[i].getName()+"] which is not passed to ["+slot.pointcut+"]");
+			}
+			sourceTypes[i] = slotTypes[reorder[i]];
+		}
+		Class<?> returnType = method.getReturnType();
+		Class<?> slotReturnType = slot.type.returnType();
+		if (boolean.class == slotReturnType && returnType != boolean.class && returnType != Boolean.class && returnType != void.class) {
+			throw new ConfigurationException("Hook method ["+method+"] of ["+slot.pointcut+"] must return boolean or void");
+		}
+		try {
+			method.setAccessible(true);
+			MethodHandle handle = MethodHandles.lookup().unreflect(method);
+			if (!Modifier.isStatic(method.getModifiers())) {
+				handle = handle.bindTo(interceptor);
+			}
+			handle = handle.asType(MethodType.methodType(returnType, sourceTypes));
+			handle = MethodHandles.permuteArguments(handle, MethodType.methodType(returnType, slotTypes), reorder);
+			if (boolean.class == slotReturnType && void.class == returnType) {
+				MethodHandle proceed = MethodHandles.dropArguments(MethodHandles.constant(boolean.class, true), 0, slotTypes);
+				handle = MethodHandles.foldArguments(proceed, handle);
+			}
+			return handle.asType(slot.type);
+		} catch (IllegalAccessException | RuntimeException e) {
+			throw new ConfigurationException("Unable to call hook method ["+method+"]: "+e.getMessage(), e);
+		}
+	}
+
+	/*
+	 * Build the invoker arrays of all of the slots, each sorted by hook
+	 * order (the sort is stable so equal orders keep registration order)
+	 */
+	private static MethodHandle[][] newTable (List<CompiledHook> hooks) {
+		MethodHandle[][] table = new MethodHandle[HookSlot.values().length][];
+		for (HookSlot slot : HookSlot.values()) {
+			List<CompiledHook> slotHooks = new ArrayList<>();
+			for (CompiledHook hook : hooks) {
+				if (hook.slot == slot) {
+					slotHooks.add(hook);
+				}
+			}
+			if (slotHooks.isEmpty()) {
+				table[slot.ordinal()] = NO_INVOKERS;
+			} else {
+				slotHooks.sort(Comparator.comparingInt(hook -> hook.order));
+				MethodHandle[] slotInvokers = new MethodHandle[slotHooks.size()];
+				for (int i = 0; i < slotInvokers.length; i++) {
+					slotInvokers[i] = slotHooks.get(i).invoker;
+				}
+				table[slot.ordinal()] = slotInvokers;
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * A hook of a registered interceptor for a pointcut that isn't
+	 * dispatched here, called by the RestfulServer as an anonymous
+	 * interceptor. The parameters are looked up by type in the hook
+	 * parameters as the RestfulServer does for a registered interceptor.
+	 */
+	public static class ForwardedHook implements IAnonymousInterceptor {
+		private final Object interceptor;
+		private final Method method;
+		private final Pointcut pointcut;
+		private final int order;
+
+		// the index of each parameter among the parameters of the same type
+		private final int[] indexes;
+
+		private ForwardedHook (Object interceptor, Method method, Pointcut pointcut, int order) {
+			this.interceptor = Modifier.isStatic(method.getModifiers()) ? null : interceptor;
+			this.method = method;
+			this.pointcut = pointcut;
+			this.order = order;
+			Class<?>[] types = method.getParameterTypes();
+			this.indexes = new int[types.length];
+			for (int i = 0; i < types.length; i++) {
+				for (int j = 0; j < i; j++) {
+					if (types[j] == types[i]) {
+						indexes[i]++;
+					}
+				}
+			}
+			method.setAccessible(true);
+		}
+
+		public Pointcut getPointcut () {
+			return pointcut;
+		}
+
+		public int getOrder () {
+			return order;
+		}
+
+		@Override
+		public void invoke (IPointcut invokedPointcut, HookParams params) {
+			Class<?>[] types = method.getParameterTypes();
+			Object[] args = new Object[types.length];
+			for (int i = 0; i < types.length; i++) {
+				args[i] = (Pointcut.class == types[i] || IPointcut.class == types[i]) ? invokedPointcut : params.get(types[i], indexes[i]);
+			}
+			try {
+				method.invoke(interceptor, args);
+			} catch (InvocationTargetException e) {
+				throw rethrow(e.getCause());
+			} catch (IllegalAccessException e) {
+				throw new InternalErrorException(e);
+			}
+		}
+	}
+
+	static class CompiledHook {
+		final Object interceptor;
+		final HookSlot slot;
+		final int order;
+		final MethodHandle invoker;
+
+		CompiledHook (Object interceptor, HookSlot slot, int order, MethodHandle invoker) {
+			this.interceptor = interceptor;
+			this.slot = slot;
+			this.order = order;
+			this.invoker = invoker;
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Startup Benchmark
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dev.wdenton.fhir.osgi.server.diagnostics.ServerFootprint;
+
+/**
+ * Resolves the {@code _include} and {@code _revinclude} resources of
+ * searches concurrently, grouped by resource type, through the
+ * registered {@code IOsgiIncludeResolver}s or the {@code @Read} methods
+ * of the resource providers. The fetches of all requests share a pool
+ * of threads, which is shut down when the feature is unregistered.
+ * @see IncludeResolvingInterceptor
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class ParallelIncludeFeature implements IOsgiServerFeature {
+	private int maxParallelism = 4;
+	private int threads = Runtime.getRuntime().availableProcessors() * 2;
+
+	private IncludeResolvingInterceptor interceptor;
+	private ThreadPoolExecutor executor;
+	private boolean installed = false;
+
+	@Override
+	public synchronized void install (SimpleOsgiRestfulServer server) {
+		interceptor = new IncludeResolvingInterceptor(server, this);
+		server.registerInterceptor(interceptor);
+		installed = true;
+	}
+
+	@Override
+	public synchronized void uninstall (SimpleOsgiRestfulServer server) {
+		installed = false;
+		if (interceptor != null) {
+			server.unregisterInterceptor(interceptor);
+			interceptor = null;
+		}
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	/**
+	 * @return the executor resolving included resources concurrently or
+	 * null if the feature isn't registered
+	 */
+	protected synchronized ExecutorService getExecutor () {
+		if (null == executor && installed) {
+			AtomicInteger threadCount = new AtomicInteger();
+			executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+				Thread thread = new Thread(runnable, "fhir-include-"+threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+	}
+
+	public int getMaxParallelism () {
+		return maxParallelism;
+	}
+
+	/**
+	 * @param maxParallelism the most fetches of included resources running at once for a request
+	 */
+	public void setMaxParallelism (int maxParallelism) {
+		this.maxParallelism = maxParallelism;
+	}
+
+	public int getThreads () {
+		return threads;
+	}
+
+	/**
+	 * @param threads the number of threads shared by all requests to fetch
+	 * included resources. A change applies to the next pool created.
+	 */
+	public void setThreads (int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	@Override
+	public void describeFootprint (ServerFootprint footprint) {
+		ThreadPoolExecutor current;
+		synchronized (this) {
+			current = executor;
+		}
+		if (current != null) {
+			footprint.addStatistic("includes.threads", current.getPoolSize());
+			footprint.addStatistic("includes.queued", current.getQueue().size());
+		}
+	}
+
+}
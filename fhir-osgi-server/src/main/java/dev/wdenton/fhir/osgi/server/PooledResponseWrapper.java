@@ -0,0 +1,472 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * A response wrapper that writes the body through a buffer and a
+ * Deflater borrowed from a {@code ResponseBufferPool} instead of the
+ * buffers and {@code GZIPOutputStream} created for every response.
+ * Responses that fit in the buffer are sent with a Content-Length.
+ * Larger responses are streamed through the same buffer.
+ * <p>
+ * The request seen by the servlet must hide its Accept-Encoding
+ * header (see {@code AcceptEncoding.hide()}) so that the servlet
+ * doesn't compress the body itself; the wrapper compresses it when
+ * the client accepts gzip. A body the servlet has encoded itself (it
+ * set a Content-Encoding) is passed through. {@code finish()} must be
+ * called once the servlet is done.
+ * <p>
+ * With a {@code CompressionPolicy} small and already compressed bodies
+ * aren't compressed and the level is chosen for each body. With a
+ * {@code CompressedVariantCache} a cacheable body of up to its maximum
+ * payload is held until it is complete and its compressed form is
+ * taken from the cache. A body that isn't cached is compressed at the
+ * level of the policy the first time it is seen, and at the best level,
+ * to be cached, when it is seen again. A body is cacheable when the
+ * response has a Cache-Control header (without no-store), it is the
+ * CapabilityStatement of {@code /metadata}, or the request was answered
+ * from a cache that set {@link #ATTR_CACHEABLE}.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class PooledResponseWrapper extends HttpServletResponseWrapper {
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff };
+
+	/** the request attribute marking a response answered from a cache, whose body is likely to be sent again */
+	public static final String ATTR_CACHEABLE = PooledResponseWrapper.class.getName()+".cacheable";
+
+	private final HttpServletRequest request;
+	private final HttpServletResponse target;
+	private final ResponseBufferPool pool;
+	private final boolean gzip;
+	private final CompressionPolicy compression;
+	private final CompressedVariantCache variants;
+
+	private byte[] buffer;
+	private int count;
+	private ByteArrayOutputStream held;
+	private OutputStream sink;
+	private GzipSink gzipSink;
+	private ServletOutputStream outputStream;
+	private PrintWriter writer;
+	private boolean errorSent = false;
+	private boolean finished = false;
+	private long bodyBytes = 0;
+
+	/**
+	 * @param response the response to write to
+	 * @param pool the pool of buffers and Deflaters
+	 * @param gzip true if the body should be compressed
+	 */
+	public PooledResponseWrapper (HttpServletResponse response, ResponseBufferPool pool, boolean gzip) {
+		this(null, response, pool, gzip, null, null);
+	}
+
+	/**
+	 * @param request the request being answered (null = only the Cache-Control header makes a body cacheable)
+	 * @param response the response to write to
+	 * @param pool the pool of buffers and Deflaters
+	 * @param gzip true if the client accepts a compressed body
+	 * @param compression what is compressed and at what level (null = every body at the pool's level)
+	 * @param variants the cache of compressed bodies (null = none)
+	 */
+	public PooledResponseWrapper (HttpServletRequest request, HttpServletResponse response, ResponseBufferPool pool, boolean gzip,
+			CompressionPolicy compression, CompressedVariantCache variants) {
+		super(response);
+		this.request = request;
+		this.target = response;
+		this.pool = pool;
+		this.gzip = gzip;
+		this.compression = compression;
+		this.variants = gzip ? variants : null;
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream () throws IOException {
+		if (writer != null) {
+			throw new IllegalStateException("getWriter() has already been called");
+		}
+		if (null == outputStream) {
+			outputStream = new ServletOutputStream() {
+				@Override
+				public void write (int b) throws IOException {
+					write(new byte[] { (byte)b }, 0, 1);
+				}
+
+				@Override
+				public void write (byte[] b, int off, int len) throws IOException {
+					buffer(b, off, len);
+				}
+
+				// the body is flushed by finish()
+				@Override
+				public void flush () throws IOException {
+				}
+
+				@Override
+				public void close () throws IOException {
+				}
+
+				@Override
+				public boolean isReady () {
+					return true;
+				}
+
+				@Override
+				public void setWriteListener (WriteListener writeListener) {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+		return outputStream;
+	}
+
+	@Override
+	public PrintWriter getWriter () throws IOException {
+		if (outputStream != null && null == writer) {
+			throw new IllegalStateException("getOutputStream() has already been called");
+		}
+		if (null == writer) {
+			writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+		}
+		return writer;
+	}
+
+	@Override
+	public void setContentLength (int len) {
+	}
+
+	@Override
+	public void setContentLengthLong (long len) {
+	}
+
+	@Override
+	public void sendError (int sc) throws IOException {
+		errorSent = true;
+		count = 0;
+		held = null;
+		super.sendError(sc);
+	}
+
+	@Override
+	public void sendError (int sc, String msg) throws IOException {
+		errorSent = true;
+		count = 0;
+		held = null;
+		super.sendError(sc, msg);
+	}
+
+	@Override
+	public boolean isCommitted () {
+		return (sink != null) || errorSent || super.isCommitted();
+	}
+
+	@Override
+	public void flushBuffer () throws IOException {
+	}
+
+	@Override
+	public void resetBuffer () {
+		if (sink != null) {
+			throw new IllegalStateException("The response has already been committed");
+		}
+		count = 0;
+		held = null;
+		bodyBytes = 0;
+		super.resetBuffer();
+	}
+
+	@Override
+	public void reset () {
+		if (sink != null) {
+			throw new IllegalStateException("The response has already been committed");
+		}
+		count = 0;
+		held = null;
+		bodyBytes = 0;
+		super.reset();
+	}
+
+	private void buffer (byte[] b, int off, int len) throws IOException {
+		if (finished || errorSent) {
+			return;
+		}
+		if (null == buffer) {
+			buffer = pool.acquireBuffer();
+		}
+		bodyBytes += len;
+		while (len > 0) {
+			if (count == buffer.length) {
+				spill();
+			}
+			int n = Math.min(len, buffer.length - count);
+			System.arraycopy(b, off, buffer, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/*
+	 * Empty the full buffer: hold its content while the body may still
+	 * be cached, else write it (and anything held) to the client
+	 */
+	private void spill () throws IOException {
+		int heldCount = (held != null) ? held.size() : 0;
+		if (null == sink && variants != null && heldCount + count <= variants.getMaxPayloadBytes() && isCacheable()) {
+			if (null == held) {
+				held = new ByteArrayOutputStream(buffer.length * 2);
+			}
+			held.write(buffer, 0, count);
+		} else {
+			openSink(-1);
+			writeHeld();
+			sink.write(buffer, 0, count);
+		}
+		count = 0;
+	}
+
+	private void writeHeld () throws IOException {
+		if (held != null) {
+			held.writeTo(sink);
+			held = null;
+		}
+	}
+
+	private void openSink (int contentLength) throws IOException {
+		if (sink != null) {
+			return;
+		}
+		if (gzip && !isEncoded() && (null == compression || compression.shouldCompress(contentLength, target.getContentType()))) {
+			target.setHeader("Content-Encoding", "gzip");
+			target.addHeader("Vary", AcceptEncoding.HEADER);
+			gzipSink = new GzipSink(target.getOutputStream(), (compression != null) ? compression.getLevel(contentLength) : pool.getCompressionLevel());
+			sink = gzipSink;
+		} else {
+			if (contentLength >= 0) {
+				target.setContentLength(contentLength);
+			}
+			sink = target.getOutputStream();
+		}
+	}
+
+	/*
+	 * Only the bodies likely to be sent again are held for the cache
+	 */
+	private boolean isCacheable () {
+		String cacheControl = target.getHeader("Cache-Control");
+		if (cacheControl != null) {
+			return !cacheControl.toLowerCase().contains("no-store");
+		}
+		if (null == request) {
+			return false;
+		}
+		String path = request.getPathInfo();
+		return Boolean.TRUE.equals(request.getAttribute(ATTR_CACHEABLE)) || (path != null && path.endsWith("/metadata"));
+	}
+
+	/*
+	 * The servlet has already encoded the body
+	 */
+	private boolean isEncoded () {
+		return target.getHeader("Content-Encoding") != null;
+	}
+
+	/**
+	 * @return the number of bytes of the body written so far (before compression)
+	 */
+	public long getBodyBytes () {
+		return bodyBytes;
+	}
+
+	/**
+	 * Write what is left of the body and return the
+	 * pooled objects. This must be called exactly once.
+	 *
+	 * @throws IOException
+	 */
+	public void finish () throws IOException {
+		if (finished) {
+			return;
+		}
+		try {
+			if (writer != null) {
+				writer.flush();
+			}
+			finished = true;
+			if (!errorSent && (count > 0 || sink != null || held != null) && !writeVariant()) {
+				openSink(count + ((held != null) ? held.size() : 0));
+				writeHeld();
+				sink.write(buffer, 0, count);
+				count = 0;
+				if (gzipSink != null) {
+					gzipSink.finish();
+				}
+				sink.flush();
+			}
+		} finally {
+			finished = true;
+			if (gzipSink != null) {
+				gzipSink.release();
+			}
+			pool.releaseBuffer(buffer);
+			buffer = null;
+		}
+	}
+
+	/*
+	 * Send the whole body from the cache of compressed variants or,
+	 * if it isn't there, compress it at the level of the policy the
+	 * first time it is seen and at the best level, to cache it, when
+	 * it is seen again
+	 */
+	private boolean writeVariant () throws IOException {
+		if (null == variants || sink != null || isEncoded()) {
+			return false;
+		}
+		int size = count + ((held != null) ? held.size() : 0);
+		if (target.getStatus() != HttpServletResponse.SC_OK || size < ((compression != null) ? compression.getMinSize() : 1)
+				|| !CompressionPolicy.isCompressible(target.getContentType()) || !isCacheable()) {
+			return false;
+		}
+		byte[] body = (held != null) ? held.toByteArray() : null;
+		MessageDigest digest = CompressedVariantCache.newDigest();
+		if (body != null) {
+			digest.update(body);
+		}
+		digest.update(buffer, 0, count);
+		byte[] key = digest.digest();
+		byte[] compressed = variants.get(key);
+		if (null == compressed) {
+			boolean repeated = variants.seen(key);
+			int level = repeated ? Deflater.BEST_COMPRESSION : (compression != null) ? compression.getLevel(size) : pool.getCompressionLevel();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, size / 4));
+			GzipSink compressor = new GzipSink(out, level);
+			try {
+				if (body != null) {
+					compressor.write(body, 0, body.length);
+				}
+				compressor.write(buffer, 0, count);
+				compressor.finish();
+			} finally {
+				compressor.release();
+			}
+			compressed = out.toByteArray();
+			if (repeated) {
+				variants.put(key, compressed);
+			}
+		}
+		held = null;
+		count = 0;
+		target.setHeader("Content-Encoding", "gzip");
+		target.addHeader("Vary", AcceptEncoding.HEADER);
+		target.setContentLength(compressed.length);
+		OutputStream out = target.getOutputStream();
+		out.write(compressed);
+		out.flush();
+		return true;
+	}
+
+	/*
+	 * Writes GZIP framed data with a pooled Deflater and buffer
+	 */
+	private class GzipSink extends OutputStream {
+		private final OutputStream out;
+		private final CRC32 crc = new CRC32();
+		private Deflater deflater;
+		private byte[] deflated;
+
+		private GzipSink (OutputStream out, int level) throws IOException {
+			this.out = out;
+			this.deflater = pool.acquireDeflater(level);
+			this.deflated = pool.acquireBuffer();
+			out.write(GZIP_HEADER);
+		}
+
+		@Override
+		public void write (int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+
+		@Override
+		public void write (byte[] b, int off, int len) throws IOException {
+			if (len <= 0) {
+				return;
+			}
+			crc.update(b, off, len);
+			deflater.setInput(b, off, len);
+			while (!deflater.needsInput()) {
+				deflate();
+			}
+		}
+
+		private void finish () throws IOException {
+			deflater.finish();
+			while (!deflater.finished()) {
+				deflate();
+			}
+			writeInt((int)crc.getValue());
+			writeInt((int)deflater.getBytesRead());
+		}
+
+		private void deflate () throws IOException {
+			int n = deflater.deflate(deflated, 0, deflated.length);
+			if (n > 0) {
+				out.write(deflated, 0, n);
+			}
+		}
+
+		private void writeInt (int i) throws IOException {
+			out.write(i & 0xff);
+			out.write((i >> 8) & 0xff);
+			out.write((i >> 16) & 0xff);
+			out.write((i >> 24) & 0xff);
+		}
+
+		@Override
+		public void flush () throws IOException {
+			out.flush();
+		}
+
+		private void release () {
+			pool.releaseDeflater(deflater);
+			pool.releaseBuffer(deflated);
+			deflater = null;
+			deflated = null;
+		}
+	}
+
+}
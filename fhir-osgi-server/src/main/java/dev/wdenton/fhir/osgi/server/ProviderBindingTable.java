@@ -0,0 +1,302 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ca.uhn.fhir.context.ConfigurationException;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.method.BaseMethodBinding;
+import ca.uhn.fhir.rest.server.method.MethodMatchEnum;
+import ca.uhn.fhir.rest.server.method.OperationMethodBinding;
+
+/**
+ * An immutable table of the HAPI method bindings contributed by a set
+ * of providers, indexed by resource name and then by HTTP verb and
+ * extended operation name, so that a request is only matched against
+ * the few bindings that could handle it. This is used to route requests
+ * to a set of providers that is not registered directly with the
+ * {@code RestfulServer}, and as the dispatch table of the bindings that
+ * are. Changes produce a new table, so a table can be read without
+ * locking while it is being replaced.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class ProviderBindingTable {
+	private static final String SERVER_LEVEL = "";
+	private static final RequestTypeEnum[] VERBS = {
+			RequestTypeEnum.GET, RequestTypeEnum.HEAD, RequestTypeEnum.POST,
+			RequestTypeEnum.PUT, RequestTypeEnum.DELETE, RequestTypeEnum.PATCH };
+
+	public static final ProviderBindingTable EMPTY = new ProviderBindingTable(Collections.emptyMap());
+
+	// the bindings of each provider, in registration order
+	private final Map<Object,List<BaseMethodBinding<?>>> providerBindings;
+
+	// all the bindings by resource name ("" for server level bindings)
+	private final Map<String,List<BaseMethodBinding<?>>> resourceBindings;
+
+	// the candidate bindings by resource name, then by verb ("GET") or verb and operation ("POST$validate")
+	private final Map<String,Map<String,List<BaseMethodBinding<?>>>> dispatch;
+
+	private ProviderBindingTable (Map<Object,List<BaseMethodBinding<?>>> providerBindings) {
+		this(providerBindings, indexByResource(providerBindings.values()));
+	}
+
+	private ProviderBindingTable (Map<Object,List<BaseMethodBinding<?>>> providerBindings, Map<String,List<BaseMethodBinding<?>>> resourceBindings) {
+		this.providerBindings = providerBindings;
+		this.resourceBindings = resourceBindings;
+		Map<String,Map<String,List<BaseMethodBinding<?>>>> index = new HashMap<>();
+		for (Map.Entry<String,List<BaseMethodBinding<?>>> entry : resourceBindings.entrySet()) {
+			index.put(entry.getKey(), indexByDispatchKey(entry.getValue()));
+		}
+		this.dispatch = index;
+	}
+
+	/**
+	 * Create a table of bindings that are already bound, such as the
+	 * bindings registered with a {@code RestfulServer}
+	 *
+	 * @param bindings the bindings, in the order they are matched
+	 * @return the new table
+	 */
+	public static ProviderBindingTable of (Collection<BaseMethodBinding<?>> bindings) {
+		Map<Object,List<BaseMethodBinding<?>>> byProvider = new LinkedHashMap<>();
+		for (BaseMethodBinding<?> binding : bindings) {
+			byProvider.computeIfAbsent(binding.getProvider(), k -> new ArrayList<>()).add(binding);
+		}
+		return new ProviderBindingTable(byProvider, indexByResource(Collections.singletonList(new ArrayList<>(bindings))));
+	}
+
+	/**
+	 * Create a new table with additional providers
+	 *
+	 * @param ctx the FhirContext used to bind the provider methods
+	 * @param providers the providers to add
+	 * @return the new table
+	 * @throws ConfigurationException if a provider method cannot be bound
+	 */
+	public ProviderBindingTable with (FhirContext ctx, Collection<Object> providers) throws ConfigurationException {
+		Map<Object,List<BaseMethodBinding<?>>> bindings = new LinkedHashMap<>(providerBindings);
+		for (Object provider : providers) {
+			bindings.put(provider, bindProvider(ctx, provider));
+		}
+		return new ProviderBindingTable(bindings);
+	}
+
+	/**
+	 * Create a new table without some providers
+	 *
+	 * @param providers the providers to remove
+	 * @return the new table
+	 */
+	public ProviderBindingTable without (Collection<Object> providers) {
+		Map<Object,List<BaseMethodBinding<?>>> bindings = new LinkedHashMap<>(providerBindings);
+		bindings.keySet().removeAll(providers);
+		return new ProviderBindingTable(bindings);
+	}
+
+	/**
+	 * Find the binding that best matches the request, in the same
+	 * way that {@code ResourceBinding} does: the first exact match
+	 * or else the first of the best partial matches.
+	 *
+	 * @param requestDetails the request
+	 * @return the matching binding or null if there is none
+	 */
+	public BaseMethodBinding<?> getMethod (RequestDetails requestDetails) {
+		String resourceName = requestDetails.getResourceName();
+		String resourceKey = (null == resourceName) ? SERVER_LEVEL : resourceName;
+		List<BaseMethodBinding<?>> candidates = null;
+		Map<String,List<BaseMethodBinding<?>>> keys = dispatch.get(resourceKey);
+		RequestTypeEnum verb = requestDetails.getRequestType();
+		if (keys != null && verb != null) {
+			String operation = requestDetails.getOperation();
+			if (operation != null && operation.startsWith("$")) {
+				candidates = keys.get(verb.name()+operation);
+			}
+			if (null == candidates) {
+				candidates = keys.get(verb.name());
+			}
+		}
+		if (null == candidates) {
+			candidates = resourceBindings.get(resourceKey);
+		}
+		if (null == candidates) {
+			return null;
+		}
+		BaseMethodBinding<?> result = null;
+		MethodMatchEnum resultMatch = MethodMatchEnum.NONE;
+		for (BaseMethodBinding<?> binding : candidates) {
+			MethodMatchEnum match = binding.incomingServerRequestMatchesMethod(requestDetails);
+			if (match.ordinal() > resultMatch.ordinal()) {
+				result = binding;
+				resultMatch = match;
+				if (resultMatch == MethodMatchEnum.EXACT) {
+					break;
+				}
+			}
+		}
+		return result;
+	}
+
+	public boolean contains (Object provider) {
+		return providerBindings.containsKey(provider);
+	}
+
+	public Collection<Object> getProviders () {
+		return Collections.unmodifiableCollection(providerBindings.keySet());
+	}
+
+	public int getBindingCount () {
+		int count = 0;
+		for (List<BaseMethodBinding<?>> bindings : providerBindings.values()) {
+			count += bindings.size();
+		}
+		return count;
+	}
+
+	public boolean isEmpty () {
+		return providerBindings.isEmpty();
+	}
+
+	private static Map<String,List<BaseMethodBinding<?>>> indexByResource (Collection<List<BaseMethodBinding<?>>> bindingLists) {
+		Map<String,List<BaseMethodBinding<?>>> index = new HashMap<>();
+		for (List<BaseMethodBinding<?>> bindings : bindingLists) {
+			for (BaseMethodBinding<?> binding : bindings) {
+				String resourceName = binding.getResourceName();
+				index.computeIfAbsent((null == resourceName) ? SERVER_LEVEL : resourceName, k -> new ArrayList<>()).add(binding);
+			}
+		}
+		return index;
+	}
+
+	/*
+	 * Split the bindings of a resource by the verbs and operation names
+	 * they can match, keeping their order. Operations only match requests
+	 * for the same name; reads, creates, updates, deletes and patches
+	 * only match their own verbs. All other bindings are candidates for
+	 * every request.
+	 */
+	private static Map<String,List<BaseMethodBinding<?>>> indexByDispatchKey (List<BaseMethodBinding<?>> bindings) {
+		Set<String> operations = new HashSet<>();
+		for (BaseMethodBinding<?> binding : bindings) {
+			String operation = getOperationName(binding);
+			if (operation != null) {
+				operations.add(operation);
+			}
+		}
+		Map<String,List<BaseMethodBinding<?>>> index = new HashMap<>();
+		for (RequestTypeEnum verb : VERBS) {
+			index.put(verb.name(), getCandidates(bindings, verb, null));
+			for (String operation : operations) {
+				index.put(verb.name()+operation, getCandidates(bindings, verb, operation));
+			}
+		}
+		return index;
+	}
+
+	private static List<BaseMethodBinding<?>> getCandidates (List<BaseMethodBinding<?>> bindings, RequestTypeEnum verb, String operation) {
+		List<BaseMethodBinding<?>> candidates = new ArrayList<>();
+		for (BaseMethodBinding<?> binding : bindings) {
+			String name = getOperationName(binding);
+			if (name != null) {
+				if (name.equals(operation) || !name.startsWith("$") || name.contains("*")) {
+					candidates.add(binding);
+				}
+				continue;
+			}
+			Set<RequestTypeEnum> verbs = getVerbs(binding);
+			if (null == verbs || verbs.contains(verb)) {
+				candidates.add(binding);
+			}
+		}
+		return Collections.unmodifiableList(candidates);
+	}
+
+	private static String getOperationName (BaseMethodBinding<?> binding) {
+		return (binding instanceof OperationMethodBinding) ? ((OperationMethodBinding)binding).getName() : null;
+	}
+
+	/*
+	 * @return the verbs a binding can match or null if it isn't limited to some verbs
+	 */
+	private static Set<RequestTypeEnum> getVerbs (BaseMethodBinding<?> binding) {
+		if (null == binding.getRestOperationType()) {
+			return null;
+		}
+		switch (binding.getRestOperationType()) {
+			case READ:
+			case VREAD:
+				return EnumSet.of(RequestTypeEnum.GET, RequestTypeEnum.HEAD);
+			case CREATE:
+				return EnumSet.of(RequestTypeEnum.POST);
+			case UPDATE:
+				return EnumSet.of(RequestTypeEnum.PUT);
+			case DELETE:
+				return EnumSet.of(RequestTypeEnum.DELETE);
+			case PATCH:
+				return EnumSet.of(RequestTypeEnum.PATCH);
+			default:
+				return null;
+		}
+	}
+
+	/*
+	 * Bind the public methods of the provider the same way the
+	 * RestfulServer does, skipping overridden superclass methods
+	 */
+	private static List<BaseMethodBinding<?>> bindProvider (FhirContext ctx, Object provider) throws ConfigurationException {
+		List<BaseMethodBinding<?>> bindings = new ArrayList<>();
+		Set<String> seen = new HashSet<>();
+		for (Class<?> clazz = provider.getClass(); clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+			for (Method method : clazz.getDeclaredMethods()) {
+				int modifiers = method.getModifiers();
+				if (!Modifier.isPublic(modifiers) || Modifier.isStatic(modifiers) || method.isBridge() || method.isSynthetic()) {
+					continue;
+				}
+				if (!seen.add(method.getName()+Arrays.toString(method.getParameterTypes()))) {
+					continue;
+				}
+				BaseMethodBinding<?> binding = BaseMethodBinding.bindMethod(method, ctx, provider);
+				if (binding != null) {
+					bindings.add(binding);
+				}
+			}
+		}
+		return Collections.unmodifiableList(bindings);
+	}
+
+}
@@ -0,0 +1,124 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.util.Map;
+
+import ca.uhn.fhir.context.ConfigurationException;
+
+/**
+ * The deadline and circuit breaker settings of the providers in
+ * a provider collection, read from the service-properties of the
+ * {@code IOsgiProviderCollection} service.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class ProviderPolicy {
+	private static final int DEFAULT_BREAKER_FAILURES = 5;
+	private static final long DEFAULT_BREAKER_OPEN_MILLIS = 30000;
+
+	private final long deadlineMillis;
+	private final boolean interruptOnDeadline;
+	private final int breakerFailures;
+	private final long breakerLatencyMillis;
+	private final long breakerOpenMillis;
+
+	public ProviderPolicy (long deadlineMillis, boolean interruptOnDeadline, int breakerFailures, long breakerLatencyMillis, long breakerOpenMillis) {
+		this.deadlineMillis = deadlineMillis;
+		this.interruptOnDeadline = interruptOnDeadline;
+		this.breakerFailures = breakerFailures;
+		this.breakerLatencyMillis = breakerLatencyMillis;
+		this.breakerOpenMillis = breakerOpenMillis;
+	}
+
+	/**
+	 * Read the policy from the service-properties of a provider collection
+	 *
+	 * @param props the service-properties
+	 * @return the policy or null if none of the properties are set
+	 * @throws ConfigurationException if a property is not a valid number
+	 */
+	public static ProviderPolicy fromProperties (Map<String,Object> props) throws ConfigurationException {
+		if (null == props) {
+			return null;
+		}
+		long deadline = getLong(props, IOsgiProviderCollection.SVCPROP_DEADLINE_MILLIS, 0);
+		Object interrupt = props.get(IOsgiProviderCollection.SVCPROP_DEADLINE_INTERRUPT);
+		long latency = getLong(props, IOsgiProviderCollection.SVCPROP_BREAKER_LATENCY_MILLIS, 0);
+		long failures = getLong(props, IOsgiProviderCollection.SVCPROP_BREAKER_FAILURES, (latency > 0) ? DEFAULT_BREAKER_FAILURES : 0);
+		long open = getLong(props, IOsgiProviderCollection.SVCPROP_BREAKER_OPEN_MILLIS, DEFAULT_BREAKER_OPEN_MILLIS);
+		if (deadline <= 0 && failures <= 0) {
+			return null;
+		}
+		// interrupting the request thread can close the NIO channels it uses, so it is only done when asked for
+		boolean interruptOnDeadline = (interrupt != null) && Boolean.parseBoolean(interrupt.toString().trim());
+		return new ProviderPolicy(deadline, interruptOnDeadline, (int)failures, latency, open);
+	}
+
+	private static long getLong (Map<String,Object> props, String key, long defaultValue) throws ConfigurationException {
+		Object value = props.get(key);
+		if (null == value) {
+			return defaultValue;
+		}
+		if (value instanceof Number) {
+			return ((Number)value).longValue();
+		}
+		try {
+			return Long.parseLong(value.toString().trim());
+		} catch (NumberFormatException e) {
+			throw new ConfigurationException("Invalid value ["+value+"] for the ["+key+"] service-property");
+		}
+	}
+
+	/**
+	 * @return a new circuit breaker or null if the policy doesn't use one
+	 */
+	public CircuitBreaker newCircuitBreaker () {
+		return (breakerFailures > 0) ? new CircuitBreaker(breakerFailures, breakerLatencyMillis, breakerOpenMillis) : null;
+	}
+
+	public long getDeadlineMillis () {
+		return deadlineMillis;
+	}
+
+	public boolean isInterruptOnDeadline () {
+		return interruptOnDeadline;
+	}
+
+	public int getBreakerFailures () {
+		return breakerFailures;
+	}
+
+	public long getBreakerLatencyMillis () {
+		return breakerLatencyMillis;
+	}
+
+	public long getBreakerOpenMillis () {
+		return breakerOpenMillis;
+	}
+
+	@Override
+	public String toString () {
+		return "deadline ["+deadlineMillis+"ms"+(interruptOnDeadline ? ", interrupt" : "")+"] breaker failures ["+breakerFailures
+				+"] latency ["+breakerLatencyMillis+"ms] open ["+breakerOpenMillis+"ms]";
+	}
+
+}
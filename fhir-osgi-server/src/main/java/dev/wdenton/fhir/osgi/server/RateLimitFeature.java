@@ -0,0 +1,192 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Startup Benchmark
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.util.Map;
+
+import ca.uhn.fhir.context.ConfigurationException;
+import dev.wdenton.fhir.osgi.server.diagnostics.ServerFootprint;
+
+/**
+ * Limits the requests each client may make to the server and to each
+ * type of operation. The limits are read from the
+ * <b><i>fhir.server.rate.*</i></b> service-properties of the server,
+ * which replace the properties of the feature when any limit is set
+ * there; the server registers this feature itself when they are. The
+ * limits can be changed at any time; the buckets of the clients are then
+ * started again.
+ * @see RateLimitInterceptor
+ * @see RatePolicy
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class RateLimitFeature implements IOsgiServerFeature {
+	private double rate = 0;
+	private double burst = 0;
+	private String operationRates;
+	private String clientHeader;
+	private String trustedProxies;
+	private int maxClients = RatePolicy.DEFAULT_MAX_CLIENTS;
+	private RatePolicy servicePolicy;
+
+	private RateLimitInterceptor interceptor;
+
+	@Override
+	public synchronized void install (SimpleOsgiRestfulServer server) throws ConfigurationException {
+		interceptor = new RateLimitInterceptor(getPolicy());
+		server.registerInterceptor(interceptor);
+	}
+
+	@Override
+	public synchronized void uninstall (SimpleOsgiRestfulServer server) {
+		if (interceptor != null) {
+			server.unregisterInterceptor(interceptor);
+			interceptor = null;
+		}
+	}
+
+	/**
+	 * Read the limits from the service-properties of the server
+	 * 
+	 * @see RatePolicy#fromProperties(Map)
+	 */
+	@Override
+	public synchronized void applyServiceProperties (Map<String,Object> props) throws ConfigurationException {
+		servicePolicy = RatePolicy.fromProperties(props);
+		newRateLimits();
+	}
+
+	/**
+	 * @return the limits applied, from the service-properties or the
+	 * properties of the feature, or null if there are none
+	 * @throws ConfigurationException if a property is invalid
+	 */
+	public synchronized RatePolicy getPolicy () throws ConfigurationException {
+		if (servicePolicy != null) {
+			return servicePolicy;
+		}
+		return RatePolicy.of(rate, burst, RatePolicy.parseOperationRates(operationRates), clientHeader,
+				RatePolicy.parseAddresses(trustedProxies), maxClients);
+	}
+
+	public double getRate () {
+		return rate;
+	}
+
+	/**
+	 * @param rate the requests a second each client may make to the server (0 = no limit)
+	 */
+	public synchronized void setRate (double rate) throws ConfigurationException {
+		this.rate = rate;
+		newRateLimits();
+	}
+
+	public double getBurst () {
+		return burst;
+	}
+
+	/**
+	 * @param burst the requests a client may make at once (0 = the rate limit)
+	 */
+	public synchronized void setBurst (double burst) throws ConfigurationException {
+		this.burst = burst;
+		newRateLimits();
+	}
+
+	public String getOperationRates () {
+		return operationRates;
+	}
+
+	/**
+	 * @param operationRates the requests a second each client may make by
+	 * type of operation as comma separated code=rate pairs ("search-type=10,create=5")
+	 */
+	public synchronized void setOperationRates (String operationRates) throws ConfigurationException {
+		this.operationRates = operationRates;
+		newRateLimits();
+	}
+
+	public String getClientHeader () {
+		return clientHeader;
+	}
+
+	/**
+	 * The header is only used for the requests from one of the
+	 * trustedProxies, which must set or strip it; a client could
+	 * otherwise pick a new identity for every request.
+	 * 
+	 * @param clientHeader the request header identifying a client
+	 * that isn't authenticated (null = its address)
+	 */
+	public synchronized void setClientHeader (String clientHeader) throws ConfigurationException {
+		this.clientHeader = clientHeader;
+		newRateLimits();
+	}
+
+	public String getTrustedProxies () {
+		return trustedProxies;
+	}
+
+	/**
+	 * @param trustedProxies the comma separated addresses of the
+	 * proxies whose clientHeader is trusted
+	 */
+	public synchronized void setTrustedProxies (String trustedProxies) throws ConfigurationException {
+		this.trustedProxies = trustedProxies;
+		newRateLimits();
+	}
+
+	public int getMaxClients () {
+		return maxClients;
+	}
+
+	/**
+	 * @param maxClients the most clients tracked by each limit; the least
+	 * recently seen client is forgotten when there are more
+	 */
+	public synchronized void setMaxClients (int maxClients) throws ConfigurationException {
+		this.maxClients = maxClients;
+		newRateLimits();
+	}
+
+	/*
+	 * Check the limits, and apply them once the feature is installed
+	 */
+	private void newRateLimits () throws ConfigurationException {
+		RatePolicy policy = getPolicy();
+		if (interceptor != null) {
+			interceptor.setPolicy(policy);
+		}
+	}
+
+	@Override
+	public void describeFootprint (ServerFootprint footprint) {
+		RateLimitInterceptor rateLimits;
+		synchronized (this) {
+			rateLimits = interceptor;
+		}
+		if (rateLimits != null) {
+			footprint.addStatistic("rateLimit.clients", rateLimits.getClients());
+			footprint.addStatistic("rateLimit.throttled", rateLimits.getThrottled());
+		}
+	}
+
+}
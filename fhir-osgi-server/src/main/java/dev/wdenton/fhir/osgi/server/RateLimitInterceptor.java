@@ -0,0 +1,180 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.security.Principal;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+
+/**
+ * Limits the requests each client may make to the server and to each
+ * type of operation. A client is identified by its authenticated
+ * principal, else by the configured client header when the request
+ * comes from a trusted proxy, else by its address. Throttled requests
+ * are answered with 429 Too Many Requests, an OperationOutcome and a
+ * Retry-After header before the provider is called; allowed requests
+ * get the RateLimit-Limit, RateLimit-Remaining and RateLimit-Reset
+ * headers of the tightest limit.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+@Interceptor
+public class RateLimitInterceptor {
+	private static Logger log = LoggerFactory.getLogger(RateLimitInterceptor.class);
+	public static final int SC_TOO_MANY_REQUESTS = 429;
+
+	private static final int MAX_CLIENT_LENGTH = 256;
+
+	private volatile Limits limits;
+	private final LongAdder throttled = new LongAdder();
+
+	public RateLimitInterceptor (RatePolicy policy) {
+		setPolicy(policy);
+	}
+
+	/**
+	 * Replace the limits. The buckets of the clients are started again.
+	 *
+	 * @param policy the new limits or null for none
+	 */
+	public void setPolicy (RatePolicy policy) {
+		limits = (policy != null) ? new Limits(policy) : null;
+		log.trace("Rate limits set to ["+policy+"]");
+	}
+
+	/*
+	 * Run before the other interceptors so a throttled request costs
+	 * as little as possible
+	 */
+	@Hook(value = Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED, order = Integer.MIN_VALUE)
+	public boolean incomingRequestPostProcessed (RequestDetails requestDetails, HttpServletRequest request, HttpServletResponse response) {
+		Limits current = limits;
+		if (null == current) {
+			return true;
+		}
+		String client = getClient(request, current.clientHeader, current.trustedProxies);
+		RateLimiter.Decision decision = null;
+		if (current.server != null) {
+			decision = current.server.acquire(client);
+		}
+		RestOperationTypeEnum operation = requestDetails.getRestOperationType();
+		RateLimiter limiter = (operation != null) ? current.operations.get(operation.getCode()) : null;
+		RateLimiter reported = current.server;
+		if (limiter != null && (null == decision || decision.isAllowed())) {
+			RateLimiter.Decision operationDecision = limiter.acquire(client);
+			if (null == decision || !operationDecision.isAllowed() || operationDecision.getRemaining() < decision.getRemaining()) {
+				decision = operationDecision;
+				reported = limiter;
+			}
+		}
+		if (null == decision) {
+			return true;
+		}
+		response.setHeader("RateLimit-Limit", Long.toString((long)reported.getBurst()));
+		response.setHeader("RateLimit-Remaining", Integer.toString(decision.getRemaining()));
+		response.setHeader("RateLimit-Reset", Long.toString(decision.getResetSeconds()));
+		if (decision.isAllowed()) {
+			return true;
+		}
+		throttled.increment();
+		log.trace("Throttled ["+client+"] for ["+decision.getRetryAfterSeconds()+"] seconds");
+		throw new UnclassifiedServerFailureException(SC_TOO_MANY_REQUESTS, "Too many requests")
+				.addResponseHeader("Retry-After", Long.toString(decision.getRetryAfterSeconds()));
+	}
+
+	/**
+	 * @return the number of requests answered with 429
+	 */
+	public long getThrottled () {
+		return throttled.sum();
+	}
+
+	/**
+	 * @return the number of clients with a bucket in the server limit and each operation limit
+	 */
+	public int getClients () {
+		Limits current = limits;
+		if (null == current) {
+			return 0;
+		}
+		int count = (current.server != null) ? current.server.getClients() : 0;
+		for (RateLimiter limiter : current.operations.values()) {
+			count += limiter.getClients();
+		}
+		return count;
+	}
+
+	private static String getClient (HttpServletRequest request, String clientHeader, Set<String> trustedProxies) {
+		Principal principal = request.getUserPrincipal();
+		String client = null;
+		if (principal != null && principal.getName() != null) {
+			client = "user:"+principal.getName();
+		} else if (clientHeader != null && trustedProxies.contains(request.getRemoteAddr())) {
+			String value = request.getHeader(clientHeader);
+			if (value != null && !value.isEmpty()) {
+				client = "client:"+value;
+			}
+		}
+		if (null == client) {
+			client = "addr:"+request.getRemoteAddr();
+		}
+		return (client.length() > MAX_CLIENT_LENGTH) ? client.substring(0, MAX_CLIENT_LENGTH) : client;
+	}
+
+	/*
+	 * The limiters of a policy, replaced together
+	 */
+	private static class Limits {
+		private final RateLimiter server;
+		private final Map<String,RateLimiter> operations = new HashMap<>();
+		private final String clientHeader;
+		private final Set<String> trustedProxies;
+
+		private Limits (RatePolicy policy) {
+			server = (policy.getRate() > 0) ? new RateLimiter(policy.getRate(), policy.getBurst(), policy.getMaxClients()) : null;
+			for (Map.Entry<String,Double> entry : policy.getOperationRates().entrySet()) {
+				double rate = entry.getValue();
+				operations.put(entry.getKey(), new RateLimiter(rate, Math.max(1, rate), policy.getMaxClients()));
+			}
+			clientHeader = policy.getClientHeader();
+			trustedProxies = policy.getTrustedProxies();
+			if (clientHeader != null && trustedProxies.isEmpty()) {
+				log.warn("The rate limit client header ["+clientHeader+"] is ignored. No trusted proxy address is set");
+			}
+		}
+	}
+
+}
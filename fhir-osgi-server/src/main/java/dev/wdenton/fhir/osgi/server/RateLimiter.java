@@ -0,0 +1,202 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Token buckets keyed by client. Each client may make burst requests
+ * at once and then ratePerSecond requests a second.
+ * <p>
+ * The buckets are spread over stripes, each with its own lock, so
+ * requests from different clients rarely wait for each other. Each
+ * stripe keeps its buckets in least recently used order: a bucket
+ * that has been idle long enough to refill is the same as a new one,
+ * so it is dropped, and the least recently used bucket is dropped when
+ * a stripe is full.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class RateLimiter {
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	private final double ratePerSecond;
+	private final double burst;
+	private final double tokensPerNano;
+	private final long refillNanos;
+	private final Stripe[] stripes;
+
+	/**
+	 * @param ratePerSecond the requests a second allowed once the burst is used
+	 * @param burst the requests allowed at once (at least 1)
+	 * @param maxClients the most buckets kept
+	 */
+	public RateLimiter (double ratePerSecond, double burst, int maxClients) {
+		this.ratePerSecond = ratePerSecond;
+		this.burst = Math.max(1, burst);
+		this.tokensPerNano = ratePerSecond / NANOS_PER_SECOND;
+		this.refillNanos = (long)Math.ceil(this.burst / tokensPerNano);
+		int count = Integer.highestOneBit(Math.max(16, Runtime.getRuntime().availableProcessors() * 4) - 1) << 1;
+		int stripeSize = Math.max(16, maxClients / count);
+		stripes = new Stripe[count];
+		for (int i = 0; i < count; i++) {
+			stripes[i] = new Stripe(stripeSize);
+		}
+	}
+
+	/**
+	 * Take a token from the client's bucket
+	 *
+	 * @param client the identity of the client
+	 * @return whether the request is allowed and the state of the bucket
+	 */
+	public Decision acquire (String client) {
+		long now = System.nanoTime();
+		int hash = client.hashCode();
+		Stripe stripe = stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+		synchronized (stripe) {
+			Bucket bucket = stripe.get(client);
+			if (null == bucket) {
+				stripe.evictIdle(now, refillNanos);
+				bucket = new Bucket(burst, now);
+				stripe.put(client, bucket);
+			} else {
+				bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.updated) * tokensPerNano);
+				bucket.updated = now;
+			}
+			boolean allowed = bucket.tokens >= 1;
+			if (allowed) {
+				bucket.tokens -= 1;
+			}
+			long resetNanos = (long)((burst - bucket.tokens) / tokensPerNano);
+			long retryNanos = allowed ? 0 : (long)((1 - bucket.tokens) / tokensPerNano);
+			return new Decision(allowed, (int)bucket.tokens, toSeconds(resetNanos), toSeconds(retryNanos));
+		}
+	}
+
+	/**
+	 * @return the number of clients with a bucket
+	 */
+	public int getClients () {
+		int count = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				count += stripe.size();
+			}
+		}
+		return count;
+	}
+
+	public double getRatePerSecond () {
+		return ratePerSecond;
+	}
+
+	public double getBurst () {
+		return burst;
+	}
+
+	private static long toSeconds (long nanos) {
+		return (nanos + NANOS_PER_SECOND - 1) / NANOS_PER_SECOND;
+	}
+
+	/**
+	 * The outcome of taking a token
+	 */
+	public static class Decision {
+		private final boolean allowed;
+		private final int remaining;
+		private final long resetSeconds;
+		private final long retryAfterSeconds;
+
+		Decision (boolean allowed, int remaining, long resetSeconds, long retryAfterSeconds) {
+			this.allowed = allowed;
+			this.remaining = remaining;
+			this.resetSeconds = resetSeconds;
+			this.retryAfterSeconds = retryAfterSeconds;
+		}
+
+		public boolean isAllowed () {
+			return allowed;
+		}
+
+		/**
+		 * @return the requests the client can make now
+		 */
+		public int getRemaining () {
+			return remaining;
+		}
+
+		/**
+		 * @return the seconds until the bucket is full again
+		 */
+		public long getResetSeconds () {
+			return resetSeconds;
+		}
+
+		/**
+		 * @return the seconds until the next request is allowed (0 if this one was)
+		 */
+		public long getRetryAfterSeconds () {
+			return retryAfterSeconds;
+		}
+	}
+
+	private static class Bucket {
+		private double tokens;
+		private long updated;
+
+		private Bucket (double tokens, long updated) {
+			this.tokens = tokens;
+			this.updated = updated;
+		}
+	}
+
+	/*
+	 * The buckets of a stripe in least recently used order, guarded by itself
+	 */
+	private static class Stripe extends LinkedHashMap<String,Bucket> {
+		private static final long serialVersionUID = 1L;
+		private final int maxEntries;
+
+		private Stripe (int maxEntries) {
+			super(16, 0.75f, true);
+			this.maxEntries = maxEntries;
+		}
+
+		/*
+		 * Drop the least recently used buckets that have refilled
+		 */
+		private void evictIdle (long now, long refillNanos) {
+			Iterator<Bucket> eldest = values().iterator();
+			while (eldest.hasNext() && now - eldest.next().updated >= refillNanos) {
+				eldest.remove();
+			}
+		}
+
+		@Override
+		protected boolean removeEldestEntry (Map.Entry<String,Bucket> eldest) {
+			return size() > maxEntries;
+		}
+	}
+
+}
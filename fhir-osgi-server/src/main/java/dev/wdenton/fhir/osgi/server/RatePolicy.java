@@ -0,0 +1,200 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import ca.uhn.fhir.context.ConfigurationException;
+
+/**
+ * The request rate limits of a server: the requests a second each
+ * client may make to the whole server and to each type of operation
+ * (the codes of {@code RestOperationTypeEnum}: read, search-type,
+ * create, transaction...). These are read from the service-properties
+ * of the {@code IOsgiRestfulServer} service or set on a {@code RateLimitFeature}.
+ * <p>
+ * A client that isn't authenticated is identified by its address. The
+ * client header is only used for requests from one of the trusted proxy
+ * addresses, which must set or strip it: a client setting the header
+ * itself could otherwise send a new value with every request, getting
+ * a fresh bucket each time (bypassing the limit) and evicting the
+ * buckets of the other clients.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class RatePolicy {
+	public static final int DEFAULT_MAX_CLIENTS = 100000;
+
+	private final double rate;
+	private final double burst;
+	private final Map<String,Double> operationRates;
+	private final String clientHeader;
+	private final Set<String> trustedProxies;
+	private final int maxClients;
+
+	/**
+	 * @param rate the requests a second per client to the server (0 = no limit)
+	 * @param burst the requests a client may make at once (0 = one second of requests)
+	 * @param operationRates the requests a second per client by operation code
+	 * @param clientHeader the request header identifying the client (null = the principal or address)
+	 * @param trustedProxies the addresses of the proxies setting the client header (empty = the header is never used)
+	 * @param maxClients the most clients tracked by each limit
+	 */
+	public RatePolicy (double rate, double burst, Map<String,Double> operationRates, String clientHeader, Set<String> trustedProxies, int maxClients) {
+		this.rate = rate;
+		this.burst = (burst > 0) ? burst : rate;
+		this.operationRates = Collections.unmodifiableMap(new LinkedHashMap<>(operationRates));
+		this.clientHeader = clientHeader;
+		this.trustedProxies = Collections.unmodifiableSet(new LinkedHashSet<>(trustedProxies));
+		this.maxClients = (maxClients > 0) ? maxClients : DEFAULT_MAX_CLIENTS;
+	}
+
+	/**
+	 * Read the policy from the service-properties of a server. The
+	 * rate of an operation is the {@code fhir.server.rate.limit.<code>}
+	 * property, e.g. {@code fhir.server.rate.limit.search-type}.
+	 *
+	 * @param props the service-properties
+	 * @return the policy or null if no limit is set
+	 * @throws ConfigurationException if a property is not a valid number
+	 */
+	public static RatePolicy fromProperties (Map<String,Object> props) throws ConfigurationException {
+		if (null == props) {
+			return null;
+		}
+		double rate = getDouble(props, IOsgiRestfulServer.SVCPROP_RATE_LIMIT);
+		double burst = getDouble(props, IOsgiRestfulServer.SVCPROP_RATE_BURST);
+		Map<String,Double> operationRates = new LinkedHashMap<>();
+		String prefix = IOsgiRestfulServer.SVCPROP_RATE_LIMIT+".";
+		for (String key : props.keySet()) {
+			if (key.startsWith(prefix) && key.length() > prefix.length()) {
+				operationRates.put(key.substring(prefix.length()), getDouble(props, key));
+			}
+		}
+		Object header = props.get(IOsgiRestfulServer.SVCPROP_RATE_CLIENT_HEADER);
+		Object proxies = props.get(IOsgiRestfulServer.SVCPROP_RATE_TRUSTED_PROXIES);
+		int maxClients = (int)getDouble(props, IOsgiRestfulServer.SVCPROP_RATE_MAX_CLIENTS);
+		return of(rate, burst, operationRates, (header != null) ? header.toString() : null,
+				parseAddresses((proxies != null) ? proxies.toString() : null), maxClients);
+	}
+
+	/**
+	 * @return the policy or null if no limit is set
+	 */
+	public static RatePolicy of (double rate, double burst, Map<String,Double> operationRates, String clientHeader, Set<String> trustedProxies, int maxClients) {
+		operationRates.values().removeIf(operationRate -> operationRate <= 0);
+		if (rate <= 0 && operationRates.isEmpty()) {
+			return null;
+		}
+		return new RatePolicy(Math.max(0, rate), burst, operationRates, clientHeader, trustedProxies, maxClients);
+	}
+
+	/**
+	 * @param addresses comma separated addresses
+	 * @return the addresses
+	 */
+	public static Set<String> parseAddresses (String addresses) {
+		Set<String> parsed = new LinkedHashSet<>();
+		if (addresses != null) {
+			for (String address : addresses.split(",")) {
+				if (!address.trim().isEmpty()) {
+					parsed.add(address.trim());
+				}
+			}
+		}
+		return parsed;
+	}
+
+	/**
+	 * @param operationRates comma separated {@code code=rate} pairs ("search-type=10,create=5")
+	 * @return the rate of each operation
+	 * @throws ConfigurationException if a rate is not a valid number
+	 */
+	public static Map<String,Double> parseOperationRates (String operationRates) throws ConfigurationException {
+		Map<String,Double> rates = new LinkedHashMap<>();
+		if (operationRates != null) {
+			for (String pair : operationRates.split(",")) {
+				if (pair.trim().isEmpty()) {
+					continue;
+				}
+				int equals = pair.indexOf('=');
+				if (equals <= 0) {
+					throw new ConfigurationException("Invalid operation rate ["+pair.trim()+"]. Expected code=rate");
+				}
+				try {
+					rates.put(pair.substring(0, equals).trim(), Double.parseDouble(pair.substring(equals + 1).trim()));
+				} catch (NumberFormatException e) {
+					throw new ConfigurationException("Invalid operation rate ["+pair.trim()+"]. Expected code=rate");
+				}
+			}
+		}
+		return rates;
+	}
+
+	private static double getDouble (Map<String,Object> props, String key) throws ConfigurationException {
+		Object value = props.get(key);
+		if (null == value) {
+			return 0;
+		}
+		if (value instanceof Number) {
+			return ((Number)value).doubleValue();
+		}
+		try {
+			return Double.parseDouble(value.toString().trim());
+		} catch (NumberFormatException e) {
+			throw new ConfigurationException("Invalid value ["+value+"] for the ["+key+"] service-property");
+		}
+	}
+
+	public double getRate () {
+		return rate;
+	}
+
+	public double getBurst () {
+		return burst;
+	}
+
+	public Map<String,Double> getOperationRates () {
+		return operationRates;
+	}
+
+	public String getClientHeader () {
+		return clientHeader;
+	}
+
+	public Set<String> getTrustedProxies () {
+		return trustedProxies;
+	}
+
+	public int getMaxClients () {
+		return maxClients;
+	}
+
+	@Override
+	public String toString () {
+		return "rate ["+rate+"/s] burst ["+burst+"] operations "+operationRates+" client header ["+clientHeader+"] from "+trustedProxies;
+	}
+
+}
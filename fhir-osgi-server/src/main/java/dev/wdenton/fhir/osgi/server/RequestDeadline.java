@@ -0,0 +1,118 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import javax.servlet.http.HttpServletResponse;
+
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+
+/**
+ * The deadline of a request dispatched to a provider that has one.
+ * It is kept in the user data of the {@code RequestDetails} so that
+ * provider code can check it and cancel its downstream work:
+ * <code><pre>
+ * RequestDeadline deadline = RequestDeadline.of(requestDetails);
+ * if (deadline != null) {
+ *     query.setTimeout(deadline.getRemainingMillis());
+ * }
+ * </pre></code>
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class RequestDeadline {
+	public static final String USERDATA_KEY = RequestDeadline.class.getName();
+
+	private final long startMillis;
+	private final long deadlineMillis;
+
+	// stops the interrupt of the request thread at the deadline (null = it isn't interrupted)
+	private volatile Runnable disarm;
+
+	public RequestDeadline (long startMillis, long timeoutMillis) {
+		this.startMillis = startMillis;
+		this.deadlineMillis = startMillis + timeoutMillis;
+	}
+
+	/**
+	 * @param requestDetails the request
+	 * @return the deadline of the request or null if it has none
+	 */
+	public static RequestDeadline of (RequestDetails requestDetails) {
+		Object deadline = (requestDetails != null) ? requestDetails.getUserData().get(USERDATA_KEY) : null;
+		return (deadline instanceof RequestDeadline) ? (RequestDeadline)deadline : null;
+	}
+
+	/**
+	 * @return the absolute time (millis) of the deadline
+	 */
+	public long getDeadlineMillis () {
+		return deadlineMillis;
+	}
+
+	/**
+	 * @return the time (millis) left before the deadline, zero once it has passed
+	 */
+	public long getRemainingMillis () {
+		return Math.max(0, deadlineMillis - System.currentTimeMillis());
+	}
+
+	public boolean isExpired () {
+		return System.currentTimeMillis() >= deadlineMillis;
+	}
+
+	/**
+	 * Fail the request if the deadline has passed
+	 *
+	 * @throws BaseServerResponseException a 504 response once the deadline has passed
+	 */
+	public void check () throws BaseServerResponseException {
+		if (isExpired()) {
+			throw newTimeoutException();
+		}
+	}
+
+	void setDisarm (Runnable disarm) {
+		this.disarm = disarm;
+	}
+
+	/*
+	 * The provider has returned: the thread mustn't be interrupted
+	 * while the response is written
+	 */
+	void disarm () {
+		Runnable action = disarm;
+		if (action != null) {
+			disarm = null;
+			action.run();
+		}
+	}
+
+	/**
+	 * @return the exception reported to the client when the deadline has passed
+	 */
+	public BaseServerResponseException newTimeoutException () {
+		return new UnclassifiedServerFailureException(HttpServletResponse.SC_GATEWAY_TIMEOUT,
+				"Request deadline of ["+(deadlineMillis - startMillis)+"ms] exceeded");
+	}
+
+}
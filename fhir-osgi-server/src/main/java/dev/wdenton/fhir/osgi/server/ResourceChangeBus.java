@@ -0,0 +1,355 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+
+/**
+ * A bounded ring of {@code ResourceChangeEvent}s read by any number of
+ * listeners, in the style of a disruptor. A write claims the next
+ * sequence with one atomic increment and stores its event in the slot
+ * of that sequence; it never locks and never touches the listeners, so
+ * its cost doesn't depend on how many are attached. Each listener has
+ * its own thread and its own sequence, reads the events in order as
+ * they are published and backs off (up to 10ms) when it has caught up.
+ * <p>
+ * A listener more than capacity events behind finds its next slot
+ * overwritten. With {@code Backpressure.DROP} (the default) it skips to
+ * the oldest event still in the ring and is told how many it lost.
+ * With {@code Backpressure.BLOCK} a write that would overwrite an event
+ * the listener hasn't read waits for it, for at most blockMillis. Only
+ * the blocking listeners are checked, and only when the ring wraps onto
+ * the slowest one seen by the last check.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class ResourceChangeBus {
+	private static Logger log = LoggerFactory.getLogger(ResourceChangeBus.class);
+	public static final int DEFAULT_CAPACITY = 1024;
+	public static final long DEFAULT_BLOCK_MILLIS = 100;
+	private static final long MIN_IDLE_NANOS = 50 * 1000L;
+	private static final long MAX_IDLE_NANOS = 10 * 1000 * 1000L;
+
+	public enum Backpressure {
+		DROP, BLOCK;
+
+		/**
+		 * @param value drop or block (case is ignored)
+		 * @return the backpressure or null if the value isn't one
+		 */
+		public static Backpressure of (String value) {
+			for (Backpressure backpressure : values()) {
+				if (backpressure.name().equalsIgnoreCase(value.trim())) {
+					return backpressure;
+				}
+			}
+			return null;
+		}
+	}
+
+	private final String name;
+	private final int mask;
+	private final AtomicReferenceArray<ResourceChangeEvent> ring;
+
+	// the last claimed sequence
+	private final AtomicLong cursor = new AtomicLong(-1);
+
+	// the lowest next sequence of the blocking listeners at the last check
+	private final AtomicLong gatingSequence = new AtomicLong(Long.MAX_VALUE);
+
+	private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+	private final LongAdder blockedWrites = new LongAdder();
+	private volatile boolean closed = false;
+
+	/**
+	 * @param name the name of the server (used to name the listener threads)
+	 * @param capacity the number of events kept (rounded up to a power of 2)
+	 */
+	public ResourceChangeBus (String name, int capacity) {
+		this.name = name;
+		int size = Integer.highestOneBit(Math.max(2, Math.min(capacity, 1 << 30)) - 1) << 1;
+		this.mask = size - 1;
+		this.ring = new AtomicReferenceArray<>(size);
+	}
+
+	/**
+	 * Publish a completed write
+	 *
+	 * @return the sequence of the event
+	 */
+	public long publish (RestOperationTypeEnum operation, String tenantId, String resourceType, String idPart, String versionId) {
+		long sequence = cursor.incrementAndGet();
+		long wrapPoint = sequence - ring.length();
+		if (wrapPoint >= gatingSequence.get()) {
+			awaitBlockingListeners(wrapPoint);
+		}
+		ResourceChangeEvent event = new ResourceChangeEvent(sequence, operation, tenantId, resourceType, idPart, versionId, System.currentTimeMillis());
+		int index = (int)(sequence & mask);
+		ResourceChangeEvent current;
+		do {
+			current = ring.get(index);
+			if (current != null && current.getSequence() > sequence) {
+				// a later write wrapped onto the slot while this one was stalled
+				return sequence;
+			}
+		} while (!ring.compareAndSet(index, current, event));
+		return sequence;
+	}
+
+	/*
+	 * The slot of the sequence still holds the event at wrapPoint; wait
+	 * until every blocking listener has read it or its time is up
+	 */
+	private void awaitBlockingListeners (long wrapPoint) {
+		long deadline = 0;
+		long idle = MIN_IDLE_NANOS;
+		while (true) {
+			long gate = Long.MAX_VALUE;
+			long blockNanos = 0;
+			for (Subscription subscription : subscriptions) {
+				if (Backpressure.BLOCK == subscription.backpressure && subscription.next.get() <= wrapPoint) {
+					gate = Math.min(gate, subscription.next.get());
+					blockNanos = Math.max(blockNanos, subscription.blockNanos);
+				}
+			}
+			if (Long.MAX_VALUE == gate || closed) {
+				gatingSequence.set(lowestBlockingSequence());
+				return;
+			}
+			long now = System.nanoTime();
+			if (0 == deadline) {
+				blockedWrites.increment();
+				deadline = now + blockNanos;
+			} else
+			if (now - deadline >= 0) {
+				log.trace("change listener of FHIR Server ["+name+"] is ["+(wrapPoint + ring.length() - gate)+"] events behind. Overwriting its events");
+				gatingSequence.set(lowestBlockingSequence());
+				return;
+			}
+			LockSupport.parkNanos(idle);
+			idle = Math.min(MAX_IDLE_NANOS, idle * 2);
+		}
+	}
+
+	private long lowestBlockingSequence () {
+		long gate = Long.MAX_VALUE;
+		for (Subscription subscription : subscriptions) {
+			if (Backpressure.BLOCK == subscription.backpressure) {
+				gate = Math.min(gate, subscription.next.get());
+			}
+		}
+		return gate;
+	}
+
+	/**
+	 * Start calling a listener with the events published from now on
+	 *
+	 * @param listener the listener
+	 * @param backpressure what happens when the listener falls behind
+	 * @param blockMillis how long a write waits for a blocking listener
+	 */
+	public void subscribe (IOsgiChangeListener listener, Backpressure backpressure, long blockMillis) {
+		if (closed) {
+			throw new IllegalStateException("the change event bus of FHIR Server ["+name+"] is closed");
+		}
+		Subscription subscription = new Subscription(listener, backpressure, blockMillis);
+		subscriptions.add(subscription);
+		if (Backpressure.BLOCK == backpressure) {
+			gatingSequence.accumulateAndGet(subscription.next.get(), Math::min);
+		}
+		subscription.thread.start();
+	}
+
+	/**
+	 * Stop calling a listener. Its thread stops after the event it is
+	 * handling.
+	 *
+	 * @param listener the listener
+	 * @return true if the listener was subscribed
+	 */
+	public boolean unsubscribe (IOsgiChangeListener listener) {
+		for (Subscription subscription : subscriptions) {
+			if (subscription.listener == listener) {
+				subscriptions.remove(subscription);
+				subscription.stop();
+				gatingSequence.set(lowestBlockingSequence());
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Stop every listener
+	 */
+	public void close () {
+		closed = true;
+		for (Subscription subscription : subscriptions) {
+			subscription.stop();
+		}
+		subscriptions.clear();
+	}
+
+	public String getName () {
+		return name;
+	}
+
+	public int getCapacity () {
+		return ring.length();
+	}
+
+	/**
+	 * @return the number of events published
+	 */
+	public long getPublished () {
+		return cursor.get() + 1;
+	}
+
+	/**
+	 * @return the number of writes that waited for a blocking listener
+	 */
+	public long getBlockedWrites () {
+		return blockedWrites.sum();
+	}
+
+	public int getListeners () {
+		return subscriptions.size();
+	}
+
+	/**
+	 * @return the number of events lost by all the listeners
+	 */
+	public long getLost () {
+		long lost = 0;
+		for (Subscription subscription : subscriptions) {
+			lost += subscription.lost.sum();
+		}
+		return lost;
+	}
+
+	/**
+	 * @return the number of events the slowest listener has still to read
+	 */
+	public long getMaxLag () {
+		long published = getPublished();
+		long lag = 0;
+		for (Subscription subscription : subscriptions) {
+			lag = Math.max(lag, published - subscription.next.get());
+		}
+		return lag;
+	}
+
+	/**
+	 * @return the state of each listener
+	 */
+	public List<String> describeListeners () {
+		List<String> listeners = new ArrayList<>();
+		long published = getPublished();
+		for (Subscription subscription : subscriptions) {
+			listeners.add(subscription.listener.getClass().getName()+" "+subscription.backpressure
+					+" lag ["+(published - subscription.next.get())+"] delivered ["+subscription.delivered.sum()+"] lost ["+subscription.lost.sum()+"]");
+		}
+		return listeners;
+	}
+
+	@Override
+	public String toString () {
+		return "capacity ["+getCapacity()+"] published ["+getPublished()+"] listeners ["+getListeners()+"] lost ["+getLost()+"] blocked writes ["+getBlockedWrites()+"]";
+	}
+
+	/*
+	 * A listener with its own sequence and thread
+	 */
+	private class Subscription implements Runnable {
+		private final IOsgiChangeListener listener;
+		private final Backpressure backpressure;
+		private final long blockNanos;
+		private final Thread thread;
+
+		// the sequence of the next event to read
+		private final AtomicLong next = new AtomicLong(cursor.get() + 1);
+		private final LongAdder delivered = new LongAdder();
+		private final LongAdder lost = new LongAdder();
+		private volatile boolean running = true;
+
+		Subscription (IOsgiChangeListener listener, Backpressure backpressure, long blockMillis) {
+			this.listener = listener;
+			this.backpressure = (null == backpressure) ? Backpressure.DROP : backpressure;
+			this.blockNanos = Math.max(0, blockMillis) * 1000000L;
+			this.thread = new Thread(this, "fhir-change-events-"+name);
+			this.thread.setDaemon(true);
+		}
+
+		void stop () {
+			running = false;
+			LockSupport.unpark(thread);
+		}
+
+		@Override
+		public void run () {
+			long idle = MIN_IDLE_NANOS;
+			while (running) {
+				long sequence = next.get();
+				ResourceChangeEvent event = ring.get((int)(sequence & mask));
+				if (event != null && event.getSequence() == sequence) {
+					deliver(event);
+					next.lazySet(sequence + 1);
+					idle = MIN_IDLE_NANOS;
+				} else
+				if (event != null && event.getSequence() > sequence) {
+					// overwritten: skip to the oldest event that is still in the ring
+					long oldest = Math.max(sequence + 1, cursor.get() - ring.length() + 1);
+					next.set(oldest);
+					lost.add(oldest - sequence);
+					try {
+						listener.onEventsLost(oldest - sequence);
+					} catch (RuntimeException e) {
+						log.warn("change listener ["+listener.getClass().getName()+"] failed: "+e.getMessage());
+					}
+				} else {
+					LockSupport.parkNanos(idle);
+					idle = Math.min(MAX_IDLE_NANOS, idle * 2);
+				}
+			}
+		}
+
+		private void deliver (ResourceChangeEvent event) {
+			try {
+				listener.onChange(event);
+			} catch (RuntimeException e) {
+				log.warn("change listener ["+listener.getClass().getName()+"] failed on event "+event+": "+e.getMessage());
+			}
+			delivered.increment();
+		}
+	}
+
+}
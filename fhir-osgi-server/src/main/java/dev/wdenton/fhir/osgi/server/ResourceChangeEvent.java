@@ -0,0 +1,106 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+
+/**
+ * A completed write of a resource published on the
+ * {@code ResourceChangeBus} of a server. The resource type and id are
+ * null when the write can't be tied to one resource (a transaction or
+ * a conditional write without a returned id); a listener should then
+ * treat everything of that type (or everything) as changed.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class ResourceChangeEvent {
+	private final long sequence;
+	private final RestOperationTypeEnum operation;
+	private final String tenantId;
+	private final String resourceType;
+	private final String idPart;
+	private final String versionId;
+	private final long timestamp;
+
+	public ResourceChangeEvent (long sequence, RestOperationTypeEnum operation, String tenantId, String resourceType, String idPart, String versionId, long timestamp) {
+		this.sequence = sequence;
+		this.operation = operation;
+		this.tenantId = tenantId;
+		this.resourceType = resourceType;
+		this.idPart = idPart;
+		this.versionId = versionId;
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * @return the position of the event on the bus, starting at 0
+	 */
+	public long getSequence () {
+		return sequence;
+	}
+
+	/**
+	 * @return the write (CREATE, UPDATE, PATCH, DELETE, TRANSACTION...)
+	 */
+	public RestOperationTypeEnum getOperation () {
+		return operation;
+	}
+
+	public String getTenantId () {
+		return tenantId;
+	}
+
+	/**
+	 * @return the type of the written resource or null if it isn't known
+	 */
+	public String getResourceType () {
+		return resourceType;
+	}
+
+	/**
+	 * @return the id of the written resource or null if it isn't known
+	 */
+	public String getIdPart () {
+		return idPart;
+	}
+
+	/**
+	 * @return the new version of the resource or null if it isn't known
+	 */
+	public String getVersionId () {
+		return versionId;
+	}
+
+	/**
+	 * @return when the write completed (in milliseconds since the epoch)
+	 */
+	public long getTimestamp () {
+		return timestamp;
+	}
+
+	@Override
+	public String toString () {
+		return "["+sequence+"] "+operation+" "+((null == resourceType) ? "*" : resourceType)
+				+((null == idPart) ? "" : "/"+idPart)+((null == versionId) ? "" : "/_history/"+versionId)
+				+((null == tenantId) ? "" : " tenant ["+tenantId+"]");
+	}
+
+}
@@ -0,0 +1,160 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/**
+ * Publishes the writes completed by the server on its
+ * {@code ResourceChangeBus}. The id and version of the written
+ * resource come from the returned resource when there is one, else
+ * from the request and the Location and ETag headers of the response.
+ * Failed writes aren't published, nor are writes answered with 202
+ * Accepted: the ChangeEventFeature publishes them once they have been written.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+@Interceptor
+public class ResourceChangeInterceptor {
+	private static final String USERDATA_KEY = ResourceChangeInterceptor.class.getName();
+
+	private final ResourceChangeBus bus;
+
+	public ResourceChangeInterceptor (ResourceChangeBus bus) {
+		this.bus = bus;
+	}
+
+	@Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+	public boolean outgoingResponse (RequestDetails requestDetails, IBaseResource resource) {
+		if (resource != null && isWrite(requestDetails) && requestDetails.getResourceName() != null
+				&& requestDetails.getResourceName().equals(requestDetails.getFhirContext().getResourceType(resource))) {
+			requestDetails.getUserData().put(USERDATA_KEY, resource.getIdElement());
+		}
+		return true;
+	}
+
+	@Hook(Pointcut.SERVER_PROCESSING_COMPLETED_NORMALLY)
+	public void processingCompletedNormally (RequestDetails requestDetails, ServletRequestDetails servletRequestDetails) {
+		if (!isWrite(requestDetails)) {
+			return;
+		}
+		RestOperationTypeEnum operation = requestDetails.getRestOperationType();
+		String resourceName = requestDetails.getResourceName();
+		String idPart = null;
+		String versionId = null;
+		IIdType id = (IIdType)requestDetails.getUserData().get(USERDATA_KEY);
+		if (null == id || !id.hasIdPart()) {
+			id = requestDetails.getId();
+		}
+		if (id != null && id.hasIdPart()) {
+			idPart = id.getIdPart();
+			versionId = id.getVersionIdPart();
+		}
+		HttpServletResponse response = (servletRequestDetails != null) ? servletRequestDetails.getServletResponse() : null;
+		if (response != null && HttpServletResponse.SC_ACCEPTED == response.getStatus()
+				&& (RestOperationTypeEnum.CREATE == operation || RestOperationTypeEnum.UPDATE == operation)) {
+			return;
+		}
+		if (response != null && resourceName != null) {
+			if (null == idPart) {
+				String[] location = parseLocation(response.getHeader("Location"), resourceName);
+				if (location != null) {
+					idPart = location[0];
+					versionId = location[1];
+				}
+			}
+			if (null == versionId && idPart != null) {
+				versionId = parseETag(response.getHeader("ETag"));
+			}
+		}
+		if (RestOperationTypeEnum.DELETE == operation) {
+			versionId = null;
+		}
+		bus.publish(operation, requestDetails.getTenantId(), resourceName, idPart, versionId);
+	}
+
+	private static boolean isWrite (RequestDetails requestDetails) {
+		RestOperationTypeEnum operation = requestDetails.getRestOperationType();
+		if (null == operation) {
+			return false;
+		}
+		switch (operation) {
+			case EXTENDED_OPERATION_SERVER:
+			case EXTENDED_OPERATION_TYPE:
+			case EXTENDED_OPERATION_INSTANCE:
+				return RequestTypeEnum.GET != requestDetails.getRequestType();
+			case CREATE:
+			case UPDATE:
+			case DELETE:
+			case PATCH:
+			case META_ADD:
+			case META_DELETE:
+			case TRANSACTION:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/*
+	 * [base]/Type/id/_history/version -> {id, version}
+	 */
+	private static String[] parseLocation (String location, String resourceName) {
+		if (null == location) {
+			return null;
+		}
+		int query = location.indexOf('?');
+		String[] segments = ((query < 0) ? location : location.substring(0, query)).split("/");
+		for (int i = segments.length - 2; i >= 0; i--) {
+			if (resourceName.equals(segments[i])) {
+				String versionId = (i + 3 < segments.length && "_history".equals(segments[i + 2])) ? segments[i + 3] : null;
+				return new String[] { segments[i + 1], versionId };
+			}
+		}
+		return null;
+	}
+
+	private static String parseETag (String etag) {
+		if (null == etag) {
+			return null;
+		}
+		String tag = etag.trim();
+		if (tag.startsWith("W/")) {
+			tag = tag.substring(2);
+		}
+		if (tag.length() >= 2 && tag.startsWith("\"") && tag.endsWith("\"")) {
+			tag = tag.substring(1, tag.length() - 1);
+		}
+		return tag.isEmpty() ? null : tag;
+	}
+
+}
@@ -0,0 +1,151 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * A bounded pool of the byte buffers and Deflaters used to write
+ * responses. Objects are handed out to one request at a time and
+ * returned when the response is complete. A bounded queue is used
+ * instead of thread-locals so that nothing from this bundle is left
+ * on the container threads when the bundle is updated.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class ResponseBufferPool {
+
+	private final int bufferSize;
+	private final int compressionLevel;
+	private final BlockingQueue<byte[]> buffers;
+	private final BlockingQueue<Deflater> deflaters;
+
+	private final AtomicLong bufferAllocations = new AtomicLong();
+	private final AtomicLong bufferReuses = new AtomicLong();
+	private final AtomicLong deflaterAllocations = new AtomicLong();
+	private final AtomicLong deflaterReuses = new AtomicLong();
+
+	/**
+	 * @param bufferSize the size of each buffer
+	 * @param maxPooled the most buffers (and Deflaters) kept in the pool
+	 * @param compressionLevel the Deflater compression level
+	 */
+	public ResponseBufferPool (int bufferSize, int maxPooled, int compressionLevel) {
+		this.bufferSize = bufferSize;
+		this.compressionLevel = compressionLevel;
+		this.buffers = new ArrayBlockingQueue<>(Math.max(1, maxPooled));
+		this.deflaters = new ArrayBlockingQueue<>(Math.max(1, maxPooled));
+	}
+
+	public byte[] acquireBuffer () {
+		byte[] buffer = buffers.poll();
+		if (null == buffer) {
+			bufferAllocations.incrementAndGet();
+			return new byte[bufferSize];
+		}
+		bufferReuses.incrementAndGet();
+		return buffer;
+	}
+
+	public void releaseBuffer (byte[] buffer) {
+		if (buffer != null && buffer.length == bufferSize) {
+			buffers.offer(buffer);
+		}
+	}
+
+	/**
+	 * @return a Deflater producing raw deflate data (the caller writes the GZIP framing)
+	 */
+	public Deflater acquireDeflater () {
+		Deflater deflater = deflaters.poll();
+		if (null == deflater) {
+			deflaterAllocations.incrementAndGet();
+			return new Deflater(compressionLevel, true);
+		}
+		deflaterReuses.incrementAndGet();
+		return deflater;
+	}
+
+	/**
+	 * @param level the compression level for this response
+	 * @return a Deflater producing raw deflate data at the level
+	 */
+	public Deflater acquireDeflater (int level) {
+		Deflater deflater = acquireDeflater();
+		deflater.setLevel(level);
+		return deflater;
+	}
+
+	public void releaseDeflater (Deflater deflater) {
+		if (deflater != null) {
+			deflater.reset();
+			deflater.setLevel(compressionLevel);
+			if (!deflaters.offer(deflater)) {
+				deflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Release the pooled objects, including the native memory of the Deflaters
+	 */
+	public void clear () {
+		buffers.clear();
+		Deflater deflater;
+		while ((deflater = deflaters.poll()) != null) {
+			deflater.end();
+		}
+	}
+
+	public int getBufferSize () {
+		return bufferSize;
+	}
+
+	public int getCompressionLevel () {
+		return compressionLevel;
+	}
+
+	public long getBufferAllocations () {
+		return bufferAllocations.get();
+	}
+
+	public long getBufferReuses () {
+		return bufferReuses.get();
+	}
+
+	public long getDeflaterAllocations () {
+		return deflaterAllocations.get();
+	}
+
+	public long getDeflaterReuses () {
+		return deflaterReuses.get();
+	}
+
+	@Override
+	public String toString () {
+		return "buffers allocated ["+bufferAllocations+"] reused ["+bufferReuses
+				+"] deflaters allocated ["+deflaterAllocations+"] reused ["+deflaterReuses+"]";
+	}
+
+}
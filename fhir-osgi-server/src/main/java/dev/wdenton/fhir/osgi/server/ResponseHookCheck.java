@@ -0,0 +1,118 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Startup Benchmark
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+
+/**
+ * Whether an interceptor of a server has a STORAGE_PRESHOW_RESOURCES or
+ * SERVER_OUTGOING_RESPONSE hook that may check, redact or replace the
+ * resources of a response, other than the hooks of the exempt classes.
+ * The statically registered interceptors are only scanned again when
+ * they change; the OSGi interceptors are checked through their dispatcher
+ * on each call.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class ResponseHookCheck {
+	private static Logger log = LoggerFactory.getLogger(ResponseHookCheck.class);
+
+	private final SimpleOsgiRestfulServer server;
+	private final Set<Class<?>> exempt;
+
+	// the registered interceptors when their hooks were last scanned
+	private volatile Scan scan;
+
+	/**
+	 * @param server the server whose interceptors are checked
+	 * @param exempt the classes whose hooks are known to show the resources as they are
+	 */
+	public ResponseHookCheck (SimpleOsgiRestfulServer server, Set<Class<?>> exempt) {
+		this.server = server;
+		this.exempt = exempt;
+	}
+
+	/**
+	 * @return true if a registered hook may check or change the resources of a response
+	 */
+	public boolean hasResponseHooks () {
+		OsgiInterceptorDispatcher dispatcher = server.getInterceptorDispatcher();
+		if (dispatcher.hasHooks(Pointcut.STORAGE_PRESHOW_RESOURCES) || dispatcher.hasHooks(Pointcut.SERVER_OUTGOING_RESPONSE)) {
+			return true;
+		}
+		List<Object> interceptors = server.getInterceptorService().getAllRegisteredInterceptors();
+		Scan current = scan;
+		if (null == current || !current.isFor(interceptors)) {
+			current = new Scan(interceptors, exempt);
+			scan = current;
+		}
+		return current.hasResponseHooks;
+	}
+
+	/*
+	 * The registered interceptors, other than the dispatcher of the
+	 * OSGi interceptors, and whether any of them has a response hook
+	 */
+	private static class Scan {
+		final Object[] interceptors;
+		final boolean hasResponseHooks;
+
+		Scan (List<Object> interceptors, Set<Class<?>> exempt) {
+			this.interceptors = interceptors.toArray();
+			boolean found = false;
+			for (Object interceptor : this.interceptors) {
+				if (interceptor instanceof OsgiInterceptorDispatcher) {
+					continue;
+				}
+				for (Method method : OsgiInterceptorDispatcher.getHookMethods(interceptor.getClass())) {
+					Pointcut pointcut = method.getAnnotation(Hook.class).value();
+					if ((Pointcut.STORAGE_PRESHOW_RESOURCES == pointcut || Pointcut.SERVER_OUTGOING_RESPONSE == pointcut)
+							&& !exempt.contains(method.getDeclaringClass())) {
+						log.debug("Interceptor ["+interceptor.getClass().getName()+"] has a hook on the resources of a response");
+						found = true;
+					}
+				}
+			}
+			this.hasResponseHooks = found;
+		}
+
+		boolean isFor (List<Object> registered) {
+			if (registered.size() != interceptors.length) {
+				return false;
+			}
+			for (int i = 0; i < interceptors.length; i++) {
+				if (registered.get(i) != interceptors[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+}
@@ -0,0 +1,211 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Startup Benchmark
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import dev.wdenton.fhir.osgi.server.diagnostics.ServerFootprint;
+
+/**
+ * Writes the responses of a server through pooled buffers and Deflaters
+ * (see {@code PooledResponseWrapper}) instead of allocating them for
+ * each response. Optionally, small and already compressed bodies are
+ * left uncompressed and the level of the others is chosen by their size
+ * and the CPU load ({@code CompressionPolicy}), and the compressed form
+ * of bodies sent again is kept ({@code CompressedVariantCache}).
+ * <p>
+ * The raw content of a Binary streamed by a
+ * {@code BinaryStreamingFeature} is written directly, as it is sent
+ * zero-copy with its own Content-Length and Content-Range. The settings can be changed at any time; the requests
+ * already in progress complete with the old ones.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class ResponsePoolingFeature implements IOsgiServerFeature {
+	/** the order of the feature: it wraps the response after the features that read the whole response */
+	public static final int ORDER = 1000;
+
+	/** the request attribute holding the number of body bytes written (a Long) */
+	public static final String ATTR_BODY_BYTES = ResponsePoolingFeature.class.getName()+".bodyBytes";
+
+	private int responseBufferSize = 16 * 1024;
+	private int responseCompressionLevel = Deflater.DEFAULT_COMPRESSION;
+	private boolean adaptiveCompression = false;
+	private int minCompressionSize = CompressionPolicy.DEFAULT_MIN_SIZE;
+	private long compressedVariantCacheSize = 0;
+
+	private volatile SimpleOsgiRestfulServer server;
+	private volatile ResponseBufferPool responseBufferPool;
+	private volatile CompressionPolicy compressionPolicy;
+	private volatile CompressedVariantCache compressedVariants;
+
+	@Override
+	public void install (SimpleOsgiRestfulServer server) {
+		this.server = server;
+	}
+
+	@Override
+	public synchronized void uninstall (SimpleOsgiRestfulServer server) {
+		this.server = null;
+		if (responseBufferPool != null) {
+			responseBufferPool.clear();
+			responseBufferPool = null;
+		}
+	}
+
+	@Override
+	public int getOrder () {
+		return ORDER;
+	}
+
+	@Override
+	public void service (HttpServletRequest request, HttpServletResponse response, Chain chain) throws ServletException, IOException {
+		SimpleOsgiRestfulServer current = server;
+		if (null == current || (BinaryStreamer.isBinaryRequest(request) && current.getFeature(BinaryStreamingFeature.class) != null)) {
+			chain.service(request, response);
+			return;
+		}
+		CompressedVariantCache variants = "GET".equals(request.getMethod()) ? compressedVariants : null;
+		PooledResponseWrapper pooled = new PooledResponseWrapper(request, response, getResponseBufferPool(), AcceptEncoding.acceptsGzip(request), compressionPolicy, variants);
+		try {
+			chain.service(AcceptEncoding.hide(request), pooled);
+		} finally {
+			pooled.finish();
+			request.setAttribute(ATTR_BODY_BYTES, pooled.getBodyBytes());
+		}
+	}
+
+	/**
+	 * @return the pool used to write responses, created when it is first used
+	 */
+	public ResponseBufferPool getResponseBufferPool () {
+		ResponseBufferPool pool = responseBufferPool;
+		if (null == pool) {
+			synchronized (this) {
+				if (null == responseBufferPool) {
+					responseBufferPool = new ResponseBufferPool(responseBufferSize, Runtime.getRuntime().availableProcessors() * 4, responseCompressionLevel);
+				}
+				pool = responseBufferPool;
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * @return the cache of compressed bodies or null if it is off
+	 */
+	public CompressedVariantCache getCompressedVariants () {
+		return compressedVariants;
+	}
+
+	public int getResponseBufferSize () {
+		return responseBufferSize;
+	}
+
+	public synchronized void setResponseBufferSize (int responseBufferSize) {
+		this.responseBufferSize = responseBufferSize;
+		responseBufferPool = null;
+	}
+
+	public int getResponseCompressionLevel () {
+		return responseCompressionLevel;
+	}
+
+	public synchronized void setResponseCompressionLevel (int responseCompressionLevel) {
+		this.responseCompressionLevel = responseCompressionLevel;
+		responseBufferPool = null;
+	}
+
+	public boolean isAdaptiveCompression () {
+		return adaptiveCompression;
+	}
+
+	/**
+	 * Leave bodies smaller than the minimum compression size and
+	 * already compressed bodies uncompressed, and choose the level of
+	 * the others by their size and the CPU load.
+	 * 
+	 * @param adaptiveCompression true to adapt the compression to each response
+	 * @see CompressionPolicy
+	 */
+	public synchronized void setAdaptiveCompression (boolean adaptiveCompression) {
+		this.adaptiveCompression = adaptiveCompression;
+		compressionPolicy = adaptiveCompression ? new CompressionPolicy(minCompressionSize) : null;
+	}
+
+	public int getMinCompressionSize () {
+		return minCompressionSize;
+	}
+
+	/**
+	 * @param minCompressionSize the smallest body compressed by adaptive compression
+	 */
+	public synchronized void setMinCompressionSize (int minCompressionSize) {
+		this.minCompressionSize = minCompressionSize;
+		compressionPolicy = adaptiveCompression ? new CompressionPolicy(minCompressionSize) : null;
+	}
+
+	public long getCompressedVariantCacheSize () {
+		return compressedVariantCacheSize;
+	}
+
+	/**
+	 * Keep the compressed form of the bodies of GET responses, keyed by
+	 * their content, so that a body sent again (/metadata, a read of an
+	 * unchanged resource) is compressed only once.
+	 * 
+	 * @param compressedVariantCacheSize the most bytes of compressed bodies kept (0 = off)
+	 * @see CompressedVariantCache
+	 */
+	public synchronized void setCompressedVariantCacheSize (long compressedVariantCacheSize) {
+		this.compressedVariantCacheSize = compressedVariantCacheSize;
+		compressedVariants = (compressedVariantCacheSize > 0) ? new CompressedVariantCache(compressedVariantCacheSize) : null;
+	}
+
+	@Override
+	public void describeFootprint (ServerFootprint footprint) {
+		ResponseBufferPool pool = responseBufferPool;
+		if (pool != null) {
+			footprint.addStatistic("responseBufferPool.bufferSize", pool.getBufferSize());
+			footprint.addStatistic("responseBufferPool.allocations", pool.getBufferAllocations());
+			footprint.addComponent("responseBufferPool", pool);
+		}
+		CompressionPolicy policy = compressionPolicy;
+		if (policy != null) {
+			footprint.addStatistic("compression.minSize", policy.getMinSize());
+			footprint.addStatistic("compression.load", policy.getLoad());
+		}
+		CompressedVariantCache compressed = compressedVariants;
+		if (compressed != null) {
+			footprint.addStatistic("compressedVariants.variants", compressed.getVariants());
+			footprint.addStatistic("compressedVariants.bytes", compressed.getBytes());
+			footprint.addStatistic("compressedVariants.hits", compressed.getHits());
+			footprint.addStatistic("compressedVariants.misses", compressed.getMisses());
+			footprint.addComponent("compressedVariants", compressed);
+		}
+	}
+
+}
@@ -0,0 +1,534 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.ConfigurationException;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+
+/**
+ * The responses of type-level searches for the resource types whose
+ * providers declared them cacheable with the <b><i>fhir.provider.cache.*</i></b>
+ * service-properties of their provider collection. Each type has its
+ * own region with the TTL, entry and byte limits of its provider; the
+ * least recently used entries are evicted first.
+ * <p>
+ * Responses are keyed by the tenant, the user principal of the request,
+ * the resource type, the search parameters (sorted by name and value),
+ * the Accept header and gzip encoding, so a cached response is only
+ * served to the same principal. Requests without a principal are never
+ * cached. A hit is answered by a {@code CachedSearchBinding} once the
+ * PRE_HANDLED hooks (authorization and consent) have accepted it. A
+ * write to a type empties its region; a response computed while a write
+ * was in progress is not stored. Only complete results are stored: a
+ * Bundle with a {@code next} link refers to paged results that may have
+ * expired by the time it is served again.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class SearchCache {
+	private static Logger log = LoggerFactory.getLogger(SearchCache.class);
+	static final String ATTR_PENDING = SearchCache.class.getName()+".pending";
+	static final String USERDATA_ENTRY = SearchCache.class.getName()+".entry";
+
+	// the region of each cached resource type
+	private final Map<String,Region> regions = new ConcurrentHashMap<>();
+
+	// the resource types cached for each registered provider
+	private final Map<Object,Collection<String>> providerTypes = new ConcurrentHashMap<>();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+
+	/**
+	 * Read the cache settings from the service-properties of a provider collection
+	 *
+	 * @param props the service-properties
+	 * @return the settings or null if caching isn't enabled
+	 * @throws ConfigurationException if a property is not a valid number
+	 */
+	public static Policy policyOf (Map<String,Object> props) throws ConfigurationException {
+		if (null == props) {
+			return null;
+		}
+		long ttl = getLong(props, IOsgiProviderCollection.SVCPROP_CACHE_TTL_MILLIS, 0);
+		if (ttl <= 0) {
+			return null;
+		}
+		long maxEntries = getLong(props, IOsgiProviderCollection.SVCPROP_CACHE_MAX_ENTRIES, 1000);
+		long maxBytes = getLong(props, IOsgiProviderCollection.SVCPROP_CACHE_MAX_BYTES, 16L * 1024 * 1024);
+		Object types = props.get(IOsgiProviderCollection.SVCPROP_CACHE_TYPES);
+		Collection<String> typeNames = null;
+		if (types != null && !types.toString().trim().isEmpty()) {
+			typeNames = new ArrayList<>();
+			for (String type : types.toString().split(",")) {
+				typeNames.add(type.trim());
+			}
+		}
+		return new Policy(ttl, (int)Math.max(1, maxEntries), Math.max(1, maxBytes), typeNames);
+	}
+
+	private static long getLong (Map<String,Object> props, String key, long defaultValue) throws ConfigurationException {
+		Object value = props.get(key);
+		if (null == value) {
+			return defaultValue;
+		}
+		if (value instanceof Number) {
+			return ((Number)value).longValue();
+		}
+		try {
+			return Long.parseLong(value.toString().trim());
+		} catch (NumberFormatException e) {
+			throw new ConfigurationException("Invalid value ["+value+"] for the ["+key+"] service-property");
+		}
+	}
+
+	/**
+	 * Cache the searches of a resource type served by a provider
+	 *
+	 * @param provider the provider
+	 * @param resourceType the resource type
+	 * @param policy the cache settings of the provider
+	 */
+	public void enable (Object provider, String resourceType, Policy policy) {
+		if (policy.types != null && !policy.types.contains(resourceType)) {
+			return;
+		}
+		log.trace("caching searches of ["+resourceType+"] for "+policy.ttlMillis+"ms");
+		Region old = regions.put(resourceType, new Region(provider, policy));
+		if (old != null) {
+			old.clear();
+		}
+		providerTypes.computeIfAbsent(provider, key -> new ArrayList<>()).add(resourceType);
+	}
+
+	/**
+	 * Stop caching the resource types of a provider that is unregistered
+	 *
+	 * @param provider the provider
+	 */
+	public void invalidateProvider (Object provider) {
+		Collection<String> types = providerTypes.remove(provider);
+		if (types != null) {
+			for (String type : types) {
+				// the type may already be cached for the provider replacing this one
+				Region region = regions.get(type);
+				if (region != null && region.provider == provider && regions.remove(type, region)) {
+					invalidations.increment();
+					region.clear();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param resourceType a resource type
+	 * @return true if the searches of the type are cached
+	 */
+	public boolean isCached (String resourceType) {
+		return (resourceType != null) && regions.containsKey(resourceType);
+	}
+
+	/**
+	 * @param request a client request
+	 * @return true if the request may be a search of a cached type (the
+	 * last segment of the path is the type, allowing for a tenant prefix)
+	 */
+	public boolean isCandidate (HttpServletRequest request) {
+		String path = request.getPathInfo();
+		if (!"GET".equals(request.getMethod()) || null == path || regions.isEmpty()) {
+			return false;
+		}
+		int end = path.endsWith("/") ? path.length() - 1 : path.length();
+		int start = path.lastIndexOf('/', end - 1) + 1;
+		return (start < end) && regions.containsKey(path.substring(start, end));
+	}
+
+	/**
+	 * Remove the cached searches of a type after a write
+	 *
+	 * @param resourceType the resource type
+	 */
+	public void invalidateType (String resourceType) {
+		Region region = regions.get(resourceType);
+		if (region != null) {
+			invalidations.increment();
+			region.clear();
+		}
+	}
+
+	/**
+	 * Remove all of the cached searches (after a transaction or a system-level write)
+	 */
+	public void clear () {
+		for (Region region : regions.values()) {
+			invalidations.increment();
+			region.clear();
+		}
+	}
+
+	/**
+	 * @param resourceType a cached resource type
+	 * @return the provider whose searches of the type are cached or null
+	 */
+	Object getProvider (String resourceType) {
+		Region region = regions.get(resourceType);
+		return (region != null) ? region.provider : null;
+	}
+
+	/**
+	 * Find the cached response of a search
+	 *
+	 * @param tenantId the tenant of the request (may be null)
+	 * @param resourceType the searched type
+	 * @param request the client request
+	 * @return the cached response or null
+	 */
+	Entry get (String tenantId, String resourceType, HttpServletRequest request) {
+		Region region = regions.get(resourceType);
+		String key = keyOf(tenantId, resourceType, request);
+		if (null == region || null == key) {
+			return null;
+		}
+		Entry entry = region.get(key);
+		if (entry != null) {
+			hits.increment();
+		}
+		return entry;
+	}
+
+	/**
+	 * Mark a search that missed the cache so that its response is
+	 * stored once it is complete
+	 *
+	 * @param tenantId the tenant of the request (may be null)
+	 * @param resourceType the searched type
+	 * @param request the client request
+	 */
+	void pending (String tenantId, String resourceType, HttpServletRequest request) {
+		Region region = regions.get(resourceType);
+		String key = keyOf(tenantId, resourceType, request);
+		if (null == region || null == key) {
+			return;
+		}
+		misses.increment();
+		request.setAttribute(ATTR_PENDING, new Pending(region, key, region.generation));
+	}
+
+	/**
+	 * Don't store the response of a search that missed the cache
+	 *
+	 * @param request the client request
+	 */
+	void discard (HttpServletRequest request) {
+		request.removeAttribute(ATTR_PENDING);
+	}
+
+	/**
+	 * Write a cached response
+	 *
+	 * @param entry the cached response
+	 * @param response the response
+	 * @throws IOException
+	 */
+	static void write (Entry entry, HttpServletResponse response) throws IOException {
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType(entry.contentType);
+		if (entry.contentEncoding != null) {
+			response.setHeader("Content-Encoding", entry.contentEncoding);
+		}
+		response.setContentLength(entry.body.length);
+		response.getOutputStream().write(entry.body);
+	}
+
+	/**
+	 * Store the response of a search that missed the cache
+	 *
+	 * @param request the client request
+	 * @param response the captured response
+	 */
+	public void complete (HttpServletRequest request, CapturingResponseWrapper response) {
+		Pending pending = (Pending)request.getAttribute(ATTR_PENDING);
+		if (null == pending) {
+			return;
+		}
+		request.removeAttribute(ATTR_PENDING);
+		if (HttpServletResponse.SC_OK == response.getStatus() && response.getContentType() != null
+				&& EncodingEnum.forContentType(response.getContentType()) != null) {
+			String contentType = response.getContentType();
+			if (!contentType.toLowerCase().contains("charset")) {
+				contentType += ";charset="+response.getCharacterEncoding();
+			}
+			pending.region.put(pending.key, pending.generation,
+					new Entry(contentType, response.getHeader("Content-Encoding"), response.getBody(), System.currentTimeMillis() + pending.region.ttlMillis));
+		}
+	}
+
+	/*
+	 * The search parameters are sorted so that the same search in a
+	 * different order has the same key. There is no key without a
+	 * principal: the response may depend on credentials the cache
+	 * cannot see.
+	 */
+	private static String keyOf (String tenantId, String resourceType, HttpServletRequest request) {
+		Principal principal = request.getUserPrincipal();
+		if (null == principal || null == principal.getName()) {
+			return null;
+		}
+		StringBuilder key = new StringBuilder();
+		key.append((tenantId != null) ? tenantId : "").append('|').append(encode(principal.getName()));
+		key.append('|').append(resourceType).append('?');
+		Map<String,String[]> params = new TreeMap<>(request.getParameterMap());
+		for (Map.Entry<String,String[]> param : params.entrySet()) {
+			String[] values = param.getValue().clone();
+			Arrays.sort(values);
+			for (String value : values) {
+				key.append(encode(param.getKey())).append('=').append(encode(value)).append('&');
+			}
+		}
+		key.append('|').append(request.getHeader("Accept"));
+		key.append('|').append(AcceptEncoding.acceptsGzip(request));
+		return key.toString();
+	}
+
+	private static String encode (String value) {
+		return URLEncoder.encode(value, StandardCharsets.UTF_8);
+	}
+
+	public Statistics getStatistics () {
+		int entries = 0;
+		long bytes = 0;
+		for (Region region : regions.values()) {
+			synchronized (region) {
+				entries += region.entries.size();
+				bytes += region.bytes;
+			}
+		}
+		return new Statistics(hits.sum(), misses.sum(), evictions.sum(), invalidations.sum(), entries, bytes);
+	}
+
+	/**
+	 * The cache settings of a provider collection
+	 */
+	public static class Policy {
+		private final long ttlMillis;
+		private final int maxEntries;
+		private final long maxBytes;
+		private final Collection<String> types;
+
+		public Policy (long ttlMillis, int maxEntries, long maxBytes, Collection<String> types) {
+			this.ttlMillis = ttlMillis;
+			this.maxEntries = maxEntries;
+			this.maxBytes = maxBytes;
+			this.types = types;
+		}
+
+		public long getTtlMillis () {
+			return ttlMillis;
+		}
+
+		public int getMaxEntries () {
+			return maxEntries;
+		}
+
+		public long getMaxBytes () {
+			return maxBytes;
+		}
+
+		/**
+		 * @return the cached resource types or null for all of the types of the collection
+		 */
+		public Collection<String> getTypes () {
+			return types;
+		}
+
+		@Override
+		public String toString () {
+			return "ttl ["+ttlMillis+"ms] max entries ["+maxEntries+"] max bytes ["+maxBytes+"]";
+		}
+	}
+
+	/**
+	 * A snapshot of the cache counters
+	 */
+	public static class Statistics {
+		private final long hits;
+		private final long misses;
+		private final long evictions;
+		private final long invalidations;
+		private final int entries;
+		private final long bytes;
+
+		Statistics (long hits, long misses, long evictions, long invalidations, int entries, long bytes) {
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.invalidations = invalidations;
+			this.entries = entries;
+			this.bytes = bytes;
+		}
+
+		public long getHits () {
+			return hits;
+		}
+
+		public long getMisses () {
+			return misses;
+		}
+
+		/**
+		 * @return the entries removed because they expired or to stay within the limits
+		 */
+		public long getEvictions () {
+			return evictions;
+		}
+
+		/**
+		 * @return the times a region was emptied by a write or an unregistered provider
+		 */
+		public long getInvalidations () {
+			return invalidations;
+		}
+
+		public int getEntries () {
+			return entries;
+		}
+
+		public long getBytes () {
+			return bytes;
+		}
+
+		@Override
+		public String toString () {
+			return "hits ["+hits+"] misses ["+misses+"] evictions ["+evictions+"] invalidations ["+invalidations
+					+"] entries ["+entries+"] bytes ["+bytes+"]";
+		}
+	}
+
+	static class Entry {
+		final String contentType;
+		final String contentEncoding;
+		final byte[] body;
+		final long expiresAt;
+
+		Entry (String contentType, String contentEncoding, byte[] body, long expiresAt) {
+			this.contentType = contentType;
+			this.contentEncoding = contentEncoding;
+			this.body = body;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	/*
+	 * A search that missed the cache, with the generation of its region
+	 * at that time so that it isn't stored if a write happened since
+	 */
+	static class Pending {
+		final Region region;
+		final String key;
+		final long generation;
+
+		Pending (Region region, String key, long generation) {
+			this.region = region;
+			this.key = key;
+			this.generation = generation;
+		}
+	}
+
+	/*
+	 * The LRU entries of one resource type
+	 */
+	class Region {
+		final Object provider;
+		final long ttlMillis;
+		final int maxEntries;
+		final long maxBytes;
+		final LinkedHashMap<String,Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+		long bytes = 0;
+		volatile long generation = 0;
+
+		Region (Object provider, Policy policy) {
+			this.provider = provider;
+			this.ttlMillis = policy.ttlMillis;
+			this.maxEntries = policy.maxEntries;
+			this.maxBytes = policy.maxBytes;
+		}
+
+		synchronized Entry get (String key) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+				remove(key);
+				evictions.increment();
+				return null;
+			}
+			return entry;
+		}
+
+		synchronized void put (String key, long fromGeneration, Entry entry) {
+			if (fromGeneration != generation || entry.body.length > maxBytes) {
+				return;
+			}
+			remove(key);
+			entries.put(key, entry);
+			bytes += entry.body.length;
+			Iterator<Entry> eldest = entries.values().iterator();
+			while ((entries.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+				bytes -= eldest.next().body.length;
+				eldest.remove();
+				evictions.increment();
+			}
+		}
+
+		private void remove (String key) {
+			Entry old = entries.remove(key);
+			if (old != null) {
+				bytes -= old.body.length;
+			}
+		}
+
+		synchronized void clear () {
+			generation++;
+			entries.clear();
+			bytes = 0;
+		}
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Startup Benchmark
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.ConfigurationException;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.method.BaseMethodBinding;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import dev.wdenton.fhir.osgi.server.diagnostics.ServerFootprint;
+
+/**
+ * Caches the search results of the resource providers whose provider
+ * collection declares them cacheable with the
+ * <b><i>fhir.provider.cache.*</i></b> service-properties. The server
+ * registers this feature itself for the first such collection. The
+ * response of a candidate search is captured before it is written and
+ * stored once complete; a hit is answered by a {@code CachedSearchBinding}.
+ * A type's results are dropped when one of its resources is written
+ * behind or its provider is unregistered.
+ * @see SearchCache
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class SearchCacheFeature implements IOsgiServerFeature {
+	private static Logger log = LoggerFactory.getLogger(SearchCacheFeature.class);
+
+	private final SearchCache searchCache = new SearchCache();
+	private SearchCacheInterceptor interceptor;
+	private volatile SimpleOsgiRestfulServer server;
+
+	@Override
+	public synchronized void install (SimpleOsgiRestfulServer server) {
+		interceptor = new SearchCacheInterceptor(searchCache);
+		server.registerInterceptor(interceptor);
+		this.server = server;
+	}
+
+	@Override
+	public synchronized void uninstall (SimpleOsgiRestfulServer server) {
+		this.server = null;
+		if (interceptor != null) {
+			server.unregisterInterceptor(interceptor);
+			interceptor = null;
+		}
+		searchCache.clear();
+	}
+
+	/**
+	 * @return the cache of search results
+	 */
+	public SearchCache getSearchCache () {
+		return searchCache;
+	}
+
+	/**
+	 * Capture the response of a search that may be cached, so it can be
+	 * stored once it is complete
+	 */
+	@Override
+	public void service (HttpServletRequest request, HttpServletResponse response, Chain chain) throws ServletException, IOException {
+		if (!searchCache.isCandidate(request)) {
+			chain.service(request, response);
+			return;
+		}
+		CapturingResponseWrapper captured = new CapturingResponseWrapper(response);
+		try {
+			chain.service(request, captured);
+		} finally {
+			searchCache.complete(request, captured);
+			captured.replayTo(response);
+		}
+	}
+
+	@Override
+	public BaseMethodBinding<?> resolveMethod (ServletRequestDetails requestDetails) {
+		SimpleOsgiRestfulServer current = server;
+		String resourceName = requestDetails.getResourceName();
+		if (null == current || !searchCache.isCached(resourceName) || !isTypeSearch(requestDetails)) {
+			return null;
+		}
+		SearchCache.Entry entry = searchCache.get(requestDetails.getTenantId(), resourceName, requestDetails.getServletRequest());
+		Object provider = searchCache.getProvider(resourceName);
+		if (null == entry || null == provider) {
+			return null;
+		}
+		requestDetails.getUserData().put(SearchCache.USERDATA_ENTRY, entry);
+		return current.getManualBinding(provider, "search-"+resourceName,
+				() -> new CachedSearchBinding(current.getFhirContext(), provider, resourceName, new ResponseHookCheck(current, CachedSearchBinding.SHOWN_AS_IS)));
+	}
+
+	private static boolean isTypeSearch (RequestDetails requestDetails) {
+		return RequestTypeEnum.GET == requestDetails.getRequestType() && null == requestDetails.getId()
+				&& null == requestDetails.getOperation() && null == requestDetails.getCompartmentName();
+	}
+
+	/**
+	 * Cache the search results of the resource providers when the
+	 * service-properties of their provider collection declare them cacheable
+	 */
+	@Override
+	public void providersRegistered (Collection<Object> providers, Map<String,Object> props) throws ConfigurationException {
+		SimpleOsgiRestfulServer current = server;
+		SearchCache.Policy policy = SearchCache.policyOf(props);
+		if (null == current || null == policy) {
+			return;
+		}
+		for (Object provider : providers) {
+			if (provider instanceof IResourceProvider) {
+				String resourceType = current.getFhirContext().getResourceType(((IResourceProvider)provider).getResourceType());
+				log.trace("search cache "+policy+". class ["+provider.getClass().getName()+"]");
+				searchCache.enable(provider, resourceType, policy);
+			}
+		}
+	}
+
+	@Override
+	public void providerUnregistered (Object provider) {
+		searchCache.invalidateProvider(provider);
+	}
+
+	@Override
+	public void resourceWritten (RestOperationTypeEnum operation, String tenantId, String resourceType, String idPart, String versionId) {
+		searchCache.invalidateType(resourceType);
+	}
+
+	@Override
+	public void describeFootprint (ServerFootprint footprint) {
+		SearchCache.Statistics statistics = searchCache.getStatistics();
+		footprint.addStatistic("searchCache.entries", statistics.getEntries());
+		footprint.addStatistic("searchCache.bytes", statistics.getBytes());
+		footprint.addStatistic("searchCache.hits", statistics.getHits());
+		footprint.addStatistic("searchCache.misses", statistics.getMisses());
+		footprint.addComponent("searchCache", searchCache);
+	}
+
+}
@@ -0,0 +1,133 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.util.BundleUtil;
+
+/**
+ * Marks the type-level searches that missed the {@code SearchCache}
+ * so that their responses are stored, once the authorization and consent
+ * interceptors have accepted them, unless they are paged, and empties
+ * the cached searches of a type when it is written. Hits are answered by a {@code CachedSearchBinding}.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+@Interceptor
+public class SearchCacheInterceptor {
+
+	private final SearchCache cache;
+
+	public SearchCacheInterceptor (SearchCache cache) {
+		this.cache = cache;
+	}
+
+	@Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+	public boolean incomingRequestPostProcessed (RequestDetails requestDetails) {
+		if (RestOperationTypeEnum.SEARCH_TYPE != requestDetails.getRestOperationType()) {
+			invalidate(requestDetails);
+		}
+		return true;
+	}
+
+	/*
+	 * Runs after the authorization and consent interceptors so that
+	 * a rejected search is never stored
+	 */
+	@Hook(value = Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED, order = SimpleOsgiRestfulServer.ORDER_AFTER_AUTHORIZATION)
+	public void incomingRequestPreHandled (RequestDetails requestDetails, ServletRequestDetails servletRequestDetails) {
+		if (RestOperationTypeEnum.SEARCH_TYPE == requestDetails.getRestOperationType()
+				&& RequestTypeEnum.GET == requestDetails.getRequestType()
+				&& !requestDetails.getUserData().containsKey(SearchCache.USERDATA_ENTRY)
+				&& cache.isCached(requestDetails.getResourceName())) {
+			cache.pending(requestDetails.getTenantId(), requestDetails.getResourceName(), servletRequestDetails.getServletRequest());
+		}
+	}
+
+	/*
+	 * The next link of a paged search refers to results held by the
+	 * paging provider, which may have expired when the cached Bundle
+	 * is served again
+	 */
+	@Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+	public boolean outgoingResponse (RequestDetails requestDetails, IBaseResource resource, HttpServletRequest request) {
+		if (resource instanceof IBaseBundle && request != null && request.getAttribute(SearchCache.ATTR_PENDING) != null
+				&& BundleUtil.getLinkUrlOfType(requestDetails.getFhirContext(), (IBaseBundle)resource, "next") != null) {
+			cache.discard(request);
+		}
+		return true;
+	}
+
+	/*
+	 * Invalidate again once a write is complete so that a search that
+	 * started during the write isn't answered from the old results
+	 */
+	@Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+	public void processingCompleted (RequestDetails requestDetails) {
+		if (RestOperationTypeEnum.SEARCH_TYPE != requestDetails.getRestOperationType()) {
+			invalidate(requestDetails);
+		}
+	}
+
+	private void invalidate (RequestDetails requestDetails) {
+		RestOperationTypeEnum operation = requestDetails.getRestOperationType();
+		if (null == operation) {
+			return;
+		}
+		switch (operation) {
+			case EXTENDED_OPERATION_SERVER:
+			case EXTENDED_OPERATION_TYPE:
+			case EXTENDED_OPERATION_INSTANCE:
+				if (RequestTypeEnum.GET == requestDetails.getRequestType()) {
+					return;
+				}
+				break;
+			case CREATE:
+			case UPDATE:
+			case DELETE:
+			case PATCH:
+			case META_ADD:
+			case META_DELETE:
+			case TRANSACTION:
+				break;
+			default:
+				return;
+		}
+		String resourceName = requestDetails.getResourceName();
+		if (resourceName != null) {
+			cache.invalidateType(resourceName);
+		} else {
+			cache.clear();
+		}
+	}
+
+}
@@ -0,0 +1,881 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.ConfigurationException;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.util.FhirTerser;
+import ca.uhn.fhir.util.OperationOutcomeUtil;
+
+/**
+ * A servlet that exposes a single FHIR base URL in front of several
+ * FHIR Servers ("shards"), each with its own set of providers. Every
+ * request is passed to one shard, chosen by the resource type or the
+ * compartment in the request path. The CapabilityStatements of the
+ * shards are merged into a single {@code /metadata} response.
+ * <p>
+ * Shards are {@code IOsgiRestfulServer} services published with these
+ * service-properties:
+ * <ul>
+ * <li><b><i>fhir.shard.router</i></b> - the name of the router (required, must match {@code routerName})</li>
+ * <li><b><i>fhir.shard.resources</i></b> - the resource types served by the shard (comma separated)</li>
+ * <li><b><i>fhir.shard.compartments</i></b> - the compartment types served by the shard (comma separated)</li>
+ * <li><b><i>fhir.shard.default</i></b> - "true" if the shard receives the requests that match no other shard</li>
+ * <li><b><i>fhir.shard.max.concurrent</i></b> - the number of requests the shard can process at once (0 = unlimited)</li>
+ * </ul>
+ * A request for a resource type (e.g. {@code [base]/Observation?code=...})
+ * goes to the shard serving that resource type, while a compartment
+ * request (e.g. {@code [base]/Patient/123/Observation}) goes to the shard
+ * serving that compartment. Requests for the server base go to the default
+ * shard. A shard that has used up its concurrency budget answers with 503.
+ * <p>
+ * A batch or transaction POSTed to the server base is routed by its entries.
+ * When they all belong to one shard the Bundle goes to that shard. A batch
+ * spanning several shards is split, each shard processes its own entries
+ * and the responses are merged back in the order of the request. A
+ * transaction spanning several shards is rejected (400), as the shards
+ * cannot commit it atomically. The merged response is encoded as asked
+ * for by the Accept header or {@code _format}. A batch or transaction
+ * larger than {@code maxBodySize} is rejected (413).
+ * <p>
+ * The router is wired up in blueprint with a reference-list:
+ * <code><pre>
+ * &lt;reference-list interface="dev.wdenton.fhir.osgi.server.IOsgiRestfulServer" availability="optional"
+ *         filter="(fhir.shard.router=<b><i>router-name</i></b>)">
+ *     &lt;reference-listener ref="<b><i>router.bean</i></b>" bind-method="registerShard" unbind-method="unregisterShard" />
+ * &lt;/reference-list>
+ * </pre></code>
+ * The shards are initialized with the configuration of the router, and
+ * destroyed when they are unregistered, so they should not also be deployed
+ * as servlets of their own.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class ShardRouterServlet extends HttpServlet {
+	private static final long serialVersionUID = -3017586230517784412L;
+
+	private static Logger log = LoggerFactory.getLogger(ShardRouterServlet.class);
+
+	public static final String SVCPROP_SHARD_ROUTER = "fhir.shard.router";
+	public static final String SVCPROP_SHARD_RESOURCES = "fhir.shard.resources";
+	public static final String SVCPROP_SHARD_COMPARTMENTS = "fhir.shard.compartments";
+	public static final String SVCPROP_SHARD_DEFAULT = "fhir.shard.default";
+	public static final String SVCPROP_SHARD_MAX_CONCURRENT = "fhir.shard.max.concurrent";
+
+	private static final String METADATA = "metadata";
+	private static final String BUNDLE = "Bundle";
+	private static final String BATCH = "batch";
+	private static final String TRANSACTION = "transaction";
+
+	private String routerName;
+
+	// how long a request waits for a busy shard before being rejected
+	private long acquireTimeoutMillis = 0;
+
+	// the largest batch or transaction read by the router (0 = no limit)
+	private long maxBodySize = 256L * 1024 * 1024;
+
+	// the current routes (replaced whenever a shard comes or goes)
+	private volatile RoutingTable routes = new RoutingTable(Collections.emptyList());
+
+	// the shards that have been initialized by this router
+	private final Set<RestfulServer> initializedServers = Collections.newSetFromMap(new WeakHashMap<>());
+
+	/**
+	 * Register a new shard
+	 *
+	 * @param server the FHIR Server
+	 * @param props the service-properties of the OSGi service
+	 * @throws ConfigurationException
+	 */
+	public void registerShard (IOsgiRestfulServer server, Map<String,Object> props) throws ConfigurationException {
+		if (null == server) {
+			return;
+		}
+		RestfulServer servlet = server.getRestfulServer();
+		if (null == servlet) {
+			throw new ConfigurationException("FHIR Server ["+getServerName(props)+"] cannot be used as a shard. It is not a RestfulServer.");
+		}
+		Object router = (props != null) ? props.get(SVCPROP_SHARD_ROUTER) : null;
+		if (routerName != null && router != null && !routerName.equals(router.toString())) {
+			log.trace("ignoring FHIR Server ["+getServerName(props)+"] assigned to router ["+router+"]");
+			return;
+		}
+		Shard shard = new Shard(server, servlet, props);
+		synchronized (this) {
+			if (getServletConfig() != null) {
+				initShard(shard);
+			}
+			List<Shard> shards = new ArrayList<>(routes.shards);
+			shards.add(shard);
+			routes = new RoutingTable(shards);
+		}
+		log.trace("registered shard ["+shard+"] with router ["+routerName+"]");
+	}
+
+	/**
+	 * Unregister a shard
+	 *
+	 * @param server the FHIR Server
+	 * @param props the service-properties of the OSGi service
+	 */
+	public void unregisterShard (IOsgiRestfulServer server, Map<String,Object> props) {
+		if (null == server) {
+			return;
+		}
+		List<Shard> removed = new ArrayList<>();
+		synchronized (this) {
+			List<Shard> shards = new ArrayList<>();
+			for (Shard shard : routes.shards) {
+				if (shard.server == server || shard.servlet == server.getRestfulServer()) {
+					removed.add(shard);
+				} else {
+					shards.add(shard);
+				}
+			}
+			if (!removed.isEmpty()) {
+				routes = new RoutingTable(shards);
+				log.trace("unregistered shard ["+getServerName(props)+"] from router ["+routerName+"]");
+			}
+		}
+		for (Shard shard : removed) {
+			destroyShard(shard);
+		}
+	}
+
+	@Override
+	public void init () throws ServletException {
+		synchronized (this) {
+			for (Shard shard : routes.shards) {
+				initShard(shard);
+			}
+		}
+	}
+
+	@Override
+	public void destroy () {
+		List<Shard> shards;
+		synchronized (this) {
+			shards = routes.shards;
+		}
+		for (Shard shard : shards) {
+			destroyShard(shard);
+		}
+		super.destroy();
+	}
+
+	@Override
+	protected void service (HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		String[] path = splitPath(request.getPathInfo());
+		RoutingTable table = routes;
+		if (path.length == 1 && METADATA.equals(path[0]) && table.shards.size() > 1) {
+			serviceMetadata(table, request, response);
+			return;
+		}
+		if (path.length == 0 && "POST".equals(request.getMethod()) && table.shards.size() > 1) {
+			serviceBundle(table, request, response);
+			return;
+		}
+		Shard shard = table.route(path);
+		if (null == shard) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "No FHIR Server handles ["+request.getPathInfo()+"]");
+			return;
+		}
+		forward(shard, request, response);
+	}
+
+	/*
+	 * Pass the request to the shard within its concurrency budget
+	 */
+	private void forward (Shard shard, HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if (!shard.acquire(acquireTimeoutMillis)) {
+			response.setHeader("Retry-After", "1");
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "FHIR Server ["+shard.name+"] is busy");
+			return;
+		}
+		try {
+			shard.servlet.service(request, response);
+		} finally {
+			shard.release();
+		}
+	}
+
+	/*
+	 * Route a batch or transaction by the shards of its entries
+	 */
+	private void serviceBundle (RoutingTable table, HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		RestfulServer first = table.shards.get(0).servlet;
+		FhirContext ctx = first.getFhirContext();
+		IParser responseParser = getResponseEncoding(first, request).newParser(ctx);
+		byte[] body = readBody(request);
+		if (null == body) {
+			sendOperationOutcome(ctx, responseParser, response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "too-long",
+					"Request body is larger than the maximum of ["+maxBodySize+"] bytes");
+			return;
+		}
+		EncodingEnum encoding = EncodingEnum.forContentType(request.getContentType());
+		IParser parser = ((encoding != null) ? encoding : EncodingEnum.JSON).newParser(ctx);
+		IBaseResource bundle;
+		try {
+			bundle = parser.parseResource(new String(body, StandardCharsets.UTF_8));
+		} catch (DataFormatException e) {
+			bundle = null;
+		}
+		String type = (bundle != null && BUNDLE.equals(ctx.getResourceType(bundle))) ? ctx.newTerser().getSinglePrimitiveValueOrNull(bundle, "type") : null;
+		if (!BATCH.equals(type) && !TRANSACTION.equals(type)) {
+			// not a batch or transaction: the default shard reports the error
+			if (null == table.defaultShard) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND, "No FHIR Server handles ["+request.getPathInfo()+"]");
+				return;
+			}
+			forward(table.defaultShard, new BufferedRequest(request, body, false), response);
+			return;
+		}
+		
+		FhirTerser terser = ctx.newTerser();
+		List<IBase> entries = terser.getValues(bundle, "entry");
+		List<String[]> paths = new ArrayList<>();
+		for (IBase entry : entries) {
+			paths.add(getEntryPath(ctx, terser, entry));
+		}
+		Map<Shard,List<Integer>> groups = table.groupEntries(paths);
+		List<Integer> unrouted = groups.get(null);
+		if (unrouted != null) {
+			sendOperationOutcome(ctx, responseParser, response, HttpServletResponse.SC_BAD_REQUEST, "not-supported",
+					"No FHIR Server handles entry ["+unrouted.get(0)+"] of the "+type);
+			return;
+		}
+		if (groups.size() <= 1) {
+			Shard shard = groups.isEmpty() ? table.defaultShard : groups.keySet().iterator().next();
+			if (null == shard) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND, "No FHIR Server handles ["+request.getPathInfo()+"]");
+				return;
+			}
+			forward(shard, new BufferedRequest(request, body, false), response);
+			return;
+		}
+		if (TRANSACTION.equals(type)) {
+			List<String> names = new ArrayList<>();
+			for (Shard shard : groups.keySet()) {
+				names.add(shard.name);
+			}
+			sendOperationOutcome(ctx, responseParser, response, HttpServletResponse.SC_BAD_REQUEST, "not-supported",
+					"A transaction cannot span several FHIR Servers "+names+". Submit a transaction per FHIR Server or a batch");
+			return;
+		}
+		serviceSplitBatch(ctx, parser, responseParser, bundle, entries, groups, request, response);
+	}
+
+	/*
+	 * Read the body of a batch or transaction
+	 * @return the body or null if it is larger than the maximum
+	 */
+	private byte[] readBody (HttpServletRequest request) throws IOException {
+		long length = request.getContentLengthLong();
+		if (maxBodySize > 0 && length > maxBodySize) {
+			return null;
+		}
+		ByteArrayOutputStream body = new ByteArrayOutputStream((int)Math.max(1024, Math.min(length, 1024 * 1024)));
+		byte[] buffer = new byte[8192];
+		InputStream in = request.getInputStream();
+		int count;
+		while ((count = in.read(buffer)) >= 0) {
+			body.write(buffer, 0, count);
+			if (maxBodySize > 0 && body.size() > maxBodySize) {
+				return null;
+			}
+		}
+		return body.toByteArray();
+	}
+
+	/*
+	 * The encoding the client asked for with _format or Accept, as the
+	 * RestfulServer would answer it
+	 */
+	private static EncodingEnum getResponseEncoding (RestfulServer servlet, HttpServletRequest request) {
+		ServletRequestDetails requestDetails = new ServletRequestDetails(servlet.getInterceptorService());
+		requestDetails.setServer(servlet);
+		requestDetails.setServletRequest(request);
+		requestDetails.setParameters(request.getParameterMap());
+		return RestfulServerUtils.determineResponseEncodingWithDefault(requestDetails).getEncoding();
+	}
+
+	/*
+	 * Send each shard a batch of its own entries, in the encoding of the
+	 * request, and merge the batch-responses, each read in the encoding
+	 * the shard answered with
+	 */
+	private void serviceSplitBatch (FhirContext ctx, IParser parser, IParser responseParser, IBaseResource bundle, List<IBase> entries,
+			Map<Shard,List<Integer>> groups, HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		BaseRuntimeChildDefinition entryChild = ctx.getResourceDefinition(BUNDLE).getChildByName("entry");
+		FhirTerser terser = ctx.newTerser();
+		IBase[] results = new IBase[entries.size()];
+		String[] failures = new String[entries.size()];
+		for (Map.Entry<Shard,List<Integer>> group : groups.entrySet()) {
+			Shard shard = group.getKey();
+			List<Integer> indexes = group.getValue();
+			IBaseResource part = ctx.getResourceDefinition(BUNDLE).newInstance();
+			terser.setElement(part, "type", BATCH);
+			for (Integer index : indexes) {
+				entryChild.getMutator().addValue(part, entries.get(index));
+			}
+			byte[] body = parser.encodeResourceToString(part).getBytes(StandardCharsets.UTF_8);
+			CapturingResponseWrapper captured = new CapturingResponseWrapper(response);
+			forward(shard, new BufferedRequest(request, body, true), captured);
+			
+			List<IBase> partResults = null;
+			if (captured.getStatus() == HttpServletResponse.SC_OK) {
+				try {
+					EncodingEnum partEncoding = EncodingEnum.forContentType(captured.getContentType());
+					IParser partParser = ((partEncoding != null) ? partEncoding : EncodingEnum.JSON).newParser(ctx);
+					IBaseResource partResponse = partParser.parseResource(captured.getBodyAsString());
+					partResults = terser.getValues(partResponse, "entry");
+				} catch (DataFormatException e) {
+					log.warn("FHIR Server ["+shard.name+"] returned an invalid batch-response", e);
+				}
+			}
+			if (!placeResults(results, indexes, partResults)) {
+				int status = (captured.getStatus() == HttpServletResponse.SC_OK) ? HttpServletResponse.SC_BAD_GATEWAY : captured.getStatus();
+				log.warn("FHIR Server ["+shard.name+"] returned status ["+captured.getStatus()+"] for its part of a batch");
+				for (Integer index : indexes) {
+					failures[index] = Integer.toString(status);
+				}
+			}
+		}
+		
+		IBaseResource merged = ctx.getResourceDefinition(BUNDLE).newInstance();
+		terser.setElement(merged, "type", "batch-response");
+		for (int i = 0; i < results.length; i++) {
+			if (results[i] != null) {
+				entryChild.getMutator().addValue(merged, results[i]);
+			} else {
+				terser.setElement(terser.addElement(merged, "entry"), "response.status", failures[i]);
+			}
+		}
+		sendResource(responseParser, response, HttpServletResponse.SC_OK, merged);
+	}
+
+	/*
+	 * Put the entries of a shard's batch-response at the indexes of the
+	 * request entries the shard was sent
+	 * @return false if the response doesn't have an entry for each of them
+	 */
+	static boolean placeResults (Object[] results, List<Integer> indexes, List<?> partResults) {
+		if (null == partResults || partResults.size() != indexes.size()) {
+			return false;
+		}
+		for (int i = 0; i < indexes.size(); i++) {
+			results[indexes.get(i)] = partResults.get(i);
+		}
+		return true;
+	}
+
+	/*
+	 * The path an entry of a batch or transaction would be routed by:
+	 * its request url, or else the type of its resource
+	 */
+	private static String[] getEntryPath (FhirContext ctx, FhirTerser terser, IBase entry) {
+		String url = terser.getSinglePrimitiveValueOrNull(entry, "request.url");
+		if (url != null) {
+			return getUrlPath(url);
+		}
+		List<IBaseResource> resources = terser.getValues(entry, "resource", IBaseResource.class);
+		if (!resources.isEmpty()) {
+			return new String[] { ctx.getResourceType(resources.get(0)) };
+		}
+		return new String[0];
+	}
+
+	private static void sendOperationOutcome (FhirContext ctx, IParser parser, HttpServletResponse response, int status, String code, String message) throws IOException {
+		IBaseOperationOutcome outcome = OperationOutcomeUtil.newInstance(ctx);
+		OperationOutcomeUtil.addIssue(ctx, outcome, "error", message, null, code);
+		sendResource(parser, response, status, outcome);
+	}
+
+	private static void sendResource (IParser parser, HttpServletResponse response, int status, IBaseResource resource) throws IOException {
+		byte[] body = parser.encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8);
+		response.setStatus(status);
+		response.setContentType(parser.getEncoding().getResourceContentTypeNonLegacy());
+		response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		response.setContentLength(body.length);
+		try (OutputStream out = response.getOutputStream()) {
+			out.write(body);
+		}
+	}
+
+	/*
+	 * Ask every shard for its CapabilityStatement and merge them into the first one
+	 */
+	private void serviceMetadata (RoutingTable table, HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		HttpServletRequest plainRequest = new HttpServletRequestWrapper(request) {
+			@Override
+			public String getHeader (String name) {
+				return "accept-encoding".equalsIgnoreCase(name) ? null : super.getHeader(name);
+			}
+
+			@Override
+			public Enumeration<String> getHeaders (String name) {
+				return "accept-encoding".equalsIgnoreCase(name) ? Collections.emptyEnumeration() : super.getHeaders(name);
+			}
+		};
+		FhirContext ctx = null;
+		IParser parser = null;
+		String contentType = null;
+		IBaseResource merged = null;
+		for (Shard shard : table.shards) {
+			CapturingResponseWrapper captured = new CapturingResponseWrapper(response);
+			shard.servlet.service(plainRequest, captured);
+			if (captured.getStatus() != HttpServletResponse.SC_OK) {
+				log.warn("FHIR Server ["+shard.name+"] returned status ["+captured.getStatus()+"] for its CapabilityStatement");
+				continue;
+			}
+			if (null == merged) {
+				ctx = shard.servlet.getFhirContext();
+				contentType = captured.getContentType();
+				EncodingEnum encoding = EncodingEnum.forContentType(contentType);
+				parser = ((encoding != null) ? encoding : EncodingEnum.JSON).newParser(ctx);
+				merged = parser.parseResource(captured.getBodyAsString());
+			} else {
+				mergeCapabilityStatement(ctx, merged, parser.parseResource(captured.getBodyAsString()));
+			}
+		}
+		if (null == merged) {
+			response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "No CapabilityStatement is available");
+			return;
+		}
+		byte[] body = parser.encodeResourceToString(merged).getBytes(StandardCharsets.UTF_8);
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType(contentType);
+		response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		response.setContentLength(body.length);
+		try (OutputStream out = response.getOutputStream()) {
+			out.write(body);
+		}
+	}
+
+	/*
+	 * Add the rest entries of the source statement that the target doesn't have yet
+	 */
+	private static void mergeCapabilityStatement (FhirContext ctx, IBaseResource target, IBaseResource source) {
+		FhirTerser terser = ctx.newTerser();
+		BaseRuntimeChildDefinition restChild = ctx.getResourceDefinition(target).getChildByName("rest");
+		BaseRuntimeElementCompositeDefinition<?> restDef = (BaseRuntimeElementCompositeDefinition<?>)restChild.getChildByName("rest");
+		List<IBase> targetRests = restChild.getAccessor().getValues(target);
+		for (IBase sourceRest : restChild.getAccessor().getValues(source)) {
+			String mode = terser.getSinglePrimitiveValueOrNull(sourceRest, "mode");
+			IBase targetRest = null;
+			for (IBase rest : targetRests) {
+				if (null == mode || mode.equals(terser.getSinglePrimitiveValueOrNull(rest, "mode"))) {
+					targetRest = rest;
+					break;
+				}
+			}
+			if (null == targetRest) {
+				restChild.getMutator().addValue(target, sourceRest);
+				continue;
+			}
+			mergeChildren(terser, restDef.getChildByName("resource"), targetRest, sourceRest, "type");
+			mergeChildren(terser, restDef.getChildByName("interaction"), targetRest, sourceRest, "code");
+			mergeChildren(terser, restDef.getChildByName("searchParam"), targetRest, sourceRest, "name");
+			mergeChildren(terser, restDef.getChildByName("operation"), targetRest, sourceRest, "name");
+		}
+	}
+
+	private static void mergeChildren (FhirTerser terser, BaseRuntimeChildDefinition child, IBase target, IBase source, String keyPath) {
+		if (null == child) {
+			return;
+		}
+		Set<String> keys = new HashSet<>();
+		for (IBase value : child.getAccessor().getValues(target)) {
+			keys.add(terser.getSinglePrimitiveValueOrNull(value, keyPath));
+		}
+		for (IBase value : child.getAccessor().getValues(source)) {
+			if (keys.add(terser.getSinglePrimitiveValueOrNull(value, keyPath))) {
+				child.getMutator().addValue(target, value);
+			}
+		}
+	}
+
+	private void initShard (Shard shard) throws ConfigurationException {
+		if (initializedServers.contains(shard.servlet)) {
+			return;
+		}
+		try {
+			shard.servlet.init(getServletConfig());
+			initializedServers.add(shard.servlet);
+		} catch (ServletException e) {
+			log.error("Error initializing FHIR Server ["+shard.name+"]", e);
+			throw new ConfigurationException("Error initializing FHIR Server ["+shard.name+"]", e);
+		}
+	}
+
+	private void destroyShard (Shard shard) {
+		synchronized (this) {
+			if (!initializedServers.remove(shard.servlet)) {
+				return;
+			}
+		}
+		try {
+			shard.servlet.destroy();
+		} catch (RuntimeException e) {
+			log.error("Error destroying FHIR Server ["+shard.name+"]", e);
+		}
+	}
+
+	/*
+	 * The path of the request url of an entry, without its query
+	 */
+	static String[] getUrlPath (String url) {
+		int query = url.indexOf('?');
+		return splitPath((query >= 0) ? url.substring(0, query) : url);
+	}
+
+	private static String[] splitPath (String pathInfo) {
+		if (null == pathInfo) {
+			return new String[0];
+		}
+		List<String> tokens = new ArrayList<>();
+		for (String token : pathInfo.split("/")) {
+			if (!token.isEmpty()) {
+				tokens.add(token);
+			}
+		}
+		return tokens.toArray(new String[tokens.size()]);
+	}
+
+	private static String getServerName (Map<String,Object> props) {
+		Object name = (props != null) ? props.get(IOsgiRestfulServer.SVCPROP_SERVICE_NAME) : null;
+		return (name != null) ? name.toString() : FhirOsgiServerPublisher.DEFAULT_SERVICE_NAME;
+	}
+
+	/*
+	 * Service-properties can be a comma separated string or an array/collection of strings
+	 */
+	private static Set<String> getNames (Map<String,Object> props, String key) {
+		Set<String> names = new LinkedHashSet<>();
+		Object value = (props != null) ? props.get(key) : null;
+		Collection<?> values;
+		if (value instanceof Object[]) {
+			values = Arrays.asList((Object[])value);
+		} else
+		if (value instanceof Collection) {
+			values = (Collection<?>)value;
+		} else {
+			values = (value != null) ? Collections.singletonList(value) : Collections.emptyList();
+		}
+		for (Object v : values) {
+			for (String name : v.toString().split(",")) {
+				if (!name.trim().isEmpty()) {
+					names.add(name.trim());
+				}
+			}
+		}
+		return names;
+	}
+
+	public String getRouterName () {
+		return routerName;
+	}
+
+	public void setRouterName (String routerName) {
+		this.routerName = routerName;
+	}
+
+	public long getAcquireTimeoutMillis () {
+		return acquireTimeoutMillis;
+	}
+
+	public void setAcquireTimeoutMillis (long acquireTimeoutMillis) {
+		this.acquireTimeoutMillis = acquireTimeoutMillis;
+	}
+
+	public long getMaxBodySize () {
+		return maxBodySize;
+	}
+
+	/**
+	 * @param maxBodySize the largest batch or transaction in bytes read by the router (0 = no limit)
+	 */
+	public void setMaxBodySize (long maxBodySize) {
+		this.maxBodySize = maxBodySize;
+	}
+
+	/**
+	 * @return the names of the registered shards
+	 */
+	public List<String> getShardNames () {
+		List<String> names = new ArrayList<>();
+		for (Shard shard : routes.shards) {
+			names.add(shard.name);
+		}
+		return names;
+	}
+
+	/*
+	 * The current routes
+	 */
+	RoutingTable getRoutes () {
+		return routes;
+	}
+
+	/*
+	 * The request with its body already read (and optionally replaced),
+	 * without compression when the response is merged by the router
+	 */
+	private static class BufferedRequest extends HttpServletRequestWrapper {
+		private final byte[] body;
+		private final boolean plain;
+
+		private BufferedRequest (HttpServletRequest request, byte[] body, boolean plain) {
+			super(request);
+			this.body = body;
+			this.plain = plain;
+		}
+
+		@Override
+		public ServletInputStream getInputStream () {
+			ByteArrayInputStream in = new ByteArrayInputStream(body);
+			return new ServletInputStream() {
+				@Override
+				public int read () {
+					return in.read();
+				}
+
+				@Override
+				public int read (byte[] b, int off, int len) {
+					return in.read(b, off, len);
+				}
+
+				@Override
+				public boolean isFinished () {
+					return in.available() == 0;
+				}
+
+				@Override
+				public boolean isReady () {
+					return true;
+				}
+
+				@Override
+				public void setReadListener (ReadListener readListener) {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		@Override
+		public BufferedReader getReader () {
+			return new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8));
+		}
+
+		@Override
+		public int getContentLength () {
+			return body.length;
+		}
+
+		@Override
+		public long getContentLengthLong () {
+			return body.length;
+		}
+
+		@Override
+		public String getHeader (String name) {
+			if ("content-length".equalsIgnoreCase(name)) {
+				return Integer.toString(body.length);
+			}
+			return (plain && "accept-encoding".equalsIgnoreCase(name)) ? null : super.getHeader(name);
+		}
+
+		@Override
+		public Enumeration<String> getHeaders (String name) {
+			if ("content-length".equalsIgnoreCase(name)) {
+				return Collections.enumeration(Collections.singletonList(Integer.toString(body.length)));
+			}
+			return (plain && "accept-encoding".equalsIgnoreCase(name)) ? Collections.emptyEnumeration() : super.getHeaders(name);
+		}
+	}
+
+	/*
+	 * A FHIR Server behind the router along with its concurrency budget
+	 */
+	static class Shard {
+		private final IOsgiRestfulServer server;
+		private final RestfulServer servlet;
+		private final String name;
+		private final Set<String> resources;
+		private final Set<String> compartments;
+		private final boolean isDefault;
+		private final Semaphore permits;
+
+		private Shard (IOsgiRestfulServer server, RestfulServer servlet, Map<String,Object> props) throws ConfigurationException {
+			this.server = server;
+			this.servlet = servlet;
+			this.name = getServerName(props);
+			this.resources = getNames(props, SVCPROP_SHARD_RESOURCES);
+			this.compartments = getNames(props, SVCPROP_SHARD_COMPARTMENTS);
+			Object isDefault = (props != null) ? props.get(SVCPROP_SHARD_DEFAULT) : null;
+			this.isDefault = (isDefault != null) && Boolean.parseBoolean(isDefault.toString());
+			Object maxConcurrent = (props != null) ? props.get(SVCPROP_SHARD_MAX_CONCURRENT) : null;
+			int max = 0;
+			if (maxConcurrent != null) {
+				try {
+					max = Integer.parseInt(maxConcurrent.toString().trim());
+				} catch (NumberFormatException e) {
+					throw new ConfigurationException("FHIR Server ["+name+"] has an invalid ["+SVCPROP_SHARD_MAX_CONCURRENT+"] service-property ["+maxConcurrent+"]");
+				}
+			}
+			this.permits = (max > 0) ? new Semaphore(max) : null;
+		}
+
+		private boolean acquire (long timeoutMillis) {
+			if (null == permits) {
+				return true;
+			}
+			try {
+				return (timeoutMillis > 0) ? permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS) : permits.tryAcquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		private void release () {
+			if (permits != null) {
+				permits.release();
+			}
+		}
+
+		String getName () {
+			return name;
+		}
+
+		@Override
+		public String toString () {
+			return name+" resources "+resources+" compartments "+compartments+(isDefault ? " (default)" : "");
+		}
+	}
+
+	/*
+	 * An immutable index of the shards by resource type and compartment
+	 */
+	static class RoutingTable {
+		private final List<Shard> shards;
+		private final Map<String,Shard> byResource = new HashMap<>();
+		private final Map<String,Shard> byCompartment = new HashMap<>();
+		private final Shard defaultShard;
+
+		private RoutingTable (List<Shard> shards) {
+			this.shards = Collections.unmodifiableList(shards);
+			Shard firstDefault = null;
+			for (Shard shard : shards) {
+				for (String resource : shard.resources) {
+					Shard other = byResource.putIfAbsent(resource, shard);
+					if (other != null) {
+						log.warn("resource type ["+resource+"] is served by both ["+other.name+"] and ["+shard.name+"]. Using ["+other.name+"]");
+					}
+				}
+				for (String compartment : shard.compartments) {
+					Shard other = byCompartment.putIfAbsent(compartment, shard);
+					if (other != null) {
+						log.warn("compartment ["+compartment+"] is served by both ["+other.name+"] and ["+shard.name+"]. Using ["+other.name+"]");
+					}
+				}
+				if (shard.isDefault && null == firstDefault) {
+					firstDefault = shard;
+				}
+			}
+			// a lone shard takes everything
+			this.defaultShard = (null == firstDefault && shards.size() == 1) ? shards.get(0) : firstDefault;
+		}
+
+		Shard route (String[] path) {
+			Shard shard = null;
+			if (path.length >= 3 && !path[2].startsWith("_")) {
+				shard = byCompartment.get(path[0]);
+			}
+			if (null == shard && path.length > 0) {
+				shard = byResource.get(path[0]);
+			}
+			return (shard != null) ? shard : defaultShard;
+		}
+
+		/*
+		 * Group the entries of a batch or transaction by the shard each
+		 * is routed to, in the order the shards are first used and with
+		 * their entries in the order of the request. The entries no shard
+		 * handles are grouped under null.
+		 */
+		Map<Shard,List<Integer>> groupEntries (List<String[]> paths) {
+			Map<Shard,List<Integer>> groups = new LinkedHashMap<>();
+			for (int i = 0; i < paths.size(); i++) {
+				groups.computeIfAbsent(route(paths.get(i)), s -> new ArrayList<>()).add(i);
+			}
+			return groups;
+		}
+	}
+
+}
@@ -19,37 +19,115 @@
  */
 package dev.wdenton.fhir.osgi.server;
 
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ca.uhn.fhir.context.ConfigurationException;
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.IPagingProvider;
+import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.ResourceBinding;
 import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationConstants;
+import ca.uhn.fhir.rest.server.method.BaseMethodBinding;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import dev.wdenton.fhir.osgi.server.diagnostics.IOsgiFootprintReporter;
+import dev.wdenton.fhir.osgi.server.diagnostics.ServerFootprint;
+import dev.wdenton.fhir.osgi.server.jfr.FhirEvents;
+import dev.wdenton.fhir.osgi.server.jfr.FlightRecorderInterceptor;
 
 /**
  *
  * Copyright (c) 2019-2022 William E. Denton
  * @author williamEdenton@gmail.com
  */
-public class SimpleOsgiRestfulServer extends RestfulServer implements IOsgiRestfulServer {
+public class SimpleOsgiRestfulServer extends RestfulServer implements IOsgiRestfulServer, IOsgiFootprintReporter {
 	private static final long serialVersionUID = -6649896883999039096L;
 
 	private static Logger log = LoggerFactory.getLogger(SimpleOsgiRestfulServer.class);
+	private static final String ATTR_PROVIDER_TRACKER = SimpleOsgiRestfulServer.class.getName()+".providerTracker";
+	private static final String ATTR_GUARDED_REQUEST = SimpleOsgiRestfulServer.class.getName()+".guardedRequest";
+	
+	/** the key of the provider handling the request in the request user data */
+	public static final String USERDATA_PROVIDER = SimpleOsgiRestfulServer.class.getName()+".provider";
+
+	// the order of the hooks that answer requests from a cache, after the authorization and consent hooks
+	public static final int ORDER_AFTER_AUTHORIZATION = AuthorizationConstants.ORDER_AUTH_INTERCEPTOR + 100;
 	
 	private Collection<Object> serverProviders = Collections.synchronizedCollection(new ArrayList<Object>());
+	
+	// in-flight requests for the whole server and for each registered provider
+	private final InFlightTracker serverTracker = new InFlightTracker();
+	private final Map<Object,InFlightTracker> providerTrackers = new ConcurrentHashMap<>();
+	private final DrainStatistics drainStatistics = new DrainStatistics();
+	
+	// guards the RestfulServer bindings so a swap of providers is atomic for routing
+	private final ReadWriteLock bindingLock = new ReentrantReadWriteLock();
+	
+	// the RestfulServer bindings indexed for routing, rebuilt after the bindings change (off by default)
+	private boolean precomputedDispatch = false;
+	private volatile ProviderBindingTable dispatchTable;
+	
+	// how long unregistration waits for in-flight requests (0 = don't wait)
+	private long drainTimeoutMillis = 0;
+	
+	// the deadline and circuit breaker of the providers registered with a policy
+	private final Map<Object,ProviderPolicy> providerPolicies = new ConcurrentHashMap<>();
+	private final Map<Object,CircuitBreaker> providerBreakers = new ConcurrentHashMap<>();
+	private ScheduledExecutorService deadlineTimer;
+	private boolean deadlineRegistered = false;
+	
+	// the fhir.server.name of the OSGi service and the recorder of request phases
+	private volatile String fhirServerName;
+	private final FlightRecorderInterceptor flightRecorder = new FlightRecorderInterceptor(this);
+	
+	// the registered features, sorted by their order (replaced, never changed)
+	private volatile IOsgiServerFeature[] features = new IOsgiServerFeature[0];
+	
+	// the bindings of the requests handled by the server rather than an annotated method
+	private final Map<Object,Map<String,ManualMethodBinding>> manualBindings = new IdentityHashMap<>();
+	
+	// the hooks of the interceptors published as OSGi services and the interceptors it can't dispatch
+	private final OsgiInterceptorDispatcher interceptorDispatcher = new OsgiInterceptorDispatcher();
+	private final Collection<Object> osgiInterceptors = Collections.synchronizedCollection(new ArrayList<Object>());
+	private boolean dispatcherRegistered = false;
 
 	public SimpleOsgiRestfulServer () {
 		super();
+		registerInterceptor(flightRecorder);
 	}
 
 	public SimpleOsgiRestfulServer (FhirContext theCtx) {
 		super(theCtx);
+		registerInterceptor(flightRecorder);
 	}
 
 	/**
@@ -63,13 +141,19 @@ public class SimpleOsgiRestfulServer extends RestfulServer implements IOsgiRestf
 		if (null == provider) {
 			throw new NullPointerException("FHIR Provider cannot be null");
 		}
+		Object event = FhirEvents.beginRegistration();
+		bindingLock.writeLock().lock();
 		try {
 			super.registerProvider(provider);
 			log.trace("registered provider. class ["+provider.getClass().getName()+"]");
+			trackProvider(provider);
 			this.serverProviders.add(provider);
 		} catch (Exception e) {
 			log.error("Error registering FHIR Provider", e);
 			throw new ConfigurationException("Error registering FHIR Provider", e);
+		} finally {
+			unlockBindings();
+			FhirEvents.endRegistration(event, fhirServerName, "register", 1);
 		}
 	}
 
@@ -84,13 +168,20 @@ public class SimpleOsgiRestfulServer extends RestfulServer implements IOsgiRestf
 		if (null == provider) {
 			throw new NullPointerException("FHIR Provider cannot be null");
 		}
+		Object event = FhirEvents.beginRegistration();
+		drainProviders(Collections.singleton(provider));
+		bindingLock.writeLock().lock();
 		try {
 			this.serverProviders.remove(provider);
+			untrackProvider(provider);
 			log.trace("unregistered provider. class ["+provider.getClass().getName()+"]");
 			super.unregisterProvider(provider);
 		} catch (Exception e) {
 			log.error("Error unregistering FHIR Provider", e);
 			throw new ConfigurationException("Error unregistering FHIR Provider", e);
+		} finally {
+			unlockBindings();
+			FhirEvents.endRegistration(event, fhirServerName, "unregister", 1);
 		}
 	}
 
@@ -105,20 +196,51 @@ public class SimpleOsgiRestfulServer extends RestfulServer implements IOsgiRestf
 		if (null == providers) {
 			throw new NullPointerException("FHIR Provider list cannot be null");
 		}
+		Object event = FhirEvents.beginRegistration();
+		bindingLock.writeLock().lock();
 		try {
 			super.registerProviders(providers);
 			for (Object provider : providers) {
 				log.trace("registered provider. class ["+provider.getClass().getName()+"]");
+				trackProvider(provider);
 				this.serverProviders.add(provider);
 			}
 		} catch (Exception e) {
 			log.error("Error registering FHIR Providers", e);
 			throw new ConfigurationException("Error registering FHIR Providers", e);
+		} finally {
+			unlockBindings();
+			FhirEvents.endRegistration(event, fhirServerName, "register", providers.size());
+		}
+	}
+
+	/**
+	 * Dynamically registers a list of providers with the RestfulServer,
+	 * applying the deadline and circuit breaker settings found in the
+	 * service-properties of the provider collection.
+	 * 
+	 * @param providers the providers to be registered
+	 * @param props the service-properties of the publishing OSGi service
+	 * @throws ConfigurationException
+	 */
+	@Override
+	public void registerOsgiProviders (Collection<Object> providers, Map<String,Object> props) throws ConfigurationException {
+		if (null == providers) {
+			throw new NullPointerException("FHIR Provider list cannot be null");
+		}
+		applyProviderPolicy(providers, props);
+		applySearchCachePolicy(providers, props);
+		for (IOsgiServerFeature feature : features) {
+			feature.providersRegistered(providers, props);
 		}
+		registerOsgiProviders(providers);
 	}
 
 	/**
-	 * Dynamically unregisters a list of providers with the RestfulServer
+	 * Dynamically unregisters a list of providers with the RestfulServer.
+	 * When a drain timeout is configured, new requests for these providers
+	 * are rejected and the in-flight requests are given until the timeout
+	 * to complete before the providers are removed.
 	 * 
 	 * @param provider the providers to be unregistered
 	 * @throws ConfigurationException
@@ -128,20 +250,102 @@ public class SimpleOsgiRestfulServer extends RestfulServer implements IOsgiRestf
 		if (null == providers) {
 			throw new NullPointerException("FHIR Provider list cannot be null");
 		}
+		Object event = FhirEvents.beginRegistration();
+		try {
+			drainProviders(providers);
+			removeProviders(providers);
+		} finally {
+			FhirEvents.endRegistration(event, fhirServerName, "unregister", providers.size());
+		}
+	}
+
+	private void removeProviders (Collection<Object> providers) throws ConfigurationException {
+		bindingLock.writeLock().lock();
 		try {
 			for (Object provider : providers) {
 				log.trace("unregistered provider. class ["+provider.getClass().getName()+"]");
 				this.serverProviders.remove(provider);
+				untrackProvider(provider);
 			}
 			super.unregisterProviders(providers);
 		} catch (Exception e) {
 			log.error("Error unregistering FHIR Providers", e);
 			throw new ConfigurationException("Error unregistering FHIR Providers", e);
+		} finally {
+			unlockBindings();
 		}
 	}
 
 	/**
-	 * Dynamically unregisters all of providers currently registered
+	 * Replace a list of registered providers with a new list. Routing
+	 * is blocked only while the bindings are swapped, so requests are
+	 * dispatched either to the old or to the new providers. Requests
+	 * still running in the old providers are then given up to the
+	 * drain timeout to complete.
+	 * 
+	 * @param oldProviders the registered providers being replaced
+	 * @param newProviders the providers replacing them
+	 * @throws ConfigurationException
+	 */
+	@Override
+	public void replaceOsgiProviders (Collection<Object> oldProviders, Collection<Object> newProviders) throws ConfigurationException {
+		if (null == oldProviders || null == newProviders) {
+			throw new NullPointerException("FHIR Provider list cannot be null");
+		}
+		swapProviders(oldProviders, newProviders);
+	}
+
+	/**
+	 * Replace a list of registered providers with a new list, applying
+	 * the deadline and circuit breaker settings found in the
+	 * service-properties of the new provider collection.
+	 */
+	@Override
+	public void replaceOsgiProviders (Collection<Object> oldProviders, Collection<Object> newProviders, Map<String,Object> props) throws ConfigurationException {
+		if (null == oldProviders || null == newProviders) {
+			throw new NullPointerException("FHIR Provider list cannot be null");
+		}
+		applyProviderPolicy(newProviders, props);
+		applySearchCachePolicy(newProviders, props);
+		for (IOsgiServerFeature feature : features) {
+			feature.providersRegistered(newProviders, props);
+		}
+		swapProviders(oldProviders, newProviders);
+	}
+
+	private void swapProviders (Collection<Object> oldProviders, Collection<Object> newProviders) throws ConfigurationException {
+		Collection<InFlightTracker> retired = new ArrayList<>();
+		Object event = FhirEvents.beginRegistration();
+		bindingLock.writeLock().lock();
+		try {
+			for (Object provider : oldProviders) {
+				InFlightTracker tracker = untrackProvider(provider);
+				if (tracker != null) {
+					retired.add(tracker);
+				}
+				this.serverProviders.remove(provider);
+			}
+			super.unregisterProviders(oldProviders);
+			super.registerProviders(newProviders);
+			for (Object provider : newProviders) {
+				log.trace("swapped in provider. class ["+provider.getClass().getName()+"]");
+				trackProvider(provider);
+				this.serverProviders.add(provider);
+			}
+		} catch (Exception e) {
+			log.error("Error replacing FHIR Providers", e);
+			throw new ConfigurationException("Error replacing FHIR Providers", e);
+		} finally {
+			unlockBindings();
+			FhirEvents.endRegistration(event, fhirServerName, "replace", newProviders.size());
+		}
+		drainTrackers(retired);
+	}
+
+	/**
+	 * Dynamically unregisters all of providers currently registered.
+	 * When a drain timeout is configured, the server stops accepting
+	 * new requests and waits for the in-flight requests first.
 	 * 
 	 * @throws ConfigurationException
 	 */
@@ -150,7 +354,818 @@ public class SimpleOsgiRestfulServer extends RestfulServer implements IOsgiRestf
 		// need to make a copy to be able to remove items
 		Collection<Object> providers = new ArrayList<Object>();
 		providers.addAll(this.serverProviders);
-		this.unregisterOsgiProviders(providers);
+		Object event = FhirEvents.beginRegistration();
+		try {
+			removeAllProviders(providers);
+		} finally {
+			FhirEvents.endRegistration(event, fhirServerName, "unregister-all", providers.size());
+		}
+	}
+
+	private void removeAllProviders (Collection<Object> providers) throws ConfigurationException {
+		if (drainTimeoutMillis > 0) {
+			serverTracker.startDraining();
+			try {
+				long start = System.currentTimeMillis();
+				int remaining = serverTracker.awaitIdle(start + drainTimeoutMillis);
+				recordDrain("FHIR Server", start, remaining);
+				this.removeProviders(providers);
+			} finally {
+				serverTracker.resume();
+			}
+		} else {
+			this.removeProviders(providers);
+		}
+	}
+
+	/*
+	 * Stop dispatching new requests to the providers and wait
+	 * (up to the drain timeout) for their in-flight requests
+	 */
+	protected void drainProviders (Collection<Object> providers) {
+		if (drainTimeoutMillis <= 0) {
+			return;
+		}
+		Collection<InFlightTracker> trackers = new ArrayList<>();
+		for (Object provider : providers) {
+			InFlightTracker tracker = providerTrackers.get(provider);
+			if (tracker != null) {
+				trackers.add(tracker);
+			}
+		}
+		drainTrackers(trackers);
+	}
+
+	protected void drainTrackers (Collection<InFlightTracker> trackers) {
+		if (drainTimeoutMillis <= 0 || trackers.isEmpty()) {
+			return;
+		}
+		for (InFlightTracker tracker : trackers) {
+			tracker.startDraining();
+		}
+		long start = System.currentTimeMillis();
+		int remaining = 0;
+		for (InFlightTracker tracker : trackers) {
+			remaining += tracker.awaitIdle(start + drainTimeoutMillis);
+		}
+		recordDrain("FHIR Providers", start, remaining);
+	}
+
+	private void recordDrain (String what, long start, int remaining) {
+		long elapsed = System.currentTimeMillis() - start;
+		drainStatistics.record(elapsed, remaining);
+		if (remaining > 0) {
+			log.warn("Drain of "+what+" timed out after ["+elapsed+"ms] with ["+remaining+"] requests still in-flight");
+		} else {
+			log.debug("Drained "+what+" in ["+elapsed+"ms]");
+		}
+	}
+
+	/**
+	 * Pass the requests through the registered features, tracking the
+	 * in-flight requests for the whole server
+	 */
+	@Override
+	protected void service (HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		new FeatureChain(features).service(request, response);
+	}
+
+	/*
+	 * Passes a request through the registered features in turn and then
+	 * to the RestfulServer. The request is tracked (or rejected while the
+	 * server is being unregistered) once it has gone through the features
+	 * with a negative order. A chain is used for a single request.
+	 */
+	private final class FeatureChain implements IOsgiServerFeature.Chain {
+		private final IOsgiServerFeature[] chained;
+		private int next = 0;
+		private boolean tracked = false;
+
+		FeatureChain (IOsgiServerFeature[] chained) {
+			this.chained = chained;
+		}
+
+		@Override
+		public void service (HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+			if (!tracked && (next == chained.length || chained[next].getOrder() >= 0)) {
+				tracked = true;
+				track(request, response);
+			} else
+			if (next < chained.length) {
+				chained[next++].service(request, response, this);
+			} else {
+				SimpleOsgiRestfulServer.super.service(request, response);
+			}
+		}
+
+		private void track (HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+			if (!serverTracker.enter()) {
+				response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "FHIR Server is being unregistered");
+				return;
+			}
+			try {
+				service(request, response);
+			} finally {
+				GuardedRequest guarded = (GuardedRequest)request.getAttribute(ATTR_GUARDED_REQUEST);
+				if (guarded != null) {
+					request.removeAttribute(ATTR_GUARDED_REQUEST);
+					guarded.complete(response.getStatus());
+				}
+				InFlightTracker tracker = (InFlightTracker)request.getAttribute(ATTR_PROVIDER_TRACKER);
+				if (tracker != null) {
+					request.removeAttribute(ATTR_PROVIDER_TRACKER);
+					tracker.exit();
+				}
+				serverTracker.exit();
+			}
+		}
+	}
+
+	/**
+	 * Track the in-flight requests for the provider that will
+	 * handle the request, rejecting it if the provider is draining
+	 * or its circuit breaker is open. Routing waits while the providers
+	 * are being swapped.
+	 */
+	@Override
+	protected BaseMethodBinding<?> determineResourceMethod (RequestDetails requestDetails, String requestPath) {
+		Object routing = FhirEvents.beginPhase();
+		bindingLock.readLock().lock();
+		try {
+			BaseMethodBinding<?> binding = resolveResourceMethod(requestDetails, requestPath);
+			FhirEvents.endPhase(routing, fhirServerName, requestDetails.getResourceName(),
+					FlightRecorderInterceptor.getOperation(binding.getRestOperationType()), FhirEvents.PHASE_ROUTING);
+			flightRecorder.beginPhase(requestDetails, FhirEvents.PHASE_INVOCATION);
+			Object provider = binding.getProvider();
+			requestDetails.getUserData().put(USERDATA_PROVIDER, provider);
+			for (IOsgiServerFeature feature : features) {
+				feature.routed(requestDetails, binding);
+			}
+			if (requestDetails instanceof ServletRequestDetails) {
+				HttpServletRequest request = ((ServletRequestDetails)requestDetails).getServletRequest();
+				InFlightTracker tracker = providerTrackers.get(provider);
+				if (tracker != null) {
+					if (!tracker.enter()) {
+						throw new UnclassifiedServerFailureException(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "FHIR Provider is being unregistered");
+					}
+					request.setAttribute(ATTR_PROVIDER_TRACKER, tracker);
+				}
+				ProviderPolicy policy = providerPolicies.get(provider);
+				if (policy != null) {
+					request.setAttribute(ATTR_GUARDED_REQUEST, guardRequest(requestDetails, provider, policy));
+				}
+			}
+			return binding;
+		} finally {
+			bindingLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * Apply the circuit breaker and deadline of the provider to the request
+	 */
+	private GuardedRequest guardRequest (RequestDetails requestDetails, Object provider, ProviderPolicy policy) {
+		CircuitBreaker breaker = providerBreakers.get(provider);
+		if (breaker != null && !breaker.tryAcquire()) {
+			long retryAfter = (breaker.getRetryAfterMillis() + 999) / 1000;
+			throw new UnclassifiedServerFailureException(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "FHIR Provider is unavailable (circuit breaker open)")
+					.addResponseHeader("Retry-After", Long.toString(Math.max(1, retryAfter)));
+		}
+		GuardedRequest guarded = new GuardedRequest(breaker);
+		if (policy.getDeadlineMillis() > 0) {
+			RequestDeadline deadline = new RequestDeadline(guarded.start, policy.getDeadlineMillis());
+			requestDetails.getUserData().put(RequestDeadline.USERDATA_KEY, deadline);
+			if (policy.isInterruptOnDeadline()) {
+				guarded.scheduleInterrupt(getDeadlineTimer(), policy.getDeadlineMillis());
+				deadline.setDisarm(guarded::disarm);
+			}
+		}
+		return guarded;
+	}
+
+	private synchronized ScheduledExecutorService getDeadlineTimer () {
+		if (null == deadlineTimer) {
+			deadlineTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "fhir-osgi-deadline");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return deadlineTimer;
+	}
+
+	@Override
+	public void destroy () {
+		super.destroy();
+		synchronized (this) {
+			for (IOsgiServerFeature feature : features) {
+				feature.uninstall(this);
+			}
+			features = new IOsgiServerFeature[0];
+			if (deadlineTimer != null) {
+				deadlineTimer.shutdownNow();
+				deadlineTimer = null;
+			}
+		}
+	}
+
+	/**
+	 * @param resourceType a resource type
+	 * @return the registered provider resolving included resources of the type or null if there is none
+	 */
+	protected IOsgiIncludeResolver getIncludeResolver (String resourceType) {
+		synchronized (serverProviders) {
+			for (Object provider : serverProviders) {
+				if (provider instanceof IOsgiIncludeResolver && resourceType.equals(((IOsgiIncludeResolver)provider).getResourceType())) {
+					return (IOsgiIncludeResolver)provider;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param resourceType a resource type
+	 * @return the registered resource provider for the type or null if there is none
+	 */
+	protected IResourceProvider getResourceProvider (String resourceType) {
+		bindingLock.readLock().lock();
+		try {
+			for (IResourceProvider provider : getResourceProviders()) {
+				if (resourceType.equals(getFhirContext().getResourceType(provider.getResourceType()))) {
+					return provider;
+				}
+			}
+			return null;
+		} finally {
+			bindingLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the registered provider that consumes streamed Bundles or null if there is none
+	 */
+	protected IOsgiBundleConsumer getBundleConsumer () {
+		synchronized (serverProviders) {
+			for (Object provider : serverProviders) {
+				if (provider instanceof IOsgiBundleConsumer) {
+					return (IOsgiBundleConsumer)provider;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param resourceType a resource type
+	 * @return the registered provider writing the journaled resources of the type or null if there is none
+	 */
+	protected IOsgiJournalWriter getJournalWriter (String resourceType) {
+		synchronized (serverProviders) {
+			for (Object provider : serverProviders) {
+				if (provider instanceof IOsgiJournalWriter && resourceType.equals(((IOsgiJournalWriter)provider).getResourceType())) {
+					return (IOsgiJournalWriter)provider;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Tell the features about a resource the server
+	 * has written without a request going through the interceptors
+	 * 
+	 * @param operation the create or update
+	 * @param tenantId the tenant (null if none)
+	 * @param resourceType the resource type
+	 * @param idPart the id of the resource (null if not known)
+	 * @param versionId the version of the resource (null if not known)
+	 * @see IOsgiServerFeature#resourceWritten(RestOperationTypeEnum, String, String, String, String)
+	 */
+	protected void resourceWritten (RestOperationTypeEnum operation, String tenantId, String resourceType, String idPart, String versionId) {
+		for (IOsgiServerFeature feature : features) {
+			feature.resourceWritten(operation, tenantId, resourceType, idPart, versionId);
+		}
+	}
+
+	/**
+	 * @return the registered provider that streams Binary content or null if there is none
+	 */
+	protected IOsgiBinaryStore getBinaryStore () {
+		synchronized (serverProviders) {
+			for (Object provider : serverProviders) {
+				if (provider instanceof IOsgiBinaryStore) {
+					return (IOsgiBinaryStore)provider;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Set the deadline and circuit breaker of providers from the
+	 * service-properties of their provider collection
+	 * 
+	 * @param providers the providers
+	 * @param props the service-properties of the provider collection
+	 * @throws ConfigurationException if a service-property is invalid
+	 */
+	protected void applyProviderPolicy (Collection<Object> providers, Map<String,Object> props) throws ConfigurationException {
+		ProviderPolicy policy = ProviderPolicy.fromProperties(props);
+		if (null == policy) {
+			return;
+		}
+		if (policy.getDeadlineMillis() > 0) {
+			registerDeadlineInterceptor();
+		}
+		for (Object provider : providers) {
+			log.trace("provider policy "+policy+". class ["+provider.getClass().getName()+"]");
+			providerPolicies.put(provider, policy);
+			CircuitBreaker breaker = policy.newCircuitBreaker();
+			if (breaker != null) {
+				providerBreakers.put(provider, breaker);
+			}
+		}
+	}
+
+	/*
+	 * The deadline hooks are only needed once a provider has a deadline
+	 */
+	private synchronized void registerDeadlineInterceptor () {
+		if (!deadlineRegistered) {
+			registerInterceptor(new DeadlineInterceptor());
+			deadlineRegistered = true;
+		}
+	}
+
+	/**
+	 * Register a {@code SearchCacheFeature}, unless one is registered,
+	 * when the service-properties of a provider collection declare its
+	 * search results cacheable. The feature then enables the cache for
+	 * the providers.
+	 * 
+	 * @param providers the providers
+	 * @param props the service-properties of the provider collection
+	 * @throws ConfigurationException if a service-property is invalid
+	 */
+	protected synchronized void applySearchCachePolicy (Collection<Object> providers, Map<String,Object> props) throws ConfigurationException {
+		if (SearchCache.policyOf(props) != null && null == getFeature(SearchCacheFeature.class)) {
+			registerFeature(new SearchCacheFeature());
+		}
+	}
+
+	/**
+	 * Find the method binding that will handle the request. This is
+	 * called while holding the binding read lock.
+	 * 
+	 * @param requestDetails the request
+	 * @param requestPath the request path
+	 * @return the matching method binding
+	 */
+	protected BaseMethodBinding<?> resolveResourceMethod (RequestDetails requestDetails, String requestPath) {
+		BaseMethodBinding<?> manual = resolveManualMethod(requestDetails);
+		if (manual != null) {
+			return manual;
+		}
+		if (precomputedDispatch) {
+			BaseMethodBinding<?> binding = getDispatchTable().getMethod(requestDetails);
+			if (binding != null) {
+				return binding;
+			}
+		}
+		// the conformance, global and unmatched requests are left to the RestfulServer
+		return super.determineResourceMethod(requestDetails, requestPath);
+	}
+
+	/**
+	 * Find the binding of a request that a feature handles itself: a
+	 * streamed Bundle, the raw content of a Binary, a create or update
+	 * written behind (or its status) or a search with a cached response.
+	 * 
+	 * @param requestDetails the request
+	 * @return the binding or null if the request is for the providers
+	 */
+	protected BaseMethodBinding<?> resolveManualMethod (RequestDetails requestDetails) {
+		if (!(requestDetails instanceof ServletRequestDetails)) {
+			return null;
+		}
+		for (IOsgiServerFeature feature : features) {
+			BaseMethodBinding<?> binding = feature.resolveMethod((ServletRequestDetails)requestDetails);
+			if (binding != null) {
+				return binding;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The bindings are kept for each provider until it is unregistered
+	 * or the settings they were created with change
+	 * 
+	 * @param provider the provider handling the requests of the binding
+	 * @param key the binding's key for the provider
+	 * @param factory creates the binding when there is none
+	 * @return the binding
+	 */
+	protected ManualMethodBinding getManualBinding (Object provider, String key, Supplier<ManualMethodBinding> factory) {
+		synchronized (manualBindings) {
+			return manualBindings.computeIfAbsent(provider, p -> new HashMap<>())
+					.computeIfAbsent(key, k -> factory.get());
+		}
+	}
+
+	/**
+	 * Discard the bindings, as the settings they were created with have changed
+	 */
+	protected void clearManualBindings () {
+		synchronized (manualBindings) {
+			manualBindings.clear();
+		}
+	}
+
+	/**
+	 * @return the bindings of the RestfulServer indexed by resource type, verb and operation
+	 */
+	protected ProviderBindingTable getDispatchTable () {
+		ProviderBindingTable table = dispatchTable;
+		if (null == table) {
+			List<BaseMethodBinding<?>> bindings = new ArrayList<>();
+			for (ResourceBinding resourceBinding : getResourceBindings()) {
+				bindings.addAll(resourceBinding.getMethodBindings());
+			}
+			bindings.addAll(getServerBindings());
+			table = ProviderBindingTable.of(bindings);
+			dispatchTable = table;
+			log.trace("rebuilt dispatch table with ["+table.getBindingCount()+"] bindings");
+		}
+		return table;
+	}
+
+	/*
+	 * Release the binding write lock, discarding the dispatch
+	 * table as the bindings may have changed
+	 */
+	private void unlockBindings () {
+		dispatchTable = null;
+		bindingLock.writeLock().unlock();
+	}
+
+	/**
+	 * @return the lock guarding the provider bindings. Routing holds the
+	 * read lock, changes to the bindings must hold the write lock.
+	 */
+	protected ReadWriteLock getBindingLock () {
+		return bindingLock;
+	}
+
+	/**
+	 * Start tracking the in-flight requests for a provider
+	 * 
+	 * @param provider the provider
+	 */
+	protected void trackProvider (Object provider) {
+		this.providerTrackers.putIfAbsent(provider, new InFlightTracker());
+	}
+
+	/**
+	 * Stop tracking the in-flight requests for a provider
+	 * 
+	 * @param provider the provider
+	 * @return the tracker for the provider or null if it wasn't tracked
+	 */
+	protected InFlightTracker untrackProvider (Object provider) {
+		synchronized (manualBindings) {
+			manualBindings.remove(provider);
+		}
+		this.providerPolicies.remove(provider);
+		this.providerBreakers.remove(provider);
+		for (IOsgiServerFeature feature : features) {
+			feature.providerUnregistered(provider);
+		}
+		return this.providerTrackers.remove(provider);
+	}
+
+	/**
+	 * @return the number of requests currently being processed by the server
+	 */
+	public int getInFlightRequests () {
+		return serverTracker.getInFlight();
+	}
+
+	/**
+	 * @param provider a registered provider
+	 * @return the number of requests currently being processed by the provider
+	 */
+	public int getInFlightRequests (Object provider) {
+		InFlightTracker tracker = providerTrackers.get(provider);
+		return (tracker != null) ? tracker.getInFlight() : 0;
+	}
+
+	/**
+	 * @param provider a registered provider
+	 * @return the circuit breaker of the provider or null if it has none
+	 */
+	public CircuitBreaker getCircuitBreaker (Object provider) {
+		return providerBreakers.get(provider);
+	}
+
+	/**
+	 * @param provider a registered provider
+	 * @return the deadline and circuit breaker settings of the provider or null if it has none
+	 */
+	public ProviderPolicy getProviderPolicy (Object provider) {
+		return providerPolicies.get(provider);
+	}
+
+	/**
+	 * Register a feature with the server. The feature is installed
+	 * and then sees the requests that start after it is registered.
+	 * 
+	 * @param feature the feature
+	 * @throws ConfigurationException if the feature can't be installed
+	 */
+	public synchronized void registerFeature (IOsgiServerFeature feature) throws ConfigurationException {
+		if (null == feature) {
+			throw new NullPointerException("FHIR Server feature cannot be null");
+		}
+		if (Arrays.asList(features).contains(feature)) {
+			return;
+		}
+		feature.install(this);
+		IOsgiServerFeature[] registered = Arrays.copyOf(features, features.length + 1);
+		registered[features.length] = feature;
+		// a stable sort, so features of the same order see requests in the order they were registered
+		Arrays.sort(registered, Comparator.comparingInt(IOsgiServerFeature::getOrder));
+		features = registered;
+		clearManualBindings();
+		log.trace("registered feature. class ["+feature.getClass().getName()+"] order ["+feature.getOrder()+"]");
+	}
+
+	/**
+	 * Unregister a feature from the server and uninstall it. The requests
+	 * already in progress complete with the feature.
+	 * 
+	 * @param feature the feature
+	 */
+	public synchronized void unregisterFeature (IOsgiServerFeature feature) {
+		List<IOsgiServerFeature> registered = new ArrayList<>(Arrays.asList(features));
+		if (registered.remove(feature)) {
+			features = registered.toArray(new IOsgiServerFeature[registered.size()]);
+			clearManualBindings();
+			feature.uninstall(this);
+			log.trace("unregistered feature. class ["+feature.getClass().getName()+"]");
+		}
+	}
+
+	/**
+	 * @param type the class of a feature
+	 * @return the first registered feature of the class or null if there is none
+	 */
+	public <T extends IOsgiServerFeature> T getFeature (Class<T> type) {
+		for (IOsgiServerFeature feature : features) {
+			if (type.isInstance(feature)) {
+				return type.cast(feature);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the registered features in the order they see requests
+	 */
+	public List<IOsgiServerFeature> getFeatures () {
+		return Collections.unmodifiableList(Arrays.asList(features));
+	}
+
+	/**
+	 * Register features with the server, as when it is defined in blueprint
+	 * 
+	 * @param features the features
+	 * @throws ConfigurationException if a feature can't be installed
+	 */
+	public void setFeatures (List<IOsgiServerFeature> features) throws ConfigurationException {
+		for (IOsgiServerFeature feature : features) {
+			registerFeature(feature);
+		}
+	}
+
+	@Override
+	public void describeFootprint (ServerFootprint footprint) {
+		footprint.addStatistic("resourceBindings", getResourceBindings().size());
+		footprint.addStatistic("serverBindings", getServerBindings().size());
+		if (precomputedDispatch) {
+			footprint.addStatistic("dispatchBindings", getDispatchTable().getBindingCount());
+		}
+		footprint.addStatistic("inFlightRequests", getInFlightRequests());
+		footprint.addStatistic("osgiInterceptors", osgiInterceptors.size());
+		footprint.addStatistic("dispatchedInterceptors", !interceptorDispatcher.isEmpty());
+		footprint.addStatistic("providerPolicies", providerPolicies.size());
+		footprint.addStatistic("features", features.length);
+
+		IPagingProvider paging = getPagingProvider();
+		if (paging != null) {
+			footprint.addStatistic("paging.provider", paging.getClass().getName());
+			if (paging instanceof MappedPagingProvider) {
+				// the search results are in mapped files, outside the heap
+				footprint.addStatistic("paging.searches", ((MappedPagingProvider)paging).getSearchCount());
+				footprint.addStatistic("paging.mappedBytes", ((MappedPagingProvider)paging).getTotalBytes());
+			}
+			footprint.addComponent("pagingProvider", paging);
+		}
+		for (IOsgiServerFeature feature : features) {
+			feature.describeFootprint(footprint);
+		}
+	}
+
+	/**
+	 * Dynamically registers an interceptor published as an OSGi service.
+	 * The hooks of interceptors for the request pointcuts with the default
+	 * order are called through the precompiled invokers of the
+	 * {@code OsgiInterceptorDispatcher} and their other hooks are registered
+	 * with the RestfulServer one by one, with their own order; any other
+	 * interceptor is registered with the RestfulServer.
+	 * 
+	 * @param interceptor the interceptor to be registered
+	 * @throws ConfigurationException
+	 */
+	@Override
+	public synchronized void registerOsgiInterceptor (Object interceptor) throws ConfigurationException {
+		if (interceptorDispatcher.register(interceptor)) {
+			log.trace("Registered FHIR Interceptor ["+interceptor.getClass().getName()+"] with the interceptor dispatcher");
+			for (OsgiInterceptorDispatcher.ForwardedHook hook : interceptorDispatcher.getForwardedHooks(interceptor)) {
+				getInterceptorService().registerAnonymousInterceptor(hook.getPointcut(), hook.getOrder(), hook);
+			}
+			if (!dispatcherRegistered) {
+				registerInterceptor(interceptorDispatcher);
+				dispatcherRegistered = true;
+			}
+		} else if (!osgiInterceptors.contains(interceptor)) {
+			log.trace("Registered FHIR Interceptor ["+interceptor.getClass().getName()+"] with the RestfulServer");
+			registerInterceptor(interceptor);
+			osgiInterceptors.add(interceptor);
+		}
+	}
+
+	/**
+	 * @return the dispatcher of the hooks of the interceptors published as OSGi services
+	 */
+	OsgiInterceptorDispatcher getInterceptorDispatcher () {
+		return interceptorDispatcher;
+	}
+
+	/**
+	 * Dynamically unregisters an interceptor published as an OSGi service
+	 * 
+	 * @param interceptor the interceptor to be unregistered
+	 * @throws ConfigurationException
+	 */
+	@Override
+	public synchronized void unregisterOsgiInterceptor (Object interceptor) throws ConfigurationException {
+		List<OsgiInterceptorDispatcher.ForwardedHook> forwarded = interceptorDispatcher.getForwardedHooks(interceptor);
+		if (interceptorDispatcher.unregister(interceptor)) {
+			log.trace("Unregistered FHIR Interceptor ["+interceptor.getClass().getName()+"]");
+			for (OsgiInterceptorDispatcher.ForwardedHook hook : forwarded) {
+				getInterceptorService().unregisterInterceptor(hook);
+			}
+			if (interceptorDispatcher.isEmpty() && dispatcherRegistered) {
+				unregisterInterceptor(interceptorDispatcher);
+				dispatcherRegistered = false;
+			}
+		} else if (osgiInterceptors.remove(interceptor)) {
+			log.trace("Unregistered FHIR Interceptor ["+interceptor.getClass().getName()+"]");
+			unregisterInterceptor(interceptor);
+		}
+	}
+
+	@Override
+	public void setFhirServerName (String fhirServerName) {
+		this.fhirServerName = fhirServerName;
+	}
+
+	@Override
+	public String getFhirServerName () {
+		return fhirServerName;
+	}
+
+	/**
+	 * Start calling a listener with the writes completed by the server,
+	 * through the registered {@code ChangeEventFeature} or a new one
+	 * 
+	 * @see ChangeEventFeature#subscribe(IOsgiChangeListener, Map)
+	 */
+	@Override
+	public void registerOsgiChangeListener (IOsgiChangeListener listener, Map<String,Object> props) throws ConfigurationException {
+		ChangeEventFeature changes;
+		synchronized (this) {
+			changes = getFeature(ChangeEventFeature.class);
+			if (null == changes) {
+				changes = new ChangeEventFeature();
+				registerFeature(changes);
+			}
+		}
+		changes.subscribe(listener, props);
+	}
+
+	@Override
+	public void unregisterOsgiChangeListener (IOsgiChangeListener listener) {
+		ChangeEventFeature changes = getFeature(ChangeEventFeature.class);
+		if (changes != null) {
+			changes.unsubscribe(listener);
+		}
+	}
+
+	public boolean isPrecomputedDispatch () {
+		return precomputedDispatch;
+	}
+
+	/**
+	 * @param precomputedDispatch true to route requests through a table of
+	 * the bindings indexed by resource type, verb and operation instead of
+	 * the RestfulServer bindings. Measure it with the RoutingBenchmark of
+	 * fhir-osgi-benchmark before turning it on.
+	 */
+	public void setPrecomputedDispatch (boolean precomputedDispatch) {
+		this.precomputedDispatch = precomputedDispatch;
+	}
+
+	/**
+	 * Pass the service-properties of the server to the features,
+	 * registering a {@code RateLimitFeature}, unless one is registered,
+	 * when they set a rate limit
+	 * 
+	 * @see RatePolicy#fromProperties(Map)
+	 */
+	@Override
+	public synchronized void applyServiceProperties (Map<String,Object> props) throws ConfigurationException {
+		if (RatePolicy.fromProperties(props) != null && null == getFeature(RateLimitFeature.class)) {
+			registerFeature(new RateLimitFeature());
+		}
+		for (IOsgiServerFeature feature : features) {
+			feature.applyServiceProperties(props);
+		}
+	}
+
+	public DrainStatistics getDrainStatistics () {
+		return drainStatistics;
+	}
+
+	public long getDrainTimeoutMillis () {
+		return drainTimeoutMillis;
+	}
+
+	/**
+	 * @param drainTimeoutMillis how long unregistration waits for
+	 * in-flight requests to complete. Zero (the default) unregisters
+	 * immediately.
+	 */
+	public void setDrainTimeoutMillis (long drainTimeoutMillis) {
+		this.drainTimeoutMillis = drainTimeoutMillis;
+	}
+
+	/*
+	 * A request dispatched to a provider with a policy. The outcome is
+	 * recorded in the circuit breaker once the response is complete.
+	 * The thread is only interrupted while the provider runs: the
+	 * interrupt is disarmed when it returns, before the response is
+	 * written, and at the latest when the response is complete.
+	 */
+	private static class GuardedRequest {
+		private final CircuitBreaker breaker;
+		private final long start = System.currentTimeMillis();
+		private final Thread thread = Thread.currentThread();
+		private ScheduledFuture<?> interrupt;
+		private boolean completed = false;
+
+		private GuardedRequest (CircuitBreaker breaker) {
+			this.breaker = breaker;
+		}
+
+		private void scheduleInterrupt (ScheduledExecutorService timer, long delayMillis) {
+			interrupt = timer.schedule(this::interrupt, delayMillis, TimeUnit.MILLISECONDS);
+		}
+
+		private synchronized void interrupt () {
+			if (!completed) {
+				log.debug("interrupting request thread ["+thread.getName()+"] at its deadline");
+				thread.interrupt();
+			}
+		}
+
+		private synchronized void disarm () {
+			if (interrupt != null && !completed) {
+				completed = true;
+				interrupt.cancel(false);
+				// don't leak an interrupt into the response or the container thread
+				Thread.interrupted();
+			}
+		}
+
+		private void complete (int status) {
+			disarm();
+			if (breaker != null) {
+				breaker.record(System.currentTimeMillis() - start, status >= 500);
+			}
+		}
 	}
 
 }
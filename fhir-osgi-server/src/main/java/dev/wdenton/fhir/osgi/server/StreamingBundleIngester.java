@@ -0,0 +1,249 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.PayloadTooLargeException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/**
+ * Reads a JSON Bundle from the request body with a
+ * {@code StreamingBundleReader} and hands its entries to an
+ * {@code IOsgiBundleConsumer} in Bundles of at most batchSize entries.
+ * The body is rejected with 413 as soon as it is known to be larger
+ * than maxBodySize: before it is read if the Content-Length is larger,
+ * otherwise when the limit is reached.
+ * <p>
+ * The ingestion runs as the transaction of the server, so the
+ * interceptors see a TRANSACTION. Each batch is set as the resource of
+ * the request and the PRE_HANDLED hooks are called before it is handed
+ * to the consumer, which lets the authorization interceptor check every
+ * entry. Any failure aborts the session of the consumer.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class StreamingBundleIngester extends ManualMethodBinding {
+	private static Logger log = LoggerFactory.getLogger(StreamingBundleIngester.class);
+
+	private final IOsgiBundleConsumer consumer;
+	private final long maxBodySize;
+	private final int batchSize;
+
+	/**
+	 * @param fhirContext the FHIR context of the server
+	 * @param consumer the consumer of the entries
+	 * @param maxBodySize the largest accepted body in bytes (0 = no limit)
+	 * @param batchSize the most entries handed to the consumer at a time
+	 */
+	public StreamingBundleIngester (FhirContext fhirContext, IOsgiBundleConsumer consumer, long maxBodySize, int batchSize) {
+		super(fhirContext, consumer, RestOperationTypeEnum.TRANSACTION, null);
+		this.consumer = consumer;
+		this.maxBodySize = maxBodySize;
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * @param request a POST of a JSON Bundle
+	 * @return true if the request is a candidate for streaming ingestion
+	 */
+	public static boolean isBundlePost (HttpServletRequest request) {
+		String path = request.getPathInfo();
+		String contentType = request.getContentType();
+		return "POST".equals(request.getMethod())
+				&& (null == path || "/".equals(path))
+				&& (contentType != null) && contentType.toLowerCase().contains("json");
+	}
+
+	/**
+	 * Ingest the Bundle in the request body and write the result of
+	 * the consumer, or 204 if it has none
+	 */
+	@Override
+	protected void handle (ServletRequestDetails requestDetails) throws IOException {
+		IBaseBundle result = ingest(requestDetails, openBody(requestDetails));
+		writeResponse(requestDetails, (null == result) ? HttpServletResponse.SC_NO_CONTENT : HttpServletResponse.SC_OK, result);
+	}
+
+	/*
+	 * The body as read by an earlier interceptor or else the request stream
+	 */
+	private InputStream openBody (ServletRequestDetails requestDetails) throws IOException {
+		byte[] contents = requestDetails.getRequestContentsIfLoaded();
+		long length = (contents != null) ? contents.length : requestDetails.getServletRequest().getContentLengthLong();
+		if (maxBodySize > 0 && length > maxBodySize) {
+			throw new PayloadTooLargeException("Request body of ["+length+"] bytes is larger than the maximum of ["+maxBodySize+"] bytes");
+		}
+		return (contents != null) ? new ByteArrayInputStream(contents) : requestDetails.getServletRequest().getInputStream();
+	}
+
+	private IBaseBundle ingest (ServletRequestDetails requestDetails, InputStream body) throws IOException {
+		IOsgiBundleConsumer.Session session = null;
+		StreamingBundleReader reader = null;
+		try {
+			reader = new StreamingBundleReader(new InputStreamReader(new LimitedInputStream(body, maxBodySize), StandardCharsets.UTF_8));
+			IParser parser = getContext().newJsonParser();
+			StringBuilder batch = new StringBuilder();
+			int count = 0;
+			boolean consumed = false;
+			String entry;
+			while ((entry = reader.nextEntry()) != null) {
+				if (null == session) {
+					session = open(reader.getBundleType(), requestDetails.getServletRequest());
+				}
+				if (count > 0) {
+					batch.append(',');
+				}
+				batch.append(entry);
+				if (++count == batchSize) {
+					consume(requestDetails, session, toBundle(parser, reader.getBundleType(), batch));
+					consumed = true;
+					batch.setLength(0);
+					count = 0;
+				}
+			}
+			if (null == session) {
+				session = open(reader.getBundleType(), requestDetails.getServletRequest());
+			}
+			if (count > 0) {
+				consume(requestDetails, session, toBundle(parser, reader.getBundleType(), batch));
+			} else
+			if (!consumed) {
+				// an empty Bundle is still checked before it is completed
+				requestDetails.setResource(toBundle(parser, reader.getBundleType(), batch));
+				preHandled(requestDetails);
+			}
+			log.trace("ingested ["+reader.getEntryCount()+"] entries of a ["+reader.getBundleType()+"] Bundle");
+			return session.complete();
+		} catch (DataFormatException e) {
+			abort(session, e, reader);
+			throw new InvalidRequestException(e.getMessage());
+		} catch (IOException | RuntimeException e) {
+			abort(session, e, reader);
+			throw e;
+		}
+	}
+
+	/*
+	 * The interceptors check each batch before the consumer sees it
+	 */
+	private void consume (ServletRequestDetails requestDetails, IOsgiBundleConsumer.Session session, IBaseBundle batch) {
+		requestDetails.setResource(batch);
+		preHandled(requestDetails);
+		session.consume(batch);
+	}
+
+	private IOsgiBundleConsumer.Session open (String bundleType, HttpServletRequest request) {
+		if (null == bundleType) {
+			throw new InvalidRequestException("Bundle.type must appear before Bundle.entry for streaming ingestion");
+		}
+		if (!bundleType.matches("[a-z-]+")) {
+			throw new InvalidRequestException("Invalid Bundle.type ["+bundleType+"]");
+		}
+		IOsgiBundleConsumer.Session session = consumer.open(bundleType, request);
+		if (null == session) {
+			throw new InvalidRequestException("Bundle.type ["+bundleType+"] is not accepted");
+		}
+		return session;
+	}
+
+	/*
+	 * Parse a batch of entries as a Bundle of the same type
+	 */
+	private static IBaseBundle toBundle (IParser parser, String bundleType, StringBuilder entries) {
+		entries.insert(0, "{\"resourceType\":\"Bundle\",\"type\":\""+bundleType+"\",\"entry\":[").append("]}");
+		return (IBaseBundle)parser.parseResource(entries.toString());
+	}
+
+	private static void abort (IOsgiBundleConsumer.Session session, Exception cause, StreamingBundleReader reader) {
+		log.trace("streaming ingestion failed after ["+((reader != null) ? reader.getEntryCount() : 0)+"] entries: "+cause.getMessage());
+		if (session != null) {
+			try {
+				session.abort(cause);
+			} catch (RuntimeException e) {
+				log.warn("Bundle consumer failed to abort: "+e.getMessage());
+			}
+		}
+	}
+
+	/*
+	 * Fails with 413 once more than the maximum bytes have been read
+	 */
+	private static class LimitedInputStream extends FilterInputStream {
+		private final long max;
+		private long count = 0;
+
+		private LimitedInputStream (InputStream in, long max) {
+			super(in);
+			this.max = max;
+		}
+
+		@Override
+		public int read () throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				count(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read (byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				count(n);
+			}
+			return n;
+		}
+
+		@Override
+		public long skip (long n) throws IOException {
+			long skipped = super.skip(n);
+			count(skipped);
+			return skipped;
+		}
+
+		private void count (long n) {
+			count += n;
+			if (max > 0 && count > max) {
+				throw new PayloadTooLargeException("Request body is larger than the maximum of ["+max+"] bytes");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,283 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+/**
+ * Reads the entries of a JSON Bundle one at a time, returning the
+ * text of each entry without parsing it, so that only one entry of
+ * the Bundle is held in memory at a time. Bundle.type must appear
+ * before Bundle.entry, as it does in Bundles encoded by HAPI FHIR.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class StreamingBundleReader implements Closeable {
+	private static final int BEFORE_ENTRIES = 0;
+	private static final int IN_ENTRIES = 1;
+	private static final int AFTER_ENTRIES = 2;
+
+	private final Reader reader;
+	private final char[] buffer = new char[8192];
+	private int position = 0;
+	private int limit = 0;
+
+	private int state = BEFORE_ENTRIES;
+	private boolean firstMember = true;
+	private boolean firstEntry = true;
+	private String resourceType;
+	private String bundleType;
+	private int entryCount = 0;
+
+	public StreamingBundleReader (Reader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * @return the JSON text of the next entry or null when there are no more entries
+	 * @throws IOException
+	 * @throws InvalidRequestException if the body isn't a JSON Bundle
+	 */
+	public String nextEntry () throws IOException {
+		if (BEFORE_ENTRIES == state) {
+			expect('{');
+			readMembers();
+		}
+		if (AFTER_ENTRIES == state) {
+			return null;
+		}
+		if (']' == skipWhitespace()) {
+			read();
+			state = AFTER_ENTRIES;
+			readMembers();
+			return null;
+		}
+		if (!firstEntry) {
+			expect(',');
+			skipWhitespace();
+		}
+		firstEntry = false;
+		if ('{' != peek()) {
+			throw new InvalidRequestException("Bundle.entry ["+entryCount+"] is not a JSON object");
+		}
+		StringBuilder entry = new StringBuilder(1024);
+		copyValue(entry);
+		entryCount++;
+		return entry.toString();
+	}
+
+	/**
+	 * @return the Bundle.type or null if it hasn't been read (yet)
+	 */
+	public String getBundleType () {
+		return bundleType;
+	}
+
+	/**
+	 * @return the number of entries read so far
+	 */
+	public int getEntryCount () {
+		return entryCount;
+	}
+
+	@Override
+	public void close () throws IOException {
+		reader.close();
+	}
+
+	/*
+	 * Read the members of the Bundle up to the start of the entries
+	 * or, once the entries have been read, to the end of the Bundle
+	 */
+	private void readMembers () throws IOException {
+		String name;
+		while ((name = nextMemberName()) != null) {
+			if ("entry".equals(name)) {
+				if (state != BEFORE_ENTRIES) {
+					throw new InvalidRequestException("Bundle.entry appears more than once");
+				}
+				checkResourceType();
+				expect('[');
+				state = IN_ENTRIES;
+				return;
+			} else
+			if ("resourceType".equals(name)) {
+				resourceType = readString();
+			} else
+			if ("type".equals(name)) {
+				bundleType = readString();
+			} else {
+				copyValue(null);
+			}
+		}
+		checkResourceType();
+		state = AFTER_ENTRIES;
+		if (skipWhitespace() >= 0) {
+			throw new InvalidRequestException("Unexpected content after the end of the Bundle");
+		}
+	}
+
+	private void checkResourceType () {
+		if (!"Bundle".equals(resourceType)) {
+			throw new InvalidRequestException("Expected a Bundle but found resourceType ["+resourceType+"]");
+		}
+	}
+
+	/*
+	 * @return the name of the next member of the Bundle or null at the end of the Bundle
+	 */
+	private String nextMemberName () throws IOException {
+		if ('}' == skipWhitespace()) {
+			read();
+			return null;
+		}
+		if (!firstMember) {
+			expect(',');
+			skipWhitespace();
+		}
+		firstMember = false;
+		String name = readString();
+		skipWhitespace();
+		expect(':');
+		skipWhitespace();
+		return name;
+	}
+
+	private String readString () throws IOException {
+		expect('"');
+		StringBuilder value = new StringBuilder();
+		int c;
+		while ((c = readRequired()) != '"') {
+			if ('\\' == c) {
+				c = readRequired();
+				switch (c) {
+					case 'b': c = '\b'; break;
+					case 'f': c = '\f'; break;
+					case 'n': c = '\n'; break;
+					case 'r': c = '\r'; break;
+					case 't': c = '\t'; break;
+					case 'u':
+						char[] hex = { (char)readRequired(), (char)readRequired(), (char)readRequired(), (char)readRequired() };
+						try {
+							c = Integer.parseInt(new String(hex), 16);
+						} catch (NumberFormatException e) {
+							throw new InvalidRequestException("Invalid JSON escape [\\u"+new String(hex)+"]");
+						}
+						break;
+					default:
+						break;
+				}
+			}
+			value.append((char)c);
+		}
+		return value.toString();
+	}
+
+	/*
+	 * Copy (or skip if out is null) the JSON value at the current position
+	 */
+	private void copyValue (StringBuilder out) throws IOException {
+		int c = peek();
+		if (c != '{' && c != '[' && c != '"') {
+			while ((c = peek()) >= 0 && ",}] \t\r\n".indexOf(c) < 0) {
+				append(out, read());
+			}
+			return;
+		}
+		int depth = 0;
+		do {
+			c = readRequired();
+			append(out, c);
+			if ('"' == c) {
+				while ((c = readRequired()) != '"') {
+					append(out, c);
+					if ('\\' == c) {
+						append(out, readRequired());
+					}
+				}
+				append(out, c);
+			} else
+			if ('{' == c || '[' == c) {
+				depth++;
+			} else
+			if ('}' == c || ']' == c) {
+				depth--;
+			}
+		} while (depth > 0);
+	}
+
+	private static void append (StringBuilder out, int c) {
+		if (out != null) {
+			out.append((char)c);
+		}
+	}
+
+	private void expect (char expected) throws IOException {
+		int c = read();
+		if (c != expected) {
+			throw new InvalidRequestException("Invalid JSON Bundle: expected ["+expected+"] but found ["+((c < 0) ? "end of input" : String.valueOf((char)c))+"]");
+		}
+	}
+
+	/*
+	 * @return the next character that isn't whitespace, without consuming it
+	 */
+	private int skipWhitespace () throws IOException {
+		int c;
+		while ((c = peek()) == ' ' || c == '\t' || c == '\r' || c == '\n') {
+			position++;
+		}
+		return c;
+	}
+
+	private int peek () throws IOException {
+		if (position == limit) {
+			limit = reader.read(buffer, 0, buffer.length);
+			position = 0;
+			if (limit <= 0) {
+				limit = 0;
+				return -1;
+			}
+		}
+		return buffer[position];
+	}
+
+	private int read () throws IOException {
+		int c = peek();
+		if (c >= 0) {
+			position++;
+		}
+		return c;
+	}
+
+	private int readRequired () throws IOException {
+		int c = read();
+		if (c < 0) {
+			throw new InvalidRequestException("Invalid JSON Bundle: unexpected end of input");
+		}
+		return c;
+	}
+
+}
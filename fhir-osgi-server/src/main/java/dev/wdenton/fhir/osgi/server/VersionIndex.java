@@ -0,0 +1,240 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.hl7.fhir.instance.model.api.IBaseMetaType;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+/**
+ * The current version of the resources served by a FHIR Server, used
+ * to answer conditional reads with 304 Not Modified without calling the
+ * provider. The index is filled from the responses to reads and can be
+ * fed directly by providers, which find it in the user data of the
+ * request:
+ * <code><pre>
+ * VersionIndex index = VersionIndex.of(requestDetails);
+ * if (index != null) {
+ *     index.update(requestDetails, patient);
+ * }
+ * </pre></code>
+ * Entries are removed by writes to the resource and when the provider
+ * that served them is unregistered. Every removal moves the generation
+ * of the resource forward, so a read that began before a write can't
+ * record the version it fetched once the write has removed it.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class VersionIndex {
+	public static final String USERDATA_KEY = VersionIndex.class.getName();
+	private static final int GENERATION_STRIPES = 1024;
+
+	private final Map<String,Entry> entries = new ConcurrentHashMap<>();
+	
+	// the generations of the resources (by hash) and of the whole index
+	private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+	private final AtomicLong indexGeneration = new AtomicLong();
+	private int maxEntries = 100000;
+
+	/**
+	 * @param requestDetails the request
+	 * @return the index of the server processing the request or null if it has none
+	 */
+	public static VersionIndex of (RequestDetails requestDetails) {
+		Object index = (requestDetails != null) ? requestDetails.getUserData().get(USERDATA_KEY) : null;
+		return (index instanceof VersionIndex) ? (VersionIndex)index : null;
+	}
+
+	/**
+	 * Record the current version of a resource
+	 *
+	 * @param tenantId the tenant or null
+	 * @param resourceType the resource type
+	 * @param idPart the resource id
+	 * @param versionId the current version id
+	 * @param lastModified when the resource was last modified or null if unknown
+	 * @param provider the provider serving the resource or null if unknown
+	 */
+	public void update (String tenantId, String resourceType, String idPart, String versionId, Date lastModified, Object provider) {
+		update(tenantId, resourceType, idPart, versionId, lastModified, provider, -1);
+	}
+
+	/*
+	 * Record the version unless the resource was invalidated since
+	 * fromGeneration (-1 = always record). The generation is checked
+	 * again after the put, as an invalidation may have come in between.
+	 */
+	private void update (String tenantId, String resourceType, String idPart, String versionId, Date lastModified, Object provider, long fromGeneration) {
+		if (null == resourceType || null == idPart || (null == versionId && null == lastModified)) {
+			return;
+		}
+		String key = getKey(tenantId, resourceType, idPart);
+		if (fromGeneration >= 0 && getGeneration(key) != fromGeneration) {
+			return;
+		}
+		if (entries.size() >= maxEntries && !entries.containsKey(key)) {
+			Iterator<String> keys = entries.keySet().iterator();
+			if (keys.hasNext()) {
+				keys.next();
+				keys.remove();
+			}
+		}
+		Entry entry = new Entry(versionId, (lastModified != null) ? lastModified.getTime() : 0, provider);
+		entries.put(key, entry);
+		if (fromGeneration >= 0 && getGeneration(key) != fromGeneration) {
+			entries.remove(key, entry);
+		}
+	}
+
+	/**
+	 * Record the current version of a resource returned for a request
+	 *
+	 * @param requestDetails the request
+	 * @param resource the current version of the resource
+	 */
+	public void update (RequestDetails requestDetails, IBaseResource resource) {
+		update(requestDetails, resource, -1);
+	}
+
+	/**
+	 * Record the current version of a resource returned for a request,
+	 * unless the resource was invalidated since the request began
+	 *
+	 * @param requestDetails the request
+	 * @param resource the version of the resource returned
+	 * @param fromGeneration the generation of the resource when the request began
+	 * @see #getGeneration(String, String, String)
+	 */
+	public void update (RequestDetails requestDetails, IBaseResource resource, long fromGeneration) {
+		IIdType id = resource.getIdElement();
+		if (null == id || !id.hasIdPart()) {
+			return;
+		}
+		String resourceType = id.hasResourceType() ? id.getResourceType() : requestDetails.getResourceName();
+		IBaseMetaType meta = resource.getMeta();
+		String versionId = id.hasVersionIdPart() ? id.getVersionIdPart() : (meta != null) ? meta.getVersionId() : null;
+		Date lastModified = (meta != null) ? meta.getLastUpdated() : null;
+		update(requestDetails.getTenantId(), resourceType, id.getIdPart(), versionId, lastModified,
+				requestDetails.getUserData().get(SimpleOsgiRestfulServer.USERDATA_PROVIDER), fromGeneration);
+	}
+
+	/**
+	 * @return the generation of the resource, which moves forward whenever it is invalidated
+	 */
+	public long getGeneration (String tenantId, String resourceType, String idPart) {
+		return getGeneration(getKey(tenantId, resourceType, idPart));
+	}
+
+	private long getGeneration (String key) {
+		// both only ever grow, so the sum changes whenever either does
+		return generations.get(getStripe(key)) + indexGeneration.get();
+	}
+
+	/**
+	 * @return the recorded version of the resource or null if it isn't known
+	 */
+	public Entry get (String tenantId, String resourceType, String idPart) {
+		return entries.get(getKey(tenantId, resourceType, idPart));
+	}
+
+	public void invalidate (String tenantId, String resourceType, String idPart) {
+		String key = getKey(tenantId, resourceType, idPart);
+		generations.incrementAndGet(getStripe(key));
+		entries.remove(key);
+	}
+
+	public void invalidateType (String tenantId, String resourceType) {
+		String prefix = getKey(tenantId, resourceType, "");
+		indexGeneration.incrementAndGet();
+		entries.keySet().removeIf(key -> key.startsWith(prefix));
+	}
+
+	/**
+	 * Remove the entries recorded for the resources served by a provider
+	 *
+	 * @param provider the provider
+	 */
+	public void invalidateProvider (Object provider) {
+		indexGeneration.incrementAndGet();
+		entries.values().removeIf(entry -> entry.provider == provider);
+	}
+
+	public void clear () {
+		indexGeneration.incrementAndGet();
+		entries.clear();
+	}
+
+	public int size () {
+		return entries.size();
+	}
+
+	public int getMaxEntries () {
+		return maxEntries;
+	}
+
+	public void setMaxEntries (int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	private static int getStripe (String key) {
+		return (key.hashCode() & 0x7fffffff) % GENERATION_STRIPES;
+	}
+
+	private static String getKey (String tenantId, String resourceType, String idPart) {
+		return ((tenantId != null) ? tenantId : "")+"|"+resourceType+"/"+idPart;
+	}
+
+	/*
+	 * The recorded version of a resource
+	 */
+	public static class Entry {
+		private final String versionId;
+		private final long lastModified;
+		private final Object provider;
+
+		private Entry (String versionId, long lastModified, Object provider) {
+			this.versionId = versionId;
+			this.lastModified = lastModified;
+			this.provider = provider;
+		}
+
+		public String getVersionId () {
+			return versionId;
+		}
+
+		/**
+		 * @return when the resource was last modified (millis) or 0 if unknown
+		 */
+		public long getLastModified () {
+			return lastModified;
+		}
+	}
+
+}
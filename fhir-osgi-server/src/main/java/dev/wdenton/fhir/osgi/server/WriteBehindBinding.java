@@ -0,0 +1,101 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/**
+ * The binding of the creates and updates written behind by a
+ * {@code WriteBehindWriter} and of the requests for their status
+ * ({@code $write-status}, an operation on the server). A write is
+ * parsed and given to the PRE_HANDLED hooks as the resource of the
+ * request, so the authorization and consent interceptors can reject
+ * it, before it is journaled and answered with 202 Accepted.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class WriteBehindBinding extends ManualMethodBinding {
+
+	private final WriteBehindWriter writer;
+
+	/**
+	 * @param fhirContext the FHIR context of the server
+	 * @param provider the journal writer of the resource type, or the write-behind writer for the status
+	 * @param writer the write-behind writer
+	 * @param operation CREATE, UPDATE or EXTENDED_OPERATION_SERVER for the status
+	 * @param resourceName the resource type written (null for the status)
+	 */
+	public WriteBehindBinding (FhirContext fhirContext, Object provider, WriteBehindWriter writer, RestOperationTypeEnum operation, String resourceName) {
+		super(fhirContext, provider, operation, resourceName);
+		this.writer = writer;
+	}
+
+	@Override
+	protected void handle (ServletRequestDetails requestDetails) throws IOException {
+		HttpServletRequest request = requestDetails.getServletRequest();
+		WriteBehindWriter.Status status;
+		if (RestOperationTypeEnum.EXTENDED_OPERATION_SERVER == getRestOperationType()) {
+			preHandled(requestDetails);
+			status = writer.getStatus(request.getParameter("_id"));
+		} else {
+			IIdType id = requestDetails.getId();
+			boolean update = RestOperationTypeEnum.UPDATE == getRestOperationType();
+			if (update && (null == id || !id.hasIdPart())) {
+				throw new InvalidRequestException("An update must have the id of the resource in the URL");
+			}
+			IBaseResource resource = writer.parse(requestDetails, getResourceName(), update ? id.getIdPart() : null);
+			requestDetails.setResource(resource);
+			preHandled(requestDetails);
+			status = writer.journal(getResourceName(), update, resource);
+		}
+		int statusCode = status.isQueued() ? HttpServletResponse.SC_ACCEPTED : HttpServletResponse.SC_OK;
+		ResponseDetails responseDetails = new ResponseDetails();
+		responseDetails.setResponseCode(statusCode);
+		if (!outgoingResponse(requestDetails, responseDetails)) {
+			return;
+		}
+		HttpServletResponse response = requestDetails.getServletResponse();
+		response.setStatus(statusCode);
+		if (RestOperationTypeEnum.EXTENDED_OPERATION_SERVER != getRestOperationType()) {
+			response.setHeader("Content-Location", WriteBehindWriter.getStatusUrl(request, status));
+		} else
+		if (status.isQueued()) {
+			response.setHeader("Retry-After", "1");
+		} else
+		if (status.getLocation() != null) {
+			response.setHeader("Location", status.getLocation());
+		}
+		status.write(response);
+	}
+
+}
@@ -0,0 +1,182 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The write-behind records that could not be written, kept in a file
+ * next to the journal so that an accepted write is never lost: each
+ * record is appended with its error and forced to disk before the
+ * journal is committed past it. The errors are loaded when the file is
+ * opened so that the status of a failed write survives a restart; the
+ * journaled payloads are only kept for an operator to replay.
+ * <p>
+ * Each record is its sequence, the length of the error and the error
+ * (UTF-8, at most 16K characters), the length of the payload and the
+ * payload. A torn record at the end of the file (a crash while
+ * appending) is truncated when the file is opened.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class WriteBehindDeadLetters implements Closeable {
+	private static Logger log = LoggerFactory.getLogger(WriteBehindDeadLetters.class);
+	public static final String FILE_NAME = "dead-letters";
+	private static final int MAX_ERROR_CHARS = 16 * 1024;
+
+	private final Path file;
+
+	// the error of each dead-lettered sequence and the file they are appended to, guarded by this
+	private final Map<Long,String> errors = new HashMap<>();
+	private FileChannel channel;
+
+	/**
+	 * Open the dead letters of a journal, creating the file if needed
+	 *
+	 * @param directory the directory of the journal
+	 * @throws IOException
+	 */
+	public WriteBehindDeadLetters (Path directory) throws IOException {
+		this.file = directory.resolve(FILE_NAME);
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long valid = load();
+		if (valid < channel.size()) {
+			log.warn("Truncating the torn record at ["+valid+"] of ["+file+"]");
+			channel.truncate(valid);
+			channel.force(false);
+		}
+		channel.position(valid);
+		if (!errors.isEmpty()) {
+			log.warn("["+errors.size()+"] write-behind records could not be written. See ["+file+"]");
+		}
+	}
+
+	/**
+	 * Append records that could not be written and force them to disk
+	 *
+	 * @param records the journaled records
+	 * @param error why they could not be written
+	 * @throws IOException
+	 */
+	public synchronized void add (List<WriteBehindJournal.Record> records, String error) throws IOException {
+		if (null == channel) {
+			throw new ClosedChannelException();
+		}
+		String message = (error.length() > MAX_ERROR_CHARS) ? error.substring(0, MAX_ERROR_CHARS) : error;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		byte[] encoded = message.getBytes(StandardCharsets.UTF_8);
+		for (WriteBehindJournal.Record record : records) {
+			out.writeLong(record.getSequence());
+			out.writeInt(encoded.length);
+			out.write(encoded);
+			out.writeInt(record.getPayload().length);
+			out.write(record.getPayload());
+		}
+		out.flush();
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		channel.force(false);
+		for (WriteBehindJournal.Record record : records) {
+			errors.put(record.getSequence(), message);
+		}
+	}
+
+	/**
+	 * @param sequence the sequence of a journaled write
+	 * @return why it could not be written or null if it isn't a dead letter
+	 */
+	public synchronized String getError (long sequence) {
+		return errors.get(sequence);
+	}
+
+	/**
+	 * @return the number of records that could not be written
+	 */
+	public synchronized int size () {
+		return errors.size();
+	}
+
+	public Path getFile () {
+		return file;
+	}
+
+	@Override
+	public synchronized void close () throws IOException {
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+
+	/*
+	 * Read the errors of the complete records, returning where they end
+	 */
+	private long load () throws IOException {
+		long size = channel.size();
+		long valid = 0;
+		DataInputStream in = new DataInputStream(Channels.newInputStream(channel.position(0)));
+		try {
+			while (valid < size) {
+				long sequence = in.readLong();
+				int errorLength = in.readInt();
+				if (errorLength < 0 || valid + 12 + errorLength + 4 > size) {
+					break;
+				}
+				byte[] error = new byte[errorLength];
+				in.readFully(error);
+				int length = in.readInt();
+				long end = valid + 12 + errorLength + 4 + length;
+				if (length < 0 || end > size) {
+					break;
+				}
+				// the stream reads from the position of the channel
+				channel.position(end);
+				errors.put(sequence, new String(error, StandardCharsets.UTF_8));
+				valid = end;
+			}
+		} catch (EOFException e) {
+			// a torn record
+		}
+		return valid;
+	}
+
+}
@@ -0,0 +1,262 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Startup Benchmark
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.ConfigurationException;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.server.method.BaseMethodBinding;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import dev.wdenton.fhir.osgi.server.diagnostics.ServerFootprint;
+
+/**
+ * Answers creates ({@code POST [base]/Type}) and updates
+ * ({@code PUT [base]/Type/id}) of the write-behind resource types with
+ * 202 Accepted once they are in the write-behind journal on disk. The
+ * journaled resources are written in batches by the registered
+ * {@code IOsgiJournalWriter} of their type on a background thread, which
+ * starts when the feature is registered with the writes left in the
+ * journal. Types without a registered writer, conditional requests and
+ * multi-tenant servers are handled by the providers as usual.
+ * <p>
+ * Once a batch is written, the other features are told about each
+ * resource, as a provider's write would have told their interceptors.
+ * The settings apply when the feature is registered.
+ * @see WriteBehindWriter
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class WriteBehindFeature implements IOsgiServerFeature {
+	private static Logger log = LoggerFactory.getLogger(WriteBehindFeature.class);
+
+	private Set<String> types = Collections.emptySet();
+	private String journalDirectory;
+	private long journalSegmentSize = 64L * 1024 * 1024;
+	private int batchSize = 100;
+	private long maxBodySize = 256L * 1024 * 1024;
+	private long retryMillis = 1000;
+	private int maxRetries = -1;
+
+	private volatile SimpleOsgiRestfulServer server;
+	private volatile WriteBehindWriter writer;
+
+	/**
+	 * Open the journal and start writing the creates and updates left in it
+	 * 
+	 * @throws ConfigurationException if there are no types or journal directory, or the journal can't be opened
+	 */
+	@Override
+	public synchronized void install (SimpleOsgiRestfulServer server) throws ConfigurationException {
+		if (types.isEmpty()) {
+			throw new ConfigurationException("Write-behind types are not set");
+		}
+		if (null == journalDirectory) {
+			throw new ConfigurationException("Write-behind of ["+types+"] is off. The journalDirectory is not set");
+		}
+		WriteBehindJournal journal = null;
+		try {
+			journal = new WriteBehindJournal(Paths.get(journalDirectory), journalSegmentSize);
+			WriteBehindDeadLetters deadLetters = new WriteBehindDeadLetters(journal.getDirectory());
+			writer = new WriteBehindWriter(server.getFhirContext(), journal, deadLetters, server::getJournalWriter,
+					(type, entries, ids) -> writtenBehind(server, type, entries, ids), batchSize, maxBodySize, retryMillis, maxRetries);
+		} catch (IOException e) {
+			if (journal != null) {
+				try {
+					journal.close();
+				} catch (IOException e2) {
+					log.warn("Unable to close the write-behind journal: "+e2.getMessage());
+				}
+			}
+			throw new ConfigurationException("Write-behind of ["+types+"] is off. Unable to open the journal ["+journalDirectory+"]", e);
+		}
+		this.server = server;
+	}
+
+	/**
+	 * Stop writing. The writes that haven't been written stay in the journal.
+	 */
+	@Override
+	public synchronized void uninstall (SimpleOsgiRestfulServer server) {
+		this.server = null;
+		if (writer != null) {
+			writer.shutdown();
+			writer = null;
+		}
+	}
+
+	/**
+	 * @return the write-behind writer or null if the feature isn't registered
+	 */
+	public WriteBehindWriter getWriter () {
+		return writer;
+	}
+
+	@Override
+	public BaseMethodBinding<?> resolveMethod (ServletRequestDetails requestDetails) {
+		SimpleOsgiRestfulServer current = server;
+		WriteBehindWriter journaled = writer;
+		if (null == current || null == journaled || current.getTenantIdentificationStrategy() != null) {
+			return null;
+		}
+		HttpServletRequest request = requestDetails.getServletRequest();
+		if (WriteBehindWriter.isStatusRequest(request)) {
+			return current.getManualBinding(journaled, "write-status",
+					() -> new WriteBehindBinding(current.getFhirContext(), journaled, journaled, RestOperationTypeEnum.EXTENDED_OPERATION_SERVER, null));
+		}
+		String type = WriteBehindWriter.getWriteBehindType(request, types);
+		IOsgiJournalWriter journalWriter = (type != null) ? current.getJournalWriter(type) : null;
+		if (null == journalWriter) {
+			return null;
+		}
+		RestOperationTypeEnum operation = "PUT".equals(request.getMethod()) ? RestOperationTypeEnum.UPDATE : RestOperationTypeEnum.CREATE;
+		return current.getManualBinding(journalWriter, "write-behind-"+type+"-"+operation,
+				() -> new WriteBehindBinding(current.getFhirContext(), journalWriter, journaled, operation, type));
+	}
+
+	/*
+	 * A batch of journaled writes has been written: the server is told
+	 * about each resource (the 202 Accepted of the request isn't published)
+	 */
+	private static void writtenBehind (SimpleOsgiRestfulServer server, String resourceType, List<IOsgiJournalWriter.Entry> entries, List<IIdType> ids) {
+		for (int i = 0; i < entries.size(); i++) {
+			IOsgiJournalWriter.Entry entry = entries.get(i);
+			IIdType id = (ids != null && i < ids.size()) ? ids.get(i) : null;
+			if (null == id || !id.hasIdPart()) {
+				id = entry.getResource().getIdElement();
+			}
+			String idPart = (id != null && id.hasIdPart()) ? id.getIdPart() : null;
+			String versionId = (idPart != null) ? id.getVersionIdPart() : null;
+			server.resourceWritten(entry.isUpdate() ? RestOperationTypeEnum.UPDATE : RestOperationTypeEnum.CREATE, null, resourceType, idPart, versionId);
+		}
+	}
+
+	public String getTypes () {
+		return String.join(",", types);
+	}
+
+	/**
+	 * @param types comma separated resource types written behind
+	 */
+	public void setTypes (String types) {
+		Set<String> typeSet = new LinkedHashSet<>();
+		if (types != null) {
+			for (String type : types.split(",")) {
+				if (!type.trim().isEmpty()) {
+					typeSet.add(type.trim());
+				}
+			}
+		}
+		this.types = typeSet;
+	}
+
+	public String getJournalDirectory () {
+		return journalDirectory;
+	}
+
+	/**
+	 * @param journalDirectory the directory of the write-behind journal.
+	 * This must be on durable storage and not shared with another server.
+	 */
+	public void setJournalDirectory (String journalDirectory) {
+		this.journalDirectory = journalDirectory;
+	}
+
+	public long getJournalSegmentSize () {
+		return journalSegmentSize;
+	}
+
+	/**
+	 * @param journalSegmentSize the size in bytes at which the journal starts a new segment file
+	 */
+	public void setJournalSegmentSize (long journalSegmentSize) {
+		this.journalSegmentSize = journalSegmentSize;
+	}
+
+	public int getBatchSize () {
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize the most writes handed to a journal writer at a time
+	 */
+	public void setBatchSize (int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public long getMaxBodySize () {
+		return maxBodySize;
+	}
+
+	/**
+	 * @param maxBodySize the largest create or update journaled in bytes (0 = no limit)
+	 */
+	public void setMaxBodySize (long maxBodySize) {
+		this.maxBodySize = maxBodySize;
+	}
+
+	public long getRetryMillis () {
+		return retryMillis;
+	}
+
+	/**
+	 * @param retryMillis the delay before a failed batch is first
+	 * retried. The delay doubles with each retry, up to a minute.
+	 */
+	public void setRetryMillis (long retryMillis) {
+		this.retryMillis = retryMillis;
+	}
+
+	public int getMaxRetries () {
+		return maxRetries;
+	}
+
+	/**
+	 * @param maxRetries the retries before the writes of a batch are
+	 * moved to the dead-letter file of the journal and reported as
+	 * failed (negative = retry forever, the default)
+	 */
+	public void setMaxRetries (int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	@Override
+	public void describeFootprint (ServerFootprint footprint) {
+		WriteBehindWriter journaled = writer;
+		if (journaled != null) {
+			footprint.addStatistic("writeBehind.backlog", journaled.getJournal().getBacklog());
+			footprint.addStatistic("writeBehind.committed", journaled.getJournal().getCommittedSequence());
+			footprint.addStatistic("writeBehind.deadLetters", journaled.getDeadLetters().size());
+		}
+	}
+
+}
@@ -0,0 +1,537 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A segmented append-only journal of records numbered by a sequence.
+ * Records are appended by the request threads and made durable with
+ * {@link #sync(long)}: one {@code force} covers every record appended
+ * before it, so concurrent writers share their fsyncs. A single reader
+ * reads the durable records in order and commits them once they have
+ * been handled; the committed sequence is kept in a checkpoint file and
+ * the segments holding only committed records are deleted.
+ * <p>
+ * Each record is its length, sequence and CRC32 followed by the
+ * payload. A torn record at the end of the last segment (a crash while
+ * appending) is truncated when the journal is opened; a record of an
+ * earlier segment that fails its CRC is read as not intact. The
+ * checkpoint file and its directory are forced on every commit.
+ * <p>
+ * The interrupt status of a thread is cleared while it appends or
+ * forces, as an interrupt closes the channel. A segment closed by an
+ * interrupt arriving during a force is reopened and forced again.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class WriteBehindJournal implements Closeable {
+	private static Logger log = LoggerFactory.getLogger(WriteBehindJournal.class);
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String CHECKPOINT = "checkpoint";
+	private static final int HEADER_BYTES = 16;
+	private static final int MAX_RECORD_BYTES = Integer.MAX_VALUE - HEADER_BYTES;
+
+	private final Path directory;
+	private final long segmentSize;
+
+	// appending, guarded by this
+	private FileChannel channel;
+	private Path channelSegment;
+	private long segmentBytes;
+	private long nextSequence;
+
+	// the last record known to be on disk
+	private final Object syncLock = new Object();
+	private volatile long syncedSequence;
+
+	// reading, only used by the reader thread
+	private final Object readable = new Object();
+	private FileChannel readChannel;
+	private Path readSegment;
+	private long readPosition;
+	private long lastRead;
+	private volatile long committedSequence;
+
+	/**
+	 * Open the journal in a directory, creating it if needed
+	 *
+	 * @param directory the directory of the segments
+	 * @param segmentSize the size at which a new segment is started
+	 * @throws IOException
+	 */
+	public WriteBehindJournal (Path directory, long segmentSize) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		Files.createDirectories(directory);
+		committedSequence = readCheckpoint();
+		nextSequence = committedSequence + 1;
+		List<Path> segments = listSegments();
+		if (!segments.isEmpty()) {
+			nextSequence = Math.max(nextSequence, recover(segments.get(segments.size() - 1)) + 1);
+		}
+		syncedSequence = nextSequence - 1;
+		lastRead = committedSequence;
+		openSegment();
+		log.trace("opened journal ["+directory+"] committed ["+committedSequence+"] next ["+nextSequence+"]");
+	}
+
+	/**
+	 * Append a record. It isn't durable until {@link #sync(long)} returns.
+	 *
+	 * @param payload the content of the record
+	 * @return the sequence of the record
+	 * @throws IOException
+	 */
+	public synchronized long append (byte[] payload) throws IOException {
+		if (null == channel) {
+			throw new ClosedChannelException();
+		}
+		if (payload.length > MAX_RECORD_BYTES) {
+			throw new IOException("Journal record of ["+payload.length+"] bytes is too large");
+		}
+		boolean interrupted = Thread.interrupted();
+		try {
+			if (segmentBytes > 0 && segmentBytes + HEADER_BYTES + payload.length > segmentSize) {
+				channel.force(false);
+				channel.close();
+				openSegment();
+			}
+			long sequence = nextSequence;
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+			ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+			record.putInt(payload.length).putLong(sequence).putInt((int)crc.getValue()).put(payload).flip();
+			try {
+				while (record.hasRemaining()) {
+					channel.write(record);
+				}
+			} catch (IOException e) {
+				// don't leave a torn record in front of the next one
+				if (channel.isOpen()) {
+					channel.truncate(segmentBytes);
+				} else {
+					reopenSegment();
+				}
+				throw e;
+			}
+			segmentBytes += record.capacity();
+			nextSequence++;
+			return sequence;
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Wait until a record is on disk. Threads waiting while another
+	 * thread forces the segment are usually covered by that force.
+	 *
+	 * @param sequence the sequence of an appended record
+	 * @throws IOException
+	 */
+	public void sync (long sequence) throws IOException {
+		synchronized (syncLock) {
+			if (syncedSequence >= sequence) {
+				return;
+			}
+			FileChannel current;
+			Path segment;
+			long upTo;
+			synchronized (this) {
+				current = channel;
+				segment = channelSegment;
+				upTo = nextSequence - 1;
+			}
+			if (null == current) {
+				throw new ClosedChannelException();
+			}
+			boolean interrupted = Thread.interrupted();
+			try {
+				force(current, segment);
+			} finally {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			syncedSequence = upTo;
+		}
+		synchronized (readable) {
+			readable.notifyAll();
+		}
+	}
+
+	/*
+	 * Force a segment. A closed segment has only been forced if a new
+	 * segment was started since; one closed by an interrupt is reopened
+	 * and forced again.
+	 */
+	private void force (FileChannel current, Path segment) throws IOException {
+		try {
+			current.force(false);
+		} catch (ClosedChannelException e) {
+			FileChannel reopened;
+			synchronized (this) {
+				if (null == channel) {
+					throw e;
+				}
+				if (!segment.equals(channelSegment)) {
+					// a new segment was started, which forced this one
+					return;
+				}
+				if (channel == current) {
+					if (!(e instanceof AsynchronousCloseException)) {
+						throw e;
+					}
+					log.warn("Journal segment ["+segment+"] was closed by an interrupt. Reopening it");
+					reopenSegment();
+				}
+				reopened = channel;
+			}
+			reopened.force(false);
+		}
+	}
+
+	/**
+	 * Read the next durable records. Only one thread reads the journal.
+	 *
+	 * @param max the most records returned
+	 * @param timeoutMillis how long to wait for a record
+	 * @return the records after the last one read, empty if none arrived in time
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public List<Record> read (int max, long timeoutMillis) throws IOException, InterruptedException {
+		synchronized (readable) {
+			if (lastRead >= syncedSequence) {
+				readable.wait(timeoutMillis);
+			}
+		}
+		List<Record> records = new ArrayList<>();
+		while (records.size() < max && lastRead < syncedSequence) {
+			Record record = readNext();
+			if (null == record) {
+				break;
+			}
+			if (record.sequence > lastRead) {
+				records.add(record);
+				lastRead = record.sequence;
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Record that every record up to a sequence has been handled
+	 *
+	 * @param sequence the last handled record
+	 * @throws IOException
+	 */
+	public void commit (long sequence) throws IOException {
+		committedSequence = sequence;
+		Path checkpoint = directory.resolve(CHECKPOINT);
+		Path temp = directory.resolve(CHECKPOINT+".tmp");
+		try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer content = ByteBuffer.wrap(Long.toString(sequence).getBytes(StandardCharsets.US_ASCII));
+			while (content.hasRemaining()) {
+				out.write(content);
+			}
+			out.force(true);
+		}
+		Files.move(temp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		forceDirectory();
+
+		// a segment is done when the next one starts at or before the committed record
+		List<Path> segments = listSegments();
+		for (int i = 0; i < segments.size() - 1; i++) {
+			if (firstSequence(segments.get(i + 1)) - 1 <= sequence && !segments.get(i).equals(readSegment)) {
+				Files.deleteIfExists(segments.get(i));
+			}
+		}
+	}
+
+	@Override
+	public void close () throws IOException {
+		synchronized (this) {
+			if (channel != null) {
+				channel.force(false);
+				channel.close();
+				channel = null;
+			}
+		}
+		if (readChannel != null) {
+			readChannel.close();
+			readChannel = null;
+		}
+	}
+
+	public synchronized long getNextSequence () {
+		return nextSequence;
+	}
+
+	public long getSyncedSequence () {
+		return syncedSequence;
+	}
+
+	public long getCommittedSequence () {
+		return committedSequence;
+	}
+
+	/**
+	 * @return the number of durable records that haven't been committed
+	 */
+	public long getBacklog () {
+		return Math.max(0, syncedSequence - committedSequence);
+	}
+
+	public Path getDirectory () {
+		return directory;
+	}
+
+	/*
+	 * Read the record at the read position, moving to the next segment
+	 * at the end of one
+	 */
+	private Record readNext () throws IOException {
+		if (null == readChannel) {
+			readSegment = findSegment(lastRead + 1);
+			if (null == readSegment) {
+				return null;
+			}
+			readChannel = FileChannel.open(readSegment, StandardOpenOption.READ);
+			readPosition = 0;
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		if (!readFully(readChannel, header, readPosition)) {
+			// the end of the segment.. the next record is in the next one
+			readChannel.close();
+			readChannel = null;
+			Path next = directory.resolve(segmentName(lastRead + 1));
+			if (next.equals(readSegment) || !Files.exists(next)) {
+				readSegment = null;
+				return null;
+			}
+			readSegment = next;
+			readChannel = FileChannel.open(readSegment, StandardOpenOption.READ);
+			readPosition = 0;
+			if (!readFully(readChannel, header, readPosition)) {
+				return null;
+			}
+		}
+		header.flip();
+		int length = header.getInt();
+		long sequence = header.getLong();
+		int crc = header.getInt();
+		if (length < 0 || length > readChannel.size() - readPosition - HEADER_BYTES) {
+			throw new IOException("Journal record after ["+lastRead+"] in ["+readSegment+"] has an invalid length ["+length+"]");
+		}
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		if (!readFully(readChannel, payload, readPosition + HEADER_BYTES)) {
+			throw new IOException("Journal record ["+sequence+"] in ["+readSegment+"] is incomplete");
+		}
+		readPosition += HEADER_BYTES + length;
+		CRC32 check = new CRC32();
+		check.update(payload.array());
+		if ((int)check.getValue() != crc) {
+			log.error("Journal record ["+sequence+"] in ["+readSegment+"] fails its CRC");
+			return new Record(sequence, payload.array(), false);
+		}
+		return new Record(sequence, payload.array(), true);
+	}
+
+	/*
+	 * Truncate a torn record at the end of the last segment
+	 * @return the sequence of its last record
+	 */
+	private long recover (Path segment) throws IOException {
+		long last = firstSequence(segment) - 1;
+		try (FileChannel in = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long position = 0;
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			while (readFully(in, header, position)) {
+				header.flip();
+				int length = header.getInt();
+				long sequence = header.getLong();
+				int crc = header.getInt();
+				header.clear();
+				if (length < 0 || length > in.size() - position - HEADER_BYTES) {
+					break;
+				}
+				ByteBuffer payload = ByteBuffer.allocate(length);
+				if (!readFully(in, payload, position + HEADER_BYTES)) {
+					break;
+				}
+				CRC32 check = new CRC32();
+				check.update(payload.array());
+				if ((int)check.getValue() != crc) {
+					break;
+				}
+				last = sequence;
+				position += HEADER_BYTES + length;
+			}
+			if (position < in.size()) {
+				log.warn("Truncating ["+(in.size() - position)+"] bytes of a torn record at the end of journal segment ["+segment+"]");
+				in.truncate(position);
+				in.force(false);
+			}
+		}
+		return last;
+	}
+
+	private static boolean readFully (FileChannel in, ByteBuffer buffer, long position) throws IOException {
+		buffer.clear();
+		while (buffer.hasRemaining()) {
+			if (in.read(buffer, position + buffer.position()) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Must hold this (or be in the constructor)
+	 */
+	private void openSegment () throws IOException {
+		channelSegment = directory.resolve(segmentName(nextSequence));
+		channel = FileChannel.open(channelSegment, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		segmentBytes = channel.size();
+	}
+
+	/*
+	 * Reopen the current segment after an interrupt closed it, dropping
+	 * any part of a record written after the last complete one. Must
+	 * hold this with the interrupt status cleared.
+	 */
+	private void reopenSegment () throws IOException {
+		channel = FileChannel.open(channelSegment, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		channel.truncate(segmentBytes);
+	}
+
+	/*
+	 * Make the rename of the checkpoint durable. Not every platform
+	 * can force a directory.
+	 */
+	private void forceDirectory () {
+		try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+			dir.force(true);
+		} catch (IOException e) {
+			log.debug("Unable to force the journal directory ["+directory+"]: "+e.getMessage());
+		}
+	}
+
+	/*
+	 * The segment holding a sequence: the last one starting at or before it
+	 */
+	private Path findSegment (long sequence) throws IOException {
+		Path found = null;
+		for (Path segment : listSegments()) {
+			if (firstSequence(segment) <= sequence) {
+				found = segment;
+			}
+		}
+		return found;
+	}
+
+	private List<Path> listSegments () throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			List<Path> segments = files.filter(file -> {
+				String name = file.getFileName().toString();
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}).collect(Collectors.toList());
+			Collections.sort(segments);
+			return segments;
+		}
+	}
+
+	private long readCheckpoint () throws IOException {
+		Path checkpoint = directory.resolve(CHECKPOINT);
+		if (!Files.exists(checkpoint)) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(new String(Files.readAllBytes(checkpoint), StandardCharsets.US_ASCII).trim());
+		} catch (NumberFormatException e) {
+			throw new IOException("Journal checkpoint ["+checkpoint+"] is invalid");
+		}
+	}
+
+	private static String segmentName (long firstSequence) {
+		return String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX);
+	}
+
+	private static long firstSequence (Path segment) {
+		String name = segment.getFileName().toString();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	/**
+	 * A record read from the journal
+	 */
+	public static class Record {
+		private final long sequence;
+		private final byte[] payload;
+		private final boolean intact;
+
+		Record (long sequence, byte[] payload, boolean intact) {
+			this.sequence = sequence;
+			this.payload = payload;
+			this.intact = intact;
+		}
+
+		public long getSequence () {
+			return sequence;
+		}
+
+		public byte[] getPayload () {
+			return payload;
+		}
+
+		/**
+		 * @return false if the payload fails its CRC
+		 */
+		public boolean isIntact () {
+			return intact;
+		}
+	}
+
+}
@@ -0,0 +1,578 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.PayloadTooLargeException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/**
+ * Accepts creates ({@code POST [base]/Type}) and updates
+ * ({@code PUT [base]/Type/id}) into a {@code WriteBehindJournal} and
+ * answers 202 Accepted once the write is on disk, with the URL of its
+ * status ({@code [base]/$write-status?_id=sequence}) in Content-Location.
+ * A background thread reads the journal and hands the writes to the
+ * {@code IOsgiJournalWriter} of their type in batches, retrying a
+ * failed batch with an increasing delay.
+ * <p>
+ * The requests are routed to a {@code WriteBehindBinding}, so they pass
+ * through the RestfulServer's interceptors; the request is parsed to
+ * check that it is a valid resource of the type in the URL before it
+ * is accepted. Conditional creates and updates are left to the
+ * RestfulServer.
+ * <p>
+ * The journal is only committed past a write once it has been written
+ * or, if it can't be (it can't be read or its batch failed more than
+ * the maximum retries), once it is in the {@code WriteBehindDeadLetters}
+ * on disk, so a committed write that isn't a dead letter has been written.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class WriteBehindWriter {
+	private static Logger log = LoggerFactory.getLogger(WriteBehindWriter.class);
+	public static final String STATUS_PATH = "/$write-status";
+	private static final Pattern RESOURCE_PATH = Pattern.compile("^/([A-Z][A-Za-z]{1,63})(?:/([A-Za-z0-9\\-\\.]{1,64}))?/?$");
+	private static final int CREATE = 'C';
+	private static final int UPDATE = 'U';
+	private static final int MAX_LOCATIONS = 10000;
+	private static final long MAX_RETRY_DELAY_MILLIS = 60 * 1000L;
+
+	private final FhirContext fhirContext;
+	private final WriteBehindJournal journal;
+	private final WriteBehindDeadLetters deadLetters;
+	private final Function<String,IOsgiJournalWriter> writers;
+	private final Listener listener;
+	private final int batchSize;
+	private final long maxBodySize;
+	private final long retryMillis;
+	private final int maxRetries;
+
+	// the location of the most recently written resources, guarded by itself
+	private final Map<Long,String> locations = new LinkedHashMap<Long,String>(256, 0.75f, false) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry (Map.Entry<Long,String> eldest) {
+			return size() > MAX_LOCATIONS;
+		}
+	};
+
+	private final Thread drainer;
+	private volatile boolean running = true;
+
+	/**
+	 * Called by the background thread once a batch has been written
+	 */
+	public interface Listener {
+
+		/**
+		 * @param resourceType the type of the written resources
+		 * @param entries the written creates and updates
+		 * @param ids the id (with the version) of each written resource, or null if the writer doesn't return them
+		 */
+		public void written (String resourceType, List<IOsgiJournalWriter.Entry> entries, List<IIdType> ids);
+	}
+
+	/**
+	 * @param fhirContext the FHIR context of the server
+	 * @param journal the journal of accepted writes
+	 * @param deadLetters the journaled writes that could not be written
+	 * @param writers finds the registered writer of a resource type
+	 * @param listener told about the written batches (may be null)
+	 * @param batchSize the most writes handed to a writer at a time
+	 * @param maxBodySize the largest accepted resource in bytes (0 = no limit)
+	 * @param retryMillis the delay before a failed batch is first retried
+	 * @param maxRetries the retries before a batch is moved to the dead letters (negative = retry forever)
+	 */
+	public WriteBehindWriter (FhirContext fhirContext, WriteBehindJournal journal, WriteBehindDeadLetters deadLetters,
+			Function<String,IOsgiJournalWriter> writers, Listener listener, int batchSize, long maxBodySize, long retryMillis, int maxRetries) {
+		this.fhirContext = fhirContext;
+		this.journal = journal;
+		this.deadLetters = deadLetters;
+		this.writers = writers;
+		this.listener = listener;
+		this.batchSize = Math.max(1, batchSize);
+		this.maxBodySize = maxBodySize;
+		this.retryMillis = Math.max(1, retryMillis);
+		this.maxRetries = maxRetries;
+		drainer = new Thread(this::drain, "fhir-write-behind");
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	/**
+	 * @param request a client request
+	 * @param types the resource types that are written behind
+	 * @return the resource type if the request is a create or update that can be written behind, otherwise null
+	 */
+	public static String getWriteBehindType (HttpServletRequest request, Collection<String> types) {
+		String path = request.getPathInfo();
+		if (null == path || request.getQueryString() != null || null == request.getContentType()
+				|| request.getHeader("If-Match") != null || request.getHeader("If-None-Exist") != null) {
+			return null;
+		}
+		Matcher matcher = RESOURCE_PATH.matcher(path);
+		if (!matcher.matches() || !types.contains(matcher.group(1))) {
+			return null;
+		}
+		boolean hasId = matcher.group(2) != null;
+		if (("POST".equals(request.getMethod()) && !hasId) || ("PUT".equals(request.getMethod()) && hasId)) {
+			return matcher.group(1);
+		}
+		return null;
+	}
+
+	/**
+	 * @param request a client request
+	 * @return true if the request asks for the status of a write
+	 */
+	public static boolean isStatusRequest (HttpServletRequest request) {
+		return "GET".equals(request.getMethod()) && STATUS_PATH.equals(request.getPathInfo());
+	}
+
+	/**
+	 * Read and parse the resource of a create or update
+	 *
+	 * @param requestDetails the request
+	 * @param type the resource type in the URL
+	 * @param id the id in the URL of an update, null for a create
+	 * @return the resource, with the id of the URL for an update and without an id for a create
+	 * @throws IOException
+	 */
+	public IBaseResource parse (ServletRequestDetails requestDetails, String type, String id) throws IOException {
+		HttpServletRequest request = requestDetails.getServletRequest();
+		EncodingEnum encoding = EncodingEnum.forContentType(request.getContentType());
+		if (null == encoding || EncodingEnum.NDJSON == encoding) {
+			throw new InvalidRequestException("Content-Type ["+request.getContentType()+"] is not a FHIR resource encoding");
+		}
+		IBaseResource resource;
+		try {
+			resource = encoding.newParser(fhirContext).parseResource(new String(readBody(requestDetails), StandardCharsets.UTF_8));
+		} catch (DataFormatException e) {
+			throw new InvalidRequestException(e.getMessage());
+		}
+		if (!type.equals(fhirContext.getResourceType(resource))) {
+			throw new InvalidRequestException("Resource of type ["+fhirContext.getResourceType(resource)+"] can't be written to ["+type+"]");
+		}
+		if (id != null) {
+			IIdType bodyId = resource.getIdElement();
+			if (bodyId != null && bodyId.hasIdPart() && !id.equals(bodyId.getIdPart())) {
+				throw new InvalidRequestException("Resource body ID of ["+bodyId.getIdPart()+"] does not match URL ID of ["+id+"]");
+			}
+			resource.setId(type+"/"+id);
+		} else {
+			resource.setId((String)null);
+		}
+		return resource;
+	}
+
+	/**
+	 * Journal a create or update, returning once it is on disk
+	 *
+	 * @param type the resource type
+	 * @param update true for an update, false for a create
+	 * @param resource the parsed resource
+	 * @return the status of the queued write
+	 * @throws IOException
+	 */
+	public Status journal (String type, boolean update, IBaseResource resource) throws IOException {
+		long sequence = journal.append(encode(update, type, fhirContext.newJsonParser().encodeResourceToString(resource)));
+		journal.sync(sequence);
+		log.trace("journaled ["+(update ? "update" : "create")+"] of ["+type+"] as ["+sequence+"]");
+		return new Status(sequence, Status.QUEUED, null, null);
+	}
+
+	/**
+	 * The status of a journaled write: queued until the journal is
+	 * committed past it, then failed if it is a dead letter, otherwise
+	 * written
+	 *
+	 * @param id the sequence of the write
+	 * @return the status
+	 */
+	public Status getStatus (String id) {
+		long sequence;
+		try {
+			sequence = Long.parseLong(id);
+		} catch (NumberFormatException e) {
+			throw new InvalidRequestException("Missing or invalid _id");
+		}
+		if (sequence <= 0 || sequence >= journal.getNextSequence()) {
+			throw new ResourceNotFoundException("Write ["+sequence+"] is not known");
+		}
+		String error = deadLetters.getError(sequence);
+		if (error != null) {
+			return new Status(sequence, Status.FAILED, null, error);
+		}
+		if (sequence > journal.getCommittedSequence()) {
+			return new Status(sequence, Status.QUEUED, null, null);
+		}
+		String location;
+		synchronized (locations) {
+			location = locations.get(sequence);
+		}
+		return new Status(sequence, Status.WRITTEN, location, null);
+	}
+
+	/**
+	 * @param request a client request
+	 * @param status the status of a write
+	 * @return the URL of the status of the write
+	 */
+	public static String getStatusUrl (HttpServletRequest request, Status status) {
+		String url = request.getRequestURL().toString();
+		String path = request.getPathInfo();
+		String base = url.endsWith(path) ? url.substring(0, url.length() - path.length()) : url;
+		return base+STATUS_PATH+"?_id="+status.getSequence();
+	}
+
+	/**
+	 * Stop the background thread and close the journal. Writes that
+	 * haven't been handed to a writer stay in the journal.
+	 */
+	public void shutdown () {
+		running = false;
+		drainer.interrupt();
+		try {
+			drainer.join(10000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			journal.close();
+		} catch (IOException e) {
+			log.warn("Unable to close the write-behind journal: "+e.getMessage());
+		}
+		try {
+			deadLetters.close();
+		} catch (IOException e) {
+			log.warn("Unable to close the write-behind dead letters: "+e.getMessage());
+		}
+	}
+
+	public WriteBehindJournal getJournal () {
+		return journal;
+	}
+
+	public WriteBehindDeadLetters getDeadLetters () {
+		return deadLetters;
+	}
+
+	/*
+	 * Read the journal and hand the writes to the writers in runs of
+	 * the same type, committing the records once they are written or
+	 * dead letters
+	 */
+	private void drain () {
+		while (running) {
+			try {
+				List<WriteBehindJournal.Record> records = journal.read(batchSize, 1000);
+				List<WriteBehindJournal.Record> run = new ArrayList<>();
+				List<IOsgiJournalWriter.Entry> entries = new ArrayList<>();
+				String type = null;
+				for (WriteBehindJournal.Record record : records) {
+					Decoded decoded;
+					try {
+						decoded = decode(record);
+					} catch (IOException | RuntimeException e) {
+						log.error("Unable to read write-behind record ["+record.getSequence()+"]. Moving it to the dead letters", e);
+						if (!deadLetter(Collections.singletonList(record), "The journaled resource can't be read: "+e.getMessage())) {
+							return;
+						}
+						continue;
+					}
+					if (type != null && !type.equals(decoded.type)) {
+						if (!write(type, run, entries)) {
+							return;
+						}
+						run.clear();
+						entries.clear();
+					}
+					type = decoded.type;
+					run.add(record);
+					entries.add(decoded.entry);
+				}
+				if (!entries.isEmpty() && !write(type, run, entries)) {
+					return;
+				}
+				if (!records.isEmpty()) {
+					journal.commit(records.get(records.size() - 1).getSequence());
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException | RuntimeException e) {
+				log.error("Unable to drain the write-behind journal", e);
+				if (!pause(retryMillis)) {
+					return;
+				}
+			}
+		}
+	}
+
+	/*
+	 * Write a batch, retrying until it is written, it has failed too
+	 * many times and is in the dead letters, or the writer is shut
+	 * down (returns false)
+	 */
+	private boolean write (String type, List<WriteBehindJournal.Record> records, List<IOsgiJournalWriter.Entry> entries) {
+		int attempts = 0;
+		while (running) {
+			IOsgiJournalWriter writer = writers.apply(type);
+			if (null == writer) {
+				// wait for the provider (its bundle may be being updated)
+				log.trace("no journal writer for ["+type+"]. Waiting");
+			} else {
+				try {
+					List<IIdType> ids = writer.writeJournaled(entries);
+					written(type, entries, ids);
+					return true;
+				} catch (RuntimeException e) {
+					attempts++;
+					if (maxRetries >= 0 && attempts > maxRetries) {
+						log.error("Write-behind batch of ["+entries.size()+"] ["+type+"] failed after ["+attempts+"] attempts. Moving it to the dead letters", e);
+						return deadLetter(records, (e.getMessage() != null) ? e.getMessage() : e.getClass().getName());
+					}
+					log.warn("Write-behind batch of ["+entries.size()+"] ["+type+"] failed (attempt ["+attempts+"]): "+e.getMessage());
+				}
+			}
+			if (!pause(Math.min(MAX_RETRY_DELAY_MILLIS, retryMillis << Math.min(attempts, 16)))) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	private void written (String type, List<IOsgiJournalWriter.Entry> entries, List<IIdType> ids) {
+		if (ids != null) {
+			synchronized (locations) {
+				for (int i = 0; i < entries.size() && i < ids.size(); i++) {
+					if (ids.get(i) != null) {
+						locations.put(entries.get(i).getSequence(), ids.get(i).getValue());
+					}
+				}
+			}
+		}
+		if (listener != null) {
+			try {
+				listener.written(type, entries, ids);
+			} catch (RuntimeException e) {
+				log.warn("Write-behind listener failed: "+e.getMessage(), e);
+			}
+		}
+	}
+
+	/*
+	 * Keep trying to store the dead letters, as the journal can't be
+	 * committed past them until they are on disk
+	 */
+	private boolean deadLetter (List<WriteBehindJournal.Record> records, String error) {
+		while (running) {
+			try {
+				deadLetters.add(records, error);
+				return true;
+			} catch (IOException e) {
+				log.error("Unable to store ["+records.size()+"] write-behind dead letters in ["+deadLetters.getFile()+"]", e);
+			}
+			if (!pause(MAX_RETRY_DELAY_MILLIS)) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	private boolean pause (long millis) {
+		try {
+			Thread.sleep(millis);
+			return running;
+		} catch (InterruptedException e) {
+			return false;
+		}
+	}
+
+	private byte[] readBody (ServletRequestDetails requestDetails) throws IOException {
+		byte[] contents = requestDetails.getRequestContentsIfLoaded();
+		long length = (contents != null) ? contents.length : requestDetails.getServletRequest().getContentLengthLong();
+		if (maxBodySize > 0 && length > maxBodySize) {
+			throw new PayloadTooLargeException("Request body of ["+length+"] bytes is larger than the maximum of ["+maxBodySize+"] bytes");
+		}
+		if (contents != null) {
+			return contents;
+		}
+		ByteArrayOutputStream body = new ByteArrayOutputStream((length > 0) ? (int)Math.min(length, 1024 * 1024) : 8192);
+		byte[] buffer = new byte[8192];
+		InputStream in = requestDetails.getServletRequest().getInputStream();
+		int count;
+		while ((count = in.read(buffer)) >= 0) {
+			body.write(buffer, 0, count);
+			if (maxBodySize > 0 && body.size() > maxBodySize) {
+				throw new PayloadTooLargeException("Request body is larger than the maximum of ["+maxBodySize+"] bytes");
+			}
+		}
+		return body.toByteArray();
+	}
+
+	private static byte[] encode (boolean update, String type, String json) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(json.length() + 32);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(update ? UPDATE : CREATE);
+		out.writeUTF(type);
+		out.write(json.getBytes(StandardCharsets.UTF_8));
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private Decoded decode (WriteBehindJournal.Record record) throws IOException {
+		if (!record.isIntact()) {
+			throw new IOException("The journal record fails its CRC");
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record.getPayload()));
+		boolean update = UPDATE == in.readByte();
+		String type = in.readUTF();
+		String json = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		IBaseResource resource = fhirContext.newJsonParser().parseResource(json);
+		return new Decoded(type, new IOsgiJournalWriter.Entry(record.getSequence(), update, resource));
+	}
+
+	private static String quote (String value) {
+		StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+		for (char c : value.toCharArray()) {
+			if ('"' == c || '\\' == c) {
+				quoted.append('\\').append(c);
+			} else
+			if (c < 0x20) {
+				quoted.append(String.format("\\u%04x", (int)c));
+			} else {
+				quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+
+	private static class Decoded {
+		private final String type;
+		private final IOsgiJournalWriter.Entry entry;
+
+		private Decoded (String type, IOsgiJournalWriter.Entry entry) {
+			this.type = type;
+			this.entry = entry;
+		}
+	}
+
+	/**
+	 * The state of a journaled write
+	 */
+	public static class Status {
+		public static final String QUEUED = "queued";
+		public static final String WRITTEN = "written";
+		public static final String FAILED = "failed";
+
+		private final long sequence;
+		private final String state;
+		private final String location;
+		private final String error;
+
+		Status (long sequence, String state, String location, String error) {
+			this.sequence = sequence;
+			this.state = state;
+			this.location = location;
+			this.error = error;
+		}
+
+		public long getSequence () {
+			return sequence;
+		}
+
+		/**
+		 * @return queued, written or failed
+		 */
+		public String getState () {
+			return state;
+		}
+
+		/**
+		 * @return the id of the written resource, when it is known
+		 */
+		public String getLocation () {
+			return location;
+		}
+
+		/**
+		 * @return why the write failed
+		 */
+		public String getError () {
+			return error;
+		}
+
+		public boolean isQueued () {
+			return QUEUED.equals(state);
+		}
+
+		/**
+		 * Write the status as JSON
+		 *
+		 * @param response the response, whose status is set by the caller
+		 * @throws IOException
+		 */
+		public void write (HttpServletResponse response) throws IOException {
+			StringBuilder status = new StringBuilder(128);
+			status.append("{\"id\":").append(sequence).append(",\"state\":\"").append(state).append("\"");
+			if (location != null) {
+				status.append(",\"location\":").append(quote(location));
+			}
+			if (error != null) {
+				status.append(",\"error\":").append(quote(error));
+			}
+			status.append("}");
+			response.setContentType("application/json");
+			response.setCharacterEncoding("UTF-8");
+			response.getWriter().write(status.toString());
+		}
+	}
+
+}
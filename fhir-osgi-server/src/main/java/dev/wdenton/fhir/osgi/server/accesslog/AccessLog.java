@@ -0,0 +1,478 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server.accesslog;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+
+/**
+ * Writes one line for each request served by a server to a rolling
+ * file without slowing the request down. The request thread fills a
+ * preallocated record in a ring (no locks and no allocation) and a
+ * background thread formats the records and writes them in batches,
+ * rolling the file over when it passes maxFileSize:
+ *
+ * <code><pre>
+ * 2022-05-01T10:15:30.125Z servername com.example.PatientProvider Patient read 200 1834 912
+ * </pre></code>
+ *
+ * The fields are the time the response completed (UTC), the server,
+ * the class of the provider, the resource type, the operation, the
+ * status, the body bytes (before compression, -1 if unknown) and the
+ * latency in microseconds; "-" when a field doesn't apply. A sampled
+ * line ends with the number of requests it stands for ({@code x10}).
+ * <p>
+ * When the ring is full, {@code Overflow.DROP} drops the records of new
+ * requests. {@code Overflow.SAMPLE} keeps one record in sampleRate once
+ * the ring is three quarters full, so a burst is still seen across its
+ * whole length, and drops them only when it is full.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class AccessLog {
+	private static Logger log = LoggerFactory.getLogger(AccessLog.class);
+	public static final int DEFAULT_CAPACITY = 8192;
+	public static final int DEFAULT_SAMPLE_RATE = 10;
+	public static final long DEFAULT_MAX_FILE_SIZE = 64L * 1024 * 1024;
+	public static final int DEFAULT_MAX_FILES = 5;
+	private static final int BATCH_SIZE = 256;
+	private static final long MIN_IDLE_NANOS = 1000 * 1000L;
+	private static final long MAX_IDLE_NANOS = 50 * 1000 * 1000L;
+	private static final DateTimeFormatter SECONDS = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss").withZone(ZoneOffset.UTC);
+
+	public enum Overflow {
+		DROP, SAMPLE;
+
+		/**
+		 * @param value drop or sample (case is ignored)
+		 * @return the overflow or null if the value isn't one
+		 */
+		public static Overflow of (String value) {
+			for (Overflow overflow : values()) {
+				if (overflow.name().equalsIgnoreCase(value.trim())) {
+					return overflow;
+				}
+			}
+			return null;
+		}
+	}
+
+	private final String serverName;
+	private final Path file;
+	private final Overflow overflow;
+	private final int sampleRate;
+	private final long maxFileSize;
+	private final int maxFiles;
+
+	private final Record[] records;
+	private final int mask;
+	private final int sampleThreshold;
+
+	// the sequence that each record was last filled with
+	private final AtomicLongArray published;
+
+	// the next sequence to claim and the next to write
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong sampleCount = new AtomicLong();
+
+	// the request being served by each thread
+	private final ThreadLocal<Context> contexts = ThreadLocal.withInitial(Context::new);
+
+	private final LongAdder logged = new LongAdder();
+	private final LongAdder sampledOut = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private volatile long written = 0;
+	private volatile long writeFailures = 0;
+
+	private final Thread writerThread;
+	private volatile boolean running = true;
+
+	// used only by the writer thread
+	private Writer out;
+	private long fileSize;
+	private final StringBuilder line = new StringBuilder(256);
+	private char[] chars = new char[256];
+	private long second = Long.MIN_VALUE;
+	private String secondPrefix;
+
+	/**
+	 * @param serverName the name of the server written on each line
+	 * @param file the file written (rolled over to file.1, file.2...)
+	 * @param capacity the number of records in the ring (rounded up to a power of 2)
+	 * @param overflow what to do when the ring fills up
+	 * @param sampleRate one record in sampleRate is kept while sampling
+	 * @param maxFileSize the size of the file before it is rolled over
+	 * @param maxFiles the number of rolled over files that are kept
+	 */
+	public AccessLog (String serverName, Path file, int capacity, Overflow overflow, int sampleRate, long maxFileSize, int maxFiles) {
+		this.serverName = serverName;
+		this.file = file;
+		this.overflow = (null == overflow) ? Overflow.DROP : overflow;
+		this.sampleRate = Math.max(1, sampleRate);
+		this.maxFileSize = Math.max(1024, maxFileSize);
+		this.maxFiles = Math.max(0, maxFiles);
+		int size = Integer.highestOneBit(Math.max(2, Math.min(capacity, 1 << 24)) - 1) << 1;
+		this.mask = size - 1;
+		this.sampleThreshold = size - size / 4;
+		this.records = new Record[size];
+		this.published = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			records[i] = new Record();
+			published.set(i, i - size);
+		}
+		writerThread = new Thread(this::drain, "fhir-access-log-"+serverName);
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Start timing a request on the current thread
+	 */
+	public void begin () {
+		Context context = contexts.get();
+		context.start = System.nanoTime();
+		context.provider = null;
+		context.resourceType = null;
+		context.operation = null;
+		context.bytes = -1;
+	}
+
+	/**
+	 * Record where the request on the current thread was routed
+	 *
+	 * @param provider the provider that will handle it
+	 * @param resourceType the resource type of the request
+	 * @param operation the operation of the request
+	 */
+	public void route (Object provider, String resourceType, RestOperationTypeEnum operation) {
+		Context context = contexts.get();
+		context.provider = (provider != null) ? provider.getClass().getName() : null;
+		context.resourceType = resourceType;
+		context.operation = operation;
+	}
+
+	/**
+	 * @param bytes the size of the response body of the request on the current thread
+	 */
+	public void bytes (long bytes) {
+		contexts.get().bytes = bytes;
+	}
+
+	/**
+	 * Log the request on the current thread
+	 *
+	 * @param status the status of the response
+	 */
+	public void end (int status) {
+		Context context = contexts.get();
+		long latency = System.nanoTime() - context.start;
+		int weight = 1;
+		long sequence;
+		do {
+			sequence = head.get();
+			long used = sequence - tail.get();
+			if (used >= records.length) {
+				dropped.increment();
+				return;
+			}
+			if (Overflow.SAMPLE == overflow && used >= sampleThreshold) {
+				if (sampleCount.incrementAndGet() % sampleRate != 0) {
+					sampledOut.increment();
+					return;
+				}
+				weight = sampleRate;
+			}
+		} while (!head.compareAndSet(sequence, sequence + 1));
+		int index = (int)(sequence & mask);
+		Record record = records[index];
+		record.timestamp = System.currentTimeMillis();
+		record.provider = context.provider;
+		record.resourceType = context.resourceType;
+		record.operation = context.operation;
+		record.status = status;
+		record.bytes = context.bytes;
+		record.latencyNanos = latency;
+		record.weight = weight;
+		published.lazySet(index, sequence);
+		logged.increment();
+	}
+
+	/*
+	 * Write the published records in batches, waiting longer each time
+	 * there is nothing to write
+	 */
+	private void drain () {
+		long idle = MIN_IDLE_NANOS;
+		while (running || tail.get() < head.get()) {
+			int count = 0;
+			long sequence = tail.get();
+			while (count < BATCH_SIZE && sequence < head.get()) {
+				int index = (int)(sequence & mask);
+				if (published.get(index) != sequence) {
+					// claimed but not yet filled
+					break;
+				}
+				format(records[index]);
+				tail.lazySet(++sequence);
+				count++;
+			}
+			if (count > 0) {
+				flush();
+				idle = MIN_IDLE_NANOS;
+			} else
+			if (running) {
+				LockSupport.parkNanos(idle);
+				idle = Math.min(MAX_IDLE_NANOS, idle * 2);
+			} else {
+				break;
+			}
+		}
+		closeFile();
+	}
+
+	private void format (Record record) {
+		long recordSecond = record.timestamp / 1000;
+		if (recordSecond != second) {
+			second = recordSecond;
+			secondPrefix = SECONDS.format(Instant.ofEpochSecond(recordSecond));
+		}
+		int millis = (int)(record.timestamp % 1000);
+		line.setLength(0);
+		line.append(secondPrefix).append('.');
+		if (millis < 100) {
+			line.append('0');
+		}
+		if (millis < 10) {
+			line.append('0');
+		}
+		line.append(millis).append('Z').append(' ').append(serverName).append(' ');
+		append(record.provider).append(' ');
+		append(record.resourceType).append(' ');
+		append((record.operation != null) ? record.operation.getCode() : null).append(' ');
+		line.append(record.status).append(' ').append(record.bytes).append(' ').append(record.latencyNanos / 1000);
+		if (record.weight > 1) {
+			line.append(" x").append(record.weight);
+		}
+		line.append('\n');
+		int length = line.length();
+		if (length > chars.length) {
+			chars = new char[Math.max(length, chars.length * 2)];
+		}
+		line.getChars(0, length, chars, 0);
+		try {
+			if (null == out) {
+				openFile();
+			}
+			out.write(chars, 0, length);
+			fileSize += length;
+			written++;
+		} catch (IOException e) {
+			writeFailed(e);
+		}
+	}
+
+	private StringBuilder append (String value) {
+		return line.append((null == value || value.isEmpty()) ? "-" : value);
+	}
+
+	private void flush () {
+		if (out != null) {
+			try {
+				out.flush();
+				if (fileSize >= maxFileSize) {
+					rollOver();
+				}
+			} catch (IOException e) {
+				writeFailed(e);
+			}
+		}
+	}
+
+	private void openFile () throws IOException {
+		Path parent = file.toAbsolutePath().getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8), 64 * 1024);
+		fileSize = Files.size(file);
+	}
+
+	/*
+	 * file.(n-1) -> file.n ... file -> file.1
+	 */
+	private void rollOver () throws IOException {
+		closeFile();
+		if (maxFiles > 0) {
+			Files.deleteIfExists(rolled(maxFiles));
+			for (int i = maxFiles - 1; i >= 1; i--) {
+				Path from = rolled(i);
+				if (Files.exists(from)) {
+					Files.move(from, rolled(i + 1), StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+			Files.move(file, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+		} else {
+			Files.deleteIfExists(file);
+		}
+		openFile();
+	}
+
+	private Path rolled (int generation) {
+		return file.resolveSibling(file.getFileName()+"."+generation);
+	}
+
+	private void closeFile () {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				log.warn("Unable to close access log ["+file+"]: "+e.getMessage());
+			}
+			out = null;
+		}
+	}
+
+	/*
+	 * Drop the file and open it again with the next line
+	 */
+	private void writeFailed (IOException e) {
+		if (0 == writeFailures++) {
+			log.warn("Unable to write access log ["+file+"]: "+e.getMessage());
+		}
+		closeFile();
+	}
+
+	/**
+	 * Write the records left in the ring and stop the writer thread
+	 */
+	public void close () {
+		running = false;
+		LockSupport.unpark(writerThread);
+		try {
+			writerThread.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public Path getFile () {
+		return file;
+	}
+
+	public Overflow getOverflow () {
+		return overflow;
+	}
+
+	public int getCapacity () {
+		return records.length;
+	}
+
+	/**
+	 * @return the number of records put in the ring
+	 */
+	public long getLogged () {
+		return logged.sum();
+	}
+
+	/**
+	 * @return the number of requests left out while sampling
+	 */
+	public long getSampledOut () {
+		return sampledOut.sum();
+	}
+
+	/**
+	 * @return the number of requests dropped because the ring was full
+	 */
+	public long getDropped () {
+		return dropped.sum();
+	}
+
+	/**
+	 * @return the number of lines written to the file
+	 */
+	public long getWritten () {
+		return written;
+	}
+
+	/**
+	 * @return the number of records waiting to be written
+	 */
+	public long getPending () {
+		return Math.max(0, head.get() - tail.get());
+	}
+
+	public long getWriteFailures () {
+		return writeFailures;
+	}
+
+	@Override
+	public String toString () {
+		return "file ["+file+"] capacity ["+getCapacity()+"] overflow ["+overflow+"] logged ["+getLogged()+"] written ["+getWritten()
+				+"] pending ["+getPending()+"] sampled out ["+getSampledOut()+"] dropped ["+getDropped()+"]";
+	}
+
+	/*
+	 * A request in the ring, filled by the request thread and read by the writer
+	 */
+	private static class Record {
+		private long timestamp;
+		private String provider;
+		private String resourceType;
+		private RestOperationTypeEnum operation;
+		private int status;
+		private long bytes;
+		private long latencyNanos;
+		private int weight;
+	}
+
+	/*
+	 * The request being served by a thread
+	 */
+	private static class Context {
+		private long start;
+		private String provider;
+		private String resourceType;
+		private RestOperationTypeEnum operation;
+		private long bytes;
+	}
+
+}
@@ -0,0 +1,239 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Startup Benchmark
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server.accesslog;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import ca.uhn.fhir.context.ConfigurationException;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.method.BaseMethodBinding;
+import dev.wdenton.fhir.osgi.server.IOsgiServerFeature;
+import dev.wdenton.fhir.osgi.server.ResponsePoolingFeature;
+import dev.wdenton.fhir.osgi.server.SimpleOsgiRestfulServer;
+import dev.wdenton.fhir.osgi.server.diagnostics.ServerFootprint;
+
+/**
+ * Logs each request served by a server to a rolling file through an
+ * {@code AccessLog}. The feature sees a request first, so the requests
+ * rejected while the server is being unregistered are logged too. The
+ * log is created with the first request and started again when a
+ * setting is changed.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class AccessLogFeature implements IOsgiServerFeature {
+	/** the order of the feature: it times the whole request */
+	public static final int ORDER = -1000;
+
+	private String file;
+	private int bufferSize = AccessLog.DEFAULT_CAPACITY;
+	private AccessLog.Overflow overflow = AccessLog.Overflow.DROP;
+	private int sampleRate = AccessLog.DEFAULT_SAMPLE_RATE;
+	private long maxFileSize = AccessLog.DEFAULT_MAX_FILE_SIZE;
+	private int maxFiles = AccessLog.DEFAULT_MAX_FILES;
+
+	private volatile SimpleOsgiRestfulServer server;
+	private volatile AccessLog accessLog;
+
+	@Override
+	public void install (SimpleOsgiRestfulServer server) throws ConfigurationException {
+		if (null == file) {
+			throw new ConfigurationException("The access log feature has no file");
+		}
+		this.server = server;
+	}
+
+	@Override
+	public synchronized void uninstall (SimpleOsgiRestfulServer server) {
+		this.server = null;
+		closeAccessLog();
+	}
+
+	@Override
+	public int getOrder () {
+		return ORDER;
+	}
+
+	@Override
+	public void service (HttpServletRequest request, HttpServletResponse response, Chain chain) throws ServletException, IOException {
+		AccessLog requestLog = getAccessLog();
+		if (null == requestLog) {
+			chain.service(request, response);
+			return;
+		}
+		requestLog.begin();
+		try {
+			chain.service(request, response);
+		} finally {
+			Long bodyBytes = (Long)request.getAttribute(ResponsePoolingFeature.ATTR_BODY_BYTES);
+			requestLog.bytes((bodyBytes != null) ? bodyBytes : getContentLength(response));
+			requestLog.end(response.getStatus());
+		}
+	}
+
+	@Override
+	public void routed (RequestDetails requestDetails, BaseMethodBinding<?> binding) {
+		AccessLog requestLog = accessLog;
+		if (requestLog != null) {
+			requestLog.route(binding.getProvider(), requestDetails.getResourceName(), binding.getRestOperationType());
+		}
+	}
+
+	private static long getContentLength (HttpServletResponse response) {
+		String contentLength = response.getHeader("Content-Length");
+		if (contentLength != null) {
+			try {
+				return Long.parseLong(contentLength);
+			} catch (NumberFormatException e) {
+				// not logged
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the access log, created when it is first used, or null if
+	 * the feature isn't registered
+	 */
+	public AccessLog getAccessLog () {
+		AccessLog requestLog = accessLog;
+		if (null == requestLog) {
+			synchronized (this) {
+				SimpleOsgiRestfulServer current = server;
+				if (null == accessLog && current != null) {
+					String name = current.getFhirServerName();
+					accessLog = new AccessLog((name != null) ? name : "default", Paths.get(file),
+							bufferSize, overflow, sampleRate, maxFileSize, maxFiles);
+				}
+				requestLog = accessLog;
+			}
+		}
+		return requestLog;
+	}
+
+	/*
+	 * Start a new access log with the changed settings
+	 */
+	private void closeAccessLog () {
+		if (accessLog != null) {
+			accessLog.close();
+			accessLog = null;
+		}
+	}
+
+	public String getFile () {
+		return file;
+	}
+
+	/**
+	 * @param file the file each request is logged to
+	 */
+	public synchronized void setFile (String file) {
+		this.file = (file != null && !file.trim().isEmpty()) ? file.trim() : null;
+		closeAccessLog();
+	}
+
+	public int getBufferSize () {
+		return bufferSize;
+	}
+
+	/**
+	 * @param bufferSize the number of requests held until they are written (rounded up to a power of 2)
+	 */
+	public synchronized void setBufferSize (int bufferSize) {
+		this.bufferSize = bufferSize;
+		closeAccessLog();
+	}
+
+	public String getOverflow () {
+		return overflow.name().toLowerCase();
+	}
+
+	/**
+	 * @param overflow drop (the default) to drop requests while the
+	 * buffer is full or sample to keep one request in sampleRate
+	 * once it is three quarters full
+	 * @throws ConfigurationException if it is neither
+	 */
+	public synchronized void setOverflow (String overflow) throws ConfigurationException {
+		AccessLog.Overflow value = AccessLog.Overflow.of(overflow);
+		if (null == value) {
+			throw new ConfigurationException("overflow must be drop or sample, not ["+overflow+"]");
+		}
+		this.overflow = value;
+		closeAccessLog();
+	}
+
+	public int getSampleRate () {
+		return sampleRate;
+	}
+
+	/**
+	 * @param sampleRate one request in this many is logged while sampling
+	 */
+	public synchronized void setSampleRate (int sampleRate) {
+		this.sampleRate = sampleRate;
+		closeAccessLog();
+	}
+
+	public long getMaxFileSize () {
+		return maxFileSize;
+	}
+
+	/**
+	 * @param maxFileSize the size in bytes of the access log before it is rolled over
+	 */
+	public synchronized void setMaxFileSize (long maxFileSize) {
+		this.maxFileSize = maxFileSize;
+		closeAccessLog();
+	}
+
+	public int getMaxFiles () {
+		return maxFiles;
+	}
+
+	/**
+	 * @param maxFiles the number of rolled over access logs kept
+	 */
+	public synchronized void setMaxFiles (int maxFiles) {
+		this.maxFiles = maxFiles;
+		closeAccessLog();
+	}
+
+	@Override
+	public void describeFootprint (ServerFootprint footprint) {
+		AccessLog requestLog = accessLog;
+		if (requestLog != null) {
+			footprint.addStatistic("accessLog.logged", requestLog.getLogged());
+			footprint.addStatistic("accessLog.written", requestLog.getWritten());
+			footprint.addStatistic("accessLog.pending", requestLog.getPending());
+			footprint.addStatistic("accessLog.sampledOut", requestLog.getSampledOut());
+			footprint.addStatistic("accessLog.dropped", requestLog.getDropped());
+			footprint.addComponent("accessLog", requestLog);
+		}
+	}
+
+}
@@ -0,0 +1,229 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server.deploy;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deploys {@code IWebAppRegistration} services through the OSGi HTTP
+ * Whiteboard and redeploys them by difference. When the registration
+ * of a context root changes (a new registration replaces the old one,
+ * or {@link #redeploy(IWebAppRegistration)} is called after a bean was
+ * changed), its servlets, filters and resources are compared with what
+ * is deployed: only those that were added, removed, replaced by another
+ * instance or given other settings are registered again. An unchanged
+ * {@code IServletRegistration} keeps running, with its warm FhirContext
+ * and caches. A change to the context init parameters, or a different
+ * bundle for the resources, restarts the whole context; the context
+ * attributes are updated in place.
+ * <p>
+ * The deployer is declared in the blueprint of the bundle that hosts
+ * the web applications:
+ *
+ * <code><pre>
+ * &lt;bean id="webapp.deployer" class="dev.wdenton.fhir.osgi.server.deploy.WebAppDeployer" destroy-method="shutdown">
+ * 	&lt;argument ref="blueprintBundleContext" />
+ * 	&lt;property name="swapGraceMillis" value="5000" />
+ * &lt;/bean>
+ * &lt;reference-list interface="dev.wdenton.fhir.osgi.server.deploy.IWebAppRegistration" availability="optional">
+ * 	&lt;reference-listener ref="webapp.deployer" bind-method="deployWebApp" unbind-method="undeployWebApp" />
+ * &lt;/reference-list>
+ * </pre></code>
+ *
+ * With a swapGraceMillis, an unregistered web application stays
+ * deployed while waiting for its replacement (typically the new
+ * version of an updated bundle), which is then deployed by difference.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class WebAppDeployer {
+	private static Logger log = LoggerFactory.getLogger(WebAppDeployer.class);
+
+	private final BundleContext bundleContext;
+
+	// the deployed web applications by context path
+	private final Map<String,Deployment> deployments = new ConcurrentHashMap<>();
+
+	// how long an unregistered web application waits for its replacement (0 = don't wait)
+	private long swapGraceMillis = 0;
+	private ScheduledExecutorService swapTimer;
+
+	/**
+	 * @param bundleContext the context the Whiteboard services are registered with
+	 */
+	public WebAppDeployer (BundleContext bundleContext) {
+		this.bundleContext = bundleContext;
+	}
+
+	/**
+	 * Deploy a new web application, or redeploy the changes when its
+	 * context root is already deployed
+	 *
+	 * @param registration OSGi service describing the web application
+	 * @param props the <service-properties> for that service
+	 */
+	public void deployWebApp (IWebAppRegistration registration, Map<String,Object> props) {
+		if (registration != null) {
+			deploy(registration, getBundle((null == props) ? null : props.get(Constants.SERVICE_BUNDLEID)));
+		}
+	}
+
+	/**
+	 * Undeploy a web application when its OSGi service is removed, after
+	 * the swap grace period if one is set
+	 *
+	 * @param registration OSGi service describing the web application
+	 * @param props the <service-properties> for that service
+	 */
+	public synchronized void undeployWebApp (IWebAppRegistration registration, Map<String,Object> props) {
+		if (null == registration) {
+			return;
+		}
+		String contextPath = WebAppDeployment.getContextPath(registration.getContextRoot());
+		Deployment deployment = deployments.get(contextPath);
+		if (null == deployment || deployment.registration != registration) {
+			log.trace("web application ["+contextPath+"] was already replaced");
+			return;
+		}
+		if (swapGraceMillis > 0) {
+			log.trace("Keep web application ["+contextPath+"] deployed while waiting for its replacement");
+			deployment.expiry = getSwapTimer().schedule(() -> expire(contextPath, deployment), swapGraceMillis, TimeUnit.MILLISECONDS);
+			return;
+		}
+		deployments.remove(contextPath);
+		log.trace("Undeploy web application ["+contextPath+"]");
+		deployment.webApp.undeploy();
+	}
+
+	/**
+	 * Redeploy the changes of a web application that is deployed (for a
+	 * registration bean whose servlets, filters or resources were changed)
+	 *
+	 * @param registration the web application
+	 */
+	public void redeploy (IWebAppRegistration registration) {
+		if (registration != null) {
+			Deployment deployment = deployments.get(WebAppDeployment.getContextPath(registration.getContextRoot()));
+			deploy(registration, (deployment != null) ? deployment.bundle : null);
+		}
+	}
+
+	private synchronized void deploy (IWebAppRegistration registration, Bundle bundle) {
+		String contextPath = WebAppDeployment.getContextPath(registration.getContextRoot());
+		Deployment deployment = deployments.get(contextPath);
+		if (null == deployment) {
+			deployment = new Deployment(new WebAppDeployment(bundleContext, contextPath));
+			deployments.put(contextPath, deployment);
+		} else
+		if (deployment.expiry != null) {
+			log.trace("Replacement of web application ["+contextPath+"] registered");
+			deployment.expiry.cancel(false);
+			deployment.expiry = null;
+		}
+		deployment.registration = registration;
+		deployment.bundle = bundle;
+		WebAppDeployment.Changes changes = deployment.webApp.apply(registration, bundle);
+		log.debug("Deployed web application ["+contextPath+"]: "+changes);
+	}
+
+	private synchronized void expire (String contextPath, Deployment deployment) {
+		if (deployment.expiry != null && deployments.remove(contextPath, deployment)) {
+			log.trace("No replacement for web application ["+contextPath+"]. Undeploying");
+			try {
+				deployment.webApp.undeploy();
+			} catch (Exception e) {
+				log.error("Error undeploying web application ["+contextPath+"]", e);
+			}
+		}
+	}
+
+	private Bundle getBundle (Object bundleId) {
+		if (bundleId instanceof Number) {
+			return bundleContext.getBundle(((Number)bundleId).longValue());
+		}
+		return null;
+	}
+
+	private synchronized ScheduledExecutorService getSwapTimer () {
+		if (null == swapTimer) {
+			swapTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "fhir-osgi-webapp-swap");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return swapTimer;
+	}
+
+	/**
+	 * Undeploy every web application and stop the background tasks.
+	 * Called when the deployer is destroyed.
+	 */
+	public synchronized void shutdown () {
+		if (swapTimer != null) {
+			swapTimer.shutdownNow();
+			swapTimer = null;
+		}
+		for (Deployment deployment : deployments.values()) {
+			deployment.webApp.undeploy();
+		}
+		deployments.clear();
+	}
+
+	public long getSwapGraceMillis () {
+		return swapGraceMillis;
+	}
+
+	/**
+	 * @param swapGraceMillis how long an unregistered web application
+	 * stays deployed while waiting for its replacement. Zero (the default)
+	 * undeploys immediately.
+	 */
+	public void setSwapGraceMillis (long swapGraceMillis) {
+		this.swapGraceMillis = swapGraceMillis;
+	}
+
+	/*
+	 * A deployed web application and the registration it was deployed from
+	 */
+	private static class Deployment {
+		private final WebAppDeployment webApp;
+		private IWebAppRegistration registration;
+		private Bundle bundle;
+		private ScheduledFuture<?> expiry;
+
+		private Deployment (WebAppDeployment webApp) {
+			this.webApp = webApp;
+		}
+	}
+
+}
@@ -0,0 +1,424 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server.deploy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.servlet.Filter;
+import javax.servlet.Servlet;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.http.context.ServletContextHelper;
+import org.osgi.service.http.whiteboard.HttpWhiteboardConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The HTTP Whiteboard services of one deployed {@code IWebAppRegistration}:
+ * a ServletContextHelper for its context root, a listener that sets the
+ * context attributes and one service for each servlet, filter and
+ * resource. {@link #apply(IWebAppRegistration, Bundle)} compares a
+ * registration with what is deployed and only registers, modifies or
+ * unregisters the services that differ. A servlet whose instance and
+ * settings are unchanged keeps its service, so the Whiteboard doesn't
+ * destroy it.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+class WebAppDeployment {
+	private static Logger log = LoggerFactory.getLogger(WebAppDeployment.class);
+	private static final String CONTEXT_NAME_PREFIX = "fhir.webapp";
+
+	private final BundleContext bundleContext;
+	private final String contextPath;
+	private final String contextName;
+
+	private ServiceRegistration<?> contextRegistration;
+	private Map<String,Object> contextProperties = Collections.emptyMap();
+	private Bundle contextBundle;
+	private ServiceRegistration<?> listenerRegistration;
+	private final ContextAttributes attributes = new ContextAttributes();
+
+	private final Map<String,Deployed> servlets = new LinkedHashMap<>();
+	private final Map<String,Deployed> filters = new LinkedHashMap<>();
+	private final Map<String,Deployed> resources = new LinkedHashMap<>();
+
+	/**
+	 * @param bundleContext the context the services are registered with
+	 * @param contextRoot the context root of the web application
+	 */
+	WebAppDeployment (BundleContext bundleContext, String contextRoot) {
+		this.bundleContext = bundleContext;
+		this.contextPath = getContextPath(contextRoot);
+		this.contextName = SimpleWebAppRegistration.DEFAULT_CONTEXT_ROOT.equals(contextPath) ? CONTEXT_NAME_PREFIX : CONTEXT_NAME_PREFIX+contextPath.replace('/', '.');
+	}
+
+	/**
+	 * @return the Whiteboard context path of a context root ("/" or "/path" without a trailing "/")
+	 */
+	static String getContextPath (String contextRoot) {
+		String path = (null == contextRoot) ? "" : contextRoot.trim();
+		while (path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+		if (path.isEmpty()) {
+			return SimpleWebAppRegistration.DEFAULT_CONTEXT_ROOT;
+		}
+		return path.startsWith("/") ? path : "/"+path;
+	}
+
+	String getContextPath () {
+		return contextPath;
+	}
+
+	/**
+	 * Bring the deployed services in line with a registration
+	 *
+	 * @param registration the web application
+	 * @param bundle the bundle the resources of the application are read from
+	 * @return what was changed
+	 */
+	synchronized Changes apply (IWebAppRegistration registration, Bundle bundle) {
+		Changes changes = new Changes();
+		Map<String,Object> nextContext = contextProperties(registration);
+		if (contextRegistration != null && (!sameProperties(contextProperties, nextContext) || !Objects.equals(contextBundle, bundle))) {
+			// the Whiteboard restarts every servlet of a context whose helper changes
+			log.trace("context ["+contextPath+"] changed. Replacing its ServletContextHelper");
+			unregister(contextRegistration);
+			contextRegistration = null;
+			changes.contextReplaced = true;
+		}
+		if (null == contextRegistration) {
+			ServletContextHelper helper = (bundle != null) ? new ServletContextHelper(bundle) {} : new ServletContextHelper() {};
+			contextRegistration = bundleContext.registerService(ServletContextHelper.class.getName(), helper, new Hashtable<>(nextContext));
+			contextProperties = nextContext;
+			contextBundle = bundle;
+		}
+		if (null == listenerRegistration) {
+			Hashtable<String,Object> listenerProperties = new Hashtable<>();
+			listenerProperties.put(HttpWhiteboardConstants.HTTP_WHITEBOARD_LISTENER, "true");
+			listenerProperties.put(HttpWhiteboardConstants.HTTP_WHITEBOARD_CONTEXT_SELECT, getContextSelect());
+			listenerRegistration = bundleContext.registerService(ServletContextListener.class.getName(), attributes, listenerProperties);
+		}
+		attributes.update(contextAttributes(registration));
+
+		Map<String,Deployed> nextFilters = new LinkedHashMap<>();
+		for (IFilterRegistration filter : registration.getFilters()) {
+			if (filter != null && filter.getFilter() != null) {
+				nextFilters.put(filter.getName(), new Deployed(filter.getFilter(), filterProperties(filter)));
+			}
+		}
+		Map<String,Deployed> nextServlets = new LinkedHashMap<>();
+		for (IServletRegistration servlet : registration.getServlets()) {
+			if (servlet != null && servlet.getServlet() != null) {
+				nextServlets.put(servlet.getName(), new Deployed(servlet.getServlet(), servletProperties(servlet)));
+			}
+		}
+		Map<String,Deployed> nextResources = new LinkedHashMap<>();
+		for (IResourceRegistration resource : registration.getResources()) {
+			// resources without a path spec are only read through the ServletContext
+			if (resource != null && resource.getPathSpec() != null) {
+				// the Whiteboard reads the resources through the context, so any object can be the service
+				Object service = (resource.getResources() != null) ? resource.getResources() : resource;
+				nextResources.put(resource.getPathSpec()+"|"+resource.getPrefix(), new Deployed(service, resourceProperties(resource)));
+			}
+		}
+		apply("filter", filters, nextFilters, Filter.class.getName(), changes);
+		apply("servlet", servlets, nextServlets, Servlet.class.getName(), changes);
+		apply("resource", resources, nextResources, Object.class.getName(), changes);
+		return changes;
+	}
+
+	/*
+	 * Unregister what is no longer wanted, replace the services whose
+	 * object changed, modify those whose properties changed and register
+	 * the new ones
+	 */
+	private void apply (String kind, Map<String,Deployed> deployed, Map<String,Deployed> wanted, String serviceClass, Changes changes) {
+		for (Iterator<Map.Entry<String,Deployed>> entries = deployed.entrySet().iterator(); entries.hasNext(); ) {
+			Map.Entry<String,Deployed> entry = entries.next();
+			if (!wanted.containsKey(entry.getKey())) {
+				log.trace("undeploy "+kind+" ["+entry.getKey()+"] from context ["+contextPath+"]");
+				entry.getValue().unregister();
+				entries.remove();
+				changes.removed++;
+			}
+		}
+		for (Map.Entry<String,Deployed> entry : wanted.entrySet()) {
+			Deployed next = entry.getValue();
+			Deployed current = deployed.get(entry.getKey());
+			if (null == current) {
+				log.trace("deploy "+kind+" ["+entry.getKey()+"] to context ["+contextPath+"]");
+				next.register(serviceClass);
+				deployed.put(entry.getKey(), next);
+				changes.added++;
+			} else
+			if (current.service != next.service) {
+				log.trace("replace "+kind+" ["+entry.getKey()+"] in context ["+contextPath+"]");
+				current.unregister();
+				next.register(serviceClass);
+				deployed.put(entry.getKey(), next);
+				changes.replaced++;
+			} else
+			if (!sameProperties(current.properties, next.properties)) {
+				log.trace("modify "+kind+" ["+entry.getKey()+"] in context ["+contextPath+"]");
+				current.registration.setProperties(new Hashtable<>(next.properties));
+				current.properties = next.properties;
+				changes.modified++;
+			} else {
+				changes.kept++;
+			}
+		}
+	}
+
+	/**
+	 * Unregister every service of the web application
+	 */
+	synchronized void undeploy () {
+		for (Map<String,Deployed> deployed : Arrays.asList(resources, servlets, filters)) {
+			for (Deployed service : deployed.values()) {
+				service.unregister();
+			}
+			deployed.clear();
+		}
+		if (listenerRegistration != null) {
+			unregister(listenerRegistration);
+			listenerRegistration = null;
+		}
+		if (contextRegistration != null) {
+			unregister(contextRegistration);
+			contextRegistration = null;
+		}
+		contextProperties = Collections.emptyMap();
+	}
+
+	private Map<String,Object> contextProperties (IWebAppRegistration registration) {
+		Map<String,Object> properties = new LinkedHashMap<>();
+		properties.put(HttpWhiteboardConstants.HTTP_WHITEBOARD_CONTEXT_NAME, contextName);
+		properties.put(HttpWhiteboardConstants.HTTP_WHITEBOARD_CONTEXT_PATH, contextPath);
+		putAll(properties, HttpWhiteboardConstants.HTTP_WHITEBOARD_CONTEXT_INIT_PARAM_PREFIX, registration.getContextInitParameters());
+		return properties;
+	}
+
+	/*
+	 * The attributes of the application and those of its servlets
+	 */
+	private static Map<String,Object> contextAttributes (IWebAppRegistration registration) {
+		Map<String,Object> contextAttributes = new LinkedHashMap<>();
+		if (registration.getContextAttributes() != null) {
+			contextAttributes.putAll(registration.getContextAttributes());
+		}
+		for (IServletRegistration servlet : registration.getServlets()) {
+			if (servlet != null && servlet.getContextAttributes() != null) {
+				contextAttributes.putAll(servlet.getContextAttributes());
+			}
+		}
+		contextAttributes.values().removeIf(Objects::isNull);
+		return contextAttributes;
+	}
+
+	private Map<String,Object> servletProperties (IServletRegistration servlet) {
+		Map<String,Object> properties = new LinkedHashMap<>();
+		properties.put(HttpWhiteboardConstants.HTTP_WHITEBOARD_CONTEXT_SELECT, getContextSelect());
+		properties.put(HttpWhiteboardConstants.HTTP_WHITEBOARD_SERVLET_NAME, servlet.getName());
+		properties.put(HttpWhiteboardConstants.HTTP_WHITEBOARD_SERVLET_PATTERN, servlet.getUrlPatterns().toArray(new String[0]));
+		putAll(properties, HttpWhiteboardConstants.HTTP_WHITEBOARD_SERVLET_INIT_PARAM_PREFIX, servlet.getInitParameters());
+		return properties;
+	}
+
+	private Map<String,Object> filterProperties (IFilterRegistration filter) {
+		Map<String,Object> properties = new LinkedHashMap<>();
+		properties.put(HttpWhiteboardConstants.HTTP_WHITEBOARD_CONTEXT_SELECT, getContextSelect());
+		properties.put(HttpWhiteboardConstants.HTTP_WHITEBOARD_FILTER_NAME, filter.getName());
+		if (filter.getPathSpec() != null) {
+			properties.put(HttpWhiteboardConstants.HTTP_WHITEBOARD_FILTER_PATTERN, filter.getPathSpec());
+		}
+		if (filter.getServlet() != null) {
+			properties.put(HttpWhiteboardConstants.HTTP_WHITEBOARD_FILTER_SERVLET, filter.getServlet());
+		}
+		if (null == filter.getPathSpec() && null == filter.getServlet()) {
+			properties.put(HttpWhiteboardConstants.HTTP_WHITEBOARD_FILTER_PATTERN, "/*");
+		}
+		List<String> dispatchers = new ArrayList<>();
+		int dispatch = filter.getDispatch();
+		if ((dispatch & IFilterRegistration.DISPATCH_REQUEST) != 0) {
+			dispatchers.add(HttpWhiteboardConstants.DISPATCHER_REQUEST);
+		}
+		if ((dispatch & IFilterRegistration.DISPATCH_FORWARD) != 0) {
+			dispatchers.add(HttpWhiteboardConstants.DISPATCHER_FORWARD);
+		}
+		if ((dispatch & IFilterRegistration.DISPATCH_INCLUDE) != 0) {
+			dispatchers.add(HttpWhiteboardConstants.DISPATCHER_INCLUDE);
+		}
+		if ((dispatch & IFilterRegistration.DISPATCH_ERROR) != 0) {
+			dispatchers.add(HttpWhiteboardConstants.DISPATCHER_ERROR);
+		}
+		if (!dispatchers.isEmpty()) {
+			properties.put(HttpWhiteboardConstants.HTTP_WHITEBOARD_FILTER_DISPATCHER, dispatchers.toArray(new String[0]));
+		}
+		putAll(properties, HttpWhiteboardConstants.HTTP_WHITEBOARD_FILTER_INIT_PARAM_PREFIX, filter.getInitParameters());
+		return properties;
+	}
+
+	private Map<String,Object> resourceProperties (IResourceRegistration resource) {
+		Map<String,Object> properties = new LinkedHashMap<>();
+		properties.put(HttpWhiteboardConstants.HTTP_WHITEBOARD_CONTEXT_SELECT, getContextSelect());
+		properties.put(HttpWhiteboardConstants.HTTP_WHITEBOARD_RESOURCE_PATTERN, resource.getPathSpec());
+		properties.put(HttpWhiteboardConstants.HTTP_WHITEBOARD_RESOURCE_PREFIX, (resource.getPrefix() != null) ? resource.getPrefix() : "");
+		return properties;
+	}
+
+	private String getContextSelect () {
+		return "("+HttpWhiteboardConstants.HTTP_WHITEBOARD_CONTEXT_NAME+"="+contextName+")";
+	}
+
+	private static void putAll (Map<String,Object> properties, String prefix, Map<String,String> parameters) {
+		if (parameters != null) {
+			for (Map.Entry<String,String> parameter : parameters.entrySet()) {
+				if (parameter.getKey() != null && parameter.getValue() != null) {
+					properties.put(prefix+parameter.getKey(), parameter.getValue());
+				}
+			}
+		}
+	}
+
+	/*
+	 * Equal service properties (the patterns and dispatchers are arrays)
+	 */
+	private static boolean sameProperties (Map<String,Object> a, Map<String,Object> b) {
+		if (a.size() != b.size()) {
+			return false;
+		}
+		for (Map.Entry<String,Object> entry : a.entrySet()) {
+			if (!Objects.deepEquals(entry.getValue(), b.get(entry.getKey()))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void unregister (ServiceRegistration<?> registration) {
+		try {
+			registration.unregister();
+		} catch (IllegalStateException e) {
+			// already unregistered when the bundle stopped
+		}
+	}
+
+	/**
+	 * What a deployment changed
+	 */
+	static class Changes {
+		int added;
+		int replaced;
+		int modified;
+		int removed;
+		int kept;
+		boolean contextReplaced;
+
+		boolean isEmpty () {
+			return 0 == added + replaced + modified + removed && !contextReplaced;
+		}
+
+		@Override
+		public String toString () {
+			return "added ["+added+"] replaced ["+replaced+"] modified ["+modified+"] removed ["+removed+"] kept ["+kept+"]"
+					+(contextReplaced ? " (context replaced)" : "");
+		}
+	}
+
+	/*
+	 * A servlet, filter or resource and its Whiteboard service
+	 */
+	private class Deployed {
+		private final Object service;
+		private Map<String,Object> properties;
+		private ServiceRegistration<?> registration;
+
+		private Deployed (Object service, Map<String,Object> properties) {
+			this.service = service;
+			this.properties = properties;
+		}
+
+		private void register (String serviceClass) {
+			registration = bundleContext.registerService(serviceClass, service, new Hashtable<>(properties));
+		}
+
+		private void unregister () {
+			if (registration != null) {
+				WebAppDeployment.unregister(registration);
+				registration = null;
+			}
+		}
+	}
+
+	/*
+	 * Sets the context attributes when the Whiteboard starts the context
+	 * and updates them in place when the registration changes
+	 */
+	private static class ContextAttributes implements ServletContextListener {
+		private ServletContext servletContext;
+		private Map<String,Object> values = Collections.emptyMap();
+
+		synchronized void update (Map<String,Object> next) {
+			if (servletContext != null) {
+				for (String name : values.keySet()) {
+					if (!next.containsKey(name)) {
+						servletContext.removeAttribute(name);
+					}
+				}
+				for (Map.Entry<String,Object> attribute : next.entrySet()) {
+					if (attribute.getValue() != values.get(attribute.getKey())) {
+						servletContext.setAttribute(attribute.getKey(), attribute.getValue());
+					}
+				}
+			}
+			values = next;
+		}
+
+		@Override
+		public synchronized void contextInitialized (ServletContextEvent event) {
+			servletContext = event.getServletContext();
+			for (Map.Entry<String,Object> attribute : values.entrySet()) {
+				servletContext.setAttribute(attribute.getKey(), attribute.getValue());
+			}
+		}
+
+		@Override
+		public synchronized void contextDestroyed (ServletContextEvent event) {
+			servletContext = null;
+		}
+	}
+
+}
@@ -0,0 +1,102 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server.diagnostics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The part of a {@code ServerFootprint} for one registered provider
+ * collection: the publishing bundle, the provider classes and the
+ * estimated heap retained by the providers.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class CollectionFootprint {
+	private final String name;
+	private final String bundle;
+	private final List<String> providers = new ArrayList<>();
+	private final Collection<Object> instances;
+	private long retainedBytes = -1;
+
+	/**
+	 * @param name the hot-swap key or blueprint component of the collection
+	 * @param bundle the symbolic name of the publishing bundle (null if unknown)
+	 * @param instances the registered providers
+	 */
+	public CollectionFootprint (String name, String bundle, Collection<Object> instances) {
+		this.name = name;
+		this.bundle = bundle;
+		this.instances = instances;
+		for (Object provider : instances) {
+			providers.add(provider.getClass().getName());
+		}
+	}
+
+	public String getName () {
+		return name;
+	}
+
+	public String getBundle () {
+		return bundle;
+	}
+
+	/**
+	 * @return the class names of the providers
+	 */
+	public List<String> getProviders () {
+		return Collections.unmodifiableList(providers);
+	}
+
+	/**
+	 * @return the estimated heap retained by the providers or -1 if it was not estimated
+	 */
+	public long getRetainedBytes () {
+		return retainedBytes;
+	}
+
+	void estimate (HeapEstimator estimator) {
+		long bytes = 0;
+		for (Object provider : instances) {
+			bytes += estimator.estimate(provider);
+		}
+		retainedBytes = bytes;
+	}
+
+	void appendJson (StringBuilder json) {
+		json.append("{\"name\":").append(ServerFootprint.quote(name));
+		json.append(",\"bundle\":").append(ServerFootprint.quote(bundle));
+		json.append(",\"providers\":[");
+		boolean first = true;
+		for (String provider : providers) {
+			json.append(first ? "" : ",").append(ServerFootprint.quote(provider));
+			first = false;
+		}
+		json.append("]");
+		if (retainedBytes >= 0) {
+			json.append(",\"retainedBytes\":").append(retainedBytes);
+		}
+		json.append("}");
+	}
+
+}
@@ -0,0 +1,122 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server.diagnostics;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import dev.wdenton.fhir.osgi.server.IOsgiProviderCollection;
+
+/**
+ * A provider collection that adds {@code [base]/$diagnostics} to a
+ * FHIR Server. It answers with the JSON footprint report of each
+ * registered server, or of the one named by the {@code server}
+ * parameter, with the estimated heap when {@code heap=true}.
+ * The report exposes the internals of the container so the
+ * operation should only be added to an administrative server.
+ * <p>
+ * The following example shows the Gemini Blueprint definition:
+ * <code><pre>
+ * &lt;reference id="serverDiagnostics" interface="dev.wdenton.fhir.osgi.server.diagnostics.IOsgiServerDiagnostics" />
+ * &lt;bean id="diagnostics" class="dev.wdenton.fhir.osgi.server.diagnostics.DiagnosticsProviderCollection">
+ * 	&lt;property name="diagnostics" ref="serverDiagnostics" />
+ * &lt;/bean>
+ * &lt;service ref="diagnostics" interface="dev.wdenton.fhir.osgi.server.IOsgiProviderCollection">
+ * 	&lt;service-properties>
+ * 		&lt;entry key="fhir.server.name" value="adminserver"/>
+ * 	&lt;/service-properties>
+ * &lt;/service>
+ * </pre></code>
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class DiagnosticsProviderCollection implements IOsgiProviderCollection {
+
+	private IOsgiServerDiagnostics diagnostics;
+
+	@Override
+	public Collection<Object> getProviders () {
+		return Collections.singletonList(this);
+	}
+
+	/**
+	 * Footprint report of the FHIR Servers
+	 */
+	@Operation(name = "$diagnostics", idempotent = true, manualResponse = true)
+	public void diagnostics (
+			@OperationParam(name = "server", typeName = "string") IPrimitiveType<String> theServer,
+			@OperationParam(name = "heap", typeName = "boolean") IPrimitiveType<Boolean> theHeap,
+			ServletRequestDetails theRequestDetails) throws IOException {
+		if (null == diagnostics) {
+			throw new InternalErrorException("The server diagnostics service is not available");
+		}
+		boolean estimateHeap = (theHeap != null) && Boolean.TRUE.equals(theHeap.getValue());
+		List<ServerFootprint> footprints;
+		if (theServer != null && theServer.getValue() != null) {
+			ServerFootprint footprint = diagnostics.getFootprint(theServer.getValue(), estimateHeap);
+			if (null == footprint) {
+				throw new ResourceNotFoundException("FHIR Server ["+theServer.getValue()+"] is not registered");
+			}
+			footprints = Collections.singletonList(footprint);
+		} else {
+			footprints = diagnostics.getFootprints(estimateHeap);
+		}
+		StringBuilder report = new StringBuilder(1024);
+		Runtime runtime = Runtime.getRuntime();
+		report.append("{\"heap\":{\"max\":").append(runtime.maxMemory());
+		report.append(",\"total\":").append(runtime.totalMemory());
+		report.append(",\"free\":").append(runtime.freeMemory());
+		report.append("},\"servers\":[");
+		boolean first = true;
+		for (ServerFootprint footprint : footprints) {
+			report.append(first ? "" : ",");
+			footprint.appendJson(report);
+			first = false;
+		}
+		report.append("]}");
+		HttpServletResponse response = theRequestDetails.getServletResponse();
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("Cache-Control", "no-store");
+		response.getWriter().write(report.toString());
+	}
+
+	public IOsgiServerDiagnostics getDiagnostics () {
+		return diagnostics;
+	}
+
+	public void setDiagnostics (IOsgiServerDiagnostics diagnostics) {
+		this.diagnostics = diagnostics;
+	}
+
+}
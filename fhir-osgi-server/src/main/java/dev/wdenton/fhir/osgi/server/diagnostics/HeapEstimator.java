@@ -0,0 +1,354 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server.diagnostics;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Estimates the heap retained by the objects reachable from a root,
+ * such as the providers of a provider collection. Objects are counted
+ * once per estimator, so the objects shared by several roots are
+ * counted with the first root that reaches them.
+ * <p>
+ * The size of each object comes from {@code Instrumentation} when a
+ * launcher that runs as a java agent has given one with
+ * {@link #setInstrumentation(Instrumentation)}. Otherwise it is
+ * calculated from the fields of the class assuming a 64-bit JVM with
+ * compressed oops. Large arrays, collections and maps are sampled and
+ * the size of their elements extrapolated.
+ * <p>
+ * The walk stops at objects shared by the whole framework (classes,
+ * class loaders, threads, the FhirContext, OSGi and logging objects)
+ * and the fields of JDK classes are not read; their collections and
+ * maps are walked through their public API.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class HeapEstimator {
+	public static final String METHOD_INSTRUMENTATION = "instrumentation";
+	public static final String METHOD_SAMPLING = "sampling";
+
+	private static final int HEADER_BYTES = 12;
+	private static final int ARRAY_HEADER_BYTES = 16;
+	private static final int REFERENCE_BYTES = 4;
+	private static final int ENTRY_BYTES = 32;
+
+	private static final String[] SHARED_PACKAGES = {
+			"ca.uhn.fhir.context.", "org.osgi.", "org.apache.felix.", "org.apache.aries.", "org.eclipse.osgi.",
+			"org.eclipse.gemini.", "org.springframework.", "org.slf4j.", "ch.qos.logback.", "org.apache.logging.",
+			"org.ops4j.pax.", "java.lang.reflect.", "java.lang.invoke." };
+
+	private static volatile Instrumentation instrumentation;
+
+	private static final ClassValue<Layout> LAYOUTS = new ClassValue<Layout>() {
+		@Override
+		protected Layout computeValue (Class<?> type) {
+			return new Layout(type);
+		}
+	};
+
+	private final Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+	private final int maxObjects;
+	private final int sampleSize;
+	private boolean truncated = false;
+
+	/**
+	 * @param maxObjects the most objects visited before the estimate is cut short
+	 * @param sampleSize the elements of a large array or collection that are walked
+	 */
+	public HeapEstimator (int maxObjects, int sampleSize) {
+		this.maxObjects = maxObjects;
+		this.sampleSize = Math.max(1, sampleSize);
+	}
+
+	public HeapEstimator () {
+		this(1000000, 256);
+	}
+
+	/**
+	 * @param inst the Instrumentation used to size objects (null = calculate the sizes)
+	 */
+	public static void setInstrumentation (Instrumentation inst) {
+		instrumentation = inst;
+	}
+
+	/**
+	 * @return how object sizes are found, {@code instrumentation} or {@code sampling}
+	 */
+	public static String getMethod () {
+		return (instrumentation != null) ? METHOD_INSTRUMENTATION : METHOD_SAMPLING;
+	}
+
+	/**
+	 * Don't count an object or anything only reachable through it
+	 *
+	 * @param shared an object owned by something else (the server...)
+	 */
+	public void exclude (Object shared) {
+		if (shared != null) {
+			visited.add(shared);
+		}
+	}
+
+	/**
+	 * @return true if an estimate stopped at the maximum number of objects
+	 */
+	public boolean isTruncated () {
+		return truncated;
+	}
+
+	/**
+	 * @param root the root object
+	 * @return the estimated bytes of the objects reachable from the root
+	 * that haven't been counted by this estimator
+	 */
+	public long estimate (Object root) {
+		long bytes = 0;
+		Deque<Object> pending = new ArrayDeque<>();
+		push(pending, root);
+		while (!pending.isEmpty()) {
+			if (visited.size() >= maxObjects) {
+				truncated = true;
+				break;
+			}
+			Object object = pending.pop();
+			Class<?> type = object.getClass();
+			bytes += sizeOf(object, type);
+			if (type.isArray()) {
+				bytes += walkArray(object, type, pending);
+			} else
+			if (!isJdkClass(type)) {
+				for (Field field : LAYOUTS.get(type).references) {
+					try {
+						push(pending, field.get(object));
+					} catch (IllegalAccessException | RuntimeException e) {
+						// the field can't be read so it isn't counted
+					}
+				}
+			} else
+			if (object instanceof Collection) {
+				bytes += walkCollection((Collection<?>)object, pending);
+			} else
+			if (object instanceof Map) {
+				bytes += walkMap((Map<?,?>)object, pending);
+			} else
+			if (object instanceof String) {
+				bytes += align(ARRAY_HEADER_BYTES + ((String)object).length());
+			} else
+			if (object instanceof ByteBuffer) {
+				ByteBuffer buffer = (ByteBuffer)object;
+				if (buffer.hasArray() && visited.add(buffer.array())) {
+					bytes += sizeOf(buffer.array(), byte[].class);
+				}
+			}
+		}
+		return bytes;
+	}
+
+	private long walkArray (Object array, Class<?> type, Deque<Object> pending) {
+		if (type.getComponentType().isPrimitive()) {
+			return 0;
+		}
+		Object[] elements = (Object[])array;
+		if (elements.length <= sampleSize) {
+			for (Object element : elements) {
+				push(pending, element);
+			}
+			return 0;
+		}
+		List<Object> sample = new ArrayList<>(sampleSize);
+		int step = elements.length / sampleSize;
+		for (int i = 0; i < elements.length && sample.size() < sampleSize; i += step) {
+			sample.add(elements[i]);
+		}
+		return extrapolate(sample, elements.length);
+	}
+
+	private long walkCollection (Collection<?> collection, Deque<Object> pending) {
+		List<Object> sample = new ArrayList<>(Math.min(sampleSize, 64));
+		int size = copy(collection.iterator(), sample);
+		if (size <= sampleSize) {
+			sample.forEach(element -> push(pending, element));
+			return (long)size * ENTRY_BYTES;
+		}
+		return (long)size * ENTRY_BYTES + extrapolate(sample, size);
+	}
+
+	private long walkMap (Map<?,?> map, Deque<Object> pending) {
+		List<Object> sample = new ArrayList<>(Math.min(sampleSize, 64));
+		int size = copy(map.entrySet().iterator(), sample);
+		List<Object> keysAndValues = new ArrayList<>(sample.size() * 2);
+		for (Object entry : sample) {
+			keysAndValues.add(((Map.Entry<?,?>)entry).getKey());
+			keysAndValues.add(((Map.Entry<?,?>)entry).getValue());
+		}
+		if (size <= sampleSize) {
+			keysAndValues.forEach(element -> push(pending, element));
+			return (long)size * ENTRY_BYTES;
+		}
+		return (long)size * ENTRY_BYTES + extrapolate(keysAndValues, size * 2L);
+	}
+
+	/*
+	 * Copy the first sampleSize elements and count the rest. A live
+	 * collection that is changed while it is walked is cut short.
+	 */
+	private int copy (Iterator<?> elements, List<Object> sample) {
+		int size = 0;
+		try {
+			while (elements.hasNext()) {
+				Object element = elements.next();
+				if (sample.size() < sampleSize) {
+					sample.add(element);
+				}
+				size++;
+			}
+		} catch (RuntimeException e) {
+			// ConcurrentModificationException.. use what was seen
+		}
+		return size;
+	}
+
+	/*
+	 * Estimate the sampled elements and scale their size up to the
+	 * number of elements
+	 */
+	private long extrapolate (List<Object> sample, long count) {
+		if (sample.isEmpty()) {
+			return 0;
+		}
+		long bytes = 0;
+		for (Object element : sample) {
+			bytes += estimate(element);
+		}
+		return (long)(bytes * ((double)count / sample.size()));
+	}
+
+	private void push (Deque<Object> pending, Object object) {
+		if (object != null && !isShared(object.getClass()) && visited.add(object)) {
+			pending.push(object);
+		}
+	}
+
+	private static long sizeOf (Object object, Class<?> type) {
+		Instrumentation inst = instrumentation;
+		if (inst != null) {
+			return inst.getObjectSize(object);
+		}
+		if (type.isArray()) {
+			Class<?> component = type.getComponentType();
+			return align(ARRAY_HEADER_BYTES + (long)Array.getLength(object) * (component.isPrimitive() ? primitiveSize(component) : REFERENCE_BYTES));
+		}
+		return LAYOUTS.get(type).size;
+	}
+
+	private static boolean isShared (Class<?> type) {
+		if (Class.class == type || ClassLoader.class.isAssignableFrom(type) || Thread.class.isAssignableFrom(type) || ThreadGroup.class == type) {
+			return true;
+		}
+		String name = type.getName();
+		for (String prefix : SHARED_PACKAGES) {
+			if (name.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isJdkClass (Class<?> type) {
+		String name = type.getName();
+		return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("jdk.") || name.startsWith("sun.") || name.startsWith("com.sun.");
+	}
+
+	private static int primitiveSize (Class<?> type) {
+		if (long.class == type || double.class == type) {
+			return 8;
+		}
+		if (int.class == type || float.class == type) {
+			return 4;
+		}
+		if (short.class == type || char.class == type) {
+			return 2;
+		}
+		return 1;
+	}
+
+	private static long align (long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+
+	/*
+	 * The calculated size and the readable reference fields of a class
+	 */
+	private static class Layout {
+		private final long size;
+		private final Field[] references;
+
+		private Layout (Class<?> type) {
+			long bytes = HEADER_BYTES;
+			List<Field> fields = new ArrayList<>();
+			boolean readable = !isJdkClass(type);
+			for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+				Field[] declared;
+				try {
+					declared = c.getDeclaredFields();
+				} catch (LinkageError e) {
+					break; // a field type is missing (optional import)
+				}
+				for (Field field : declared) {
+					if (Modifier.isStatic(field.getModifiers())) {
+						continue;
+					}
+					if (field.getType().isPrimitive()) {
+						bytes += primitiveSize(field.getType());
+						continue;
+					}
+					bytes += REFERENCE_BYTES;
+					if (readable && !isJdkClass(c)) {
+						try {
+							field.setAccessible(true);
+							fields.add(field);
+						} catch (RuntimeException e) {
+							// not accessible from this bundle
+						}
+					}
+				}
+			}
+			this.size = align(bytes);
+			this.references = fields.toArray(new Field[0]);
+		}
+	}
+
+}
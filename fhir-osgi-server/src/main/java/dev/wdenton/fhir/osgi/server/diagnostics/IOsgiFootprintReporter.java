@@ -0,0 +1,42 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server.diagnostics;
+
+/**
+ * Implemented by the FHIR Servers that report what they hold, beyond
+ * their registered providers, in the footprint reports of the
+ * {@code IOsgiServerDiagnostics} service. A server that doesn't
+ * implement it only reports its providers.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public interface IOsgiFootprintReporter {
+
+	/**
+	 * Add the statistics of the server (bindings, paging, caches) and
+	 * the objects it holds for its providers to the footprint report
+	 * of the server
+	 * 
+	 * @param footprint the report of the server
+	 */
+	public void describeFootprint (ServerFootprint footprint);
+
+}
@@ -0,0 +1,58 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server.diagnostics;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * This interface is published as an OSGi service by the server
+ * publisher. It reports, for each named FHIR Server, the registered
+ * provider collections, what is waiting to be registered and the
+ * memory held by the providers, paging and caches. This is used to
+ * size the heap of a container and to find heavy provider bundles.
+ * <p>
+ * Estimating the heap walks every object reachable from the providers,
+ * so it is only done when asked for.
+ * @see HeapEstimator
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public interface IOsgiServerDiagnostics {
+
+	/**
+	 * @return the names of the registered FHIR Servers
+	 */
+	public Collection<String> getServerNames ();
+
+	/**
+	 * @param serverName the <b><i>fhir.server.name</i></b> of a server
+	 * @param estimateHeap true to estimate the heap retained by the providers and caches
+	 * @return the report for the server or null if no server has the name
+	 */
+	public ServerFootprint getFootprint (String serverName, boolean estimateHeap);
+
+	/**
+	 * @param estimateHeap true to estimate the heap retained by the providers and caches
+	 * @return the report for each of the registered servers
+	 */
+	public List<ServerFootprint> getFootprints (boolean estimateHeap);
+}
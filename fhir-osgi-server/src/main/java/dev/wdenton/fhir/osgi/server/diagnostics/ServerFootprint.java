@@ -0,0 +1,284 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server.diagnostics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The report of what a named FHIR Server holds: its provider
+ * collections, the collections and interceptors waiting for it, the
+ * statistics of its bindings, paging and caches, and optionally the
+ * estimated heap retained by each collection and cache.
+ * <p>
+ * The server adds its own statistics and the objects whose heap should
+ * be estimated (caches, paging provider) with {@link #addStatistic(String, Object)}
+ * and {@link #addComponent(String, Object)}.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class ServerFootprint {
+	private final String serverName;
+	private final List<CollectionFootprint> collections = new ArrayList<>();
+	private final Map<String,Object> statistics = new LinkedHashMap<>();
+	private final Map<String,Object> components = new LinkedHashMap<>();
+	private final Map<String,Long> componentBytes = new LinkedHashMap<>();
+	private int pendingCollections = 0;
+	private int pendingProviders = 0;
+	private int retiringCollections = 0;
+	private int interceptors = 0;
+	private int pendingInterceptors = 0;
+	private String estimator;
+	private boolean truncated = false;
+
+	public ServerFootprint (String serverName) {
+		this.serverName = serverName;
+	}
+
+	public String getServerName () {
+		return serverName;
+	}
+
+	public void addCollection (CollectionFootprint collection) {
+		collections.add(collection);
+	}
+
+	public List<CollectionFootprint> getCollections () {
+		return Collections.unmodifiableList(collections);
+	}
+
+	/**
+	 * @return the number of providers in the registered collections
+	 */
+	public int getProviders () {
+		int count = 0;
+		for (CollectionFootprint collection : collections) {
+			count += collection.getProviders().size();
+		}
+		return count;
+	}
+
+	/**
+	 * @param name the name of the statistic (resourceBindings, searchCache.hits...)
+	 * @param value a number, boolean or string
+	 */
+	public void addStatistic (String name, Object value) {
+		if (value != null) {
+			statistics.put(name, value);
+		}
+	}
+
+	public Map<String,Object> getStatistics () {
+		return Collections.unmodifiableMap(statistics);
+	}
+
+	/**
+	 * @param name the name of the component (versionIndex, searchCache...)
+	 * @param component an object held by the server for its providers
+	 */
+	public void addComponent (String name, Object component) {
+		if (component != null) {
+			components.put(name, component);
+		}
+	}
+
+	void setComponentBytes (String name, long bytes) {
+		componentBytes.put(name, bytes);
+	}
+
+	/**
+	 * @return the estimated heap retained by each component (empty if not estimated)
+	 */
+	public Map<String,Long> getComponentBytes () {
+		return Collections.unmodifiableMap(componentBytes);
+	}
+
+	/**
+	 * @return the estimated heap retained by the collections and components
+	 * or -1 if it was not estimated
+	 */
+	public long getRetainedBytes () {
+		if (null == estimator) {
+			return -1;
+		}
+		long bytes = 0;
+		for (CollectionFootprint collection : collections) {
+			bytes += Math.max(0, collection.getRetainedBytes());
+		}
+		for (Long component : componentBytes.values()) {
+			bytes += component;
+		}
+		return bytes;
+	}
+
+	public int getPendingCollections () {
+		return pendingCollections;
+	}
+
+	public void setPendingCollections (int pendingCollections) {
+		this.pendingCollections = pendingCollections;
+	}
+
+	public int getPendingProviders () {
+		return pendingProviders;
+	}
+
+	public void setPendingProviders (int pendingProviders) {
+		this.pendingProviders = pendingProviders;
+	}
+
+	public int getRetiringCollections () {
+		return retiringCollections;
+	}
+
+	public void setRetiringCollections (int retiringCollections) {
+		this.retiringCollections = retiringCollections;
+	}
+
+	public int getInterceptors () {
+		return interceptors;
+	}
+
+	public void setInterceptors (int interceptors) {
+		this.interceptors = interceptors;
+	}
+
+	public int getPendingInterceptors () {
+		return pendingInterceptors;
+	}
+
+	public void setPendingInterceptors (int pendingInterceptors) {
+		this.pendingInterceptors = pendingInterceptors;
+	}
+
+	/**
+	 * @return how the heap was estimated or null if it wasn't
+	 */
+	public String getEstimator () {
+		return estimator;
+	}
+
+	void setEstimator (String estimator, boolean truncated) {
+		this.estimator = estimator;
+		this.truncated = truncated;
+	}
+
+	/**
+	 * @return true if the heap estimate stopped before every object was visited
+	 */
+	public boolean isTruncated () {
+		return truncated;
+	}
+
+	/**
+	 * Estimate the heap retained by the collections and then by the
+	 * components, so objects shared with a collection are counted
+	 * with the collection.
+	 *
+	 * @param estimator the estimator, with the shared objects excluded
+	 */
+	public void estimate (HeapEstimator estimator) {
+		for (CollectionFootprint collection : collections) {
+			collection.estimate(estimator);
+		}
+		for (Map.Entry<String,Object> component : components.entrySet()) {
+			setComponentBytes(component.getKey(), estimator.estimate(component.getValue()));
+		}
+		setEstimator(HeapEstimator.getMethod(), estimator.isTruncated());
+	}
+
+	/**
+	 * @param json the JSON object of the report is appended to this
+	 */
+	public void appendJson (StringBuilder json) {
+		json.append("{\"server\":").append(quote(serverName));
+		json.append(",\"providers\":").append(getProviders());
+		json.append(",\"pendingCollections\":").append(pendingCollections);
+		json.append(",\"pendingProviders\":").append(pendingProviders);
+		json.append(",\"retiringCollections\":").append(retiringCollections);
+		json.append(",\"interceptors\":").append(interceptors);
+		json.append(",\"pendingInterceptors\":").append(pendingInterceptors);
+		json.append(",\"statistics\":{");
+		boolean first = true;
+		for (Map.Entry<String,Object> statistic : statistics.entrySet()) {
+			json.append(first ? "" : ",").append(quote(statistic.getKey())).append(":");
+			Object value = statistic.getValue();
+			json.append((value instanceof Number || value instanceof Boolean) ? value.toString() : quote(value.toString()));
+			first = false;
+		}
+		json.append("},\"collections\":[");
+		first = true;
+		for (CollectionFootprint collection : collections) {
+			json.append(first ? "" : ",");
+			collection.appendJson(json);
+			first = false;
+		}
+		json.append("]");
+		if (estimator != null) {
+			json.append(",\"heap\":{\"estimator\":").append(quote(estimator));
+			json.append(",\"truncated\":").append(truncated);
+			json.append(",\"retainedBytes\":").append(getRetainedBytes());
+			json.append(",\"components\":{");
+			first = true;
+			for (Map.Entry<String,Long> component : componentBytes.entrySet()) {
+				json.append(first ? "" : ",").append(quote(component.getKey())).append(":").append(component.getValue());
+				first = false;
+			}
+			json.append("}}");
+		}
+		json.append("}");
+	}
+
+	static String quote (String value) {
+		if (null == value) {
+			return "null";
+		}
+		StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+		for (char c : value.toCharArray()) {
+			switch (c) {
+			case '"':
+				quoted.append("\\\"");
+				break;
+			case '\\':
+				quoted.append("\\\\");
+				break;
+			default:
+				if (c < 0x20) {
+					quoted.append(String.format("\\u%04x", (int)c));
+				} else {
+					quoted.append(c);
+				}
+			}
+		}
+		return quoted.append('"').toString();
+	}
+
+	@Override
+	public String toString () {
+		StringBuilder json = new StringBuilder();
+		appendJson(json);
+		return json.toString();
+	}
+
+}
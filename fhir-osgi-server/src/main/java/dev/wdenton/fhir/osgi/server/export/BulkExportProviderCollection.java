@@ -0,0 +1,498 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server.export;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import dev.wdenton.fhir.osgi.server.AcceptEncoding;
+import dev.wdenton.fhir.osgi.server.IOsgiProviderCollection;
+
+/**
+ * A provider collection that adds FHIR Bulk Data {@code $export} to a
+ * FHIR Server. The resources are read from the {@code IOsgiExportSource}
+ * OSGi services and written to gzip compressed NDJSON files on local
+ * disk, one task per resource type on a bounded pool of export threads.
+ * A kick-off is rejected with 429 when maxActiveJobs exports are
+ * running or the queue of export tasks is full. Finished exports are
+ * deleted after retentionMillis by a background timer.
+ * The following endpoints are added to the server:
+ * <ul>
+ * <li>{@code [base]/$export?_type=...&_since=...} starts an export and
+ * answers 202 with the status URL in Content-Location</li>
+ * <li>{@code [base]/$export-poll-status?_jobId=...} answers 202 while
+ * the export is running and the manifest once it is complete</li>
+ * <li>{@code [base]/$export-download?_jobId=...&_file=...} downloads
+ * the file of a resource type</li>
+ * </ul>
+ * The following example shows the Gemini Blueprint definition:
+ * <code><pre>
+ * &lt;bean id="bulkExport" class="dev.wdenton.fhir.osgi.server.export.BulkExportProviderCollection" destroy-method="shutdown">
+ * 	&lt;property name="exportDirectory" value="/var/fhir/export" />
+ * &lt;/bean>
+ * &lt;service ref="bulkExport" interface="dev.wdenton.fhir.osgi.server.IOsgiProviderCollection">
+ * 	&lt;service-properties>
+ * 		&lt;entry key="fhir.server.name" value="servername"/>
+ * 	&lt;/service-properties>
+ * &lt;/service>
+ * &lt;reference-list id="exportSources" interface="dev.wdenton.fhir.osgi.server.export.IOsgiExportSource" availability="optional">
+ * 	&lt;reference-listener bind-method="registerExportSource" unbind-method="unregisterExportSource" ref="bulkExport"/>
+ * &lt;/reference-list>
+ * </pre></code>
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class BulkExportProviderCollection implements IOsgiProviderCollection {
+	private static Logger log = LoggerFactory.getLogger(BulkExportProviderCollection.class);
+	private static final String FILE_SUFFIX = ".ndjson.gz";
+
+	private final Map<String,IOsgiExportSource> sources = new ConcurrentHashMap<>();
+	private final Map<String,ExportJob> jobs = new ConcurrentHashMap<>();
+	private ThreadPoolExecutor executor;
+	private ScheduledExecutorService expiryTimer;
+
+	private File exportDirectory = new File(System.getProperty("java.io.tmpdir"), "fhir-export");
+	private int exportThreads = 2;
+	private int maxActiveJobs = 4;
+	private int maxQueuedTasks = 64;
+	private long retentionMillis = 60 * 60 * 1000;
+
+	@Override
+	public Collection<Object> getProviders () {
+		return Collections.singletonList(this);
+	}
+
+	/**
+	 * Blueprint bind-method for the {@code IOsgiExportSource} services
+	 */
+	public void registerExportSource (IOsgiExportSource source, Map<String,Object> props) {
+		if (source != null) {
+			log.trace("register export source for ["+source.getResourceType()+"]");
+			sources.put(source.getResourceType(), source);
+		}
+	}
+
+	/**
+	 * Blueprint unbind-method for the {@code IOsgiExportSource} services
+	 */
+	public void unregisterExportSource (IOsgiExportSource source, Map<String,Object> props) {
+		if (source != null) {
+			log.trace("unregister export source for ["+source.getResourceType()+"]");
+			sources.remove(source.getResourceType(), source);
+		}
+	}
+
+	/**
+	 * Bulk Data kick-off request
+	 */
+	@Operation(name = "$export", idempotent = true, manualResponse = true)
+	public void export (
+			@OperationParam(name = "_type", typeName = "string") IPrimitiveType<String> theType,
+			@OperationParam(name = "_since", typeName = "instant") IPrimitiveType<Date> theSince,
+			@OperationParam(name = "_outputFormat", typeName = "string") IPrimitiveType<String> theOutputFormat,
+			ServletRequestDetails theRequestDetails) throws IOException {
+		String outputFormat = (theOutputFormat != null) ? theOutputFormat.getValueAsString() : null;
+		if (outputFormat != null && !"application/fhir+ndjson".equals(outputFormat)
+				&& !"application/ndjson".equals(outputFormat) && !"ndjson".equals(outputFormat)) {
+			throw new InvalidRequestException("Unsupported _outputFormat ["+outputFormat+"]");
+		}
+		List<String> types = new ArrayList<>();
+		if (theType != null && theType.getValueAsString() != null) {
+			for (String type : theType.getValueAsString().split(",")) {
+				type = type.trim();
+				if (type.isEmpty() || types.contains(type)) {
+					continue;
+				}
+				if (!sources.containsKey(type)) {
+					throw new InvalidRequestException("Resource type ["+type+"] can't be exported");
+				}
+				types.add(type);
+			}
+		} else {
+			types.addAll(sources.keySet());
+		}
+		if (types.isEmpty()) {
+			throw new InvalidRequestException("No resource types to export");
+		}
+
+		String id = UUID.randomUUID().toString();
+		Path directory = exportDirectory.toPath().resolve(id);
+		ExportJob job = new ExportJob(id, theRequestDetails.getCompleteUrl(), (theSince != null) ? theSince.getValue() : null, types, directory);
+		synchronized (jobs) {
+			// counted and added together so that concurrent kick-offs can't pass the limit
+			if (getActiveJobs() >= maxActiveJobs) {
+				throw tooManyExports();
+			}
+			jobs.put(id, job);
+		}
+		FhirContext fhirContext = theRequestDetails.getFhirContext();
+		try {
+			Files.createDirectories(directory);
+			for (String type : types) {
+				IOsgiExportSource source = sources.get(type);
+				getExecutor().execute(() -> exportType(job, type, source, fhirContext));
+			}
+		} catch (IOException | RejectedExecutionException e) {
+			// the tasks already queued see the job cancelled and end at once
+			job.cancel();
+			jobs.remove(id, job);
+			deleteFiles(job);
+			if (e instanceof IOException) {
+				throw (IOException)e;
+			}
+			log.trace("export ["+id+"] rejected, the export queue is full");
+			throw tooManyExports();
+		}
+		log.trace("export ["+id+"] started for "+types);
+
+		HttpServletResponse response = theRequestDetails.getServletResponse();
+		response.setStatus(HttpServletResponse.SC_ACCEPTED);
+		response.setHeader("Content-Location", theRequestDetails.getFhirServerBase()+"/$export-poll-status?_jobId="+id);
+	}
+
+	/**
+	 * Bulk Data status request
+	 */
+	@Operation(name = "$export-poll-status", idempotent = true, manualResponse = true)
+	public void exportPollStatus (
+			@OperationParam(name = "_jobId", min = 1, typeName = "string") IPrimitiveType<String> theJobId,
+			ServletRequestDetails theRequestDetails) throws IOException {
+		ExportJob job = getJob(theJobId);
+		HttpServletResponse response = theRequestDetails.getServletResponse();
+		switch (job.getState()) {
+			case ExportJob.RUNNING:
+				response.setStatus(HttpServletResponse.SC_ACCEPTED);
+				response.setHeader("X-Progress", "exported ["+job.getFinishedTypes()+"] of ["+job.getTypes().size()+"] resource types");
+				response.setHeader("Retry-After", "5");
+				return;
+			case ExportJob.FAILED:
+				throw new InternalErrorException(job.getError());
+			case ExportJob.CANCELLED:
+				throw new ResourceNotFoundException("Export ["+job.getId()+"] was cancelled");
+			default:
+				break;
+		}
+		StringBuilder manifest = new StringBuilder(256);
+		manifest.append("{\"transactionTime\":").append(quote(DateTimeFormatter.ISO_INSTANT.format(job.getTransactionTime().toInstant())));
+		manifest.append(",\"request\":").append(quote(job.getRequest()));
+		manifest.append(",\"requiresAccessToken\":false,\"output\":[");
+		String base = theRequestDetails.getFhirServerBase()+"/$export-download?_jobId="+job.getId()+"&_file=";
+		boolean first = true;
+		for (String type : job.getTypes()) {
+			ExportJob.Output output = job.getOutput(type);
+			if (null == output || 0 == output.count) {
+				continue;
+			}
+			manifest.append(first ? "" : ",");
+			manifest.append("{\"type\":").append(quote(type)).append(",\"url\":").append(quote(base+type)).append(",\"count\":").append(output.count).append("}");
+			first = false;
+		}
+		manifest.append("],\"error\":[]}");
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		response.getWriter().write(manifest.toString());
+	}
+
+	/**
+	 * Download the NDJSON file of an exported resource type. The file is
+	 * sent as stored (gzip encoded) with a FileChannel transfer when the
+	 * client accepts gzip, otherwise it is decompressed as it is sent.
+	 */
+	@Operation(name = "$export-download", idempotent = true, manualResponse = true)
+	public void exportDownload (
+			@OperationParam(name = "_jobId", min = 1, typeName = "string") IPrimitiveType<String> theJobId,
+			@OperationParam(name = "_file", min = 1, typeName = "string") IPrimitiveType<String> theFile,
+			ServletRequestDetails theRequestDetails) throws IOException {
+		ExportJob job = getJob(theJobId);
+		ExportJob.Output output = (ExportJob.COMPLETE == job.getState()) ? job.getOutput(theFile.getValueAsString()) : null;
+		if (null == output) {
+			throw new ResourceNotFoundException("Export ["+job.getId()+"] has no file ["+theFile.getValueAsString()+"]");
+		}
+		HttpServletResponse response = theRequestDetails.getServletResponse();
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType("application/fhir+ndjson");
+		try (FileChannel channel = FileChannel.open(output.file, StandardOpenOption.READ)) {
+			if (AcceptEncoding.acceptsGzip(theRequestDetails.getServletRequest())) {
+				long size = channel.size();
+				response.setHeader("Content-Encoding", "gzip");
+				response.setContentLengthLong(size);
+				WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+				long position = 0;
+				while (position < size) {
+					position += channel.transferTo(position, size - position, out);
+				}
+			} else {
+				try (InputStream in = new GZIPInputStream(Channels.newInputStream(channel), 64 * 1024)) {
+					in.transferTo(response.getOutputStream());
+				}
+			}
+		}
+	}
+
+	/*
+	 * Write the resources of one type to the job's NDJSON file
+	 */
+	private void exportType (ExportJob job, String type, IOsgiExportSource source, FhirContext fhirContext) {
+		if (job.isCancelled()) {
+			job.failed(type, new CancellationException("Export cancelled"));
+			return;
+		}
+		Path file = job.getDirectory().resolve(type+FILE_SUFFIX);
+		IParser parser = fhirContext.newJsonParser().setPrettyPrint(false);
+		long[] count = { 0 };
+		try {
+			try (Writer out = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(file), 64 * 1024), StandardCharsets.UTF_8), 64 * 1024)) {
+				source.export(job.getSince(), resource -> {
+					if (job.isCancelled()) {
+						throw new CancellationException("Export cancelled");
+					}
+					try {
+						out.write(parser.encodeResourceToString(resource));
+						out.write('\n');
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+					count[0]++;
+				});
+			}
+			log.trace("export ["+job.getId()+"] wrote ["+count[0]+"] ["+type+"] resources");
+			job.completed(type, file, count[0]);
+		} catch (Exception e) {
+			log.warn("export ["+job.getId()+"] of ["+type+"] failed: "+e.getMessage());
+			job.failed(type, e);
+		}
+	}
+
+	private ExportJob getJob (IPrimitiveType<String> theJobId) {
+		ExportJob job = (theJobId != null && theJobId.getValueAsString() != null) ? jobs.get(theJobId.getValueAsString()) : null;
+		if (null == job) {
+			throw new ResourceNotFoundException("Unknown export ["+((theJobId != null) ? theJobId.getValueAsString() : null)+"]");
+		}
+		return job;
+	}
+
+	private static BaseServerResponseException tooManyExports () {
+		return new UnclassifiedServerFailureException(429, "Too many exports in progress")
+				.addResponseHeader("Retry-After", "60");
+	}
+
+	private int getActiveJobs () {
+		int active = 0;
+		for (ExportJob job : jobs.values()) {
+			if (ExportJob.RUNNING == job.getState()) {
+				active++;
+			}
+		}
+		return active;
+	}
+
+	/*
+	 * Remove the jobs (and their files) that finished more than retentionMillis ago
+	 */
+	private void expireJobs () {
+		long expired = System.currentTimeMillis() - retentionMillis;
+		for (ExportJob job : jobs.values()) {
+			long finishedAt = job.getFinishedAt();
+			if (finishedAt > 0 && finishedAt < expired && jobs.remove(job.getId(), job)) {
+				deleteFiles(job);
+			}
+		}
+	}
+
+	private static void deleteFiles (ExportJob job) {
+		log.trace("deleting the files of export ["+job.getId()+"]");
+		try (Stream<Path> files = Files.walk(job.getDirectory())) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		} catch (IOException e) {
+			log.warn("failed to delete the files of export ["+job.getId()+"]: "+e.getMessage());
+		}
+	}
+
+	/*
+	 * The tasks wait in a bounded queue; execute() throws
+	 * RejectedExecutionException once it is full
+	 */
+	private synchronized ThreadPoolExecutor getExecutor () {
+		if (null == executor) {
+			AtomicInteger threadCount = new AtomicInteger();
+			executor = new ThreadPoolExecutor(exportThreads, exportThreads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(maxQueuedTasks), runnable -> {
+				Thread thread = new Thread(runnable, "fhir-bulk-export-"+threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+			executor.allowCoreThreadTimeOut(true);
+			startExpiryTimer();
+		}
+		return executor;
+	}
+
+	/*
+	 * Expire the finished jobs whether or not requests are coming in
+	 */
+	private void startExpiryTimer () {
+		if (null == expiryTimer) {
+			expiryTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "fhir-bulk-export-expiry");
+				thread.setDaemon(true);
+				return thread;
+			});
+			long period = Math.max(1000, Math.min(retentionMillis, 60 * 1000));
+			expiryTimer.scheduleWithFixedDelay(() -> {
+				try {
+					expireJobs();
+				} catch (RuntimeException e) {
+					log.warn("failed to expire exports: "+e.getMessage());
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Cancel the running exports and delete all exported files
+	 */
+	public void shutdown () {
+		synchronized (this) {
+			if (executor != null) {
+				executor.shutdownNow();
+				executor = null;
+			}
+			if (expiryTimer != null) {
+				expiryTimer.shutdownNow();
+				expiryTimer = null;
+			}
+		}
+		for (ExportJob job : jobs.values()) {
+			job.cancel();
+			jobs.remove(job.getId());
+			deleteFiles(job);
+		}
+	}
+
+	private static String quote (String value) {
+		if (null == value) {
+			return "null";
+		}
+		return "\""+value.replace("\\", "\\\\").replace("\"", "\\\"")+"\"";
+	}
+
+	public File getExportDirectory () {
+		return exportDirectory;
+	}
+
+	public void setExportDirectory (File exportDirectory) {
+		this.exportDirectory = exportDirectory;
+	}
+
+	public int getExportThreads () {
+		return exportThreads;
+	}
+
+	/**
+	 * @param exportThreads the number of resource types exported in parallel
+	 */
+	public void setExportThreads (int exportThreads) {
+		this.exportThreads = Math.max(1, exportThreads);
+	}
+
+	public int getMaxActiveJobs () {
+		return maxActiveJobs;
+	}
+
+	/**
+	 * @param maxActiveJobs the most exports running at once (more are rejected with 429)
+	 */
+	public void setMaxActiveJobs (int maxActiveJobs) {
+		this.maxActiveJobs = maxActiveJobs;
+	}
+
+	public int getMaxQueuedTasks () {
+		return maxQueuedTasks;
+	}
+
+	/**
+	 * @param maxQueuedTasks the most resource type exports waiting for a thread (more are rejected with 429)
+	 */
+	public void setMaxQueuedTasks (int maxQueuedTasks) {
+		this.maxQueuedTasks = Math.max(1, maxQueuedTasks);
+	}
+
+	public long getRetentionMillis () {
+		return retentionMillis;
+	}
+
+	/**
+	 * @param retentionMillis how long the files of a finished export are kept
+	 */
+	public void setRetentionMillis (long retentionMillis) {
+		this.retentionMillis = retentionMillis;
+	}
+
+}
@@ -0,0 +1,162 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server.export;
+
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The state of one {@code $export} request. Each resource type is
+ * exported by its own task; the job is complete when the last one
+ * finishes.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+class ExportJob {
+	static final int RUNNING = 0;
+	static final int COMPLETE = 1;
+	static final int FAILED = 2;
+	static final int CANCELLED = 3;
+
+	private final String id;
+	private final String request;
+	private final Date transactionTime = new Date();
+	private final Date since;
+	private final List<String> types;
+	private final Path directory;
+	private final Map<String,Output> outputs = new ConcurrentHashMap<>();
+	private final AtomicInteger remaining;
+
+	private volatile int state = RUNNING;
+	private volatile String error;
+	private volatile long finishedAt = 0;
+
+	ExportJob (String id, String request, Date since, List<String> types, Path directory) {
+		this.id = id;
+		this.request = request;
+		this.since = since;
+		this.types = types;
+		this.directory = directory;
+		this.remaining = new AtomicInteger(types.size());
+	}
+
+	/*
+	 * Record the file written for a resource type
+	 */
+	void completed (String type, Path file, long count) {
+		outputs.put(type, new Output(type, file, count));
+		finishTask();
+	}
+
+	void failed (String type, Exception e) {
+		if (null == error) {
+			error = "Export of ["+type+"] failed: "+e.getMessage();
+		}
+		finishTask();
+	}
+
+	void cancel () {
+		if (RUNNING == state) {
+			state = CANCELLED;
+			finishedAt = System.currentTimeMillis();
+		}
+	}
+
+	private void finishTask () {
+		if (0 == remaining.decrementAndGet() && RUNNING == state) {
+			state = (null == error) ? COMPLETE : FAILED;
+			finishedAt = System.currentTimeMillis();
+		}
+	}
+
+	String getId () {
+		return id;
+	}
+
+	String getRequest () {
+		return request;
+	}
+
+	Date getTransactionTime () {
+		return transactionTime;
+	}
+
+	Date getSince () {
+		return since;
+	}
+
+	List<String> getTypes () {
+		return types;
+	}
+
+	Path getDirectory () {
+		return directory;
+	}
+
+	Output getOutput (String type) {
+		return outputs.get(type);
+	}
+
+	int getState () {
+		return state;
+	}
+
+	boolean isCancelled () {
+		return CANCELLED == state;
+	}
+
+	String getError () {
+		return error;
+	}
+
+	/**
+	 * @return the number of resource types whose export has finished
+	 */
+	int getFinishedTypes () {
+		return types.size() - remaining.get();
+	}
+
+	/**
+	 * @return when the job finished or 0 while it is running
+	 */
+	long getFinishedAt () {
+		return finishedAt;
+	}
+
+	/*
+	 * The NDJSON file (gzip compressed) for one resource type
+	 */
+	static class Output {
+		final String type;
+		final Path file;
+		final long count;
+
+		private Output (String type, Path file, long count) {
+			this.type = type;
+			this.file = file;
+			this.count = count;
+		}
+	}
+}
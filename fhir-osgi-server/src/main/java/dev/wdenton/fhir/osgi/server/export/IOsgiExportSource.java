@@ -0,0 +1,60 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server.export;
+
+import java.util.Date;
+import java.util.function.Consumer;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * This interface is published as an OSGi service by bundles whose
+ * providers can export all of their resources of one type for
+ * {@code $export}. The resources are written to the sink one at a
+ * time so that they don't need to be held in memory:
+ * <code><pre>
+ * &lt;service interface="dev.wdenton.fhir.osgi.server.export.IOsgiExportSource">
+ * 	&lt;bean class="...MyPatientExportSource">
+ * 		&lt;property name="..." />
+ * 	&lt;/bean>
+ * &lt;/service>
+ * </pre></code>
+ * @see BulkExportProviderCollection
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public interface IOsgiExportSource {
+
+	/**
+	 * @return the type of the resources exported (Patient, Observation...)
+	 */
+	public String getResourceType ();
+
+	/**
+	 * Write the resources to the sink. This is called on an export
+	 * thread; the sink throws an unchecked exception if the export has
+	 * been cancelled.
+	 *
+	 * @param since only export resources changed since this time (null = all resources)
+	 * @param sink the consumer of the exported resources
+	 */
+	public void export (Date since, Consumer<IBaseResource> sink);
+}
@@ -0,0 +1,136 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server.jfr;
+
+/**
+ * Emits the Java Flight Recorder events of the FHIR OSGi servers.
+ * The {@code jdk.jfr} package is an optional import of this bundle,
+ * so the event classes are only touched when it is available. Events
+ * are returned as plain objects to keep the callers free of any
+ * reference to {@code jdk.jfr}. A {@code begin} method returns null
+ * when the event is not being recorded, and the matching {@code end}
+ * method ignores it.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public final class FhirEvents {
+	public static final String PHASE_ROUTING = "routing";
+	public static final String PHASE_INVOCATION = "invocation";
+	public static final String PHASE_ENCODING = "encoding";
+
+	private static final boolean AVAILABLE = isFlightRecorderAvailable();
+
+	private FhirEvents () {
+	}
+
+	private static boolean isFlightRecorderAvailable () {
+		try {
+			Class.forName("jdk.jfr.Event", false, FhirEvents.class.getClassLoader());
+			return true;
+		} catch (Throwable t) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return true if Flight Recorder events can be emitted
+	 */
+	public static boolean isAvailable () {
+		return AVAILABLE;
+	}
+
+	public static Object beginRegistration () {
+		if (!AVAILABLE) {
+			return null;
+		}
+		ProviderRegistrationEvent event = new ProviderRegistrationEvent();
+		if (!event.isEnabled()) {
+			return null;
+		}
+		event.begin();
+		return event;
+	}
+
+	public static void endRegistration (Object event, String serverName, String action, int providerCount) {
+		if (event != null) {
+			ProviderRegistrationEvent registration = (ProviderRegistrationEvent)event;
+			registration.end();
+			if (registration.shouldCommit()) {
+				registration.serverName = serverName;
+				registration.action = action;
+				registration.providerCount = providerCount;
+				registration.commit();
+			}
+		}
+	}
+
+	public static Object beginPendingFlush () {
+		if (!AVAILABLE) {
+			return null;
+		}
+		PendingFlushEvent event = new PendingFlushEvent();
+		if (!event.isEnabled()) {
+			return null;
+		}
+		event.begin();
+		return event;
+	}
+
+	public static void endPendingFlush (Object event, String serverName, int collectionCount, int providerCount) {
+		if (event != null) {
+			PendingFlushEvent flush = (PendingFlushEvent)event;
+			flush.end();
+			if (flush.shouldCommit()) {
+				flush.serverName = serverName;
+				flush.collectionCount = collectionCount;
+				flush.providerCount = providerCount;
+				flush.commit();
+			}
+		}
+	}
+
+	public static Object beginPhase () {
+		if (!AVAILABLE) {
+			return null;
+		}
+		RequestPhaseEvent event = new RequestPhaseEvent();
+		if (!event.isEnabled()) {
+			return null;
+		}
+		event.begin();
+		return event;
+	}
+
+	public static void endPhase (Object event, String serverName, String resourceType, String operation, String phase) {
+		if (event != null) {
+			RequestPhaseEvent requestPhase = (RequestPhaseEvent)event;
+			requestPhase.end();
+			if (requestPhase.shouldCommit()) {
+				requestPhase.serverName = serverName;
+				requestPhase.resourceType = resourceType;
+				requestPhase.operation = operation;
+				requestPhase.phase = phase;
+				requestPhase.commit();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,99 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server.jfr;
+
+import java.util.Map;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import dev.wdenton.fhir.osgi.server.IOsgiRestfulServer;
+
+/**
+ * Records the provider invocation and response encoding phases of
+ * the requests processed by a server as Flight Recorder events. The
+ * invocation phase is started by the server once the request has been
+ * routed and ends when the response is about to be encoded.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+@Interceptor
+public class FlightRecorderInterceptor {
+	private static final String USERDATA_PHASE_EVENT = FlightRecorderInterceptor.class.getName()+".event";
+	private static final String USERDATA_PHASE = FlightRecorderInterceptor.class.getName()+".phase";
+
+	private final IOsgiRestfulServer server;
+
+	public FlightRecorderInterceptor (IOsgiRestfulServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * Start recording a phase of the request
+	 *
+	 * @param requestDetails the request
+	 * @param phase the name of the phase
+	 */
+	public void beginPhase (RequestDetails requestDetails, String phase) {
+		Object event = FhirEvents.beginPhase();
+		if (event != null) {
+			Map<Object,Object> userData = requestDetails.getUserData();
+			userData.put(USERDATA_PHASE_EVENT, event);
+			userData.put(USERDATA_PHASE, phase);
+		}
+	}
+
+	/**
+	 * Stop recording the current phase of the request, if any
+	 *
+	 * @param requestDetails the request
+	 */
+	public void endPhase (RequestDetails requestDetails) {
+		if (!FhirEvents.isAvailable()) {
+			return;
+		}
+		Map<Object,Object> userData = requestDetails.getUserData();
+		Object event = userData.remove(USERDATA_PHASE_EVENT);
+		if (event != null) {
+			FhirEvents.endPhase(event, server.getFhirServerName(), requestDetails.getResourceName(),
+					getOperation(requestDetails.getRestOperationType()), (String)userData.remove(USERDATA_PHASE));
+		}
+	}
+
+	@Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+	public boolean outgoingResponse (RequestDetails requestDetails) {
+		endPhase(requestDetails);
+		beginPhase(requestDetails, FhirEvents.PHASE_ENCODING);
+		return true;
+	}
+
+	@Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+	public void processingCompleted (RequestDetails requestDetails) {
+		endPhase(requestDetails);
+	}
+
+	public static String getOperation (RestOperationTypeEnum operation) {
+		return (operation != null) ? operation.getCode() : null;
+	}
+
+}
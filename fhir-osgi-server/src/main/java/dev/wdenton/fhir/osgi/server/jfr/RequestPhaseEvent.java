@@ -0,0 +1,53 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Framework Bundle
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for one phase of a FHIR request:
+ * routing, provider invocation or response encoding.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+@Name("dev.wdenton.fhir.RequestPhase")
+@Label("FHIR Request Phase")
+@Category({ "FHIR", "Requests" })
+@StackTrace(false)
+class RequestPhaseEvent extends Event {
+
+	@Label("Server Name")
+	String serverName;
+
+	@Label("Resource Type")
+	String resourceType;
+
+	@Label("Operation")
+	String operation;
+
+	@Label("Phase")
+	String phase;
+
+}
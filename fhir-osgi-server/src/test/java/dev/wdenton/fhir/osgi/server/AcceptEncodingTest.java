@@ -0,0 +1,121 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Startup Benchmark
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of the parsing of Accept-Encoding and of the request hiding it
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class AcceptEncodingTest {
+
+	@Test
+	public void acceptsGzip () {
+		assertTrue(AcceptEncoding.acceptsGzip("gzip"));
+		assertTrue(AcceptEncoding.acceptsGzip("deflate, GZIP"));
+		assertTrue(AcceptEncoding.acceptsGzip("x-gzip"));
+		assertTrue(AcceptEncoding.acceptsGzip("br;q=1.0, gzip;q=0.8"));
+	}
+
+	@Test
+	public void refusesGzipOnlyWithAQualityOf0 () {
+		assertFalse(AcceptEncoding.acceptsGzip("gzip;q=0"));
+		assertFalse(AcceptEncoding.acceptsGzip("gzip; Q = 0.0"));
+		assertTrue(AcceptEncoding.acceptsGzip("gzip;q=0.001"));
+		// an invalid quality refuses the coding
+		assertFalse(AcceptEncoding.acceptsGzip("gzip;q=high"));
+	}
+
+	@Test
+	public void acceptsGzipForAWildcard () {
+		assertTrue(AcceptEncoding.acceptsGzip("*"));
+		assertTrue(AcceptEncoding.acceptsGzip("identity, *;q=0.5"));
+		assertFalse(AcceptEncoding.acceptsGzip("*;q=0"));
+		// gzip listed itself wins over the wildcard
+		assertFalse(AcceptEncoding.acceptsGzip("gzip;q=0, *"));
+		assertTrue(AcceptEncoding.acceptsGzip("gzip, *;q=0"));
+	}
+
+	@Test
+	public void doesNotAcceptGzipWithoutTheHeader () {
+		assertFalse(AcceptEncoding.acceptsGzip((String)null));
+		assertFalse(AcceptEncoding.acceptsGzip(""));
+		assertFalse(AcceptEncoding.acceptsGzip("deflate, br"));
+		assertFalse(AcceptEncoding.acceptsGzip(request(null)));
+	}
+
+	@Test
+	public void hidesTheHeader () {
+		HttpServletRequest hidden = AcceptEncoding.hide(request("gzip"));
+		assertNull(hidden.getHeader("Accept-Encoding"));
+		assertNull(hidden.getHeader("accept-encoding"));
+		assertFalse(hidden.getHeaders("Accept-Encoding").hasMoreElements());
+		assertEquals("application/fhir+json", hidden.getHeader("Accept"));
+	}
+
+	@Test
+	public void findsTheHiddenHeader () {
+		assertTrue(AcceptEncoding.acceptsGzip(request("gzip")));
+		assertTrue(AcceptEncoding.acceptsGzip(AcceptEncoding.hide(request("gzip"))));
+		assertFalse(AcceptEncoding.acceptsGzip(AcceptEncoding.hide(request("gzip;q=0"))));
+
+		// behind another wrapper
+		HttpServletRequest wrapped = new HttpServletRequestWrapper(AcceptEncoding.hide(request("deflate, gzip")));
+		assertNull(wrapped.getHeader("Accept-Encoding"));
+		assertTrue(AcceptEncoding.acceptsGzip(wrapped));
+	}
+
+	/*
+	 * A request with an Accept header and an Accept-Encoding header
+	 */
+	private static HttpServletRequest request (String acceptEncoding) {
+		return (HttpServletRequest)Proxy.newProxyInstance(AcceptEncodingTest.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class }, (proxy, method, args) -> {
+			String header = null;
+			if ("getHeader".equals(method.getName()) || "getHeaders".equals(method.getName())) {
+				String name = (String)args[0];
+				if ("Accept-Encoding".equalsIgnoreCase(name)) {
+					header = acceptEncoding;
+				} else
+				if ("Accept".equalsIgnoreCase(name)) {
+					header = "application/fhir+json";
+				}
+				if ("getHeaders".equals(method.getName())) {
+					return (header != null) ? Collections.enumeration(Collections.singletonList(header)) : Collections.emptyEnumeration();
+				}
+			}
+			return header;
+		});
+	}
+
+}
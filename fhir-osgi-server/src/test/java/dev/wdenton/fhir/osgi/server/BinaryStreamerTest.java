@@ -0,0 +1,79 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Startup Benchmark
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of the parsing of the Range header of a streamed Binary
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class BinaryStreamerTest {
+	private static final long SIZE = 1000;
+
+	@Test
+	public void parsesAClosedRange () {
+		assertArrayEquals(new long[] { 0, 499 }, BinaryStreamer.parseRange("bytes=0-499", SIZE));
+		assertArrayEquals(new long[] { 500, 500 }, BinaryStreamer.parseRange("bytes=500-500", SIZE));
+		assertArrayEquals(new long[] { 10, 20 }, BinaryStreamer.parseRange(" bytes=10-20 ", SIZE));
+	}
+
+	@Test
+	public void endsTheRangeAtTheLastByte () {
+		assertArrayEquals(new long[] { 900, 999 }, BinaryStreamer.parseRange("bytes=900-", SIZE));
+		assertArrayEquals(new long[] { 900, 999 }, BinaryStreamer.parseRange("bytes=900-5000", SIZE));
+	}
+
+	@Test
+	public void parsesASuffixRange () {
+		assertArrayEquals(new long[] { 800, 999 }, BinaryStreamer.parseRange("bytes=-200", SIZE));
+		assertArrayEquals(new long[] { 0, 999 }, BinaryStreamer.parseRange("bytes=-5000", SIZE));
+	}
+
+	@Test
+	public void rejectsARangeThatCannotBeSatisfied () {
+		assertNull(BinaryStreamer.parseRange("bytes=1000-", SIZE));
+		assertNull(BinaryStreamer.parseRange("bytes=1000-1001", SIZE));
+		assertNull(BinaryStreamer.parseRange("bytes=-0", SIZE));
+		assertNull(BinaryStreamer.parseRange("bytes=0-", 0));
+	}
+
+	@Test
+	public void ignoresARangeItCannotServe () {
+		// the whole content is sent
+		assertWhole(BinaryStreamer.parseRange("bytes=0-9,20-29", SIZE));
+		assertWhole(BinaryStreamer.parseRange("items=0-9", SIZE));
+		assertWhole(BinaryStreamer.parseRange("bytes=-", SIZE));
+		assertWhole(BinaryStreamer.parseRange("bytes=500-100", SIZE));
+		assertWhole(BinaryStreamer.parseRange("bytes=a-b", SIZE));
+		assertWhole(BinaryStreamer.parseRange("bytes=99999999999999999999-", SIZE));
+	}
+
+	private static void assertWhole (long[] range) {
+		assertEquals(0, range.length);
+	}
+
+}
@@ -0,0 +1,180 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Startup Benchmark
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.context.ConfigurationException;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+
+/**
+ * Tests of the registration of features with a server
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class OsgiServerFeatureTest {
+
+	@Test
+	public void ordersTheFeatures () throws Exception {
+		SimpleOsgiRestfulServer server = new SimpleOsgiRestfulServer();
+		Feature late = new Feature(1000);
+		Feature first = new Feature(0);
+		Feature early = new Feature(-1000);
+		Feature second = new Feature(0);
+		server.setFeatures(Arrays.asList(late, first, early, second));
+
+		// features of the same order stay in the order they were registered
+		assertEquals(Arrays.asList(early, first, second, late), server.getFeatures());
+	}
+
+	@Test
+	public void installsAFeatureOnce () throws Exception {
+		SimpleOsgiRestfulServer server = new SimpleOsgiRestfulServer();
+		Feature feature = new Feature(0);
+		server.registerFeature(feature);
+		server.registerFeature(feature);
+		assertEquals(1, server.getFeatures().size());
+		assertEquals(1, feature.installed);
+		assertSame(server, feature.server);
+	}
+
+	@Test
+	public void uninstallsAnUnregisteredFeature () throws Exception {
+		SimpleOsgiRestfulServer server = new SimpleOsgiRestfulServer();
+		Feature feature = new Feature(0);
+		server.registerFeature(feature);
+		server.unregisterFeature(feature);
+		server.unregisterFeature(feature);
+		assertTrue(server.getFeatures().isEmpty());
+		assertEquals(1, feature.uninstalled);
+		assertNull(feature.server);
+	}
+
+	@Test
+	public void findsAFeatureByClass () throws Exception {
+		SimpleOsgiRestfulServer server = new SimpleOsgiRestfulServer();
+		assertNull(server.getFeature(Feature.class));
+		Feature feature = new Feature(0);
+		server.registerFeature(feature);
+		assertSame(feature, server.getFeature(Feature.class));
+		assertSame(feature, server.getFeature(IOsgiServerFeature.class));
+		assertNull(server.getFeature(ChangeEventFeature.class));
+	}
+
+	@Test
+	public void doesNotRegisterAFeatureThatFailsToInstall () {
+		SimpleOsgiRestfulServer server = new SimpleOsgiRestfulServer();
+		assertThrows(ConfigurationException.class, () -> server.registerFeature(new WriteBehindFeature()));
+		assertThrows(NullPointerException.class, () -> server.registerFeature(null));
+		assertTrue(server.getFeatures().isEmpty());
+	}
+
+	@Test
+	public void tellsTheFeaturesAboutWrites () throws Exception {
+		SimpleOsgiRestfulServer server = new SimpleOsgiRestfulServer();
+		Feature feature = new Feature(0);
+		server.registerFeature(feature);
+		server.resourceWritten(RestOperationTypeEnum.CREATE, null, "Patient", "1", "1");
+		assertEquals(Collections.singletonList("Patient/1/_history/1"), feature.written);
+	}
+
+	@Test
+	public void registersTheChangeEventsWithTheFirstListener () throws Exception {
+		SimpleOsgiRestfulServer server = new SimpleOsgiRestfulServer();
+		IOsgiChangeListener listener = event -> { };
+		server.registerOsgiChangeListener(listener, null);
+		ChangeEventFeature changes = server.getFeature(ChangeEventFeature.class);
+		assertNotNull(changes);
+		assertEquals(1, changes.getBus().getListeners());
+
+		server.registerOsgiChangeListener(event -> { }, null);
+		assertEquals(1, server.getFeatures().size());
+		assertEquals(2, changes.getBus().getListeners());
+
+		server.unregisterOsgiChangeListener(listener);
+		ResourceChangeBus bus = changes.getBus();
+		assertEquals(1, bus.getListeners());
+
+		// the listeners are dropped with the feature
+		server.unregisterFeature(changes);
+		assertEquals(0, bus.getListeners());
+		assertNull(server.getFeature(ChangeEventFeature.class));
+	}
+
+	@Test
+	public void rejectsAnInvalidBackpressure () {
+		SimpleOsgiRestfulServer server = new SimpleOsgiRestfulServer();
+		assertThrows(ConfigurationException.class, () -> server.registerOsgiChangeListener(event -> { },
+				Collections.singletonMap(IOsgiChangeListener.SVCPROP_BACKPRESSURE, "wait")));
+		assertThrows(ConfigurationException.class, () -> server.registerOsgiChangeListener(event -> { },
+				Collections.singletonMap(IOsgiChangeListener.SVCPROP_BLOCK_MILLIS, "soon")));
+	}
+
+	/*
+	 * Records what the server asks of it
+	 */
+	private static class Feature implements IOsgiServerFeature {
+		private final int order;
+		private SimpleOsgiRestfulServer server;
+		private int installed = 0;
+		private int uninstalled = 0;
+		private final List<String> written = new ArrayList<>();
+
+		Feature (int order) {
+			this.order = order;
+		}
+
+		@Override
+		public void install (SimpleOsgiRestfulServer server) {
+			this.server = server;
+			installed++;
+		}
+
+		@Override
+		public void uninstall (SimpleOsgiRestfulServer server) {
+			this.server = null;
+			uninstalled++;
+		}
+
+		@Override
+		public int getOrder () {
+			return order;
+		}
+
+		@Override
+		public void resourceWritten (RestOperationTypeEnum operation, String tenantId, String resourceType, String idPart, String versionId) {
+			written.add(resourceType+"/"+idPart+"/_history/"+versionId);
+		}
+	}
+
+}
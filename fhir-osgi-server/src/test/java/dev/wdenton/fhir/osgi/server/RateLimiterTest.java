@@ -0,0 +1,139 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Startup Benchmark
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of the token buckets of the rate limits
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class RateLimiterTest {
+	// slow enough that no token is added while a test runs
+	private static final double ONE_AN_HOUR = 1.0 / 3600;
+
+	@Test
+	public void allowsTheBurstThenRejects () {
+		RateLimiter limiter = new RateLimiter(ONE_AN_HOUR, 3, 1000);
+		for (int remaining = 2; remaining >= 0; remaining--) {
+			RateLimiter.Decision decision = limiter.acquire("client");
+			assertTrue(decision.isAllowed());
+			assertEquals(remaining, decision.getRemaining());
+			assertEquals(0, decision.getRetryAfterSeconds());
+		}
+		RateLimiter.Decision rejected = limiter.acquire("client");
+		assertFalse(rejected.isAllowed());
+		assertEquals(0, rejected.getRemaining());
+		assertTrue(rejected.getRetryAfterSeconds() > 3500, "retry after "+rejected.getRetryAfterSeconds());
+		assertTrue(rejected.getResetSeconds() >= rejected.getRetryAfterSeconds());
+	}
+
+	@Test
+	public void keepsABucketForEachClient () {
+		RateLimiter limiter = new RateLimiter(ONE_AN_HOUR, 1, 1000);
+		assertTrue(limiter.acquire("a").isAllowed());
+		assertFalse(limiter.acquire("a").isAllowed());
+		assertTrue(limiter.acquire("b").isAllowed());
+		assertEquals(2, limiter.getClients());
+	}
+
+	@Test
+	public void refillsAtTheRate () throws Exception {
+		RateLimiter limiter = new RateLimiter(10, 1, 1000);
+		assertTrue(limiter.acquire("client").isAllowed());
+		RateLimiter.Decision rejected = limiter.acquire("client");
+		assertFalse(rejected.isAllowed());
+		assertEquals(1, rejected.getRetryAfterSeconds());
+
+		Thread.sleep(150);
+		assertTrue(limiter.acquire("client").isAllowed());
+	}
+
+	@Test
+	public void burstIsAtLeastOne () {
+		RateLimiter limiter = new RateLimiter(ONE_AN_HOUR, 0, 1000);
+		assertEquals(1, limiter.getBurst(), 0);
+		assertTrue(limiter.acquire("client").isAllowed());
+		assertFalse(limiter.acquire("client").isAllowed());
+	}
+
+	@Test
+	public void dropsRefilledBuckets () {
+		// every bucket refills in a nanosecond, so is dropped once idle
+		RateLimiter limiter = new RateLimiter(1e9, 1, 1000000);
+		for (int i = 0; i < 10000; i++) {
+			limiter.acquire("client "+i);
+		}
+		int stripes = 2 * Math.max(16, Runtime.getRuntime().availableProcessors() * 4);
+		assertTrue(limiter.getClients() <= stripes, "clients "+limiter.getClients());
+	}
+
+	@Test
+	public void boundsTheClientsKept () {
+		RateLimiter limiter = new RateLimiter(ONE_AN_HOUR, 1, 0);
+		for (int i = 0; i < 100000; i++) {
+			limiter.acquire("client "+i);
+		}
+		// at least 16 buckets are kept in each stripe
+		int stripes = 2 * Math.max(16, Runtime.getRuntime().availableProcessors() * 4);
+		assertTrue(limiter.getClients() <= stripes * 16, "clients "+limiter.getClients());
+	}
+
+	@Test
+	public void allowsOnlyTheBurstToConcurrentRequests () throws Exception {
+		RateLimiter limiter = new RateLimiter(ONE_AN_HOUR, 50, 1000);
+		AtomicInteger allowed = new AtomicInteger();
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 8; t++) {
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (int i = 0; i < 100; i++) {
+					if (limiter.acquire("client").isAllowed()) {
+						allowed.incrementAndGet();
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(50, allowed.get());
+	}
+
+}
@@ -0,0 +1,280 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Startup Benchmark
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+
+/**
+ * Tests of the ring of change events and its drop and block backpressure
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class ResourceChangeBusTest {
+	private ResourceChangeBus bus;
+
+	@AfterEach
+	public void closeBus () {
+		if (bus != null) {
+			bus.close();
+		}
+	}
+
+	@Test
+	public void roundsTheCapacityUpToAPowerOf2 () {
+		assertEquals(8, new ResourceChangeBus("test", 5).getCapacity());
+		assertEquals(1024, new ResourceChangeBus("test", 1024).getCapacity());
+		assertEquals(2, new ResourceChangeBus("test", 0).getCapacity());
+	}
+
+	@Test
+	public void parsesTheBackpressure () {
+		assertEquals(ResourceChangeBus.Backpressure.DROP, ResourceChangeBus.Backpressure.of("drop"));
+		assertEquals(ResourceChangeBus.Backpressure.BLOCK, ResourceChangeBus.Backpressure.of(" Block "));
+		assertNull(ResourceChangeBus.Backpressure.of("wait"));
+	}
+
+	@Test
+	public void deliversEventsInOrderToEachListener () throws Exception {
+		bus = new ResourceChangeBus("test", 1024);
+		Listener first = new Listener(100);
+		Listener second = new Listener(100);
+		bus.subscribe(first, ResourceChangeBus.Backpressure.DROP, 0);
+		bus.subscribe(second, ResourceChangeBus.Backpressure.DROP, 0);
+		for (int i = 0; i < 100; i++) {
+			assertEquals(i, publish(i));
+		}
+		for (Listener listener : new Listener[] { first, second }) {
+			assertTrue(listener.await(), "received "+listener.events.size());
+			for (int i = 0; i < 100; i++) {
+				ResourceChangeEvent event = listener.events.get(i);
+				assertEquals(i, event.getSequence());
+				assertEquals(Integer.toString(i), event.getIdPart());
+				assertEquals("Patient", event.getResourceType());
+			}
+			assertEquals(0, listener.lost.get());
+		}
+		assertEquals(100, bus.getPublished());
+		assertEquals(2, bus.getListeners());
+	}
+
+	@Test
+	public void deliversOnlyTheEventsPublishedAfterSubscribing () throws Exception {
+		bus = new ResourceChangeBus("test", 16);
+		publish(0);
+		publish(1);
+		Listener listener = new Listener(1);
+		bus.subscribe(listener, ResourceChangeBus.Backpressure.DROP, 0);
+		publish(2);
+		assertTrue(listener.await());
+		assertEquals(1, listener.events.size());
+		assertEquals(2, listener.events.get(0).getSequence());
+	}
+
+	@Test
+	public void slowDroppingListenerSkipsToTheOldestEvent () throws Exception {
+		bus = new ResourceChangeBus("test", 8);
+		CountDownLatch release = new CountDownLatch(1);
+		Listener listener = new Listener(-1) {
+			@Override
+			public void onChange (ResourceChangeEvent event) {
+				await(release);
+				super.onChange(event);
+			}
+		};
+		bus.subscribe(listener, ResourceChangeBus.Backpressure.DROP, 0);
+		for (int i = 0; i < 50; i++) {
+			publish(i);
+		}
+		// the writes never waited for the listener
+		assertEquals(0, bus.getBlockedWrites());
+		release.countDown();
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!listener.hasSequence(49) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertTrue(listener.hasSequence(49));
+		assertTrue(listener.lost.get() > 0);
+		assertEquals(50, listener.events.size() + listener.lost.get());
+		assertEquals(listener.lost.get(), bus.getLost());
+		long previous = -1;
+		for (ResourceChangeEvent event : listener.events) {
+			assertTrue(event.getSequence() > previous);
+			previous = event.getSequence();
+		}
+	}
+
+	@Test
+	public void slowBlockingListenerLosesNothing () throws Exception {
+		bus = new ResourceChangeBus("test", 4);
+		Listener listener = new Listener(40) {
+			@Override
+			public void onChange (ResourceChangeEvent event) {
+				sleep(1);
+				super.onChange(event);
+			}
+		};
+		bus.subscribe(listener, ResourceChangeBus.Backpressure.BLOCK, TimeUnit.SECONDS.toMillis(30));
+		for (int i = 0; i < 40; i++) {
+			publish(i);
+		}
+		assertTrue(listener.await());
+		for (int i = 0; i < 40; i++) {
+			assertEquals(i, listener.events.get(i).getSequence());
+		}
+		assertEquals(0, listener.lost.get());
+		assertTrue(bus.getBlockedWrites() > 0);
+	}
+
+	@Test
+	public void blockingListenerIsOverwrittenAfterBlockMillis () throws Exception {
+		bus = new ResourceChangeBus("test", 4);
+		CountDownLatch release = new CountDownLatch(1);
+		Listener listener = new Listener(-1) {
+			@Override
+			public void onChange (ResourceChangeEvent event) {
+				await(release);
+				super.onChange(event);
+			}
+		};
+		bus.subscribe(listener, ResourceChangeBus.Backpressure.BLOCK, 10);
+		long start = System.nanoTime();
+		for (int i = 0; i < 20; i++) {
+			publish(i);
+		}
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		release.countDown();
+		assertTrue(bus.getBlockedWrites() > 0);
+		assertTrue(elapsedMillis < 5000, "writes waited "+elapsedMillis+"ms");
+	}
+
+	@Test
+	public void stopsCallingAnUnsubscribedListener () throws Exception {
+		bus = new ResourceChangeBus("test", 16);
+		Listener listener = new Listener(1);
+		bus.subscribe(listener, ResourceChangeBus.Backpressure.DROP, 0);
+		publish(0);
+		assertTrue(listener.await());
+
+		assertTrue(bus.unsubscribe(listener));
+		assertFalse(bus.unsubscribe(listener));
+		assertEquals(0, bus.getListeners());
+		publish(1);
+		Thread.sleep(50);
+		assertEquals(1, listener.events.size());
+	}
+
+	@Test
+	public void rejectsListenersOnceClosed () {
+		bus = new ResourceChangeBus("test", 16);
+		bus.close();
+		assertThrows(IllegalStateException.class, () -> bus.subscribe(new Listener(0), ResourceChangeBus.Backpressure.DROP, 0));
+	}
+
+	@Test
+	public void survivesAFailingListener () throws Exception {
+		bus = new ResourceChangeBus("test", 16);
+		Listener listener = new Listener(2) {
+			@Override
+			public void onChange (ResourceChangeEvent event) {
+				super.onChange(event);
+				throw new IllegalStateException("listener failure");
+			}
+		};
+		bus.subscribe(listener, ResourceChangeBus.Backpressure.DROP, 0);
+		publish(0);
+		publish(1);
+		assertTrue(listener.await());
+	}
+
+	private long publish (int id) {
+		return bus.publish(RestOperationTypeEnum.UPDATE, null, "Patient", Integer.toString(id), "1");
+	}
+
+	/*
+	 * Collects the events it is called with
+	 */
+	private static class Listener implements IOsgiChangeListener {
+		final List<ResourceChangeEvent> events = new CopyOnWriteArrayList<>();
+		final AtomicLong lost = new AtomicLong();
+		private final CountDownLatch received;
+
+		Listener (int expected) {
+			received = new CountDownLatch(Math.max(0, expected));
+		}
+
+		@Override
+		public void onChange (ResourceChangeEvent event) {
+			events.add(event);
+			received.countDown();
+		}
+
+		@Override
+		public void onEventsLost (long count) {
+			lost.addAndGet(count);
+		}
+
+		boolean await () throws InterruptedException {
+			return received.await(10, TimeUnit.SECONDS);
+		}
+
+		boolean hasSequence (long sequence) {
+			for (ResourceChangeEvent event : events) {
+				if (event.getSequence() == sequence) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		static void await (CountDownLatch latch) {
+			try {
+				latch.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		static void sleep (long millis) {
+			try {
+				Thread.sleep(millis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,155 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Startup Benchmark
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.context.ConfigurationException;
+
+/**
+ * Tests of the splitting of a batch across the shards of a router and
+ * of the merging of their batch-responses
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class ShardRouterServletTest {
+
+	@Test
+	public void groupsTheEntriesOfEachShardInRequestOrder () throws Exception {
+		ShardRouterServlet router = new ShardRouterServlet();
+		register(router, "patients", "Patient", "Patient", false);
+		register(router, "clinical", "Observation,Encounter", null, false);
+		register(router, "other", null, null, true);
+
+		Map<String,List<Integer>> groups = groupEntries(router,
+				"Patient/123",
+				"Observation?code=8867-4",
+				"Patient/123/Observation",
+				"Medication/5",
+				"Encounter/7/_history/2",
+				"Observation/9");
+
+		// the shards in the order they are first used
+		assertEquals(Arrays.asList("patients", "clinical", "other"), new ArrayList<>(groups.keySet()));
+		assertEquals(Arrays.asList(0, 2), groups.get("patients"));
+		assertEquals(Arrays.asList(1, 4, 5), groups.get("clinical"));
+		assertEquals(Arrays.asList(3), groups.get("other"));
+	}
+
+	@Test
+	public void groupsTheEntriesNoShardHandlesUnderNull () throws Exception {
+		ShardRouterServlet router = new ShardRouterServlet();
+		register(router, "patients", "Patient", null, false);
+		register(router, "clinical", "Observation", null, false);
+
+		Map<String,List<Integer>> groups = groupEntries(router, "Patient/1", "Medication/5", "Observation/2", "Device/3");
+		assertEquals(Arrays.asList(1, 3), groups.get(null));
+		assertEquals(Arrays.asList(0), groups.get("patients"));
+		assertEquals(Arrays.asList(2), groups.get("clinical"));
+	}
+
+	@Test
+	public void sendsEveryEntryToALoneShard () throws Exception {
+		ShardRouterServlet router = new ShardRouterServlet();
+		register(router, "only", "Patient", null, false);
+
+		Map<String,List<Integer>> groups = groupEntries(router, "Patient/1", "Medication/5", "Observation?code=x");
+		assertEquals(1, groups.size());
+		assertEquals(Arrays.asList(0, 1, 2), groups.get("only"));
+	}
+
+	@Test
+	public void routesAResourceTypeServedTwiceToTheFirstShard () throws Exception {
+		ShardRouterServlet router = new ShardRouterServlet();
+		register(router, "first", "Patient", null, false);
+		register(router, "second", "Patient,Observation", null, false);
+
+		Map<String,List<Integer>> groups = groupEntries(router, "Patient/1", "Observation/2");
+		assertEquals(Arrays.asList(0), groups.get("first"));
+		assertEquals(Arrays.asList(1), groups.get("second"));
+	}
+
+	@Test
+	public void routesAnEntryByItsUrlWithoutTheQuery () {
+		assertArrayEquals(new String[] { "Observation" }, ShardRouterServlet.getUrlPath("Observation?subject=Patient/1"));
+		assertArrayEquals(new String[] { "Patient", "1", "Observation" }, ShardRouterServlet.getUrlPath("/Patient/1/Observation?code=x"));
+		assertArrayEquals(new String[0], ShardRouterServlet.getUrlPath("?_type=Patient"));
+	}
+
+	@Test
+	public void mergesTheResponsesInRequestOrder () {
+		Object[] results = new Object[5];
+		assertTrue(ShardRouterServlet.placeResults(results, Arrays.asList(1, 3, 4), Arrays.asList("b", "d", "e")));
+		assertTrue(ShardRouterServlet.placeResults(results, Arrays.asList(0, 2), Arrays.asList("a", "c")));
+		assertArrayEquals(new Object[] { "a", "b", "c", "d", "e" }, results);
+	}
+
+	@Test
+	public void rejectsAResponseWithoutAnEntryForEachRequestEntry () {
+		Object[] results = new Object[3];
+		assertFalse(ShardRouterServlet.placeResults(results, Arrays.asList(0, 2), Arrays.asList("a")));
+		assertFalse(ShardRouterServlet.placeResults(results, Arrays.asList(0, 2), null));
+		assertNull(results[0]);
+		assertNull(results[2]);
+	}
+
+	private static void register (ShardRouterServlet router, String name, String resources, String compartments, boolean isDefault) throws ConfigurationException {
+		Map<String,Object> props = new HashMap<>();
+		props.put(IOsgiRestfulServer.SVCPROP_SERVICE_NAME, name);
+		if (resources != null) {
+			props.put(ShardRouterServlet.SVCPROP_SHARD_RESOURCES, resources);
+		}
+		if (compartments != null) {
+			props.put(ShardRouterServlet.SVCPROP_SHARD_COMPARTMENTS, compartments);
+		}
+		props.put(ShardRouterServlet.SVCPROP_SHARD_DEFAULT, Boolean.toString(isDefault));
+		router.registerShard(new SimpleOsgiRestfulServer(), props);
+	}
+
+	/*
+	 * The entries of each shard, by the name of the shard
+	 */
+	private static Map<String,List<Integer>> groupEntries (ShardRouterServlet router, String... urls) {
+		List<String[]> paths = new ArrayList<>();
+		for (String url : urls) {
+			paths.add(ShardRouterServlet.getUrlPath(url));
+		}
+		Map<String,List<Integer>> groups = new LinkedHashMap<>();
+		for (Map.Entry<ShardRouterServlet.Shard,List<Integer>> group : router.getRoutes().groupEntries(paths).entrySet()) {
+			groups.put((group.getKey() != null) ? group.getKey().getName() : null, group.getValue());
+		}
+		return groups;
+	}
+
+}
@@ -0,0 +1,213 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Startup Benchmark
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of the write-behind journal: ordering, durability, recovery
+ * of a torn record and the deletion of committed segments.
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class WriteBehindJournalTest {
+	@TempDir
+	Path directory;
+
+	@Test
+	public void readsSyncedRecordsInOrder () throws Exception {
+		try (WriteBehindJournal journal = new WriteBehindJournal(directory, 1024 * 1024)) {
+			assertEquals(1, journal.append(bytes("one")));
+			assertEquals(2, journal.append(bytes("two")));
+			assertEquals(3, journal.append(bytes("three")));
+			journal.sync(3);
+
+			List<WriteBehindJournal.Record> records = journal.read(10, 10);
+			assertEquals(3, records.size());
+			for (int i = 0; i < 3; i++) {
+				assertEquals(i + 1, records.get(i).getSequence());
+				assertTrue(records.get(i).isIntact());
+			}
+			assertArrayEquals(bytes("two"), records.get(1).getPayload());
+			assertEquals(3, journal.getBacklog());
+		}
+	}
+
+	@Test
+	public void doesNotReadRecordsBeforeTheyAreSynced () throws Exception {
+		try (WriteBehindJournal journal = new WriteBehindJournal(directory, 1024 * 1024)) {
+			journal.append(bytes("one"));
+			assertTrue(journal.read(10, 10).isEmpty());
+
+			journal.sync(1);
+			assertEquals(1, journal.read(10, 10).size());
+			assertTrue(journal.read(10, 10).isEmpty());
+		}
+	}
+
+	@Test
+	public void readsAtMostMax () throws Exception {
+		try (WriteBehindJournal journal = new WriteBehindJournal(directory, 1024 * 1024)) {
+			for (int i = 0; i < 5; i++) {
+				journal.append(bytes("record "+i));
+			}
+			journal.sync(5);
+			assertEquals(2, journal.read(2, 10).size());
+			List<WriteBehindJournal.Record> rest = journal.read(10, 10);
+			assertEquals(3, rest.size());
+			assertEquals(3, rest.get(0).getSequence());
+		}
+	}
+
+	@Test
+	public void resumesAfterTheCheckpointWhenReopened () throws Exception {
+		try (WriteBehindJournal journal = new WriteBehindJournal(directory, 1024 * 1024)) {
+			journal.append(bytes("one"));
+			journal.append(bytes("two"));
+			journal.append(bytes("three"));
+			journal.sync(3);
+			assertEquals(3, journal.read(10, 10).size());
+			journal.commit(2);
+		}
+		try (WriteBehindJournal journal = new WriteBehindJournal(directory, 1024 * 1024)) {
+			assertEquals(2, journal.getCommittedSequence());
+			assertEquals(4, journal.getNextSequence());
+
+			// the record that wasn't committed is read again
+			List<WriteBehindJournal.Record> records = journal.read(10, 10);
+			assertEquals(1, records.size());
+			assertEquals(3, records.get(0).getSequence());
+			assertArrayEquals(bytes("three"), records.get(0).getPayload());
+		}
+	}
+
+	@Test
+	public void truncatesATornRecordWhenOpened () throws Exception {
+		Path segment;
+		long size;
+		try (WriteBehindJournal journal = new WriteBehindJournal(directory, 1024 * 1024)) {
+			journal.append(bytes("one"));
+			journal.append(bytes("two"));
+			journal.sync(2);
+			segment = segments().get(0);
+			size = Files.size(segment);
+		}
+		// a crash while appending a third record
+		Files.write(segment, new byte[] { 0, 0, 0, 40, 0, 0, 0 }, StandardOpenOption.APPEND);
+
+		try (WriteBehindJournal journal = new WriteBehindJournal(directory, 1024 * 1024)) {
+			assertEquals(size, Files.size(segment));
+			assertEquals(3, journal.getNextSequence());
+			assertEquals(3, journal.append(bytes("three")));
+			journal.sync(3);
+
+			List<WriteBehindJournal.Record> records = journal.read(10, 10);
+			assertEquals(3, records.size());
+			assertArrayEquals(bytes("three"), records.get(2).getPayload());
+		}
+	}
+
+	@Test
+	public void deletesCommittedSegments () throws Exception {
+		// one 20 byte record (and its 16 byte header) in each segment
+		try (WriteBehindJournal journal = new WriteBehindJournal(directory, 64)) {
+			for (int i = 0; i < 3; i++) {
+				journal.append(bytes("twenty bytes long #"+i));
+			}
+			journal.sync(3);
+			assertEquals(3, segments().size());
+
+			assertEquals(3, journal.read(10, 10).size());
+			journal.commit(3);
+			assertEquals(1, segments().size());
+			assertEquals(0, journal.getBacklog());
+		}
+	}
+
+	@Test
+	public void givesConcurrentWritersDistinctSequences () throws Exception {
+		int writers = 4;
+		int appends = 100;
+		try (WriteBehindJournal journal = new WriteBehindJournal(directory, 4096)) {
+			List<Thread> threads = new ArrayList<>();
+			List<Throwable> failures = new ArrayList<>();
+			for (int w = 0; w < writers; w++) {
+				String writer = "writer "+w;
+				Thread thread = new Thread(() -> {
+					try {
+						for (int i = 0; i < appends; i++) {
+							journal.sync(journal.append(bytes(writer+" record "+i)));
+						}
+					} catch (IOException e) {
+						synchronized (failures) {
+							failures.add(e);
+						}
+					}
+				});
+				threads.add(thread);
+				thread.start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			assertTrue(failures.isEmpty(), "append failed: "+failures);
+
+			Set<String> payloads = new HashSet<>();
+			long expected = 1;
+			List<WriteBehindJournal.Record> records;
+			while (!(records = journal.read(50, 10)).isEmpty()) {
+				for (WriteBehindJournal.Record record : records) {
+					assertEquals(expected++, record.getSequence());
+					payloads.add(new String(record.getPayload(), StandardCharsets.UTF_8));
+				}
+			}
+			assertEquals(writers * appends, payloads.size());
+		}
+	}
+
+	private List<Path> segments () throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter(file -> file.getFileName().toString().endsWith(".log")).sorted().collect(Collectors.toList());
+		}
+	}
+
+	private static byte[] bytes (String value) {
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,195 @@
+/*
+ * #%L
+ * FHIR-Base - OSGi Server Startup Benchmark
+ * %%
+ * Copyright (C) 2019 - 2022 William E. Denton
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package dev.wdenton.fhir.osgi.server.accesslog;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+
+/**
+ * Tests of the access log: the line written for a request, the drop
+ * and sample overflows and the rolling over of the file
+ * <p>
+ * Copyright (c) 2019-2022 William E. Denton
+ * @author williamEdenton@gmail.com
+ */
+public class AccessLogTest {
+	@TempDir
+	Path directory;
+
+	@Test
+	public void writesALineForARequest () throws Exception {
+		Path file = directory.resolve("access.log");
+		AccessLog accessLog = new AccessLog("server", file, 16, AccessLog.Overflow.DROP, 10, AccessLog.DEFAULT_MAX_FILE_SIZE, 1);
+		accessLog.begin();
+		accessLog.route(this, "Patient", RestOperationTypeEnum.READ);
+		accessLog.bytes(1834);
+		accessLog.end(200);
+		accessLog.close();
+
+		List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		assertEquals(1, lines.size());
+		String[] fields = lines.get(0).split(" ");
+		assertEquals(8, fields.length, lines.get(0));
+		assertTrue(fields[0].matches("\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}:\\d{2}\\.\\d{3}Z"), fields[0]);
+		assertEquals("server", fields[1]);
+		assertEquals(AccessLogTest.class.getName(), fields[2]);
+		assertEquals("Patient", fields[3]);
+		assertEquals("read", fields[4]);
+		assertEquals("200", fields[5]);
+		assertEquals("1834", fields[6]);
+		assertTrue(Long.parseLong(fields[7]) >= 0);
+		assertEquals(1, accessLog.getLogged());
+		assertEquals(1, accessLog.getWritten());
+		assertEquals(0, accessLog.getPending());
+	}
+
+	@Test
+	public void writesADashForAFieldThatDoesNotApply () throws Exception {
+		Path file = directory.resolve("access.log");
+		AccessLog accessLog = new AccessLog("server", file, 16, AccessLog.Overflow.DROP, 10, AccessLog.DEFAULT_MAX_FILE_SIZE, 1);
+		accessLog.begin();
+		accessLog.end(503);
+		accessLog.close();
+
+		String[] fields = Files.readAllLines(file, StandardCharsets.UTF_8).get(0).split(" ");
+		assertEquals("-", fields[2]);
+		assertEquals("-", fields[3]);
+		assertEquals("-", fields[4]);
+		assertEquals("503", fields[5]);
+		assertEquals("-1", fields[6]);
+	}
+
+	@Test
+	public void parsesTheOverflow () {
+		assertEquals(AccessLog.Overflow.DROP, AccessLog.Overflow.of("drop"));
+		assertEquals(AccessLog.Overflow.SAMPLE, AccessLog.Overflow.of(" SAMPLE "));
+		assertNull(AccessLog.Overflow.of("block"));
+	}
+
+	@Test
+	public void roundsTheCapacityUpToAPowerOf2 () {
+		AccessLog accessLog = new AccessLog("server", directory.resolve("access.log"), 100, AccessLog.Overflow.DROP, 10, AccessLog.DEFAULT_MAX_FILE_SIZE, 1);
+		try {
+			assertEquals(128, accessLog.getCapacity());
+		} finally {
+			accessLog.close();
+		}
+	}
+
+	@Test
+	public void dropsRequestsWhileTheRingIsFull () throws Exception {
+		Path file = directory.resolve("access.log");
+		AccessLog accessLog = new AccessLog("server", file, 2, AccessLog.Overflow.DROP, 10, AccessLog.DEFAULT_MAX_FILE_SIZE, 1);
+		int requests = 20000;
+		log(accessLog, requests);
+		accessLog.close();
+
+		// every request is either written or dropped, and none is sampled
+		assertEquals(requests, accessLog.getLogged() + accessLog.getDropped());
+		assertEquals(0, accessLog.getSampledOut());
+		assertEquals(accessLog.getLogged(), accessLog.getWritten());
+		assertEquals(accessLog.getWritten(), Files.readAllLines(file, StandardCharsets.UTF_8).size());
+	}
+
+	@Test
+	public void samplesRequestsWhileTheRingIsNearlyFull () throws Exception {
+		Path file = directory.resolve("access.log");
+		AccessLog accessLog = new AccessLog("server", file, 4, AccessLog.Overflow.SAMPLE, 10, AccessLog.DEFAULT_MAX_FILE_SIZE, 1);
+		int requests = 20000;
+		log(accessLog, requests);
+		accessLog.close();
+
+		assertEquals(requests, accessLog.getLogged() + accessLog.getSampledOut() + accessLog.getDropped());
+		assertEquals(accessLog.getLogged(), accessLog.getWritten());
+		List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		assertEquals(accessLog.getWritten(), lines.size());
+		boolean weighted = false;
+		for (String line : lines) {
+			if (line.endsWith(" x10")) {
+				weighted = true;
+			}
+		}
+		// a sampled line stands for the requests left out
+		assertEquals(accessLog.getSampledOut() > 0, weighted);
+	}
+
+	@Test
+	public void rollsTheFileOver () throws Exception {
+		Path file = directory.resolve("access.log");
+		AccessLog accessLog = new AccessLog("server", file, 1024, AccessLog.Overflow.DROP, 10, 1024, 2);
+		for (int i = 0; i < 10; i++) {
+			// each batch of lines is more than the maximum size
+			log(accessLog, 20);
+			long deadline = System.currentTimeMillis() + 5000;
+			while (accessLog.getPending() > 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(5);
+			}
+			Thread.sleep(20);
+		}
+		accessLog.close();
+
+		assertTrue(Files.exists(directory.resolve("access.log.1")));
+		assertTrue(Files.exists(directory.resolve("access.log.2")));
+		assertFalse(Files.exists(directory.resolve("access.log.3")));
+		assertEquals(200, accessLog.getWritten());
+	}
+
+	@Test
+	public void logsConcurrentRequests () throws Exception {
+		Path file = directory.resolve("access.log");
+		AccessLog accessLog = new AccessLog("server", file, 8192, AccessLog.Overflow.DROP, 10, AccessLog.DEFAULT_MAX_FILE_SIZE, 1);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			Thread thread = new Thread(() -> log(accessLog, 500));
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		accessLog.close();
+
+		assertEquals(2000, accessLog.getLogged() + accessLog.getDropped());
+		assertEquals(accessLog.getLogged(), Files.readAllLines(file, StandardCharsets.UTF_8).size());
+	}
+
+	private void log (AccessLog accessLog, int requests) {
+		for (int i = 0; i < requests; i++) {
+			accessLog.begin();
+			accessLog.route(this, "Observation", RestOperationTypeEnum.SEARCH_TYPE);
+			accessLog.bytes(i);
+			accessLog.end(200);
+		}
+	}
+
+}